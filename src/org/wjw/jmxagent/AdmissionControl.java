@@ -0,0 +1,328 @@
+package org.wjw.jmxagent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMRuntimeException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXPrincipal;
+import javax.management.remote.MBeanServerForwarder;
+import javax.security.auth.Subject;
+
+/**
+ * Limits the load remote clients can put on the JVM. Every call through the
+ * connector (and the HTTP endpoint) needs one of <code>admission.threads</code>
+ * slots to execute. Calls without a free slot wait up to
+ * <code>admission.queueTimeout</code> milliseconds in a queue of at most
+ * <code>admission.queue</code> calls. Per principal (the authenticated user,
+ * or "anonymous"), at most <code>admission.perPrincipal</code> calls may run
+ * or wait at the same time, and at most <code>admission.rate</code> calls per
+ * second are admitted with bursts of up to <code>admission.burst</code> calls.
+ *
+ * Calls run on the caller's connector thread once admitted, so that the
+ * caller's Subject and context class loader stay in effect. Rejected calls
+ * fail with a <code>JMRuntimeException</code>. Reading the attributes and
+ * metadata of the agent's own MBeans and removing listeners are never limited,
+ * so the counters stay readable and disconnecting clients can always clean up.
+ * Operations of the agent's MBeans (a batch, an aggregation, a thread
+ * sampling) count against the caller like any other call; the calls they make
+ * on the caller's behalf do not pass the admission control again.
+ *
+ * The forwarder is a dynamic proxy, as every method of the MBeanServer is
+ * treated the same.
+ */
+final class AdmissionControl implements AdmissionControlMXBean, InvocationHandler {
+
+  private static final String ANONYMOUS = "anonymous";
+
+  private static final Set<String> READS = new HashSet<String>(Arrays.asList("getAttribute", "getAttributes",
+      "getMBeanInfo", "getObjectInstance", "isInstanceOf", "isRegistered"));
+
+  // Subject.current() on Java 18+, where Subject.getSubject() is deprecated
+  private static final Method CURRENT_SUBJECT = currentSubjectMethod();
+
+  private final int maxActive;
+
+  private final Semaphore slots;
+
+  private final int maxQueued;
+
+  private final long queueTimeout;
+
+  private final int perPrincipal;
+
+  private final double rate;
+
+  private final double burst;
+
+  private final ConcurrentMap<String, Caller> callers = new ConcurrentHashMap<String, Caller>();
+
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final AtomicInteger peakQueued = new AtomicInteger();
+
+  private final AtomicLong executed = new AtomicLong();
+
+  private final AtomicLong rejectedByRate = new AtomicLong();
+
+  private final AtomicLong rejectedByPrincipal = new AtomicLong();
+
+  private final AtomicLong rejectedByQueue = new AtomicLong();
+
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private volatile MBeanServer mbs;
+
+  /**
+   * Create the admission control from the <code>admission.*</code> options
+   *
+   * @param pConfig agent configuration
+   */
+  AdmissionControl(AgentConfig pConfig) {
+    maxActive = Math.max(1, pConfig.getInt("admission.threads", 4));
+    slots = new Semaphore(maxActive, true);
+    maxQueued = Math.max(0, pConfig.getInt("admission.queue", 100));
+    queueTimeout = Math.max(0, pConfig.getLong("admission.queueTimeout", 1000));
+    perPrincipal = pConfig.getInt("admission.perPrincipal", 0);
+    rate = Math.max(0, pConfig.getInt("admission.rate", 0));
+    burst = Math.max(1, pConfig.getInt("admission.burst", (int) Math.max(1, rate)));
+  }
+
+  /**
+   * @return the forwarder to install in the connector server
+   */
+  MBeanServerForwarder getForwarder() {
+    return (MBeanServerForwarder) Proxy.newProxyInstance(MBeanServerForwarder.class.getClassLoader(),
+        new Class<?>[] { MBeanServerForwarder.class }, this);
+  }
+
+  /** {@inheritDoc} */
+  public Object invoke(Object pProxy, Method pMethod, Object[] pArgs) throws Throwable {
+    String name = pMethod.getName();
+    if (pMethod.getDeclaringClass() == Object.class) {
+      return pMethod.invoke(this, pArgs);
+    } else if ("getMBeanServer".equals(name)) {
+      return mbs;
+    } else if ("setMBeanServer".equals(name)) {
+      setMBeanServer((MBeanServer) pArgs[0]);
+      return null;
+    } else if (name.startsWith("removeNotificationListener") || isAgentRead(name, pArgs)) {
+      return forward(pMethod, pArgs);
+    }
+
+    Caller caller = caller(principal());
+    if (rate > 0 && !caller.tryTake()) {
+      rejectedByRate.incrementAndGet();
+      throw new JMRuntimeException("JmxAgent: call rate of " + caller.name + " exceeds " + (int) rate
+          + " calls per second");
+    }
+    if (perPrincipal > 0 && caller.pending.incrementAndGet() > perPrincipal) {
+      caller.pending.decrementAndGet();
+      rejectedByPrincipal.incrementAndGet();
+      throw new JMRuntimeException("JmxAgent: " + caller.name + " already has " + perPrincipal + " calls pending");
+    }
+    try {
+      acquire();
+      try {
+        executed.incrementAndGet();
+        return forward(pMethod, pArgs);
+      } finally {
+        slots.release();
+      }
+    } finally {
+      if (perPrincipal > 0) {
+        caller.pending.decrementAndGet();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public long getExecuted() {
+    return executed.get();
+  }
+
+  /** {@inheritDoc} */
+  public int getActive() {
+    return maxActive - slots.availablePermits();
+  }
+
+  /** {@inheritDoc} */
+  public int getQueued() {
+    return queued.get();
+  }
+
+  /** {@inheritDoc} */
+  public int getPeakQueued() {
+    return peakQueued.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getRejected() {
+    return rejectedByRate.get() + rejectedByPrincipal.get() + rejectedByQueue.get() + timedOut.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getRejectedByRate() {
+    return rejectedByRate.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getRejectedByPrincipal() {
+    return rejectedByPrincipal.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getRejectedByQueue() {
+    return rejectedByQueue.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  /** {@inheritDoc} */
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  // ===================================================================================
+
+  private void setMBeanServer(MBeanServer pMbs) {
+    if (pMbs == null) {
+      throw new IllegalArgumentException("Null MBeanServer");
+    }
+    if (mbs != null) {
+      throw new IllegalArgumentException("MBeanServer object already initialized");
+    }
+    mbs = pMbs;
+  }
+
+  // Wait for a free slot
+  private void acquire() {
+    if (slots.tryAcquire()) {
+      return;
+    }
+    int waiting = queued.incrementAndGet();
+    try {
+      if (waiting > maxQueued) {
+        rejectedByQueue.incrementAndGet();
+        throw new JMRuntimeException("JmxAgent: too many calls waiting (" + maxQueued + ")");
+      }
+      int peak;
+      while (waiting > (peak = peakQueued.get()) && !peakQueued.compareAndSet(peak, waiting)) {
+        // retry
+      }
+      try {
+        if (slots.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+      }
+      timedOut.incrementAndGet();
+      throw new JMRuntimeException("JmxAgent: call not admitted within " + queueTimeout + " ms");
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  private Object forward(Method pMethod, Object[] pArgs) throws Throwable {
+    try {
+      return pMethod.invoke(mbs, pArgs);
+    } catch (InvocationTargetException exp) {
+      throw exp.getCause();
+    }
+  }
+
+  // Cheap reads of the agent's own MBeans, operations are not exempt
+  private static boolean isAgentRead(String pMethod, Object[] pArgs) {
+    return READS.contains(pMethod) && pArgs != null && pArgs.length > 0 && pArgs[0] instanceof ObjectName
+        && JmxAgent.AGENT_DOMAIN.equals(((ObjectName) pArgs[0]).getDomain());
+  }
+
+  private Caller caller(String pName) {
+    Caller caller = callers.get(pName);
+    if (caller == null) {
+      caller = new Caller(pName);
+      Caller other = callers.putIfAbsent(pName, caller);
+      if (other != null) {
+        caller = other;
+      }
+    }
+    return caller;
+  }
+
+  // Name of the authenticated principal of the current call
+  @SuppressWarnings({ "deprecation", "removal" })
+  private static String principal() {
+    Subject subject;
+    try {
+      subject = CURRENT_SUBJECT != null ? (Subject) CURRENT_SUBJECT.invoke(null) : Subject
+          .getSubject(AccessController.getContext());
+    } catch (Exception exp) {
+      return ANONYMOUS;
+    }
+    if (subject != null) {
+      Set<JMXPrincipal> principals = subject.getPrincipals(JMXPrincipal.class);
+      if (!principals.isEmpty()) {
+        return principals.iterator().next().getName();
+      }
+      for (Principal principal : subject.getPrincipals()) {
+        return principal.getName();
+      }
+    }
+    return ANONYMOUS;
+  }
+
+  private static Method currentSubjectMethod() {
+    try {
+      return Subject.class.getMethod("current");
+    } catch (NoSuchMethodException exp) {
+      return null;
+    }
+  }
+
+  // Calls pending and rate limit of one principal
+  private final class Caller {
+
+    final String name;
+
+    final AtomicInteger pending = new AtomicInteger();
+
+    private double tokens = burst;
+
+    private long lastRefill = System.nanoTime();
+
+    Caller(String pName) {
+      name = pName;
+    }
+
+    // Token bucket refilled with rate tokens per second
+    synchronized boolean tryTake() {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      if (tokens >= 1) {
+        tokens--;
+        return true;
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,60 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the admission control for remote calls, registered
+ * as <code>org.wjw.jmxagent:type=AdmissionControl</code>.
+ */
+public interface AdmissionControlMXBean {
+
+  /**
+   * @return number of calls which were executed
+   */
+  long getExecuted();
+
+  /**
+   * @return number of calls currently executing
+   */
+  int getActive();
+
+  /**
+   * @return number of calls currently waiting for a free slot
+   */
+  int getQueued();
+
+  /**
+   * @return highest number of calls waiting at the same time
+   */
+  int getPeakQueued();
+
+  /**
+   * @return number of calls rejected for any reason
+   */
+  long getRejected();
+
+  /**
+   * @return number of calls rejected because the caller exceeded its rate
+   */
+  long getRejectedByRate();
+
+  /**
+   * @return number of calls rejected because the caller had too many calls
+   *         running
+   */
+  long getRejectedByPrincipal();
+
+  /**
+   * @return number of calls rejected because the queue was full
+   */
+  long getRejectedByQueue();
+
+  /**
+   * @return number of calls rejected because they waited too long for a slot
+   */
+  long getTimedOut();
+
+  /**
+   * @return maximum number of concurrently executing calls
+   */
+  int getMaxActive();
+
+}
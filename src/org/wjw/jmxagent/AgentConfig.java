@@ -0,0 +1,84 @@
+package org.wjw.jmxagent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed view on the agent arguments given on the command line (
+ * <code>-javaagent:JmxAgent.jar=port=5678,http=8778</code>).
+ *
+ * Invalid numbers are reported on <code>System.err</code> and replaced with
+ * the default value, so that a typo in an option never prevents the
+ * application from starting.
+ */
+final class AgentConfig {
+
+  private final Map<String, String> args;
+
+  AgentConfig(Map<String, String> pArgs) {
+    args = pArgs != null ? pArgs : new HashMap<String, String>();
+  }
+
+  boolean containsKey(String pKey) {
+    return args.containsKey(pKey);
+  }
+
+  String get(String pKey) {
+    return args.get(pKey);
+  }
+
+  String get(String pKey, String pDefault) {
+    String value = args.get(pKey);
+    return value != null ? value : pDefault;
+  }
+
+  int getInt(String pKey, int pDefault) {
+    String value = args.get(pKey);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (Exception e) {
+        e.printStackTrace(System.err);
+      }
+    }
+    return pDefault;
+  }
+
+  long getLong(String pKey, long pDefault) {
+    String value = args.get(pKey);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (Exception e) {
+        e.printStackTrace(System.err);
+      }
+    }
+    return pDefault;
+  }
+
+  boolean getBoolean(String pKey, boolean pDefault) {
+    String value = args.get(pKey);
+    if (value != null) {
+      return Boolean.valueOf(value.trim()).booleanValue();
+    }
+    return pDefault;
+  }
+
+  /**
+   * Get all options starting with the given prefix, with the prefix removed
+   * from the keys.
+   *
+   * @param pPrefix prefix like <code>"http."</code>
+   * @return map of the matching options, never null
+   */
+  Map<String, String> withPrefix(String pPrefix) {
+    Map<String, String> ret = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : args.entrySet()) {
+      if (entry.getKey().startsWith(pPrefix)) {
+        ret.put(entry.getKey().substring(pPrefix.length()), entry.getValue());
+      }
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,89 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.remote.rmi.RMIConnection;
+import javax.management.remote.rmi.RMIJRMPServerImpl;
+import javax.security.auth.Subject;
+
+/**
+ * The remote object of the RMI connector server, which keeps track of the
+ * connections it exported. As long as any of them is exported, the RMI runtime
+ * keeps the JVM alive, so if stopping the connector server hangs (e.g. on a
+ * client which does not read), {@link CleanupThread} unexports them all with
+ * force.
+ */
+final class AgentRMIServerImpl extends RMIJRMPServerImpl {
+
+  private final Set<RMIConnection> clients = Collections
+      .newSetFromMap(new IdentityHashMap<RMIConnection, Boolean>());
+
+  /**
+   * Create the server object, exported when the connector server starts
+   *
+   * @param pPort port to export on, 0 for any
+   * @param pCsf client socket factory, null for the default
+   * @param pSsf server socket factory, null for the default
+   * @param pEnv environment of the connector server, may be null
+   */
+  AgentRMIServerImpl(int pPort, RMIClientSocketFactory pCsf, RMIServerSocketFactory pSsf, Map<String, ?> pEnv)
+      throws IOException {
+    super(pPort, pCsf, pSsf, pEnv);
+  }
+
+  /**
+   * Unexport this object and all connections, even if calls are in progress
+   */
+  void unexportAll() {
+    List<RMIConnection> exported;
+    synchronized (clients) {
+      exported = new ArrayList<RMIConnection>(clients);
+      clients.clear();
+    }
+    for (RMIConnection client : exported) {
+      unexport(client);
+    }
+    unexport(this);
+  }
+
+  // ===================================================================================
+
+  /** {@inheritDoc} */
+  @Override
+  protected RMIConnection makeClient(String pConnectionId, Subject pSubject) throws IOException {
+    RMIConnection ret = super.makeClient(pConnectionId, pSubject);
+    synchronized (clients) {
+      clients.add(ret);
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected void closeClient(RMIConnection pClient) throws IOException {
+    synchronized (clients) {
+      clients.remove(pClient);
+    }
+    super.closeClient(pClient);
+  }
+
+  private static void unexport(Remote pObject) {
+    try {
+      UnicastRemoteObject.unexportObject(pObject, true);
+    } catch (NoSuchObjectException exp) {
+      // already unexported
+    }
+  }
+
+}
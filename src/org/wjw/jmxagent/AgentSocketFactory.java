@@ -0,0 +1,380 @@
+package org.wjw.jmxagent;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RMI socket factory used for both the registry and the connector server, so
+ * that both are served on a single port (RMI shares a port between remote
+ * objects exported with equal socket factories).
+ *
+ * The factory sets the configured TCP options on every socket and counts
+ * connections, bytes and request latencies in a {@link TransportStats}. On
+ * the server side it can optionally accept connections with several threads,
+ * which hand the accepted sockets to RMI's single accept loop.
+ *
+ * It is usually only installed as server socket factory, so that clients like
+ * jconsole don't need any agent classes. With <code>rmi.clientFactory=true</code>
+ * it is also used as client socket factory; clients must then have the agent
+ * jar in their classpath.
+ *
+ * A compressing factory wraps the streams of both sides into
+ * {@link BlockOutputStream}/{@link BlockInputStream} and must therefore always
+ * be installed as client socket factory, too.
+ */
+final class AgentSocketFactory implements RMIServerSocketFactory, RMIClientSocketFactory, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Options which are also applied on the client side
+  private final boolean tcpNoDelay;
+
+  private final boolean keepAlive;
+
+  private final int sendBufferSize;
+
+  private final int receiveBufferSize;
+
+  private final boolean compress;
+
+  private final int compressThreshold;
+
+  private final int compressLevel;
+
+  // Server side only
+  private final transient InetAddress bindAddress;
+
+  private final transient int backlog;
+
+  private final transient int acceptThreads;
+
+  private final transient TransportStats stats;
+
+  private final transient CompressionStats compressionStats;
+
+  /**
+   * Create a factory from the <code>rmi.*</code> options.
+   *
+   * @param pConfig agent configuration
+   * @param pStats statistics to update
+   */
+  AgentSocketFactory(AgentConfig pConfig, TransportStats pStats) throws UnknownHostException {
+    this(pConfig, pStats, null);
+  }
+
+  /**
+   * Create a factory from the <code>rmi.*</code> options which compresses the
+   * streams according to the <code>compress.*</code> options if compression
+   * statistics are given.
+   *
+   * @param pConfig agent configuration
+   * @param pStats statistics to update
+   * @param pCompressionStats compression statistics or null for no compression
+   */
+  AgentSocketFactory(AgentConfig pConfig, TransportStats pStats, CompressionStats pCompressionStats)
+      throws UnknownHostException {
+    compress = pCompressionStats != null;
+    compressThreshold = pConfig.getInt("compress.threshold", 1024);
+    compressLevel = Math.min(9, Math.max(1, pConfig.getInt("compress.level", 1)));
+    compressionStats = pCompressionStats;
+    tcpNoDelay = pConfig.getBoolean("rmi.tcpNoDelay", true);
+    keepAlive = pConfig.getBoolean("rmi.keepAlive", false);
+    sendBufferSize = pConfig.getInt("rmi.sendBuffer", 0);
+    receiveBufferSize = pConfig.getInt("rmi.receiveBuffer", 0);
+    String bind = pConfig.get("rmi.bindAddress");
+    bindAddress = bind != null && !"*".equals(bind) ? InetAddress.getByName(bind) : null;
+    backlog = pConfig.getInt("rmi.backlog", 50);
+    acceptThreads = Math.max(1, pConfig.getInt("rmi.acceptThreads", 1));
+    stats = pStats;
+  }
+
+  /** {@inheritDoc} */
+  public ServerSocket createServerSocket(int pPort) throws IOException {
+    AgentServerSocket socket = new AgentServerSocket();
+    if (receiveBufferSize > 0) {
+      // Must be set before binding to take effect for windows > 64k
+      socket.setReceiveBufferSize(receiveBufferSize);
+    }
+    socket.bind(new InetSocketAddress(bindAddress, pPort), backlog);
+    if (acceptThreads > 1) {
+      socket.startAcceptors();
+    }
+    return socket;
+  }
+
+  /** {@inheritDoc} */
+  public Socket createSocket(String pHost, int pPort) throws IOException {
+    Socket socket = compress ? new AgentSocket(null) : new Socket();
+    if (receiveBufferSize > 0) {
+      socket.setReceiveBufferSize(receiveBufferSize);
+    }
+    socket.connect(new InetSocketAddress(pHost, pPort));
+    configure(socket);
+    return socket;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = (tcpNoDelay ? 1 : 0) + (keepAlive ? 2 : 0);
+    result = 31 * result + sendBufferSize;
+    result = 31 * result + receiveBufferSize;
+    result = 31 * result + (compress ? compressThreshold * 10 + compressLevel : 0);
+    result = 31 * result + (bindAddress == null ? 0 : bindAddress.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object pObj) {
+    if (pObj == null || getClass() != pObj.getClass()) {
+      return false;
+    }
+    AgentSocketFactory other = (AgentSocketFactory) pObj;
+    return tcpNoDelay == other.tcpNoDelay && keepAlive == other.keepAlive && sendBufferSize == other.sendBufferSize
+        && receiveBufferSize == other.receiveBufferSize && compress == other.compress
+        && compressThreshold == other.compressThreshold && compressLevel == other.compressLevel
+        && backlog == other.backlog
+        && acceptThreads == other.acceptThreads
+        && (bindAddress == null ? other.bindAddress == null : bindAddress.equals(other.bindAddress));
+  }
+
+  // ===================================================================================
+
+  private void configure(Socket pSocket) throws SocketException {
+    pSocket.setTcpNoDelay(tcpNoDelay);
+    pSocket.setKeepAlive(keepAlive);
+    if (sendBufferSize > 0) {
+      pSocket.setSendBufferSize(sendBufferSize);
+    }
+    if (receiveBufferSize > 0) {
+      pSocket.setReceiveBufferSize(receiveBufferSize);
+    }
+  }
+
+  // Server socket returning configured, counting sockets
+  private final class AgentServerSocket extends ServerSocket {
+
+    // Longest pause of an acceptor thread after a failed accept
+    private static final long MAX_BACKOFF = 1000;
+
+    // Queued when the socket is closed, stays in the queue for all waiters
+    private final Object closedMarker = new Object();
+
+    // Sockets accepted by the acceptor threads, the IOExceptions of failed
+    // accepts (each thrown once) or the closed marker
+    private BlockingQueue<Object> accepted;
+
+    // At most one failure is queued, RMI's accept loop pauses for each
+    private final AtomicBoolean failurePending = new AtomicBoolean();
+
+    AgentServerSocket() throws IOException {
+      super();
+    }
+
+    void startAcceptors() {
+      accepted = new LinkedBlockingQueue<Object>(backlog);
+      DaemonThreadFactory factory = new DaemonThreadFactory("JmxAgent RMI Acceptor " + getLocalPort());
+      for (int i = 0; i < acceptThreads; i++) {
+        factory.newThread(new Runnable() {
+          public void run() {
+            long backoff = 0;
+            try {
+              while (!isClosed()) {
+                try {
+                  accepted.put(acceptDirect());
+                  backoff = 0;
+                } catch (IOException exp) {
+                  if (isClosed()) {
+                    break;
+                  }
+                  // E.g. too many open files: keep accepting, but not in a
+                  // busy loop
+                  if (failurePending.compareAndSet(false, true) && !accepted.offer(exp)) {
+                    failurePending.set(false);
+                  }
+                  backoff = Math.min(MAX_BACKOFF, Math.max(10, backoff * 2));
+                  Thread.sleep(backoff);
+                }
+              }
+            } catch (InterruptedException exp) {
+              // Stop accepting
+            }
+          }
+        }).start();
+      }
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+      if (accepted == null) {
+        AgentSocket socket = acceptDirect();
+        socket.opened();
+        return socket;
+      }
+      Object next;
+      try {
+        next = accepted.take();
+      } catch (InterruptedException exp) {
+        throw new SocketException("Interrupted while accepting");
+      }
+      if (next == closedMarker) {
+        // Let the other waiters see it, too
+        accepted.offer(next);
+        throw new SocketException("Socket closed");
+      } else if (next instanceof IOException) {
+        failurePending.set(false);
+        throw (IOException) next;
+      }
+      AgentSocket socket = (AgentSocket) next;
+      socket.opened();
+      return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (accepted != null) {
+        // Make room if the queue is full, the closed marker must get in
+        while (!accepted.offer(closedMarker)) {
+          Object next = accepted.poll();
+          if (next instanceof Socket) {
+            ((Socket) next).close();
+          }
+        }
+      }
+    }
+
+    private AgentSocket acceptDirect() throws IOException {
+      AgentSocket socket = new AgentSocket(stats);
+      implAccept(socket);
+      socket.acceptedAt = System.nanoTime();
+      configure(socket);
+      return socket;
+    }
+  }
+
+  // Socket counting the bytes transferred and the time between reading a
+  // request and flushing the response (server side only), and compressing
+  // the streams if configured (both sides)
+  private final class AgentSocket extends Socket {
+
+    private final TransportStats stats;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private InputStream in;
+
+    private OutputStream out;
+
+    // Start of the current request or 0 if none is pending
+    private volatile long requestStart;
+
+    long acceptedAt;
+
+    AgentSocket(TransportStats pStats) {
+      stats = pStats;
+    }
+
+    // Called when the socket is handed to RMI
+    void opened() {
+      stats.connectionOpened(System.nanoTime() - acceptedAt);
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (in == null) {
+        InputStream raw = super.getInputStream();
+        if (stats != null) {
+          raw = new FilterInputStream(raw) {
+            @Override
+            public int read() throws IOException {
+              int b = super.read();
+              if (b >= 0) {
+                received(1);
+              }
+              return b;
+            }
+
+            @Override
+            public int read(byte[] pBuf, int pOff, int pLen) throws IOException {
+              int len = super.read(pBuf, pOff, pLen);
+              if (len > 0) {
+                received(len);
+              }
+              return len;
+            }
+          };
+        }
+        in = compress ? new BlockInputStream(raw, compressionStats) : raw;
+      }
+      return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        OutputStream raw = super.getOutputStream();
+        if (stats != null) {
+          raw = new FilterOutputStream(raw) {
+            @Override
+            public void write(int pByte) throws IOException {
+              out.write(pByte);
+              stats.written(1);
+            }
+
+            @Override
+            public void write(byte[] pBuf, int pOff, int pLen) throws IOException {
+              out.write(pBuf, pOff, pLen);
+              stats.written(pLen);
+            }
+
+            @Override
+            public void flush() throws IOException {
+              super.flush();
+              long start = requestStart;
+              if (start != 0) {
+                requestStart = 0;
+                stats.request(System.nanoTime() - start);
+              }
+            }
+          };
+        }
+        out = compress ? new BlockOutputStream(raw, compressThreshold, compressLevel, compressionStats) : raw;
+      }
+      return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (closed.compareAndSet(false, true) && stats != null) {
+          stats.connectionClosed();
+        }
+      }
+    }
+
+    private void received(int pLen) {
+      stats.read(pLen);
+      if (requestStart == 0) {
+        requestStart = System.nanoTime();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,246 @@
+package org.wjw.jmxagent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.MBeanServerForwarder;
+import javax.security.auth.Subject;
+
+/**
+ * Self-instrumentation of the agent. As outermost forwarder it times every
+ * call through the connector and the HTTP endpoint into a
+ * {@link LatencyHistogram} per MBeanServer operation and per domain of the
+ * target MBean. The histograms of all operations are created up front and
+ * those of the domains on first use (at most <code>stats.maxDomains</code>,
+ * further domains share the histogram <code>(other)</code>), so that timing a
+ * call neither locks nor allocates.
+ *
+ * Connections are counted by listening to the connector server, bytes are
+ * taken from the {@link TransportStats} and authentication failures are
+ * counted by the authenticators.
+ */
+final class AgentStats implements AgentStatsMXBean, InvocationHandler, NotificationListener {
+
+  private static final String OTHER_DOMAINS = "(other)";
+
+  private final Map<String, LatencyHistogram> operations = new HashMap<String, LatencyHistogram>();
+
+  private final ConcurrentMap<String, LatencyHistogram> domains = new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private final int maxDomains;
+
+  private final TransportStats transport;
+
+  private final AtomicLong failedCalls = new AtomicLong();
+
+  private final AtomicLong opened = new AtomicLong();
+
+  private final AtomicLong closed = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong authenticationFailures = new AtomicLong();
+
+  private volatile MBeanServer mbs;
+
+  /**
+   * Create the statistics
+   *
+   * @param pConfig agent configuration
+   * @param pTransport transport statistics for the byte counts, or null
+   */
+  AgentStats(AgentConfig pConfig, TransportStats pTransport) {
+    maxDomains = Math.max(1, pConfig.getInt("stats.maxDomains", 100));
+    transport = pTransport;
+    for (Method method : MBeanServer.class.getMethods()) {
+      if (!operations.containsKey(method.getName())) {
+        operations.put(method.getName(), new LatencyHistogram());
+      }
+    }
+    domains.put(OTHER_DOMAINS, new LatencyHistogram());
+  }
+
+  /**
+   * @return the forwarder to install in the connector server
+   */
+  MBeanServerForwarder getForwarder() {
+    return (MBeanServerForwarder) Proxy.newProxyInstance(MBeanServerForwarder.class.getClassLoader(),
+        new Class<?>[] { MBeanServerForwarder.class }, this);
+  }
+
+  /**
+   * Wrap an authenticator, so that rejected credentials are counted
+   *
+   * @param pAuthenticator authenticator to wrap
+   * @return counting authenticator
+   */
+  JMXAuthenticator countFailures(final JMXAuthenticator pAuthenticator) {
+    return new JMXAuthenticator() {
+      public Subject authenticate(Object pCredentials) {
+        try {
+          return pAuthenticator.authenticate(pCredentials);
+        } catch (SecurityException exp) {
+          authenticationFailed();
+          throw exp;
+        }
+      }
+    };
+  }
+
+  /**
+   * Count rejected credentials
+   */
+  void authenticationFailed() {
+    authenticationFailures.incrementAndGet();
+  }
+
+  /** {@inheritDoc} */
+  public Object invoke(Object pProxy, Method pMethod, Object[] pArgs) throws Throwable {
+    String name = pMethod.getName();
+    if (pMethod.getDeclaringClass() == Object.class) {
+      return pMethod.invoke(this, pArgs);
+    } else if ("getMBeanServer".equals(name)) {
+      return mbs;
+    } else if ("setMBeanServer".equals(name)) {
+      setMBeanServer((MBeanServer) pArgs[0]);
+      return null;
+    }
+    long start = System.nanoTime();
+    try {
+      return pMethod.invoke(mbs, pArgs);
+    } catch (InvocationTargetException exp) {
+      failedCalls.incrementAndGet();
+      throw exp.getCause();
+    } finally {
+      long nanos = System.nanoTime() - start;
+      operations.get(name).record(nanos);
+      if (pArgs != null && pArgs.length > 0 && pArgs[0] instanceof ObjectName) {
+        domain(((ObjectName) pArgs[0]).getDomain()).record(nanos);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void handleNotification(Notification pNotification, Object pHandback) {
+    String type = pNotification.getType();
+    if (JMXConnectionNotification.OPENED.equals(type)) {
+      opened.incrementAndGet();
+    } else if (JMXConnectionNotification.CLOSED.equals(type)) {
+      closed.incrementAndGet();
+    } else if (JMXConnectionNotification.FAILED.equals(type)) {
+      failed.incrementAndGet();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public Map<String, LatencySummary> getOperationLatencies() {
+    return summaries(operations);
+  }
+
+  /** {@inheritDoc} */
+  public Map<String, LatencySummary> getDomainLatencies() {
+    return summaries(domains);
+  }
+
+  /** {@inheritDoc} */
+  public long getFailedCalls() {
+    return failedCalls.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsOpened() {
+    return opened.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsClosed() {
+    return closed.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsFailed() {
+    return failed.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsOpen() {
+    return opened.get() - closed.get() - failed.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesRead() {
+    return transport != null ? transport.getBytesRead() : -1;
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesWritten() {
+    return transport != null ? transport.getBytesWritten() : -1;
+  }
+
+  /** {@inheritDoc} */
+  public long getAuthenticationFailures() {
+    return authenticationFailures.get();
+  }
+
+  /** {@inheritDoc} */
+  public void resetLatencies() {
+    for (LatencyHistogram histogram : operations.values()) {
+      histogram.reset();
+    }
+    for (LatencyHistogram histogram : domains.values()) {
+      histogram.reset();
+    }
+  }
+
+  // ===================================================================================
+
+  private void setMBeanServer(MBeanServer pMbs) {
+    if (pMbs == null) {
+      throw new IllegalArgumentException("Null MBeanServer");
+    }
+    if (mbs != null) {
+      throw new IllegalArgumentException("MBeanServer object already initialized");
+    }
+    mbs = pMbs;
+  }
+
+  private LatencyHistogram domain(String pDomain) {
+    LatencyHistogram histogram = domains.get(pDomain);
+    if (histogram != null) {
+      return histogram;
+    }
+    if (domains.size() > maxDomains) {
+      return domains.get(OTHER_DOMAINS);
+    }
+    histogram = new LatencyHistogram();
+    LatencyHistogram other = domains.putIfAbsent(pDomain, histogram);
+    return other != null ? other : histogram;
+  }
+
+  // Summaries of all histograms with recorded values, sorted by name
+  private static Map<String, LatencySummary> summaries(Map<String, LatencyHistogram> pHistograms) {
+    Map<String, LatencySummary> ret = new TreeMap<String, LatencySummary>();
+    for (Map.Entry<String, LatencyHistogram> entry : pHistograms.entrySet()) {
+      LatencySummary summary = entry.getValue().summary();
+      if (summary.getCount() > 0) {
+        ret.put(entry.getKey(), summary);
+      }
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,70 @@
+package org.wjw.jmxagent;
+
+import java.util.Map;
+
+/**
+ * What the agent itself costs and who uses it, registered as
+ * <code>org.wjw.jmxagent:type=AgentStats</code>.
+ */
+public interface AgentStatsMXBean {
+
+  /**
+   * @return latencies of the calls through the connector and the HTTP endpoint
+   *         per MBeanServer operation, e.g. <code>getAttribute</code>
+   */
+  Map<String, LatencySummary> getOperationLatencies();
+
+  /**
+   * @return latencies of the calls per domain of the target MBean
+   */
+  Map<String, LatencySummary> getDomainLatencies();
+
+  /**
+   * @return number of calls which failed with an exception
+   */
+  long getFailedCalls();
+
+  /**
+   * @return number of connector clients which connected
+   */
+  long getConnectionsOpened();
+
+  /**
+   * @return number of connector clients which disconnected
+   */
+  long getConnectionsClosed();
+
+  /**
+   * @return number of connections closed because of a failure
+   */
+  long getConnectionsFailed();
+
+  /**
+   * @return number of currently connected connector clients
+   */
+  long getConnectionsOpen();
+
+  /**
+   * @return bytes received on the agent's RMI sockets, -1 if
+   *         <code>rmi.factory</code> is disabled
+   */
+  long getBytesRead();
+
+  /**
+   * @return bytes sent on the agent's RMI sockets, -1 if
+   *         <code>rmi.factory</code> is disabled
+   */
+  long getBytesWritten();
+
+  /**
+   * @return number of rejected credentials of the connector and the HTTP
+   *         endpoint
+   */
+  long getAuthenticationFailures();
+
+  /**
+   * Forget all latencies. Counters are kept.
+   */
+  void resetLatencies();
+
+}
@@ -0,0 +1,94 @@
+package org.wjw.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The aggregates of one group returned by the {@link AggregationMXBean}.
+ */
+public class AggregateResult {
+
+  private final String group;
+
+  private final long count;
+
+  private final long skipped;
+
+  private final double sum;
+
+  private final double min;
+
+  private final double max;
+
+  private final double[] percentiles;
+
+  @ConstructorProperties({ "group", "count", "skipped", "sum", "min", "max", "percentiles" })
+  public AggregateResult(String pGroup, long pCount, long pSkipped, double pSum, double pMin, double pMax,
+      double[] pPercentiles) {
+    group = pGroup;
+    count = pCount;
+    skipped = pSkipped;
+    sum = pSum;
+    min = pMin;
+    max = pMax;
+    percentiles = pPercentiles;
+  }
+
+  /**
+   * @return value of the grouping key property, empty if not grouped or if
+   *         the MBeans do not have the key property
+   */
+  public String getGroup() {
+    return group;
+  }
+
+  /**
+   * @return number of numeric values aggregated
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return number of MBeans whose value was not numeric or could not be read
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return sum of the values
+   */
+  public double getSum() {
+    return sum;
+  }
+
+  /**
+   * @return smallest value, NaN if there is none
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * @return largest value, NaN if there is none
+   */
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * @return average of the values, NaN if there is none
+   */
+  public double getAvg() {
+    return count > 0 ? sum / count : Double.NaN;
+  }
+
+  /**
+   * @return the requested percentiles in the requested order, NaN if there are
+   *         no values
+   */
+  public double[] getPercentiles() {
+    return percentiles;
+  }
+
+}
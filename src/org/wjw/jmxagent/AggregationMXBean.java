@@ -0,0 +1,36 @@
+package org.wjw.jmxagent;
+
+/**
+ * Aggregates an attribute over many MBeans within the JVM, registered as
+ * <code>org.wjw.jmxagent:type=Aggregation</code>. Instead of querying the
+ * names and reading every MBean remotely, a client gets e.g. the total number
+ * of active connections of all <code>type=DataSource,*</code> MBeans with a
+ * single call.
+ */
+public interface AggregationMXBean {
+
+  /**
+   * Aggregate a numeric attribute of all MBeans matching a pattern
+   *
+   * @param pPattern ObjectName pattern of the MBeans
+   * @param pAttribute attribute name, optionally followed by an inner path like
+   *          <code>HeapMemoryUsage/used</code>
+   * @param pGroupBy key property by which the MBeans are grouped, null or
+   *          empty for a single group
+   * @param pPercentiles percentiles (between 0 and 100) to compute, may be
+   *          null
+   * @return one result per group, sorted by group
+   */
+  AggregateResult[] aggregate(String pPattern, String pAttribute, String pGroupBy, double[] pPercentiles);
+
+  /**
+   * @return number of aggregations computed
+   */
+  long getAggregations();
+
+  /**
+   * @return number of attribute values read for aggregations
+   */
+  long getValuesRead();
+
+}
@@ -0,0 +1,273 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Computes the aggregates of the {@link AggregationMXBean}. The matching
+ * names are split into chunks which are read by a pool of
+ * <code>aggregation.threads</code> threads, each chunk into partial aggregates
+ * per group. The caller merges the partial aggregates, so only the values
+ * needed for percentiles are ever held.
+ */
+final class AggregationService implements AggregationMXBean {
+
+  // Smallest number of MBeans read by one task
+  private static final int MIN_CHUNK = 16;
+
+  private final MBeanServerConnection server;
+
+  private final int threads;
+
+  private final long timeout;
+
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong aggregations = new AtomicLong();
+
+  private final AtomicLong valuesRead = new AtomicLong();
+
+  /**
+   * Create the service from the <code>aggregation.*</code> options
+   *
+   * @param pConfig agent configuration
+   * @param pServer connection to read the attributes from
+   */
+  AggregationService(AgentConfig pConfig, MBeanServerConnection pServer) {
+    server = pServer;
+    threads = Math.max(1, pConfig.getInt("aggregation.threads", 4));
+    timeout = Math.max(1, pConfig.getLong("aggregation.timeout", 30000));
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("JmxAgent Aggregation"));
+    // No threads while nothing is aggregated
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stop the threads, running aggregations fail
+   */
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  /** {@inheritDoc} */
+  public AggregateResult[] aggregate(String pPattern, String pAttribute, String pGroupBy, double[] pPercentiles) {
+    ObjectName pattern;
+    try {
+      pattern = new ObjectName(pPattern);
+    } catch (MalformedObjectNameException exp) {
+      throw new IllegalArgumentException("Invalid ObjectName " + pPattern + ": " + exp.getMessage());
+    } catch (NullPointerException exp) {
+      throw new IllegalArgumentException("No ObjectName pattern given");
+    }
+    List<String> path = EscapeUtil.parsePath(pAttribute);
+    if (path == null) {
+      throw new IllegalArgumentException("No attribute given");
+    }
+    double[] percentiles = pPercentiles != null ? pPercentiles : new double[0];
+    for (double percentile : percentiles) {
+      if (!(percentile >= 0 && percentile <= 100)) {
+        throw new IllegalArgumentException("Percentile " + percentile + " not between 0 and 100");
+      }
+    }
+    String groupBy = pGroupBy != null && pGroupBy.length() > 0 ? pGroupBy : null;
+
+    List<ObjectName> names;
+    try {
+      names = new ArrayList<ObjectName>(server.queryNames(pattern, null));
+    } catch (IOException exp) {
+      throw new IllegalStateException(exp.getMessage(), exp);
+    }
+    aggregations.incrementAndGet();
+    Map<String, Partial> groups = compute(names, path.get(0), path.subList(1, path.size()), groupBy,
+        percentiles.length > 0);
+
+    AggregateResult[] ret = new AggregateResult[groups.size()];
+    int i = 0;
+    for (Map.Entry<String, Partial> entry : new TreeMap<String, Partial>(groups).entrySet()) {
+      ret[i++] = entry.getValue().toResult(entry.getKey(), percentiles);
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public long getAggregations() {
+    return aggregations.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getValuesRead() {
+    return valuesRead.get();
+  }
+
+  // ===================================================================================
+
+  // Read the chunks in parallel and merge their partial aggregates
+  private Map<String, Partial> compute(List<ObjectName> pNames, final String pAttribute, final List<String> pPath,
+      final String pGroupBy, final boolean pKeepValues) {
+    int chunk = Math.max(MIN_CHUNK, (pNames.size() + threads * 4 - 1) / (threads * 4));
+    if (pNames.size() <= chunk) {
+      // Not worth a thread switch
+      return read(pNames, pAttribute, pPath, pGroupBy, pKeepValues);
+    }
+    List<Future<Map<String, Partial>>> futures = new ArrayList<Future<Map<String, Partial>>>();
+    try {
+      for (int start = 0; start < pNames.size(); start += chunk) {
+        final List<ObjectName> names = pNames.subList(start, Math.min(start + chunk, pNames.size()));
+        futures.add(executor.submit(new Callable<Map<String, Partial>>() {
+          public Map<String, Partial> call() {
+            return read(names, pAttribute, pPath, pGroupBy, pKeepValues);
+          }
+        }));
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+      Map<String, Partial> ret = new HashMap<String, Partial>();
+      for (Future<Map<String, Partial>> future : futures) {
+        for (Map.Entry<String, Partial> entry : future.get(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS).entrySet()) {
+          Partial partial = ret.get(entry.getKey());
+          if (partial == null) {
+            ret.put(entry.getKey(), entry.getValue());
+          } else {
+            partial.merge(entry.getValue());
+          }
+        }
+      }
+      return ret;
+    } catch (TimeoutException exp) {
+      throw new IllegalStateException("Aggregation not completed within " + timeout + " ms");
+    } catch (ExecutionException exp) {
+      Throwable cause = exp.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(String
+          .valueOf(cause.getMessage()), cause);
+    } catch (InterruptedException exp) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Aggregation interrupted");
+    } finally {
+      for (Future<Map<String, Partial>> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  // Aggregate one chunk
+  private Map<String, Partial> read(List<ObjectName> pNames, String pAttribute, List<String> pPath,
+      String pGroupBy, boolean pKeepValues) {
+    Map<String, Partial> ret = new HashMap<String, Partial>();
+    for (ObjectName name : pNames) {
+      String group = pGroupBy != null ? name.getKeyProperty(pGroupBy) : null;
+      if (group == null) {
+        group = "";
+      }
+      Partial partial = ret.get(group);
+      if (partial == null) {
+        partial = new Partial(pKeepValues);
+        ret.put(group, partial);
+      }
+      Object value;
+      try {
+        value = PathExtractor.extract(server.getAttribute(name, pAttribute), pPath);
+      } catch (JMException exp) {
+        // Unregistered in the meantime or no such attribute
+        value = null;
+      } catch (IllegalArgumentException exp) {
+        value = null;
+      } catch (IOException exp) {
+        throw new IllegalStateException(exp.getMessage(), exp);
+      }
+      valuesRead.incrementAndGet();
+      if (value instanceof Number) {
+        partial.add(((Number) value).doubleValue());
+      } else {
+        partial.skipped++;
+      }
+    }
+    return ret;
+  }
+
+  // Aggregates of a group, read by a single thread
+  private static final class Partial {
+
+    long count;
+
+    long skipped;
+
+    double sum;
+
+    double min = Double.NaN;
+
+    double max = Double.NaN;
+
+    // Null if no percentiles are computed
+    double[] values;
+
+    Partial(boolean pKeepValues) {
+      values = pKeepValues ? new double[MIN_CHUNK] : null;
+    }
+
+    void add(double pValue) {
+      if (values != null) {
+        if (count == values.length) {
+          values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[(int) count] = pValue;
+      }
+      min = count == 0 || pValue < min ? pValue : min;
+      max = count == 0 || pValue > max ? pValue : max;
+      sum += pValue;
+      count++;
+    }
+
+    void merge(Partial pOther) {
+      if (values != null) {
+        if (count + pOther.count > values.length) {
+          values = Arrays.copyOf(values, (int) (count + pOther.count));
+        }
+        System.arraycopy(pOther.values, 0, values, (int) count, (int) pOther.count);
+      }
+      if (pOther.count > 0) {
+        min = count == 0 || pOther.min < min ? pOther.min : min;
+        max = count == 0 || pOther.max > max ? pOther.max : max;
+      }
+      sum += pOther.sum;
+      count += pOther.count;
+      skipped += pOther.skipped;
+    }
+
+    AggregateResult toResult(String pGroup, double[] pPercentiles) {
+      double[] percentiles = new double[pPercentiles.length];
+      if (values != null) {
+        Arrays.sort(values, 0, (int) count);
+      }
+      for (int i = 0; i < percentiles.length; i++) {
+        if (count == 0) {
+          percentiles[i] = Double.NaN;
+        } else {
+          // Nearest rank
+          int rank = (int) Math.ceil(pPercentiles[i] / 100 * count);
+          percentiles[i] = values[Math.max(0, Math.min((int) count - 1, rank - 1))];
+        }
+      }
+      return new AggregateResult(pGroup, count, skipped, sum, min, max, percentiles);
+    }
+  }
+
+}
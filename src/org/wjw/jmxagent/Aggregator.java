@@ -0,0 +1,538 @@
+package org.wjw.jmxagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Serves the JVMs of a host through a single HTTP endpoint. It is started with
+ * <code>java -jar JmxAgent.jar [options]</code> (see {@link JmxAgent#main}).
+ *
+ * Every <code>aggregator.interval</code> milliseconds the local JVMs are
+ * listed with the Attach API (used by reflection, as it is part of the JDK's
+ * <code>lib/tools.jar</code> up to Java 8). A JVM whose display name matches
+ * <code>aggregator.include</code> and not <code>aggregator.exclude</code> is
+ * connected once and the connection kept: if the agent already runs in it, to
+ * its connector (preferably <code>jmxnio</code>), otherwise the agent is first
+ * loaded into it with the <code>target.*</code> options, listening on
+ * 127.0.0.1 only.
+ *
+ * <code>read</code> and <code>search</code> requests POSTed to
+ * <code>/jmx</code> are executed on all connected JVMs in parallel. Each
+ * result lists the value or error of each JVM, tagged with its pid and name.
+ * A JVM not answering within <code>aggregator.timeout</code> milliseconds is
+ * reported with status 408, so a call takes as long as the slowest JVM and
+ * never longer than the timeout. The request <code>{"type":"targets"}</code>
+ * lists the discovered JVMs.
+ */
+final class Aggregator implements HttpAgent.RequestHandler {
+
+  private final AgentConfig config;
+
+  private final long interval;
+
+  private final long timeout;
+
+  private final Pattern include;
+
+  private final Pattern exclude;
+
+  private final Map<String, String> targetOptions;
+
+  private final String selfPid;
+
+  private final AttachApi attachApi;
+
+  // By pid
+  private final Map<String, Target> targets = new ConcurrentHashMap<String, Target>();
+
+  private final ExecutorService executor;
+
+  private ScheduledExecutorService discovery;
+
+  private HttpAgent httpAgent;
+
+  /**
+   * Create the aggregator from the <code>aggregator.*</code>,
+   * <code>target.*</code> and <code>http*</code> options
+   *
+   * @param pConfig configuration
+   * @throws IllegalStateException if the Attach API is not available
+   */
+  Aggregator(AgentConfig pConfig) {
+    attachApi = new AttachApi();
+    config = pConfig;
+    interval = Math.max(100, pConfig.getLong("aggregator.interval", 10000));
+    timeout = Math.max(1, pConfig.getLong("aggregator.timeout", 5000));
+    include = Pattern.compile(pConfig.get("aggregator.include", ".*"));
+    exclude = Pattern.compile(pConfig.get("aggregator.exclude", "$^"));
+    targetOptions = new TreeMap<String, String>(pConfig.withPrefix("target."));
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    selfPid = name.indexOf('@') > 0 ? name.substring(0, name.indexOf('@')) : name;
+    executor = DaemonThreadFactory.newRequestExecutor("JmxAgent Aggregator",
+        pConfig.getInt("aggregator.threads", 16));
+  }
+
+  /**
+   * Discover the JVMs and start the HTTP endpoint
+   */
+  void start() throws Exception {
+    discover();
+    discovery = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Discovery"));
+    discovery.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          discover();
+        } catch (RuntimeException exp) {
+          // Keep the schedule alive
+          exp.printStackTrace(System.err);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+    httpAgent = new HttpAgent(config, this, "127.0.0.1");
+    httpAgent.start();
+    System.out.println("JmxAgent aggregator: http://" + httpAgent.getAddress().getAddress().getHostAddress() + ":"
+        + httpAgent.getAddress().getPort() + "/jmx");
+  }
+
+  /**
+   * Stop the endpoint and close the connections. The agents loaded into the
+   * JVMs keep running.
+   */
+  void stop() {
+    if (httpAgent != null) {
+      httpAgent.stop();
+    }
+    if (discovery != null) {
+      discovery.shutdownNow();
+    }
+    executor.shutdownNow();
+    for (Target target : targets.values()) {
+      target.close();
+    }
+    targets.clear();
+  }
+
+  /** {@inheritDoc} */
+  public void handle(Object pRequest, JsonWriter pWriter) throws IOException {
+    final List<?> requests = pRequest instanceof List ? (List<?>) pRequest : Collections.singletonList(pRequest);
+    List<Target> connected = new ArrayList<Target>();
+    for (Target target : new TreeMap<String, Target>(targets).values()) {
+      if (target.handler != null) {
+        connected.add(target);
+      }
+    }
+
+    // One task per JVM executing all requests, so that the slowest JVM bounds
+    // the latency. A JVM still busy with an earlier request fails at once, so
+    // that a hung JVM blocks at most one thread and not the whole pool.
+    Object[][] results = new Object[connected.size()][];
+    List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>(connected.size());
+    for (int i = 0; i < results.length; i++) {
+      final Target target = connected.get(i);
+      if (!target.busy.compareAndSet(false, true)) {
+        futures.add(null);
+        results[i] = failed(requests.size(), new TimeoutException("Still executing an earlier request"));
+        continue;
+      }
+      try {
+        futures.add(executor.submit(new Callable<Object[]>() {
+          public Object[] call() {
+            try {
+              return target.execute(requests);
+            } finally {
+              target.busy.set(false);
+            }
+          }
+        }));
+      } catch (RejectedExecutionException exp) {
+        // The aggregator is stopping
+        target.busy.set(false);
+        futures.add(null);
+        results[i] = failed(requests.size(), exp);
+      }
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    for (int i = 0; i < results.length; i++) {
+      if (futures.get(i) == null) {
+        continue;
+      }
+      try {
+        results[i] = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException exp) {
+        // Left running and not interrupted: an interrupt would fail the call
+        // with an IOException and close the connection which is still fine.
+        // Until it ends, the JVM's busy flag keeps further tasks away.
+        results[i] = failed(requests.size(), new TimeoutException("No answer within " + timeout + " ms"));
+      } catch (ExecutionException exp) {
+        results[i] = failed(requests.size(), exp.getCause());
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+        results[i] = failed(requests.size(), exp);
+      }
+    }
+
+    if (pRequest instanceof List) {
+      pWriter.beginArray();
+    }
+    for (int r = 0; r < requests.size(); r++) {
+      Object request = requests.get(r);
+      pWriter.beginObject();
+      pWriter.name("request").value(request);
+      if (isType(request, "targets")) {
+        pWriter.name("targets");
+        writeTargets(pWriter);
+      } else {
+        pWriter.name("targets").beginArray();
+        for (int t = 0; t < results.length; t++) {
+          pWriter.beginObject();
+          pWriter.name("pid").value(connected.get(t).pid);
+          pWriter.name("name").value(connected.get(t).name);
+          Object value = results[t][r];
+          if (value instanceof Failure) {
+            Throwable error = JmxRequestHandler.unwrap(((Failure) value).error);
+            pWriter.name("status").value(Integer.valueOf(JmxRequestHandler.status(error)));
+            pWriter.name("error_type").value(error.getClass().getName());
+            pWriter.name("error").value(String.valueOf(error.getMessage()));
+          } else {
+            pWriter.name("status").value(Integer.valueOf(200));
+            pWriter.name("value").value(value);
+          }
+          pWriter.endObject();
+        }
+        pWriter.endArray();
+      }
+      pWriter.name("timestamp").value(Long.valueOf(System.currentTimeMillis() / 1000));
+      pWriter.endObject();
+    }
+    if (pRequest instanceof List) {
+      pWriter.endArray();
+    }
+  }
+
+  // ===================================================================================
+
+  // Connect new JVMs, forget vanished ones
+  private void discover() {
+    // Display names by pid
+    Map<String, String> running = new HashMap<String, String>();
+    for (Map.Entry<String, String> jvm : attachApi.list().entrySet()) {
+      if (!jvm.getKey().equals(selfPid) && include.matcher(jvm.getValue()).find()
+          && !exclude.matcher(jvm.getValue()).find()) {
+        running.put(jvm.getKey(), jvm.getValue());
+      }
+    }
+    for (Target target : targets.values()) {
+      if (!running.containsKey(target.pid)) {
+        targets.remove(target.pid);
+        target.close();
+      }
+    }
+    for (Map.Entry<String, String> jvm : running.entrySet()) {
+      Target target = targets.get(jvm.getKey());
+      if (target == null) {
+        target = new Target(jvm.getKey(), mainClass(jvm.getValue()));
+        targets.put(target.pid, target);
+      }
+      if (target.handler == null) {
+        target.connect();
+      }
+    }
+  }
+
+  private void writeTargets(JsonWriter pWriter) throws IOException {
+    pWriter.beginArray();
+    for (Target target : new TreeMap<String, Target>(targets).values()) {
+      pWriter.beginObject();
+      pWriter.name("pid").value(target.pid);
+      pWriter.name("name").value(target.name);
+      pWriter.name("url").value(target.url);
+      pWriter.name("connected").value(Boolean.valueOf(target.handler != null));
+      pWriter.name("error").value(target.error);
+      pWriter.endObject();
+    }
+    pWriter.endArray();
+  }
+
+  private static boolean isType(Object pRequest, String pType) {
+    return pRequest instanceof Map && pType.equals(((Map<?, ?>) pRequest).get("type"));
+  }
+
+  private static Object[] failed(int pRequests, Throwable pError) {
+    Object[] ret = new Object[pRequests];
+    for (int i = 0; i < pRequests; i++) {
+      ret[i] = new Failure(pError);
+    }
+    return ret;
+  }
+
+  // The main class without its arguments
+  private static String mainClass(String pDisplayName) {
+    String name = pDisplayName.trim();
+    int space = name.indexOf(' ');
+    return space > 0 ? name.substring(0, space) : name;
+  }
+
+  private static String jarPath() throws URISyntaxException {
+    return new File(Aggregator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  // The error of a request on one JVM
+  private static final class Failure {
+
+    final Throwable error;
+
+    Failure(Throwable pError) {
+      error = pError;
+    }
+  }
+
+  // A JVM with its pooled connection
+  private final class Target {
+
+    final String pid;
+
+    final String name;
+
+    volatile String url;
+
+    volatile String error;
+
+    // Null while not connected
+    volatile JmxRequestHandler handler;
+
+    // Set while a task executes requests on this JVM
+    final AtomicBoolean busy = new AtomicBoolean();
+
+    private JMXConnector connector;
+
+    Target(String pPid, String pName) {
+      pid = pPid;
+      name = pName;
+    }
+
+    // Called by the discovery only
+    void connect() {
+      try {
+        if (url == null) {
+          url = attach();
+        }
+        Map<String, Object> env = new HashMap<String, Object>();
+        if (targetOptions.containsKey("user") && targetOptions.containsKey("password")) {
+          env.put(JMXConnector.CREDENTIALS, new String[] { targetOptions.get("user"), targetOptions.get("password") });
+        }
+        JMXConnector jmxConnector = JMXConnectorFactory.connect(new JMXServiceURL(url), env);
+        synchronized (this) {
+          connector = jmxConnector;
+        }
+        handler = new JmxRequestHandler(jmxConnector.getMBeanServerConnection(), false);
+        error = null;
+      } catch (Exception exp) {
+        if (error == null) {
+          System.err.println("JmxAgent: Cannot connect to JVM " + pid + " (" + name + "): " + exp);
+        }
+        error = exp.toString();
+      }
+    }
+
+    Object[] execute(List<?> pRequests) {
+      JmxRequestHandler current = handler;
+      Object[] ret = new Object[pRequests.size()];
+      for (int i = 0; i < ret.length; i++) {
+        Object request = pRequests.get(i);
+        try {
+          if (isType(request, "targets")) {
+            continue;
+          } else if (!isType(request, "read") && !isType(request, "search")) {
+            throw new IllegalArgumentException("Only read and search requests are sent to all JVMs");
+          } else if (current == null) {
+            throw new IOException("Not connected: " + error);
+          }
+          ret[i] = current.execute((Map<?, ?>) request);
+        } catch (IOException exp) {
+          // An interrupt (the aggregator stopping) is no failure of the connection
+          if (!(exp instanceof InterruptedIOException) && !Thread.currentThread().isInterrupted()) {
+            // Reconnected by the next discovery
+            disconnect(current, exp);
+            current = null;
+          }
+          ret[i] = new Failure(exp);
+        } catch (Exception exp) {
+          ret[i] = new Failure(exp);
+        }
+      }
+      return ret;
+    }
+
+    void close() {
+      disconnect(handler, null);
+    }
+
+    // Find the agent's connector in the JVM, loading the agent if needed
+    private String attach() throws Exception {
+      Object vm = attachApi.call(attachApi.attach, null, pid);
+      try {
+        String ret = connectorUrl((Properties) attachApi.call(attachApi.systemProperties, vm));
+        if (ret == null) {
+          StringBuilder args = new StringBuilder();
+          for (Map.Entry<String, String> option : targetOptions.entrySet()) {
+            args.append(option.getKey()).append('=').append(option.getValue()).append(',');
+          }
+          args.append("host=127.0.0.1,port=").append(freePort()).append(",nio=0");
+          attachApi.call(attachApi.loadAgent, vm, jarPath(), args.toString());
+          ret = connectorUrl((Properties) attachApi.call(attachApi.systemProperties, vm));
+          if (ret == null) {
+            throw new IOException("Agent did not start in JVM " + pid);
+          }
+        }
+        return ret;
+      } finally {
+        attachApi.call(attachApi.detach, vm);
+      }
+    }
+
+    private String connectorUrl(Properties pProperties) {
+      String ret = pProperties.getProperty(JmxAgent.NIO_URL_PROPERTY);
+      return ret != null ? ret : pProperties.getProperty(JmxAgent.RMI_URL_PROPERTY);
+    }
+
+    private void disconnect(JmxRequestHandler pHandler, Exception pError) {
+      JMXConnector old;
+      synchronized (this) {
+        if (handler != pHandler || connector == null) {
+          return;
+        }
+        handler = null;
+        old = connector;
+        connector = null;
+      }
+      if (pError != null) {
+        error = pError.toString();
+      }
+      try {
+        old.close();
+      } catch (IOException exp) {
+        // closing anyway
+      }
+    }
+  }
+
+  // The methods of com.sun.tools.attach.VirtualMachine and its descriptor
+  private static final class AttachApi {
+
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+
+    private final Method list;
+
+    final Method attach;
+
+    final Method systemProperties;
+
+    final Method loadAgent;
+
+    final Method detach;
+
+    private final Method id;
+
+    private final Method displayName;
+
+    AttachApi() {
+      Class<?> vm = virtualMachineClass();
+      try {
+        Class<?> descriptor = Class.forName("com.sun.tools.attach.VirtualMachineDescriptor", true, vm
+            .getClassLoader());
+        list = vm.getMethod("list");
+        attach = vm.getMethod("attach", String.class);
+        systemProperties = vm.getMethod("getSystemProperties");
+        loadAgent = vm.getMethod("loadAgent", String.class, String.class);
+        detach = vm.getMethod("detach");
+        id = descriptor.getMethod("id");
+        displayName = descriptor.getMethod("displayName");
+      } catch (Exception exp) {
+        throw new IllegalStateException("The Attach API can not be used: " + exp, exp);
+      }
+    }
+
+    // Display names of the running JVMs by pid
+    Map<String, String> list() {
+      try {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (Object descriptor : (List<?>) call(list, null)) {
+          ret.put((String) call(id, descriptor), (String) call(displayName, descriptor));
+        }
+        return ret;
+      } catch (Exception exp) {
+        throw new IllegalStateException("Cannot list the JVMs: " + exp, exp);
+      }
+    }
+
+    Object call(Method pMethod, Object pTarget, Object... pArgs) throws Exception {
+      try {
+        return pMethod.invoke(pTarget, pArgs);
+      } catch (InvocationTargetException exp) {
+        Throwable cause = exp.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        throw (Error) cause;
+      }
+    }
+
+    private static Class<?> virtualMachineClass() {
+      try {
+        return Class.forName(VIRTUAL_MACHINE);
+      } catch (ClassNotFoundException exp) {
+        // Up to Java 8 in the tools.jar of the JDK whose JRE is running
+        File tools = new File(System.getProperty("java.home"), "../lib/tools.jar");
+        if (tools.isFile()) {
+          try {
+            return Class.forName(VIRTUAL_MACHINE, true, new URLClassLoader(new URL[] { tools.toURI().toURL() }));
+          } catch (Exception toolsExp) {
+            // not usable either
+          }
+        }
+        throw new IllegalStateException("The Attach API is missing, run the aggregator with a JDK");
+      }
+    }
+  }
+
+}
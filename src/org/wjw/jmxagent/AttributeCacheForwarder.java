@@ -0,0 +1,458 @@
+package org.wjw.jmxagent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.MBeanException;
+import javax.management.MBeanRegistrationException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * <code>MBeanServerForwarder</code> which caches attribute values for a
+ * configurable time, so that any number of clients reading the same attribute
+ * within that time cost a single read of the MBean. Concurrent readers of an
+ * expired value wait for one reader to fetch it instead of all going through
+ * to the MBean.
+ *
+ * The time to live is configured with
+ * <ul>
+ * <li><code>cache.ttl=1000</code> default TTL in milliseconds</li>
+ * <li><code>cache.ttl.&lt;domain&gt;=...</code> TTL for all attributes of a
+ * domain</li>
+ * <li><code>cache.ttl.&lt;domain&gt;/&lt;attribute&gt;=...</code> TTL for a
+ * single attribute in a domain</li>
+ * </ul>
+ * A TTL of 0 disables caching. The agent's own domain is never cached unless
+ * configured explicitly.
+ *
+ * When more than <code>cache.size</code> values are cached, expired entries
+ * are removed first, then arbitrary entries until the cache is back to 90% of
+ * its size. Writing an attribute invalidates it, invoking an operation or
+ * unregistering an MBean invalidates all attributes of that MBean.
+ */
+final class AttributeCacheForwarder extends MBeanServerForwarderSupport implements AttributeCacheMXBean {
+
+  private final long defaultTtl;
+
+  private final Map<String, Long> domainTtls = new HashMap<String, Long>();
+
+  private final Map<String, Map<String, Long>> attributeTtls = new HashMap<String, Map<String, Long>>();
+
+  private final int maxSize;
+
+  private final ConcurrentMap<ObjectName, ConcurrentMap<String, Entry>> cache = new ConcurrentHashMap<ObjectName, ConcurrentMap<String, Entry>>();
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  AttributeCacheForwarder(AgentConfig pConfig) {
+    defaultTtl = TimeUnit.MILLISECONDS.toNanos(pConfig.getLong("cache.ttl", 1000L));
+    maxSize = pConfig.getInt("cache.size", 10000);
+    domainTtls.put(JmxAgent.AGENT_DOMAIN, Long.valueOf(0L));
+    for (Map.Entry<String, String> entry : pConfig.withPrefix("cache.ttl.").entrySet()) {
+      Long ttl;
+      try {
+        ttl = Long.valueOf(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(entry.getValue().trim())));
+      } catch (NumberFormatException exp) {
+        exp.printStackTrace(System.err);
+        continue;
+      }
+      String key = entry.getKey();
+      int idx = key.indexOf('/');
+      if (idx < 0) {
+        domainTtls.put(key, ttl);
+      } else {
+        String domain = key.substring(0, idx);
+        Map<String, Long> attrs = attributeTtls.get(domain);
+        if (attrs == null) {
+          attrs = new HashMap<String, Long>();
+          attributeTtls.put(domain, attrs);
+        }
+        attrs.put(key.substring(idx + 1), ttl);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object getAttribute(final ObjectName name, final String attribute) throws MBeanException,
+      AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+    long ttl = ttl(name, attribute);
+    if (ttl <= 0 || name.isPattern()) {
+      return super.getAttribute(name, attribute);
+    }
+    while (true) {
+      long now = System.nanoTime();
+      ConcurrentMap<String, Entry> attrs = cache.get(name);
+      Entry entry = attrs != null ? attrs.get(attribute) : null;
+      if (entry != null && entry.isValid(now)) {
+        hits.incrementAndGet();
+        return get(entry, name, attribute);
+      }
+      Entry fresh = new Entry(now + ttl, new Callable<Object>() {
+        public Object call() throws Exception {
+          return getMBeanServer().getAttribute(name, attribute);
+        }
+      });
+      boolean won;
+      if (entry == null) {
+        if (attrs == null) {
+          attrs = attributesOf(name);
+        }
+        won = attrs.putIfAbsent(attribute, fresh) == null;
+        if (won) {
+          added();
+        }
+      } else {
+        won = attrs.replace(attribute, entry, fresh);
+      }
+      if (won) {
+        misses.incrementAndGet();
+        fresh.value.run();
+        try {
+          return get(fresh, name, attribute);
+        } catch (Exception exp) {
+          // Don't cache failures
+          if (attrs.remove(attribute, fresh)) {
+            size.decrementAndGet();
+            removeIfEmpty(name, attrs);
+          }
+          throw rethrow(exp);
+        }
+      }
+      // Another reader won the race, wait for its value
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException,
+      ReflectionException {
+    if (name.isPattern() || attributes == null) {
+      return super.getAttributes(name, attributes);
+    }
+    // Answer what is cached, read everything else with a single call
+    Object[] values = new Object[attributes.length];
+    boolean[] found = new boolean[attributes.length];
+    int missing = 0;
+    ConcurrentMap<String, Entry> attrs = cache.get(name);
+    long now = System.nanoTime();
+    for (int i = 0; i < attributes.length; i++) {
+      if (ttl(name, attributes[i]) <= 0) {
+        missing++;
+        continue;
+      }
+      Entry entry = attrs != null ? attrs.get(attributes[i]) : null;
+      if (entry != null && entry.isValid(now) && entry.value.isDone()) {
+        try {
+          values[i] = entry.value.get();
+          found[i] = true;
+          hits.incrementAndGet();
+          continue;
+        } catch (Exception exp) {
+          // Fall through and read it again
+        }
+      }
+      misses.incrementAndGet();
+      missing++;
+    }
+    if (missing > 0) {
+      String[] toRead = new String[missing];
+      int j = 0;
+      for (int i = 0; i < attributes.length; i++) {
+        if (!found[i]) {
+          toRead[j++] = attributes[i];
+        }
+      }
+      AttributeList read = super.getAttributes(name, toRead);
+      for (Object o : read) {
+        Attribute attr = (Attribute) o;
+        long ttl = ttl(name, attr.getName());
+        if (ttl > 0) {
+          Entry fresh = new Entry(now + ttl, attr.getValue());
+          if (attrs == null) {
+            attrs = attributesOf(name);
+          }
+          if (attrs.put(attr.getName(), fresh) == null) {
+            added();
+          }
+        }
+        for (int i = 0; i < attributes.length; i++) {
+          if (!found[i] && attributes[i].equals(attr.getName())) {
+            values[i] = attr.getValue();
+            found[i] = true;
+          }
+        }
+      }
+    }
+    AttributeList ret = new AttributeList(attributes.length);
+    for (int i = 0; i < attributes.length; i++) {
+      if (found[i]) {
+        ret.add(new Attribute(attributes[i], values[i]));
+      }
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void setAttribute(ObjectName name, Attribute attribute) throws InstanceNotFoundException,
+      AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+    try {
+      super.setAttribute(name, attribute);
+    } finally {
+      invalidate(name, attribute.getName());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public AttributeList setAttributes(ObjectName name, AttributeList attributes) throws InstanceNotFoundException,
+      ReflectionException {
+    try {
+      return super.setAttributes(name, attributes);
+    } finally {
+      for (Object o : attributes) {
+        invalidate(name, ((Attribute) o).getName());
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+      throws InstanceNotFoundException, MBeanException, ReflectionException {
+    try {
+      return super.invoke(name, operationName, params, signature);
+    } finally {
+      invalidate(name);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+    try {
+      super.unregisterMBean(name);
+    } finally {
+      invalidate(name);
+    }
+  }
+
+  /** {@inheritDoc} */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /** {@inheritDoc} */
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /** {@inheritDoc} */
+  public int getSize() {
+    return size.get();
+  }
+
+  /** {@inheritDoc} */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /** {@inheritDoc} */
+  public void clear() {
+    cache.clear();
+    size.set(0);
+  }
+
+  // ===================================================================================
+
+  private long ttl(ObjectName pName, String pAttribute) {
+    String domain = pName.getDomain();
+    Map<String, Long> attrs = attributeTtls.get(domain);
+    if (attrs != null) {
+      Long ttl = attrs.get(pAttribute);
+      if (ttl != null) {
+        return ttl.longValue();
+      }
+    }
+    Long ttl = domainTtls.get(domain);
+    return ttl != null ? ttl.longValue() : defaultTtl;
+  }
+
+  // The attributes of an MBean, created only to store a value
+  private ConcurrentMap<String, Entry> attributesOf(ObjectName pName) {
+    ConcurrentMap<String, Entry> attrs = cache.get(pName);
+    if (attrs == null) {
+      attrs = new ConcurrentHashMap<String, Entry>(8, 0.75f, 4);
+      ConcurrentMap<String, Entry> other = cache.putIfAbsent(pName, attrs);
+      if (other != null) {
+        attrs = other;
+      }
+    }
+    return attrs;
+  }
+
+  private void invalidate(ObjectName pName, String pAttribute) {
+    ConcurrentMap<String, Entry> attrs = cache.get(pName);
+    if (attrs != null && attrs.remove(pAttribute) != null) {
+      size.decrementAndGet();
+      removeIfEmpty(pName, attrs);
+    }
+  }
+
+  // A value stored concurrently into a map removed here is lost, which only
+  // costs a miss
+  private void removeIfEmpty(ObjectName pName, ConcurrentMap<String, Entry> pAttrs) {
+    if (pAttrs.isEmpty()) {
+      cache.remove(pName, pAttrs);
+    }
+  }
+
+  private void invalidate(ObjectName pName) {
+    ConcurrentMap<String, Entry> attrs = cache.remove(pName);
+    if (attrs != null) {
+      size.addAndGet(-attrs.size());
+    }
+  }
+
+  private void added() {
+    if (size.incrementAndGet() > maxSize && evicting.compareAndSet(false, true)) {
+      try {
+        evict();
+      } finally {
+        evicting.set(false);
+      }
+    }
+  }
+
+  // Remove expired entries, then arbitrary ones until 90% of the max size is
+  // reached. Also recounts the size, which may drift slightly under races.
+  private void evict() {
+    long now = System.nanoTime();
+    int target = maxSize - maxSize / 10;
+    int count = 0;
+    for (Iterator<ConcurrentMap<String, Entry>> it = cache.values().iterator(); it.hasNext();) {
+      ConcurrentMap<String, Entry> attrs = it.next();
+      for (Iterator<Entry> eIt = attrs.values().iterator(); eIt.hasNext();) {
+        if (!eIt.next().isValid(now)) {
+          eIt.remove();
+          evictions.incrementAndGet();
+        } else {
+          count++;
+        }
+      }
+      if (attrs.isEmpty()) {
+        it.remove();
+      }
+    }
+    for (Iterator<ConcurrentMap<String, Entry>> it = cache.values().iterator(); it.hasNext() && count > target;) {
+      ConcurrentMap<String, Entry> attrs = it.next();
+      for (Iterator<Entry> eIt = attrs.values().iterator(); eIt.hasNext() && count > target;) {
+        eIt.next();
+        eIt.remove();
+        evictions.incrementAndGet();
+        count--;
+      }
+      if (attrs.isEmpty()) {
+        it.remove();
+      }
+    }
+    size.set(count);
+  }
+
+  private Object get(Entry pEntry, ObjectName pName, String pAttribute) throws MBeanException,
+      AttributeNotFoundException, InstanceNotFoundException, ReflectionException {
+    try {
+      return pEntry.value.get();
+    } catch (InterruptedException exp) {
+      Thread.currentThread().interrupt();
+      return super.getAttribute(pName, pAttribute);
+    } catch (ExecutionException exp) {
+      Throwable cause = exp.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw rethrow((Exception) cause);
+    }
+  }
+
+  private static RuntimeException rethrow(Exception pExp) throws MBeanException, AttributeNotFoundException,
+      InstanceNotFoundException, ReflectionException {
+    if (pExp instanceof MBeanException) {
+      throw (MBeanException) pExp;
+    } else if (pExp instanceof AttributeNotFoundException) {
+      throw (AttributeNotFoundException) pExp;
+    } else if (pExp instanceof InstanceNotFoundException) {
+      throw (InstanceNotFoundException) pExp;
+    } else if (pExp instanceof ReflectionException) {
+      throw (ReflectionException) pExp;
+    } else if (pExp instanceof RuntimeException) {
+      throw (RuntimeException) pExp;
+    }
+    throw new ReflectionException(pExp);
+  }
+
+  // A cached value. The value is a FutureTask so that concurrent readers can
+  // wait for a single load.
+  private static final class Entry {
+
+    final long expires;
+
+    final FutureTask<Object> value;
+
+    Entry(long pExpires, Callable<Object> pLoader) {
+      expires = pExpires;
+      value = new FutureTask<Object>(pLoader);
+    }
+
+    Entry(long pExpires, Object pValue) {
+      expires = pExpires;
+      value = new FutureTask<Object>(new Runnable() {
+        public void run() {
+        }
+      }, pValue);
+      value.run();
+    }
+
+    boolean isValid(long pNow) {
+      return pNow - expires < 0;
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the attribute cache in front of the MBeanServer,
+ * registered as <code>org.wjw.jmxagent:type=AttributeCache</code>.
+ */
+public interface AttributeCacheMXBean {
+
+  /**
+   * @return number of reads answered from the cache
+   */
+  long getHits();
+
+  /**
+   * @return number of reads which went through to the MBean
+   */
+  long getMisses();
+
+  /**
+   * @return number of entries removed to keep the cache within its size
+   */
+  long getEvictions();
+
+  /**
+   * @return ratio of hits to all cached reads, between 0 and 1
+   */
+  double getHitRatio();
+
+  /**
+   * @return current number of cached attribute values
+   */
+  int getSize();
+
+  /**
+   * @return maximum number of cached attribute values
+   */
+  int getMaxSize();
+
+  /**
+   * Remove all cached values
+   */
+  void clear();
+
+}
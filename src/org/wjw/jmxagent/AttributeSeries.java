@@ -0,0 +1,182 @@
+package org.wjw.jmxagent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Named numeric values, each given by a path
+ * <code>&lt;mbean&gt;/&lt;attribute&gt;[/&lt;key&gt;]</code>,
+ * <code>&lt;key&gt;</code> being the item of a <code>CompositeData</code>.
+ * <code>/</code> within a part is escaped as <code>!/</code>.
+ *
+ * The values of each MBean are read with a single <code>getAttributes()</code>
+ * call and stored without allocating anything itself.
+ */
+final class AttributeSeries {
+
+  // Series names in the order of their values
+  private final String[] names;
+
+  private final Group[] groups;
+
+  /**
+   * Parse the paths of the series. Invalid ones are reported and skipped.
+   *
+   * @param pPaths path per series name, in the order of the values
+   * @param pWhat what the series are, for error messages
+   */
+  AttributeSeries(Map<String, String> pPaths, String pWhat) {
+    List<String> seriesNames = new ArrayList<String>();
+    Map<ObjectName, Group> byMBean = new LinkedHashMap<ObjectName, Group>();
+    for (Map.Entry<String, String> entry : pPaths.entrySet()) {
+      List<String> path = EscapeUtil.parsePath(entry.getValue().trim());
+      ObjectName mbean = null;
+      try {
+        if (path != null && (path.size() == 2 || path.size() == 3)) {
+          mbean = new ObjectName(path.get(0));
+        }
+      } catch (Exception e) {
+        // reported below
+      }
+      if (mbean == null || mbean.isPattern()) {
+        System.err.println("JmxAgent: Invalid " + pWhat + " " + entry.getKey() + "=" + entry.getValue()
+            + ", expected <mbean>/<attribute>[/<key>]");
+        continue;
+      }
+      Group group = byMBean.get(mbean);
+      if (group == null) {
+        group = new Group(mbean);
+        byMBean.put(mbean, group);
+      }
+      group.add(seriesNames.size(), path.get(1), path.size() == 3 ? path.get(2) : null);
+      seriesNames.add(entry.getKey());
+    }
+    names = seriesNames.toArray(new String[seriesNames.size()]);
+    groups = byMBean.values().toArray(new Group[byMBean.size()]);
+    for (Group group : groups) {
+      group.seal();
+    }
+  }
+
+  /**
+   * @return the names of the valid series
+   */
+  String[] getNames() {
+    return names.clone();
+  }
+
+  /**
+   * @return number of valid series
+   */
+  int size() {
+    return names.length;
+  }
+
+  /**
+   * Read the current values
+   *
+   * @param pServer MBeanServer to read from
+   * @param pValues receives the values in the order of the names,
+   *          <code>NaN</code> if not readable
+   */
+  void read(MBeanServer pServer, double[] pValues) {
+    Arrays.fill(pValues, 0, names.length, Double.NaN);
+    for (Group group : groups) {
+      group.read(pServer, pValues);
+    }
+  }
+
+  // ===================================================================================
+
+  private static double toDouble(Object pValue) {
+    if (pValue instanceof Number) {
+      return ((Number) pValue).doubleValue();
+    } else if (pValue instanceof Boolean) {
+      return ((Boolean) pValue).booleanValue() ? 1 : 0;
+    }
+    return Double.NaN;
+  }
+
+  // The series of a single MBean, read with one getAttributes() call
+  private static final class Group {
+
+    private final ObjectName name;
+
+    private final List<String> attributeList = new ArrayList<String>();
+
+    private final List<int[]> seriesList = new ArrayList<int[]>();
+
+    private final List<String> keyList = new ArrayList<String>();
+
+    private String[] attributes;
+
+    // Per series: index into the values and into attributes
+    private int[] seriesIdx;
+
+    private int[] attributeIdx;
+
+    private String[] keys;
+
+    Group(ObjectName pName) {
+      name = pName;
+    }
+
+    void add(int pSeries, String pAttribute, String pKey) {
+      int attr = attributeList.indexOf(pAttribute);
+      if (attr < 0) {
+        attr = attributeList.size();
+        attributeList.add(pAttribute);
+      }
+      seriesList.add(new int[] { pSeries, attr });
+      keyList.add(pKey);
+    }
+
+    void seal() {
+      attributes = attributeList.toArray(new String[attributeList.size()]);
+      seriesIdx = new int[seriesList.size()];
+      attributeIdx = new int[seriesList.size()];
+      for (int i = 0; i < seriesIdx.length; i++) {
+        seriesIdx[i] = seriesList.get(i)[0];
+        attributeIdx[i] = seriesList.get(i)[1];
+      }
+      keys = keyList.toArray(new String[keyList.size()]);
+    }
+
+    void read(MBeanServer pServer, double[] pValues) {
+      AttributeList attrs;
+      try {
+        attrs = pServer.getAttributes(name, attributes);
+      } catch (Exception exp) {
+        // Not registered (yet): the values stay NaN
+        return;
+      }
+      for (int a = 0; a < attrs.size(); a++) {
+        Attribute attr = (Attribute) attrs.get(a);
+        for (int s = 0; s < seriesIdx.length; s++) {
+          if (!attributes[attributeIdx[s]].equals(attr.getName())) {
+            continue;
+          }
+          Object value = attr.getValue();
+          if (keys[s] != null) {
+            try {
+              value = value instanceof CompositeData ? ((CompositeData) value).get(keys[s]) : null;
+            } catch (RuntimeException exp) {
+              value = null;
+            }
+          }
+          pValues[seriesIdx[s]] = toDouble(value);
+        }
+      }
+    }
+  }
+
+}
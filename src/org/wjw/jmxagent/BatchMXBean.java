@@ -0,0 +1,39 @@
+package org.wjw.jmxagent;
+
+/**
+ * Executes many requests in one round-trip, registered as
+ * <code>org.wjw.jmxagent:type=Batch</code>. The requests are the JSON requests
+ * of the HTTP endpoint (<code>read</code>, <code>write</code>,
+ * <code>exec</code> and <code>search</code>, see the README).
+ */
+public interface BatchMXBean {
+
+  /**
+   * Execute requests in the given order
+   *
+   * @param pRequests JSON array of requests (or a single request)
+   * @param pParallel if true, the requests are independent of each other and
+   *          executed in parallel by up to <code>batch.threads</code> threads
+   * @param pTimeoutMillis time in milliseconds after which unfinished requests
+   *          fail with status 408, 0 for <code>batch.timeout</code>
+   * @return JSON array with one result per request, in the order of the
+   *         requests
+   */
+  String execute(String pRequests, boolean pParallel, long pTimeoutMillis);
+
+  /**
+   * @return number of requests executed
+   */
+  long getRequests();
+
+  /**
+   * @return number of requests which failed, including timeouts
+   */
+  long getFailedRequests();
+
+  /**
+   * @return number of requests which did not finish in time
+   */
+  long getTimedOutRequests();
+
+}
@@ -0,0 +1,174 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Executes a list of JSON requests with the {@link JmxRequestHandler} of the
+ * HTTP endpoint, so that a script reading or changing hundreds of attributes
+ * needs a single RMI call. Sequential batches run on the caller's thread;
+ * parallel batches share a pool of <code>batch.threads</code> threads. Either
+ * way the results are returned in the order of the requests.
+ */
+final class BatchService implements BatchMXBean {
+
+  private final JmxRequestHandler handler;
+
+  private final long defaultTimeout;
+
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong timedOut = new AtomicLong();
+
+  /**
+   * Create the service from the <code>batch.*</code> options
+   *
+   * @param pConfig agent configuration
+   * @param pServer connection to execute the requests on
+   */
+  BatchService(AgentConfig pConfig, MBeanServerConnection pServer) {
+    handler = new JmxRequestHandler(pServer, true);
+    defaultTimeout = Math.max(1, pConfig.getLong("batch.timeout", 30000));
+    int threads = Math.max(1, pConfig.getInt("batch.threads", 4));
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("JmxAgent Batch"));
+    // No threads while no parallel batches are executed
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stop the threads, running requests are interrupted
+   */
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  /** {@inheritDoc} */
+  public String execute(String pRequests, boolean pParallel, long pTimeoutMillis) {
+    Object parsed = JsonParser.parse(pRequests);
+    List<?> list = parsed instanceof List ? (List<?>) parsed : Collections.singletonList(parsed);
+    long timeout = pTimeoutMillis > 0 ? pTimeoutMillis : defaultTimeout;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    Object[] values = new Object[list.size()];
+    Throwable[] errors = new Throwable[list.size()];
+    for (int i = 0; i < errors.length; i++) {
+      if (!(list.get(i) instanceof Map)) {
+        errors[i] = new IllegalArgumentException("Request must be a JSON object");
+      }
+    }
+    if (pParallel) {
+      executeParallel(list, deadline, timeout, values, errors);
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        if (errors[i] != null) {
+          continue;
+        } else if (System.nanoTime() - deadline > 0) {
+          errors[i] = new TimeoutException("Not executed, batch timeout of " + timeout + " ms exceeded");
+        } else {
+          try {
+            values[i] = handler.execute((Map<?, ?>) list.get(i));
+          } catch (Exception exp) {
+            errors[i] = exp;
+          }
+        }
+      }
+    }
+
+    StringWriter out = new StringWriter();
+    JsonWriter writer = new JsonWriter(out);
+    try {
+      writer.beginArray();
+      for (int i = 0; i < values.length; i++) {
+        count(errors[i]);
+        handler.writeResult(list.get(i), values[i], errors[i], writer);
+      }
+      writer.endArray();
+      writer.flush();
+    } catch (IOException exp) {
+      // A StringWriter does not throw
+      throw new IllegalStateException(exp.getMessage(), exp);
+    }
+    return out.toString();
+  }
+
+  /** {@inheritDoc} */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getFailedRequests() {
+    return failed.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getTimedOutRequests() {
+    return timedOut.get();
+  }
+
+  // ===================================================================================
+
+  private void executeParallel(List<?> pRequests, long pDeadline, long pTimeout, Object[] pValues,
+      Throwable[] pErrors) {
+    List<Future<Object>> futures = new ArrayList<Future<Object>>(pRequests.size());
+    for (final Object request : pRequests) {
+      futures.add(request instanceof Map ? executor.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          return handler.execute((Map<?, ?>) request);
+        }
+      }) : null);
+    }
+    for (int i = 0; i < pValues.length; i++) {
+      Future<Object> future = futures.get(i);
+      if (future == null) {
+        continue;
+      }
+      try {
+        pValues[i] = future.get(Math.max(0, pDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException exp) {
+        pErrors[i] = exp.getCause();
+      } catch (TimeoutException exp) {
+        future.cancel(true);
+        pErrors[i] = new TimeoutException("Not completed within the batch timeout of " + pTimeout + " ms");
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+        for (int j = i; j < pValues.length; j++) {
+          if (futures.get(j) != null) {
+            futures.get(j).cancel(true);
+            pErrors[j] = new TimeoutException("Batch interrupted");
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  private void count(Throwable pError) {
+    requests.incrementAndGet();
+    if (pError != null) {
+      failed.incrementAndGet();
+      if (pError instanceof TimeoutException) {
+        timedOut.incrementAndGet();
+      }
+    }
+  }
+
+}
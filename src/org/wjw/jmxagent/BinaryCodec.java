@@ -0,0 +1,772 @@
+package org.wjw.jmxagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Compact binary encoding of the values exchanged by the <code>jmxnio</code>
+ * connector (see {@link NioProtocol}). Open type values (primitives, strings,
+ * dates, ObjectNames, CompositeData, TabularData and arrays) and the result
+ * types of the MBeanServer (attributes, ObjectInstances, sets of names) are
+ * written field by field. Anything else (e.g. MBeanInfo, exceptions,
+ * QueryExp) falls back to Java serialization.
+ *
+ * Each composite, tabular and array type is written once per message and
+ * referenced by its index afterwards, so e.g. the rows of a TabularData only
+ * carry their values. Composite items are written in the (sorted) order of the
+ * keys of their type, without their names.
+ */
+final class BinaryCodec {
+
+  // Value tags
+  private static final int NULL = 0;
+
+  private static final int FALSE = 1;
+
+  private static final int TRUE = 2;
+
+  private static final int BYTE = 3;
+
+  private static final int SHORT = 4;
+
+  private static final int CHAR = 5;
+
+  private static final int INT = 6;
+
+  private static final int LONG = 7;
+
+  private static final int FLOAT = 8;
+
+  private static final int DOUBLE = 9;
+
+  private static final int STRING = 10;
+
+  private static final int BIG_INTEGER = 11;
+
+  private static final int BIG_DECIMAL = 12;
+
+  private static final int DATE = 13;
+
+  private static final int OBJECT_NAME = 14;
+
+  private static final int COMPOSITE = 15;
+
+  private static final int TABULAR = 16;
+
+  private static final int ARRAY = 17;
+
+  private static final int ATTRIBUTE = 18;
+
+  private static final int ATTRIBUTE_LIST = 19;
+
+  private static final int OBJECT_INSTANCE = 20;
+
+  private static final int SET = 21;
+
+  private static final int NOTIFICATION = 22;
+
+  private static final int SERIALIZED = 23;
+
+  // Type tags
+  private static final int TYPE_REF = 0;
+
+  private static final int TYPE_SIMPLE = 1;
+
+  private static final int TYPE_ARRAY = 2;
+
+  private static final int TYPE_COMPOSITE = 3;
+
+  private static final int TYPE_TABULAR = 4;
+
+  private static final SimpleType<?>[] SIMPLE_TYPES = { SimpleType.VOID, SimpleType.BOOLEAN, SimpleType.CHARACTER,
+      SimpleType.BYTE, SimpleType.SHORT, SimpleType.INTEGER, SimpleType.LONG, SimpleType.FLOAT, SimpleType.DOUBLE,
+      SimpleType.STRING, SimpleType.BIGDECIMAL, SimpleType.BIGINTEGER, SimpleType.DATE, SimpleType.OBJECTNAME };
+
+  private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+  static {
+    for (Class<?> type : new Class<?>[] { boolean.class, byte.class, short.class, char.class, int.class, long.class,
+        float.class, double.class }) {
+      PRIMITIVES.put(type.getName(), type);
+    }
+  }
+
+  private static final String UTF8 = "UTF-8";
+
+  private BinaryCodec() {
+  }
+
+  /**
+   * Writes the values of one message
+   */
+  static final class Encoder {
+
+    private final DataOutputStream out;
+
+    // Index of each type written so far
+    private final Map<OpenType<?>, Integer> types = new IdentityHashMap<OpenType<?>, Integer>();
+
+    Encoder(OutputStream pOut) {
+      out = new DataOutputStream(pOut);
+    }
+
+    /**
+     * Write a value
+     *
+     * @param pValue the value, serializable unless one of the types encoded
+     *          directly
+     * @throws IOException if the value can not be serialized
+     */
+    void writeValue(Object pValue) throws IOException {
+      Class<?> clazz = pValue != null ? pValue.getClass() : null;
+      if (pValue == null) {
+        out.writeByte(NULL);
+      } else if (clazz == String.class) {
+        out.writeByte(STRING);
+        writeString((String) pValue);
+      } else if (clazz == Integer.class) {
+        out.writeByte(INT);
+        out.writeInt(((Integer) pValue).intValue());
+      } else if (clazz == Long.class) {
+        out.writeByte(LONG);
+        out.writeLong(((Long) pValue).longValue());
+      } else if (clazz == Boolean.class) {
+        out.writeByte(((Boolean) pValue).booleanValue() ? TRUE : FALSE);
+      } else if (clazz == Double.class) {
+        out.writeByte(DOUBLE);
+        out.writeDouble(((Double) pValue).doubleValue());
+      } else if (clazz == Float.class) {
+        out.writeByte(FLOAT);
+        out.writeFloat(((Float) pValue).floatValue());
+      } else if (clazz == Short.class) {
+        out.writeByte(SHORT);
+        out.writeShort(((Short) pValue).shortValue());
+      } else if (clazz == Byte.class) {
+        out.writeByte(BYTE);
+        out.writeByte(((Byte) pValue).byteValue());
+      } else if (clazz == Character.class) {
+        out.writeByte(CHAR);
+        out.writeChar(((Character) pValue).charValue());
+      } else if (clazz == ObjectName.class) {
+        out.writeByte(OBJECT_NAME);
+        writeString(pValue.toString());
+      } else if (pValue instanceof CompositeData) {
+        out.writeByte(COMPOSITE);
+        CompositeType type = ((CompositeData) pValue).getCompositeType();
+        writeType(type);
+        writeItems(type, (CompositeData) pValue);
+      } else if (pValue instanceof TabularData) {
+        writeTabular((TabularData) pValue);
+      } else if (clazz.isArray()) {
+        writeArray(pValue);
+      } else if (clazz == Attribute.class) {
+        out.writeByte(ATTRIBUTE);
+        writeString(((Attribute) pValue).getName());
+        writeValue(((Attribute) pValue).getValue());
+      } else if (clazz == AttributeList.class) {
+        out.writeByte(ATTRIBUTE_LIST);
+        AttributeList list = (AttributeList) pValue;
+        out.writeInt(list.size());
+        for (Object attribute : list) {
+          writeValue(attribute);
+        }
+      } else if (clazz == ObjectInstance.class) {
+        out.writeByte(OBJECT_INSTANCE);
+        writeValue(((ObjectInstance) pValue).getObjectName());
+        writeString(((ObjectInstance) pValue).getClassName());
+      } else if (pValue instanceof Set) {
+        // A copy, so that the size matches even for concurrent sets
+        Object[] elements = ((Set<?>) pValue).toArray();
+        out.writeByte(SET);
+        out.writeInt(elements.length);
+        for (Object element : elements) {
+          writeValue(element);
+        }
+      } else if (clazz == Notification.class) {
+        Notification notification = (Notification) pValue;
+        out.writeByte(NOTIFICATION);
+        writeString(notification.getType());
+        writeValue(notification.getSource());
+        out.writeLong(notification.getSequenceNumber());
+        out.writeLong(notification.getTimeStamp());
+        writeString(notification.getMessage());
+        writeValue(notification.getUserData());
+      } else if (clazz == BigInteger.class) {
+        out.writeByte(BIG_INTEGER);
+        writeString(pValue.toString());
+      } else if (clazz == BigDecimal.class) {
+        out.writeByte(BIG_DECIMAL);
+        writeString(pValue.toString());
+      } else if (clazz == Date.class) {
+        out.writeByte(DATE);
+        out.writeLong(((Date) pValue).getTime());
+      } else {
+        out.writeByte(SERIALIZED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(pValue);
+        oos.close();
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+      }
+    }
+
+    // ===================================================================================
+
+    private void writeString(String pString) throws IOException {
+      if (pString == null) {
+        out.writeInt(-1);
+      } else {
+        byte[] bytes = pString.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+
+    private void writeItems(CompositeType pType, CompositeData pData) throws IOException {
+      for (String key : pType.keySet()) {
+        writeValue(pData.get(key));
+      }
+    }
+
+    private void writeTabular(TabularData pData) throws IOException {
+      out.writeByte(TABULAR);
+      TabularType type = pData.getTabularType();
+      writeType(type);
+      out.writeInt(pData.size());
+      for (Object row : pData.values()) {
+        writeItems(type.getRowType(), (CompositeData) row);
+      }
+    }
+
+    private void writeArray(Object pArray) throws IOException {
+      Class<?> component = pArray.getClass().getComponentType();
+      int length = Array.getLength(pArray);
+      out.writeByte(ARRAY);
+      writeString(component.getName());
+      out.writeInt(length);
+      if (component == long.class) {
+        for (long value : (long[]) pArray) {
+          out.writeLong(value);
+        }
+      } else if (component == int.class) {
+        for (int value : (int[]) pArray) {
+          out.writeInt(value);
+        }
+      } else if (component == double.class) {
+        for (double value : (double[]) pArray) {
+          out.writeDouble(value);
+        }
+      } else if (component == byte.class) {
+        out.write((byte[]) pArray);
+      } else if (component == boolean.class) {
+        for (boolean value : (boolean[]) pArray) {
+          out.writeBoolean(value);
+        }
+      } else if (component == char.class) {
+        for (char value : (char[]) pArray) {
+          out.writeChar(value);
+        }
+      } else if (component == short.class) {
+        for (short value : (short[]) pArray) {
+          out.writeShort(value);
+        }
+      } else if (component == float.class) {
+        for (float value : (float[]) pArray) {
+          out.writeFloat(value);
+        }
+      } else {
+        for (Object value : (Object[]) pArray) {
+          writeValue(value);
+        }
+      }
+    }
+
+    private void writeType(OpenType<?> pType) throws IOException {
+      Integer ref = types.get(pType);
+      if (ref != null) {
+        out.writeByte(TYPE_REF);
+        out.writeInt(ref.intValue());
+        return;
+      }
+      if (pType instanceof SimpleType) {
+        for (int i = 0; i < SIMPLE_TYPES.length; i++) {
+          if (SIMPLE_TYPES[i].equals(pType)) {
+            out.writeByte(TYPE_SIMPLE);
+            out.writeByte(i);
+            return;
+          }
+        }
+        throw new IOException("Unknown simple type " + pType);
+      } else if (pType instanceof ArrayType) {
+        ArrayType<?> type = (ArrayType<?>) pType;
+        out.writeByte(TYPE_ARRAY);
+        out.writeInt(type.getDimension());
+        out.writeBoolean(type.isPrimitiveArray());
+        writeType(type.getElementOpenType());
+      } else if (pType instanceof CompositeType) {
+        CompositeType type = (CompositeType) pType;
+        out.writeByte(TYPE_COMPOSITE);
+        writeString(type.getTypeName());
+        writeString(type.getDescription());
+        out.writeInt(type.keySet().size());
+        for (String key : type.keySet()) {
+          writeString(key);
+          writeString(type.getDescription(key));
+          writeType(type.getType(key));
+        }
+      } else if (pType instanceof TabularType) {
+        TabularType type = (TabularType) pType;
+        out.writeByte(TYPE_TABULAR);
+        writeString(type.getTypeName());
+        writeString(type.getDescription());
+        writeType(type.getRowType());
+        out.writeInt(type.getIndexNames().size());
+        for (String index : type.getIndexNames()) {
+          writeString(index);
+        }
+      } else {
+        throw new IOException("Unknown open type " + pType);
+      }
+      // After the nested types, in the order the decoder creates them
+      types.put(pType, Integer.valueOf(types.size()));
+    }
+  }
+
+  /**
+   * Reads the values of one message
+   */
+  static final class Decoder {
+
+    // Deepest nesting of values and types, deeper frames are rejected
+    private static final int MAX_DEPTH = 64;
+
+    private final ByteArrayInputStream bytes;
+
+    private final DataInputStream in;
+
+    private final ClassLoader loader;
+
+    private final boolean serialized;
+
+    private final List<OpenType<?>> types = new ArrayList<OpenType<?>>();
+
+    // Keys of the composite types, in the order their items are written
+    private final Map<CompositeType, String[]> keys = new IdentityHashMap<CompositeType, String[]>();
+
+    private int depth;
+
+    /**
+     * Read the payload of a received frame. Sizes read from the frame are
+     * checked against the bytes left in it before anything is allocated, so
+     * that a small frame can not claim huge strings or arrays.
+     *
+     * @param pFrame frame without its length
+     * @param pLoader class loader of serialized values, or null for the
+     *          default
+     * @param pSerialized false if serialized values are rejected, e.g. before
+     *          the peer is authenticated
+     */
+    Decoder(byte[] pFrame, ClassLoader pLoader, boolean pSerialized) {
+      bytes = new ByteArrayInputStream(pFrame, NioProtocol.HEADER_SIZE, pFrame.length - NioProtocol.HEADER_SIZE);
+      in = new DataInputStream(bytes);
+      loader = pLoader;
+      serialized = pSerialized;
+    }
+
+    /**
+     * @return an unsigned byte, e.g. the operation of a request
+     */
+    int readByte() throws IOException {
+      return in.readUnsignedByte();
+    }
+
+    /**
+     * Read a value
+     *
+     * @return the value
+     * @throws IOException if the data is malformed or a class is not found
+     */
+    Object readValue() throws IOException {
+      enter();
+      try {
+        return readTagged();
+      } finally {
+        depth--;
+      }
+    }
+
+    // ===================================================================================
+
+    private Object readTagged() throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+      case NULL:
+        return null;
+      case FALSE:
+        return Boolean.FALSE;
+      case TRUE:
+        return Boolean.TRUE;
+      case BYTE:
+        return Byte.valueOf(in.readByte());
+      case SHORT:
+        return Short.valueOf(in.readShort());
+      case CHAR:
+        return Character.valueOf(in.readChar());
+      case INT:
+        return Integer.valueOf(in.readInt());
+      case LONG:
+        return Long.valueOf(in.readLong());
+      case FLOAT:
+        return Float.valueOf(in.readFloat());
+      case DOUBLE:
+        return Double.valueOf(in.readDouble());
+      case STRING:
+        return readString();
+      case BIG_INTEGER:
+        return new BigInteger(readString());
+      case BIG_DECIMAL:
+        return new BigDecimal(readString());
+      case DATE:
+        return new Date(in.readLong());
+      case OBJECT_NAME:
+        return readObjectName();
+      case COMPOSITE:
+        return readItems((CompositeType) readType());
+      case TABULAR:
+        return readTabular();
+      case ARRAY:
+        return readArray();
+      case ATTRIBUTE:
+        return new Attribute(readString(), readValue());
+      case ATTRIBUTE_LIST: {
+        int size = readSize(1);
+        AttributeList ret = new AttributeList(size);
+        for (int i = 0; i < size; i++) {
+          ret.add(readValue());
+        }
+        return ret;
+      }
+      case OBJECT_INSTANCE:
+        return new ObjectInstance((ObjectName) readValue(), readString());
+      case SET: {
+        int size = readSize(1);
+        Set<Object> ret = new LinkedHashSet<Object>(Math.max(16, size * 4 / 3 + 1));
+        for (int i = 0; i < size; i++) {
+          ret.add(readValue());
+        }
+        return ret;
+      }
+      case NOTIFICATION: {
+        String type = readString();
+        Object source = readValue();
+        long sequence = in.readLong();
+        long timeStamp = in.readLong();
+        Notification ret = new Notification(type, source, sequence, timeStamp, readString());
+        ret.setUserData(readValue());
+        return ret;
+      }
+      case SERIALIZED:
+        return readSerialized();
+      default:
+        throw new IOException("Unknown value tag " + tag);
+      }
+    }
+
+    private void enter() throws IOException {
+      if (++depth > MAX_DEPTH) {
+        depth--;
+        throw new IOException("Values nested deeper than " + MAX_DEPTH);
+      }
+    }
+
+    // A size of elements of which each takes at least the given bytes
+    private int readSize(int pMinBytes) throws IOException {
+      int size = in.readInt();
+      if (size < 0) {
+        throw new IOException("Negative size " + size);
+      }
+      if ((long) size * pMinBytes > bytes.available()) {
+        throw new IOException("Size " + size + " exceeds the " + bytes.available() + " bytes left in the frame");
+      }
+      return size;
+    }
+
+    private String readString() throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+        return null;
+      }
+      if (length > bytes.available()) {
+        throw new IOException("String length " + length + " exceeds the " + bytes.available()
+            + " bytes left in the frame");
+      }
+      byte[] ret = new byte[length];
+      in.readFully(ret);
+      return new String(ret, UTF8);
+    }
+
+    private ObjectName readObjectName() throws IOException {
+      String name = readString();
+      try {
+        return ObjectName.getInstance(name);
+      } catch (MalformedObjectNameException exp) {
+        throw new IOException("Invalid ObjectName " + name, exp);
+      }
+    }
+
+    private CompositeData readItems(CompositeType pType) throws IOException {
+      String[] names = keys.get(pType);
+      if (names == null) {
+        names = pType.keySet().toArray(new String[pType.keySet().size()]);
+        keys.put(pType, names);
+      }
+      Object[] values = new Object[names.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readValue();
+      }
+      try {
+        return new CompositeDataSupport(pType, names, values);
+      } catch (OpenDataException exp) {
+        throw new IOException("Invalid CompositeData of type " + pType.getTypeName(), exp);
+      }
+    }
+
+    private TabularData readTabular() throws IOException {
+      TabularType type = (TabularType) readType();
+      int rows = readSize(1);
+      TabularDataSupport ret = new TabularDataSupport(type, Math.max(16, rows * 4 / 3 + 1), 0.75f);
+      for (int i = 0; i < rows; i++) {
+        ret.put(readItems(type.getRowType()));
+      }
+      return ret;
+    }
+
+    private Object readArray() throws IOException {
+      String name = readString();
+      Class<?> component = PRIMITIVES.get(name);
+      if (component == null) {
+        try {
+          component = Class.forName(name, false, loader);
+        } catch (ClassNotFoundException exp) {
+          component = Object.class;
+        }
+      }
+      int length = readSize(elementSize(component));
+      if (component == long.class) {
+        long[] ret = new long[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readLong();
+        }
+        return ret;
+      } else if (component == int.class) {
+        int[] ret = new int[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readInt();
+        }
+        return ret;
+      } else if (component == double.class) {
+        double[] ret = new double[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readDouble();
+        }
+        return ret;
+      } else if (component == byte.class) {
+        byte[] ret = new byte[length];
+        in.readFully(ret);
+        return ret;
+      } else if (component == boolean.class) {
+        boolean[] ret = new boolean[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readBoolean();
+        }
+        return ret;
+      } else if (component == char.class) {
+        char[] ret = new char[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readChar();
+        }
+        return ret;
+      } else if (component == short.class) {
+        short[] ret = new short[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readShort();
+        }
+        return ret;
+      } else if (component == float.class) {
+        float[] ret = new float[length];
+        for (int i = 0; i < length; i++) {
+          ret[i] = in.readFloat();
+        }
+        return ret;
+      }
+      Object[] ret = (Object[]) Array.newInstance(component, length);
+      for (int i = 0; i < length; i++) {
+        try {
+          ret[i] = readValue();
+        } catch (ArrayStoreException exp) {
+          throw new IOException("Element of wrong type in " + name + " array", exp);
+        }
+      }
+      return ret;
+    }
+
+    // Smallest number of bytes of an array element
+    private static int elementSize(Class<?> pComponent) {
+      if (pComponent == long.class || pComponent == double.class) {
+        return 8;
+      } else if (pComponent == int.class || pComponent == float.class) {
+        return 4;
+      } else if (pComponent == char.class || pComponent == short.class) {
+        return 2;
+      }
+      // A primitive byte or boolean, or at least the tag of a value
+      return 1;
+    }
+
+    private OpenType<?> readType() throws IOException {
+      enter();
+      try {
+        return readTypeDefinition();
+      } finally {
+        depth--;
+      }
+    }
+
+    private OpenType<?> readTypeDefinition() throws IOException {
+      int tag = in.readUnsignedByte();
+      OpenType<?> ret;
+      try {
+        switch (tag) {
+        case TYPE_REF:
+          int ref = in.readInt();
+          if (ref < 0 || ref >= types.size()) {
+            throw new IOException("Invalid type reference " + ref);
+          }
+          return types.get(ref);
+        case TYPE_SIMPLE:
+          int simple = in.readUnsignedByte();
+          if (simple >= SIMPLE_TYPES.length) {
+            throw new IOException("Unknown simple type " + simple);
+          }
+          return SIMPLE_TYPES[simple];
+        case TYPE_ARRAY: {
+          int dimension = in.readInt();
+          if (dimension < 1 || dimension > 255) {
+            throw new IOException("Invalid array dimension " + dimension);
+          }
+          boolean primitive = in.readBoolean();
+          OpenType<?> element = readType();
+          if (primitive) {
+            ArrayType<?> base = new ArrayType<Object>((SimpleType<?>) element, true);
+            ret = dimension > 1 ? new ArrayType<Object>(dimension - 1, base) : base;
+          } else {
+            ret = new ArrayType<Object>(dimension, element);
+          }
+          break;
+        }
+        case TYPE_COMPOSITE: {
+          String typeName = readString();
+          String description = readString();
+          // Name and description lengths and the type tag
+          int size = readSize(9);
+          String[] names = new String[size];
+          String[] descriptions = new String[size];
+          OpenType<?>[] itemTypes = new OpenType<?>[size];
+          for (int i = 0; i < size; i++) {
+            names[i] = readString();
+            descriptions[i] = readString();
+            itemTypes[i] = readType();
+          }
+          ret = new CompositeType(typeName, description, names, descriptions, itemTypes);
+          break;
+        }
+        case TYPE_TABULAR: {
+          String typeName = readString();
+          String description = readString();
+          CompositeType rowType = (CompositeType) readType();
+          String[] indexNames = new String[readSize(4)];
+          for (int i = 0; i < indexNames.length; i++) {
+            indexNames[i] = readString();
+          }
+          ret = new TabularType(typeName, description, rowType, indexNames);
+          break;
+        }
+        default:
+          throw new IOException("Unknown type tag " + tag);
+        }
+      } catch (OpenDataException exp) {
+        throw new IOException("Invalid open type", exp);
+      } catch (ClassCastException exp) {
+        throw new IOException("Invalid open type", exp);
+      }
+      types.add(ret);
+      return ret;
+    }
+
+    private Object readSerialized() throws IOException {
+      if (!serialized) {
+        throw new InvalidClassException("Serialized values are not accepted here");
+      }
+      byte[] value = new byte[readSize(1)];
+      in.readFully(value);
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(value)) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass pDesc) throws IOException, ClassNotFoundException {
+          if (loader != null) {
+            try {
+              return Class.forName(pDesc.getName(), false, loader);
+            } catch (ClassNotFoundException exp) {
+              // e.g. a primitive type
+            }
+          }
+          return super.resolveClass(pDesc);
+        }
+      };
+      try {
+        return ois.readObject();
+      } catch (ClassNotFoundException exp) {
+        throw new IOException("Class of serialized value not found: " + exp.getMessage(), exp);
+      } finally {
+        ois.close();
+      }
+    }
+  }
+
+}
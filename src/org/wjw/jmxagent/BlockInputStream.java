@@ -0,0 +1,169 @@
+package org.wjw.jmxagent;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by a {@link BlockOutputStream}.
+ */
+final class BlockInputStream extends FilterInputStream {
+
+  private final byte[] header = new byte[BlockOutputStream.HEADER_SIZE];
+
+  private final byte[] buf = new byte[BlockOutputStream.BLOCK_SIZE];
+
+  private final byte[] wire = new byte[BlockOutputStream.BLOCK_SIZE];
+
+  // Receives what a compressed block holds beyond its length
+  private final byte[] excess = new byte[1];
+
+  private int pos = 0;
+
+  private int count = 0;
+
+  private final Inflater inflater = new Inflater();
+
+  private final CompressionStats stats;
+
+  /**
+   * @param pIn stream to read blocks from
+   * @param pStats statistics to update, can be null
+   */
+  BlockInputStream(InputStream pIn, CompressionStats pStats) {
+    super(pIn);
+    stats = pStats;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (pos == count && !readBlock()) {
+      return -1;
+    }
+    return buf[pos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] pBuf, int pOff, int pLen) throws IOException {
+    if (pLen == 0) {
+      return 0;
+    }
+    if (pos == count && !readBlock()) {
+      return -1;
+    }
+    int n = Math.min(pLen, count - pos);
+    System.arraycopy(buf, pos, pBuf, pOff, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return count - pos;
+  }
+
+  @Override
+  public long skip(long pN) throws IOException {
+    if (pos == count && !readBlock()) {
+      return 0;
+    }
+    int n = (int) Math.min(pN, count - pos);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // ===================================================================================
+
+  // Read the next block, return false on a clean end of stream
+  private boolean readBlock() throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      return false;
+    }
+    header[0] = (byte) first;
+    readFully(header, 1, header.length - 1);
+    int wireLength = getInt(1);
+    int rawLength = getInt(5);
+    if (wireLength < 0 || wireLength > BlockOutputStream.BLOCK_SIZE || rawLength < 0
+        || rawLength > BlockOutputStream.BLOCK_SIZE) {
+      throw new IOException("Corrupt compressed block header");
+    }
+    long start = stats != null ? CompressionStats.cpuTime() : 0;
+    if (header[0] == BlockOutputStream.RAW) {
+      if (wireLength != rawLength) {
+        throw new IOException("Corrupt raw block of " + wireLength + " bytes for " + rawLength);
+      }
+      readFully(buf, 0, wireLength);
+    } else if (header[0] == BlockOutputStream.DEFLATED) {
+      readFully(wire, 0, wireLength);
+      inflater.reset();
+      inflater.setInput(wire, 0, wireLength);
+      try {
+        int len = 0;
+        while (len < rawLength && !inflater.finished()) {
+          int n = inflater.inflate(buf, len, rawLength - len);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated compressed block");
+          }
+          len += n;
+        }
+        // The end of the deflate stream may not have been seen yet if it
+        // exactly filled the block
+        if (len == rawLength && !inflater.finished() && inflater.inflate(excess) != 0) {
+          len++;
+        }
+        if (len != rawLength || !inflater.finished() || inflater.getRemaining() > 0) {
+          throw new IOException("Corrupt compressed block of " + rawLength + " bytes");
+        }
+      } catch (DataFormatException exp) {
+        IOException ioExp = new IOException("Corrupt compressed block");
+        ioExp.initCause(exp);
+        throw ioExp;
+      }
+    } else {
+      throw new IOException("Unknown block type " + header[0]);
+    }
+    pos = 0;
+    count = rawLength;
+    if (stats != null) {
+      stats.blockRead(rawLength, BlockOutputStream.HEADER_SIZE + wireLength, CompressionStats.cpuTime() - start);
+    }
+    return true;
+  }
+
+  private void readFully(byte[] pBuf, int pOff, int pLen) throws IOException {
+    int off = pOff;
+    int len = pLen;
+    while (len > 0) {
+      int n = in.read(pBuf, off, len);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of compressed stream");
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  private int getInt(int pPos) {
+    return ((header[pPos] & 0xFF) << 24) | ((header[pPos + 1] & 0xFF) << 16) | ((header[pPos + 2] & 0xFF) << 8)
+        | (header[pPos + 3] & 0xFF);
+  }
+
+}
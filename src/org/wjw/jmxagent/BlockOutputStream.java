@@ -0,0 +1,143 @@
+package org.wjw.jmxagent;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which buffers everything written up to the next flush (or
+ * until the buffer is full) and sends it as one block, deflated if it is at
+ * least <code>threshold</code> bytes long and actually gets smaller.
+ *
+ * Each block starts with a 9 byte header: the block type (0 raw, 1 deflated),
+ * the length of the block on the wire and the uncompressed length, both as
+ * big endian ints. Blocks are compressed independently, so the stream can be
+ * flushed at any time without losing compression state.
+ */
+final class BlockOutputStream extends FilterOutputStream {
+
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  static final int HEADER_SIZE = 9;
+
+  static final byte RAW = 0;
+
+  static final byte DEFLATED = 1;
+
+  private final byte[] buf = new byte[BLOCK_SIZE];
+
+  // Room for the header and a block which did not compress well
+  private final byte[] wire = new byte[HEADER_SIZE + BLOCK_SIZE + BLOCK_SIZE / 100 + 64];
+
+  private int count = 0;
+
+  private final int threshold;
+
+  private final Deflater deflater;
+
+  private final CompressionStats stats;
+
+  /**
+   * @param pOut stream to write the blocks to
+   * @param pThreshold minimum block size to compress
+   * @param pLevel deflate level (1-9)
+   * @param pStats statistics to update, can be null
+   */
+  BlockOutputStream(OutputStream pOut, int pThreshold, int pLevel, CompressionStats pStats) {
+    super(pOut);
+    threshold = pThreshold;
+    deflater = new Deflater(pLevel);
+    stats = pStats;
+  }
+
+  @Override
+  public void write(int pByte) throws IOException {
+    if (count == buf.length) {
+      writeBlock();
+    }
+    buf[count++] = (byte) pByte;
+  }
+
+  @Override
+  public void write(byte[] pBuf, int pOff, int pLen) throws IOException {
+    int off = pOff;
+    int len = pLen;
+    while (len > 0) {
+      if (count == buf.length) {
+        writeBlock();
+      }
+      int n = Math.min(len, buf.length - count);
+      System.arraycopy(pBuf, off, buf, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+
+  // ===================================================================================
+
+  private void writeBlock() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    long start = stats != null ? CompressionStats.cpuTime() : 0;
+    int wireLength = 0;
+    if (count >= threshold) {
+      deflater.reset();
+      deflater.setInput(buf, 0, count);
+      deflater.finish();
+      int len = 0;
+      while (!deflater.finished() && len < wire.length - HEADER_SIZE) {
+        len += deflater.deflate(wire, HEADER_SIZE + len, wire.length - HEADER_SIZE - len);
+      }
+      if (deflater.finished() && len < count) {
+        wireLength = HEADER_SIZE + len;
+        header(DEFLATED, len);
+      }
+    }
+    boolean compressed = wireLength > 0;
+    if (!compressed) {
+      header(RAW, count);
+      out.write(wire, 0, HEADER_SIZE);
+      out.write(buf, 0, count);
+      wireLength = HEADER_SIZE + count;
+    } else {
+      out.write(wire, 0, wireLength);
+    }
+    if (stats != null) {
+      stats.blockWritten(count, wireLength, compressed, CompressionStats.cpuTime() - start);
+    }
+    count = 0;
+  }
+
+  private void header(byte pType, int pLength) {
+    wire[0] = pType;
+    putInt(1, pLength);
+    putInt(5, count);
+  }
+
+  private void putInt(int pPos, int pValue) {
+    wire[pPos] = (byte) (pValue >>> 24);
+    wire[pPos + 1] = (byte) (pValue >>> 16);
+    wire[pPos + 2] = (byte) (pValue >>> 8);
+    wire[pPos + 3] = (byte) pValue;
+  }
+
+}
@@ -1,105 +1,168 @@
-package org.wjw.jmxagent;
-
-import javax.management.remote.JMXConnectorServer;
-
-/**
- * Thread for stopping the JMXConnectorServer as soon as every non-daemon thread
- * has exited. This thread was inspired by the ideas from Daniel Fuchs (although
- * the implementation is different)
- * (http://blogs.sun.com/jmxetc/entry/more_on_premain_and_jmx)
- * 
- * @author roland
- * @since Mar 3, 2010
- */
-class CleanupThread extends Thread {
-
-  private JMXConnectorServer server;
-
-  boolean stoped = false;
-
-  CleanupThread(JMXConnectorServer pServer) {
-    super("JmxAgent Cleaner");
-    server = pServer;
-    setDaemon(true);
-  }
-
-  /** {@inheritDoc} */
-  @Override
-  public void run() {
-    boolean loop = true;
-    try {
-      while (loop) {
-        final Thread[] all = enumerateThreads();
-        loop = false;
-        for (int i = 0; i < all.length; i++) {
-          final Thread t = all[i];
-          // daemon: skip it.
-          if (t.isDaemon())
-            continue;
-
-          // RMI Reaper: skip it.
-          if (t.getName().startsWith("RMI Reaper"))
-            continue;
-          if (t.getName().startsWith("DestroyJavaVM"))
-            continue;
-
-          // Tanuki Java Service Wrapper
-          if (t.getName().startsWith("WrapperListener_stop_runner"))
-            continue;
-
-          // Non daemon, non RMI Reaper: join it, break the for
-          // loop, continue in the while loop (loop=true)
-          loop = true;
-          try {
-            System.out.println("JmxAgent CleanupThread Waiting on " + t.getName() + " [id=" + t.getId() + "]");
-            t.join();
-          } catch (Exception ex) {
-            ex.printStackTrace();
-            if (stoped == true) {
-              loop = false;
-              return;
-            }
-          }
-          break;
-        }
-      }
-      // We went through a whole for-loop without finding any thread
-      // to join. We can close cs.
-    } catch (Exception ex) {
-      ex.printStackTrace();
-    } finally {
-      try {
-        // if we reach here it means the only non-daemon threads
-        // that remain are reaper threads - or that we got an
-        // unexpected exception/error.
-        //
-        System.out.println("JmxAgent CleanupThread Stop JMXConnectorServer!");
-        server.stop();
-      } catch (Exception ex) {
-        //ex.printStackTrace();
-      }
-    }
-  }
-
-  // Enumerate all active threads
-  private Thread[] enumerateThreads() {
-    boolean fits = false;
-    int inc = 50;
-    Thread[] threads = null;
-    int nrThreads = 0;
-    while (!fits) {
-      try {
-        threads = new Thread[Thread.activeCount() + inc];
-        nrThreads = Thread.enumerate(threads);
-        fits = true;
-      } catch (ArrayIndexOutOfBoundsException exp) {
-        inc += 50;
-      }
-    }
-    // Trim array
-    Thread ret[] = new Thread[nrThreads];
-    System.arraycopy(threads, 0, ret, 0, nrThreads);
-    return ret;
-  }
-
-}
+package org.wjw.jmxagent;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.remote.JMXConnectorServer;
+
+/**
+ * Thread for stopping the JMXConnectorServer as soon as every non-daemon thread
+ * has exited. This thread was inspired by the ideas from Daniel Fuchs (although
+ * the implementation is different)
+ * (http://blogs.sun.com/jmxetc/entry/more_on_premain_and_jmx)
+ *
+ * The non-daemon threads found by a scan are joined one after the other, and
+ * only when all of them have died the threads are scanned again, so that the
+ * cost stays linear in the number of threads. Threads whose name starts with
+ * one of the <code>cleanup.skip</code> prefixes are not waited for. Stopping
+ * the connector is given at most <code>cleanup.stopTimeout</code>
+ * milliseconds. If it has not stopped by then, its remote objects and the
+ * registry are unexported with force, as exported objects would keep the JVM
+ * alive.
+ *
+ * The watcher runs on a thread of the {@link DaemonThreadFactory}, so that it
+ * is a virtual thread with <code>threads=virtual</code>.
+ *
+ * @author roland
+ * @since Mar 3, 2010
+ */
+class CleanupThread implements Runnable {
+
+  static final String DEFAULT_SKIP = "RMI Reaper;DestroyJavaVM;WrapperListener_stop_runner";
+
+  private final Thread thread;
+
+  private JMXConnectorServer server;
+
+  private final AgentRMIServerImpl serverImpl;
+
+  private final Remote registry;
+
+  private final String[] skip;
+
+  private final long stopTimeout;
+
+  // Reused for every scan, grown when too small
+  private Thread[] buffer = new Thread[64];
+
+  volatile boolean stoped = false;
+
+  CleanupThread(JMXConnectorServer pServer, AgentRMIServerImpl pServerImpl, Remote pRegistry, AgentConfig pConfig) {
+    thread = new DaemonThreadFactory("JmxAgent Cleaner").newThread(this);
+    server = pServer;
+    serverImpl = pServerImpl;
+    registry = pRegistry;
+    skip = pConfig.get("cleanup.skip", DEFAULT_SKIP).split("\\s*;\\s*");
+    stopTimeout = pConfig.getLong("cleanup.stopTimeout", 5000);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void interrupt() {
+    thread.interrupt();
+  }
+
+  void join(long pMillis) throws InterruptedException {
+    thread.join(pMillis);
+  }
+
+  /** {@inheritDoc} */
+  public void run() {
+    try {
+      List<Thread> tracked = new ArrayList<Thread>();
+      while (scan(tracked)) {
+        // Threads started meanwhile are picked up by the next scan
+        for (int i = tracked.size() - 1; i >= 0; i--) {
+          tracked.get(i).join();
+        }
+        tracked.clear();
+      }
+      // The only non-daemon threads that remain are skipped ones
+    } catch (InterruptedException ex) {
+      if (!stoped) {
+        ex.printStackTrace();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    } finally {
+      stopServer();
+    }
+  }
+
+  // ===================================================================================
+
+  // Collect the live non-daemon threads which are not skipped, return false if there are none
+  private boolean scan(List<Thread> pTracked) {
+    int count = enumerateThreads();
+    for (int i = 0; i < count; i++) {
+      Thread t = buffer[i];
+      buffer[i] = null;
+      if (!t.isDaemon() && t != thread && !isSkipped(t.getName())) {
+        pTracked.add(t);
+      }
+    }
+    return !pTracked.isEmpty();
+  }
+
+  private boolean isSkipped(String pName) {
+    for (String prefix : skip) {
+      if (prefix.length() > 0 && pName.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Enumerate all active threads of the JVM into the buffer
+  private int enumerateThreads() {
+    // Virtual threads are daemon threads and not enumerated anyway
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    int count;
+    while ((count = root.enumerate(buffer, true)) == buffer.length) {
+      buffer = new Thread[buffer.length * 2];
+    }
+    return count;
+  }
+
+  // Stop the connector without delaying the JVM exit for more than stopTimeout
+  private void stopServer() {
+    if (!stoped) {
+      System.out.println("JmxAgent CleanupThread Stop JMXConnectorServer!");
+    }
+    Thread stopper = new DaemonThreadFactory("JmxAgent Connector Stopper").newThread(new Runnable() {
+      public void run() {
+        try {
+          server.stop();
+        } catch (Exception ex) {
+          //ex.printStackTrace();
+        }
+      }
+    });
+    stopper.start();
+    try {
+      stopper.join(stopTimeout);
+    } catch (InterruptedException ex) {
+      // The JVM is shutting down anyway
+      return;
+    }
+    if (stopper.isAlive()) {
+      System.err.println("JmxAgent: JMXConnectorServer did not stop within " + stopTimeout
+          + " ms, unexporting its remote objects");
+      serverImpl.unexportAll();
+      try {
+        UnicastRemoteObject.unexportObject(registry, true);
+      } catch (NoSuchObjectException ex) {
+        // already unexported
+      }
+    }
+  }
+
+}
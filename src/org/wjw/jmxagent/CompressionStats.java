@@ -0,0 +1,104 @@
+package org.wjw.jmxagent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters updated by the {@link BlockOutputStream}s and
+ * {@link BlockInputStream}s of the compressed transport.
+ */
+final class CompressionStats implements CompressionStatsMXBean {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  private final AtomicLong wireBytesOut = new AtomicLong();
+
+  private final AtomicLong bytesIn = new AtomicLong();
+
+  private final AtomicLong wireBytesIn = new AtomicLong();
+
+  private final AtomicLong compressedBlocks = new AtomicLong();
+
+  private final AtomicLong uncompressedBlocks = new AtomicLong();
+
+  private final AtomicLong compressNanos = new AtomicLong();
+
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  /**
+   * @return CPU time of the current thread in nanoseconds, or the wall clock
+   *         time if thread CPU time is not supported
+   */
+  static long cpuTime() {
+    return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  void blockWritten(int pRawLength, int pWireLength, boolean pCompressed, long pCpuNanos) {
+    bytesOut.addAndGet(pRawLength);
+    wireBytesOut.addAndGet(pWireLength);
+    if (pCompressed) {
+      compressedBlocks.incrementAndGet();
+    } else {
+      uncompressedBlocks.incrementAndGet();
+    }
+    compressNanos.addAndGet(pCpuNanos);
+  }
+
+  void blockRead(int pRawLength, int pWireLength, long pCpuNanos) {
+    bytesIn.addAndGet(pRawLength);
+    wireBytesIn.addAndGet(pWireLength);
+    decompressNanos.addAndGet(pCpuNanos);
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getWireBytesOut() {
+    return wireBytesOut.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getWireBytesIn() {
+    return wireBytesIn.get();
+  }
+
+  /** {@inheritDoc} */
+  public double getCompressionRatio() {
+    long wire = wireBytesOut.get();
+    return wire == 0 ? 1.0 : (double) bytesOut.get() / wire;
+  }
+
+  /** {@inheritDoc} */
+  public long getCompressedBlocks() {
+    return compressedBlocks.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getUncompressedBlocks() {
+    return uncompressedBlocks.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getCompressCpuTimeMillis() {
+    return compressNanos.get() / 1000000;
+  }
+
+  /** {@inheritDoc} */
+  public long getDecompressCpuTimeMillis() {
+    return decompressNanos.get() / 1000000;
+  }
+
+}
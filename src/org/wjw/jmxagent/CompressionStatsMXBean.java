@@ -0,0 +1,55 @@
+package org.wjw.jmxagent;
+
+/**
+ * Statistics of the compressed RMI transport, registered as
+ * <code>org.wjw.jmxagent:type=Compression</code>.
+ */
+public interface CompressionStatsMXBean {
+
+  /**
+   * @return bytes written by RMI before compression
+   */
+  long getBytesOut();
+
+  /**
+   * @return bytes sent on the wire, including block headers
+   */
+  long getWireBytesOut();
+
+  /**
+   * @return bytes read by RMI after decompression
+   */
+  long getBytesIn();
+
+  /**
+   * @return bytes received on the wire, including block headers
+   */
+  long getWireBytesIn();
+
+  /**
+   * @return ratio of uncompressed to sent bytes for outgoing data
+   */
+  double getCompressionRatio();
+
+  /**
+   * @return number of blocks sent compressed
+   */
+  long getCompressedBlocks();
+
+  /**
+   * @return number of blocks sent uncompressed, because they were below the
+   *         threshold or did not compress
+   */
+  long getUncompressedBlocks();
+
+  /**
+   * @return CPU time spent compressing, in milliseconds
+   */
+  long getCompressCpuTimeMillis();
+
+  /**
+   * @return CPU time spent decompressing, in milliseconds
+   */
+  long getDecompressCpuTimeMillis();
+
+}
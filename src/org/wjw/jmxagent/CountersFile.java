@@ -0,0 +1,249 @@
+package org.wjw.jmxagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes numeric attributes into a memory-mapped file, so that local
+ * collectors can read them at a high rate without any call into the JVM. The
+ * values are the <code>counters.value.&lt;name&gt;</code> series (see
+ * {@link AttributeSeries}) and, with <code>counters.agent=true</code>, the
+ * agent's own statistics. They are written every
+ * <code>counters.interval</code> milliseconds to <code>counters.file</code>,
+ * which is deleted when the agent stops.
+ *
+ * The layout of the file (all numbers little-endian) is
+ *
+ * <pre>
+ *  0  int    magic 0x434D584A ("JXMC")
+ *  4  int    version, 1
+ *  8  int    number of values n
+ * 12  int    offset of the values, a multiple of 8
+ * 16  long   sequence, odd while the values are being written
+ * 24  long   time of the last update in milliseconds since the epoch
+ * 32  long   time the file was created in milliseconds since the epoch
+ * 40  long   update interval in milliseconds
+ * 48  long   process id, -1 if unknown
+ * 56  long   reserved
+ * 64         n names, each an unsigned 16 bit length and that many UTF-8 bytes
+ * offset     n values, each a 64 bit IEEE 754 double, NaN if not readable
+ * </pre>
+ *
+ * A consistent set of values is read by reading the sequence, the values and
+ * the sequence again, and retrying if the sequence was odd or has changed (see
+ * {@link CountersReader}). Writer and reader separate the accesses with store
+ * and load fences (see {@link Fences} for Java 6 and 7). The magic is written
+ * last when the file is created.
+ */
+final class CountersFile {
+
+  static final int MAGIC = 0x434D584A;
+
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 64;
+
+  static final int COUNT_OFFSET = 8;
+
+  static final int VALUES_OFFSET = 12;
+
+  static final int SEQUENCE_OFFSET = 16;
+
+  static final int UPDATE_TIME_OFFSET = 24;
+
+  static final int START_TIME_OFFSET = 32;
+
+  static final int INTERVAL_OFFSET = 40;
+
+  static final int PID_OFFSET = 48;
+
+  private static final String UTF8 = "UTF-8";
+
+  // The agent's own statistics, published if registered
+  private static final String[][] AGENT_VALUES = {
+      { "jmxagent.connectionsOpen", "org.wjw.jmxagent:type=AgentStats/ConnectionsOpen" },
+      { "jmxagent.failedCalls", "org.wjw.jmxagent:type=AgentStats/FailedCalls" },
+      { "jmxagent.authenticationFailures", "org.wjw.jmxagent:type=AgentStats/AuthenticationFailures" },
+      { "jmxagent.bytesRead", "org.wjw.jmxagent:type=AgentStats/BytesRead" },
+      { "jmxagent.bytesWritten", "org.wjw.jmxagent:type=AgentStats/BytesWritten" },
+      { "jmxagent.gc.collections", "org.wjw.jmxagent:type=GcStats/Collections" },
+      { "jmxagent.gc.durationMillis", "org.wjw.jmxagent:type=GcStats/TotalDurationMillis" } };
+
+  private final MBeanServer server;
+
+  private final File file;
+
+  private final long interval;
+
+  private final AttributeSeries series;
+
+  private final double[] current;
+
+  private MappedByteBuffer buffer;
+
+  private int valuesOffset;
+
+  private long sequence;
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * Create the publisher from the <code>counters.*</code> options. The agent's
+   * own MBeans must already be registered.
+   *
+   * @param pConfig agent configuration
+   * @param pServer MBeanServer to read from
+   */
+  CountersFile(AgentConfig pConfig, MBeanServer pServer) throws Exception {
+    server = pServer;
+    file = new File(pConfig.get("counters.file"));
+    interval = Math.max(1, pConfig.getLong("counters.interval", 100));
+    Map<String, String> paths = new LinkedHashMap<String, String>();
+    if (pConfig.getBoolean("counters.agent", true)) {
+      for (String[] value : AGENT_VALUES) {
+        if (pServer.isRegistered(new ObjectName(value[1].substring(0, value[1].indexOf('/'))))) {
+          paths.put(value[0], value[1]);
+        }
+      }
+    }
+    paths.putAll(new TreeMap<String, String>(pConfig.withPrefix("counters.value.")));
+    series = new AttributeSeries(paths, "counters value");
+    current = new double[series.size()];
+  }
+
+  /**
+   * Create the file and start publishing
+   */
+  void start() throws IOException {
+    String[] names = series.getNames();
+    byte[][] encoded = new byte[names.length][];
+    int namesSize = 0;
+    for (int i = 0; i < names.length; i++) {
+      encoded[i] = names[i].getBytes(UTF8);
+      if (encoded[i].length > 0xFFFF) {
+        throw new IllegalArgumentException("Name of counters value too long: " + names[i]);
+      }
+      namesSize += 2 + encoded[i].length;
+    }
+    valuesOffset = (HEADER_SIZE + namesSize + 7) & ~7;
+    int size = valuesOffset + 8 * names.length;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(size);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      // The mapping stays valid
+      raf.close();
+    }
+    file.deleteOnExit();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(COUNT_OFFSET, names.length);
+    buffer.putInt(VALUES_OFFSET, valuesOffset);
+    buffer.putLong(START_TIME_OFFSET, System.currentTimeMillis());
+    buffer.putLong(INTERVAL_OFFSET, interval);
+    buffer.putLong(PID_OFFSET, pid());
+    int pos = HEADER_SIZE;
+    for (byte[] name : encoded) {
+      buffer.putShort(pos, (short) name.length);
+      for (int i = 0; i < name.length; i++) {
+        buffer.put(pos + 2 + i, name[i]);
+      }
+      pos += 2 + name.length;
+    }
+    for (int i = 0; i < names.length; i++) {
+      buffer.putDouble(valuesOffset + 8 * i, Double.NaN);
+    }
+    // The header is complete before the magic
+    Fences.storeFence();
+    buffer.putInt(0, MAGIC);
+
+    executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Counters"));
+    executor.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        try {
+          update();
+        } catch (RuntimeException exp) {
+          // Keep the schedule alive
+          exp.printStackTrace(System.err);
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop publishing and delete the file
+   */
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (!file.delete() && file.exists()) {
+      System.err.println("JmxAgent: Cannot delete counters file " + file);
+    }
+  }
+
+  /**
+   * @return the published file
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return number of published values
+   */
+  int size() {
+    return current.length;
+  }
+
+  // ===================================================================================
+
+  // Only called by the scheduler thread
+  private void update() {
+    series.read(server, current);
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    // The odd sequence is visible before any value
+    Fences.storeFence();
+    for (int i = 0; i < current.length; i++) {
+      buffer.putDouble(valuesOffset + 8 * i, current[i]);
+    }
+    // All values are visible before the even sequence
+    Fences.storeFence();
+    buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    buffer.putLong(UPDATE_TIME_OFFSET, System.currentTimeMillis());
+  }
+
+  // The process id from the name of the runtime, which is pid@host on most JVMs
+  static long pid() {
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    int at = name.indexOf('@');
+    try {
+      return Long.parseLong(at > 0 ? name.substring(0, at) : name);
+    } catch (NumberFormatException exp) {
+      return -1;
+    }
+  }
+
+}
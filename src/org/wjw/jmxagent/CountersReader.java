@@ -0,0 +1,156 @@
+package org.wjw.jmxagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the counters file published by the agent with
+ * <code>counters.file</code>, see {@link CountersFile} for its layout. The
+ * file is mapped into memory, so reading the values needs no system call and
+ * no call into the monitored JVM.
+ *
+ * Usage from the command line:
+ *
+ * <pre>
+ * java -cp JmxAgent.jar org.wjw.jmxagent.CountersReader &lt;file&gt; [&lt;interval in ms&gt;]
+ * </pre>
+ *
+ * prints the values once, or repeatedly with an interval.
+ */
+public class CountersReader {
+
+  private static final int MAX_RETRIES = 1000;
+
+  private final MappedByteBuffer buffer;
+
+  private final String[] names;
+
+  private final int valuesOffset;
+
+  /**
+   * Map a counters file
+   *
+   * @param pFile the file given as <code>counters.file</code>
+   * @throws IOException if the file can not be read or is not a counters file
+   */
+  public CountersReader(File pFile) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.capacity() < CountersFile.HEADER_SIZE || buffer.getInt(0) != CountersFile.MAGIC) {
+      throw new IOException(pFile + " is not a (completely written) counters file");
+    }
+    if (buffer.getInt(4) != CountersFile.VERSION) {
+      throw new IOException("Unsupported version " + buffer.getInt(4) + " of counters file " + pFile);
+    }
+    names = new String[buffer.getInt(CountersFile.COUNT_OFFSET)];
+    valuesOffset = buffer.getInt(CountersFile.VALUES_OFFSET);
+    int pos = CountersFile.HEADER_SIZE;
+    for (int i = 0; i < names.length; i++) {
+      byte[] name = new byte[buffer.getShort(pos) & 0xFFFF];
+      for (int j = 0; j < name.length; j++) {
+        name[j] = buffer.get(pos + 2 + j);
+      }
+      names[i] = new String(name, "UTF-8");
+      pos += 2 + name.length;
+    }
+  }
+
+  /**
+   * @return the names of the values, in the order of {@link #read(double[])}
+   */
+  public String[] getNames() {
+    return names.clone();
+  }
+
+  /**
+   * Read a consistent set of values
+   *
+   * @param pValues receives the values, at least as long as the names
+   * @return false if no consistent set could be read, e.g. because the agent
+   *         stopped while writing
+   */
+  public boolean read(double[] pValues) {
+    for (int retry = 0; retry < MAX_RETRIES; retry++) {
+      long before = buffer.getLong(CountersFile.SEQUENCE_OFFSET);
+      if ((before & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      // No value is read before the sequence
+      Fences.loadFence();
+      for (int i = 0; i < names.length; i++) {
+        pValues[i] = buffer.getDouble(valuesOffset + 8 * i);
+      }
+      // Nor after the sequence is checked again
+      Fences.loadFence();
+      if (buffer.getLong(CountersFile.SEQUENCE_OFFSET) == before) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return time of the last update in milliseconds since the epoch
+   */
+  public long getUpdateTime() {
+    return buffer.getLong(CountersFile.UPDATE_TIME_OFFSET);
+  }
+
+  /**
+   * @return update interval of the agent in milliseconds
+   */
+  public long getInterval() {
+    return buffer.getLong(CountersFile.INTERVAL_OFFSET);
+  }
+
+  /**
+   * @return process id of the JVM publishing the file, -1 if unknown
+   */
+  public long getPid() {
+    return buffer.getLong(CountersFile.PID_OFFSET);
+  }
+
+  /**
+   * Print the values of a counters file
+   *
+   * @param args the file and optionally an interval in milliseconds
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: java -cp JmxAgent.jar " + CountersReader.class.getName()
+          + " <file> [<interval in ms>]");
+      System.exit(1);
+    }
+    CountersReader reader = new CountersReader(new File(args[0]));
+    long interval = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    String[] names = reader.getNames();
+    double[] values = new double[names.length];
+    do {
+      if (!reader.read(values)) {
+        System.err.println("No consistent values in " + args[0]);
+      } else {
+        StringBuilder out = new StringBuilder();
+        out.append("# pid ").append(reader.getPid()).append(", updated ").append(reader.getUpdateTime())
+            .append('\n');
+        for (int i = 0; i < names.length; i++) {
+          out.append(names[i]).append(' ').append(values[i]).append('\n');
+        }
+        System.out.print(out);
+      }
+      if (interval > 0) {
+        Thread.sleep(interval);
+      }
+    } while (interval > 0);
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.wjw.jmxagent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for the agent's own worker threads. All threads are daemon
+ * threads so that they never keep the monitored JVM alive (and are therefore
+ * ignored by the {@link CleanupThread}).
+ *
+ * With <code>threads=virtual</code> on Java 21 and later the threads are
+ * virtual threads, which are always daemon threads. They are created by
+ * reflection, so the agent still runs on older JVMs with platform threads.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+  // Thread.ofVirtual() and the methods of Thread.Builder, null before Java 21
+  private static final Method OF_VIRTUAL;
+
+  private static final Method NAME;
+
+  private static final Method UNSTARTED;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method unstarted = null;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+    } catch (Exception exp) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    UNSTARTED = unstarted;
+  }
+
+  private static volatile boolean virtual;
+
+  private final String prefix;
+
+  private final AtomicInteger counter = new AtomicInteger();
+
+  DaemonThreadFactory(String pPrefix) {
+    prefix = pPrefix;
+  }
+
+  /**
+   * Choose the kind of threads created from now on
+   *
+   * @param pVirtual true for virtual threads
+   * @return false if virtual threads were requested but are not supported by
+   *         this JVM, platform threads are used then
+   */
+  static boolean setVirtual(boolean pVirtual) {
+    virtual = pVirtual && OF_VIRTUAL != null;
+    return virtual == pVirtual;
+  }
+
+  /**
+   * @return true if virtual threads are created
+   */
+  static boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Create the executor handling remote requests. With platform threads it
+   * is a pool of the given size. With virtual threads each request gets its
+   * own thread, so that a request blocking in a slow MBean holds no OS thread
+   * and does not delay the others.
+   *
+   * @param pPrefix prefix of the thread names
+   * @param pThreads number of platform threads
+   * @return the executor
+   */
+  static ExecutorService newRequestExecutor(String pPrefix, int pThreads) {
+    if (virtual) {
+      return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+          new DaemonThreadFactory(pPrefix));
+    }
+    ThreadPoolExecutor ret = new ThreadPoolExecutor(pThreads, pThreads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(pPrefix));
+    // No threads while there are no requests
+    ret.allowCoreThreadTimeOut(true);
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public Thread newThread(Runnable pRunnable) {
+    String name = prefix + "-" + counter.incrementAndGet();
+    if (virtual) {
+      try {
+        return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), pRunnable);
+      } catch (Exception exp) {
+        // e.g. denied by a security manager, use a platform thread
+      }
+    }
+    Thread t = new Thread(pRunnable, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+}
@@ -1,183 +1,295 @@
-package org.wjw.jmxagent;
-
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-/**
- * Utility class for handling escaping of strings and paths.
- * 
- * @author roland
- * @since 15.03.11
- */
-public final class EscapeUtil {
-
-	/**
-	 * Escape character used for path escaping as it can be used in a regexp
-	 */
-	public static final String PATH_ESCAPE = "!";
-
-	/**
-	 * Escape character for escaping CSV type string as it can be used in a
-	 * regexp. E.g. a backslash (\ or "\\") must be doubled (\\ or "\\\\")
-	 */
-	public static final String CSV_ESCAPE = "\\\\";
-
-	// Compile patterns in advance and cache them
-	static final Map<String, Pattern[]> SPLIT_PATTERNS = new HashMap<String, Pattern[]>();
-	static {
-		for (String param[] : new String[][] { { PATH_ESCAPE, "/" }, { CSV_ESCAPE, "," }, { CSV_ESCAPE, "=" } }) {
-			String esc = param[0];
-			String del = param[1];
-			SPLIT_PATTERNS.put(esc + del, createSplitPatterns(esc, del));
-		}
-	}
-
-	private EscapeUtil() {
-	}
-
-	/**
-	 * Combine a list of strings to a single path with proper escaping.
-	 * 
-	 * @param pParts parts to combine
-	 * @return the combined path
-	 */
-	public static String combineToPath(List<String> pParts) {
-		if (pParts != null && pParts.size() > 0) {
-			StringBuilder buf = new StringBuilder();
-			Iterator<String> it = pParts.iterator();
-			while (it.hasNext()) {
-				String part = it.next();
-				buf.append(escapePart(part));
-				if (it.hasNext()) {
-					buf.append("/");
-				}
-			}
-			return buf.toString();
-		} else {
-			return null;
-		}
-	}
-
-	/**
-	 * Parse a string path and return a list of split up parts.
-	 * 
-	 * @param pPath the path to parse. Can be null
-	 * @return list of path elements or null if the initial path is null.
-	 */
-	public static List<String> parsePath(String pPath) {
-		// Special cases which simply implies 'no path'
-		if (pPath == null || pPath.equals("") || pPath.equals("/")) {
-			return null;
-		}
-		return split(pPath, PATH_ESCAPE, "/");
-	}
-
-	/**
-	 * Get the path as a reverse stack with the first element of the path on top
-	 * 
-	 * @param pPath path to parse
-	 * @return stack of arguments in reverse order or an empty stack if path was
-	 *         null or empty
-	 */
-	public static Stack<String> extractElementsFromPath(String pPath) {
-		return reversePath(parsePath(pPath));
-	}
-
-	/**
-	 * Reverse path and return as a stack. First path element is on top of the
-	 * stack.
-	 * 
-	 * @param pathParts path to reverse
-	 * @return reversed path or an empty stack if no path parts are given. Never
-	 *         return null.
-	 */
-	public static Stack<String> reversePath(List<String> pathParts) {
-		Stack<String> pathStack = new Stack<String>();
-		if (pathParts != null) {
-			// Needs first extra argument at top of the stack
-			for (int i = pathParts.size() - 1; i >= 0; i--) {
-				pathStack.push(pathParts.get(i));
-			}
-		}
-		return pathStack;
-	}
-
-	/**
-	 * Split a string on a delimiter, respecting escaping with an escape char.
-	 * Assuming that a backslash (<code>\</code>) is used as escape char, then the
-	 * following replacement rules apply:
-	 * 
-	 * <ul>
-	 * <li>
-	 * <code>\</code><em>delimiter</em> for the delimiter as literal</li>
-	 * <li>
-	 * <code>\\</code> for backslashes</li>
-	 * <li>
-	 * <code>\</code><em>(everything else)</em> is the same as
-	 * <em>(everything else)</em>.</li>
-	 * 
-	 * @param pArg argument to split
-	 * @param pEscape escape pattern as it can be used in a regular expression.
-	 * @param pDelimiter delimiter to use
-	 * @return the splitted string as list or an empty array if the argument was
-	 *         null
-	 */
-	public static ArrayList<String> split(String pArg, String pEscape, String pDelimiter) {
-		if (pArg != null) {
-			ArrayList<String> ret = new ArrayList<String>();
-			Pattern[] pattern = SPLIT_PATTERNS.get(pEscape + pDelimiter);
-			if (pattern == null) {
-				pattern = createSplitPatterns(pEscape, pDelimiter);
-				SPLIT_PATTERNS.put(pEscape + pDelimiter, pattern);
-			}
-
-			final Matcher m = pattern[0].matcher(pArg);
-			while (m.find() && m.start(1) != pArg.length()) {
-				// Finally unescape all escaped parts
-				ret.add(pattern[1].matcher(m.group(1)).replaceAll("$1"));
-			}
-			return ret;
-		} else {
-			return null;
-		}
-	}
-
-	/**
-	 * Split but return an array which is never null (but might be empty)
-	 * 
-	 * @param pArg argument to split
-	 * @param pEscape single character used for escaping
-	 * @param pDelimiter delimiter to use
-	 * @return the splitted string as list or an empty array if the argument was
-	 *         null
-	 */
-	public static String[] splitAsArray(String pArg, String pEscape, String pDelimiter) {
-		if (pArg != null) {
-			List<String> elements = split(pArg, pEscape, pDelimiter);
-			return elements.toArray(new String[elements.size()]);
-		} else {
-			return new String[0];
-		}
-	}
-
-	// ===================================================================================
-
-	// Create a split pattern for a given delimiter
-	private static Pattern[] createSplitPatterns(String pEscape, String pDel) {
-		return new Pattern[] {
-		    // Escape
-		Pattern.compile("((?:[^" + pEscape + pDel + "]|" + pEscape + ".)*)(?:" + pDel + "|$)"),
-		    // Unescape, group must match unescaped value
-		Pattern.compile(pEscape + "(.)") };
-	}
-
-	// Escape a single part
-	private static final Pattern ESCAPE_PATTERN = Pattern.compile(PATH_ESCAPE);
-	private static final Pattern SLASH_PATTERN = Pattern.compile("/");
-
-	private static String escapePart(String pPart) {
-		return SLASH_PATTERN.matcher(ESCAPE_PATTERN.matcher(pPart).replaceAll(PATH_ESCAPE + PATH_ESCAPE)).replaceAll(PATH_ESCAPE + "/");
-	}
-
-}
+package org.wjw.jmxagent;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Utility class for handling escaping of strings and paths.
+ * 
+ * Splitting with a single escape character and a single delimiter character
+ * (which covers paths and agent arguments) is done by a single pass over the
+ * string, without regular expressions. Elements without escapes are returned
+ * as substrings of the argument.
+ * 
+ * @author roland
+ * @since 15.03.11
+ */
+public final class EscapeUtil {
+
+	/**
+	 * Escape character used for path escaping as it can be used in a regexp
+	 */
+	public static final String PATH_ESCAPE = "!";
+
+	/**
+	 * Escape character for escaping CSV type string as it can be used in a
+	 * regexp. E.g. a backslash (\ or "\\") must be doubled (\\ or "\\\\")
+	 */
+	public static final String CSV_ESCAPE = "\\\\";
+
+	// Patterns for escapes and delimiters which cannot be scanned for directly,
+	// compiled on first use
+	static final Map<String, Pattern[]> SPLIT_PATTERNS = new ConcurrentHashMap<String, Pattern[]>();
+
+	private static final char PATH_ESCAPE_CHAR = '!';
+
+	private static final char PATH_DELIMITER = '/';
+
+	// Characters which have a special meaning in a regular expression
+	private static final String REGEXP_CHARS = "\\^$.|?*+()[]{}-";
+
+	private EscapeUtil() {
+	}
+
+	/**
+	 * Combine a list of strings to a single path with proper escaping.
+	 * 
+	 * @param pParts parts to combine
+	 * @return the combined path
+	 */
+	public static String combineToPath(List<String> pParts) {
+		if (pParts != null && pParts.size() > 0) {
+			StringBuilder buf = new StringBuilder();
+			combineToPath(pParts, buf);
+			return buf.toString();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Combine a list of strings to a single path with proper escaping.
+	 * 
+	 * @param pParts parts to combine
+	 * @param pBuf buffer the path is appended to
+	 */
+	public static void combineToPath(List<String> pParts, StringBuilder pBuf) {
+		for (int i = 0, n = pParts.size(); i < n; i++) {
+			if (i > 0) {
+				pBuf.append(PATH_DELIMITER);
+			}
+			escapePart(pParts.get(i), pBuf);
+		}
+	}
+
+	/**
+	 * Parse a string path and return a list of split up parts.
+	 * 
+	 * @param pPath the path to parse. Can be null
+	 * @return list of path elements or null if the initial path is null.
+	 */
+	public static List<String> parsePath(String pPath) {
+		// Special cases which simply implies 'no path'
+		if (pPath == null || pPath.equals("") || pPath.equals("/")) {
+			return null;
+		}
+		ArrayList<String> ret = new ArrayList<String>();
+		scan(pPath, PATH_ESCAPE_CHAR, PATH_DELIMITER, ret);
+		return ret;
+	}
+
+	/**
+	 * Parse a string path into a caller supplied list.
+	 * 
+	 * @param pPath the path to parse. Can be null
+	 * @param pParts list the path elements are added to
+	 * @return false if the path is null, empty or "/", i.e. no path
+	 */
+	public static boolean parsePath(String pPath, List<String> pParts) {
+		if (pPath == null || pPath.length() == 0 || (pPath.length() == 1 && pPath.charAt(0) == PATH_DELIMITER)) {
+			return false;
+		}
+		scan(pPath, PATH_ESCAPE_CHAR, PATH_DELIMITER, pParts);
+		return true;
+	}
+
+	/**
+	 * Get the path as a reverse stack with the first element of the path on top
+	 * 
+	 * @param pPath path to parse
+	 * @return stack of arguments in reverse order or an empty stack if path was
+	 *         null or empty
+	 */
+	public static Stack<String> extractElementsFromPath(String pPath) {
+		return reversePath(parsePath(pPath));
+	}
+
+	/**
+	 * Reverse path and return as a stack. First path element is on top of the
+	 * stack.
+	 * 
+	 * @param pathParts path to reverse
+	 * @return reversed path or an empty stack if no path parts are given. Never
+	 *         return null.
+	 */
+	public static Stack<String> reversePath(List<String> pathParts) {
+		Stack<String> pathStack = new Stack<String>();
+		if (pathParts != null) {
+			// Needs first extra argument at top of the stack
+			for (int i = pathParts.size() - 1; i >= 0; i--) {
+				pathStack.push(pathParts.get(i));
+			}
+		}
+		return pathStack;
+	}
+
+	/**
+	 * Split a string on a delimiter, respecting escaping with an escape char.
+	 * Assuming that a backslash (<code>\</code>) is used as escape char, then the
+	 * following replacement rules apply:
+	 * 
+	 * <ul>
+	 * <li>
+	 * <code>\</code><em>delimiter</em> for the delimiter as literal</li>
+	 * <li>
+	 * <code>\\</code> for backslashes</li>
+	 * <li>
+	 * <code>\</code><em>(everything else)</em> is the same as
+	 * <em>(everything else)</em>.</li>
+	 * 
+	 * @param pArg argument to split
+	 * @param pEscape escape pattern as it can be used in a regular expression.
+	 * @param pDelimiter delimiter to use
+	 * @return the splitted string as list or an empty array if the argument was
+	 *         null
+	 */
+	public static ArrayList<String> split(String pArg, String pEscape, String pDelimiter) {
+		if (pArg != null) {
+			ArrayList<String> ret = new ArrayList<String>();
+			split(pArg, pEscape, pDelimiter, ret);
+			return ret;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Split a string on a delimiter like {@link #split(String, String, String)},
+	 * adding the elements to a caller supplied list.
+	 * 
+	 * @param pArg argument to split, must not be null
+	 * @param pEscape escape pattern as it can be used in a regular expression.
+	 * @param pDelimiter delimiter to use
+	 * @param pParts list the elements are added to
+	 */
+	public static void split(String pArg, String pEscape, String pDelimiter, List<String> pParts) {
+		char esc = literalChar(pEscape);
+		if (esc != 0 && pDelimiter.length() == 1 && REGEXP_CHARS.indexOf(pDelimiter.charAt(0)) < 0) {
+			scan(pArg, esc, pDelimiter.charAt(0), pParts);
+			return;
+		}
+		Pattern[] pattern = SPLIT_PATTERNS.get(pEscape + pDelimiter);
+		if (pattern == null) {
+			pattern = createSplitPatterns(pEscape, pDelimiter);
+			SPLIT_PATTERNS.put(pEscape + pDelimiter, pattern);
+		}
+
+		final Matcher m = pattern[0].matcher(pArg);
+		while (m.find() && m.start(1) != pArg.length()) {
+			// Finally unescape all escaped parts
+			pParts.add(pattern[1].matcher(m.group(1)).replaceAll("$1"));
+		}
+	}
+
+	/**
+	 * Split but return an array which is never null (but might be empty)
+	 * 
+	 * @param pArg argument to split
+	 * @param pEscape single character used for escaping
+	 * @param pDelimiter delimiter to use
+	 * @return the splitted string as list or an empty array if the argument was
+	 *         null
+	 */
+	public static String[] splitAsArray(String pArg, String pEscape, String pDelimiter) {
+		if (pArg != null) {
+			List<String> elements = split(pArg, pEscape, pDelimiter);
+			return elements.toArray(new String[elements.size()]);
+		} else {
+			return new String[0];
+		}
+	}
+
+	/**
+	 * Escape a single path element
+	 * 
+	 * @param pPart element to escape
+	 * @param pBuf buffer the escaped element is appended to
+	 */
+	public static void escapePart(String pPart, StringBuilder pBuf) {
+		for (int i = 0, n = pPart.length(); i < n; i++) {
+			char c = pPart.charAt(i);
+			if (c == PATH_ESCAPE_CHAR || c == PATH_DELIMITER) {
+				pBuf.append(PATH_ESCAPE_CHAR);
+			}
+			pBuf.append(c);
+		}
+	}
+
+	// ===================================================================================
+
+	// Split in a single pass. An escape char escapes the following char, a
+	// trailing escape char is kept. An empty last element is dropped.
+	private static void scan(String pArg, char pEscape, char pDelimiter, List<String> pParts) {
+		int len = pArg.length();
+		int start = 0;
+		// Only needed for elements containing escapes
+		StringBuilder buf = null;
+		boolean escaped = false;
+		for (int i = 0; i < len; i++) {
+			char c = pArg.charAt(i);
+			if (c == pEscape && i + 1 < len) {
+				if (!escaped) {
+					if (buf == null) {
+						buf = new StringBuilder(len);
+					}
+					buf.setLength(0);
+					buf.append(pArg, start, i);
+					escaped = true;
+				}
+				buf.append(pArg.charAt(++i));
+			} else if (c == pDelimiter) {
+				pParts.add(escaped ? buf.toString() : pArg.substring(start, i));
+				escaped = false;
+				start = i + 1;
+			} else if (escaped) {
+				buf.append(c);
+			}
+		}
+		if (start < len) {
+			pParts.add(escaped ? buf.toString() : pArg.substring(start, len));
+		}
+	}
+
+	// The char a single char escape pattern stands for, or 0 if it is no
+	// single char
+	private static char literalChar(String pEscape) {
+		if (pEscape.length() == 1 && REGEXP_CHARS.indexOf(pEscape.charAt(0)) < 0) {
+			return pEscape.charAt(0);
+		} else if (pEscape.length() == 2 && pEscape.charAt(0) == '\\' && !Character.isLetterOrDigit(pEscape.charAt(1))) {
+			return pEscape.charAt(1);
+		}
+		return 0;
+	}
+
+	// Create a split pattern for a given delimiter
+	private static Pattern[] createSplitPatterns(String pEscape, String pDel) {
+		return new Pattern[] {
+		    // Escape
+		Pattern.compile("((?:[^" + pEscape + pDel + "]|" + pEscape + ".)*)(?:" + pDel + "|$)"),
+		    // Unescape, group must match unescaped value
+		Pattern.compile(pEscape + "(.)") };
+	}
+
+	// Escape a single part, returning it unchanged if there is nothing to escape
+	private static String escapePart(String pPart) {
+		if (pPart.indexOf(PATH_ESCAPE_CHAR) < 0 && pPart.indexOf(PATH_DELIMITER) < 0) {
+			return pPart;
+		}
+		StringBuilder buf = new StringBuilder(pPart.length() + 4);
+		escapePart(pPart, buf);
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.wjw.jmxagent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Memory fences for the seqlock of the counters file (see {@link CountersFile}
+ * and {@link CountersReader}), whose values are plain accesses to a mapped
+ * buffer. The fences are <code>VarHandle.storeFence()</code> and
+ * <code>loadFence()</code> on Java 9+, the same methods of
+ * <code>sun.misc.Unsafe</code> on Java 8, both used by reflection.
+ *
+ * On Java 6 and 7 there are no fences in the API. The fallback is a volatile
+ * write respectively read, which only keeps the order on processors that do
+ * not reorder stores with stores and loads with loads (x86), but not e.g. on
+ * AArch64.
+ */
+final class Fences {
+
+  // Static methods of VarHandle, or instance methods of Unsafe, null before Java 8
+  private static final Method STORE_FENCE;
+
+  private static final Method LOAD_FENCE;
+
+  // The Unsafe instance on Java 8, null otherwise
+  private static final Object TARGET;
+
+  static {
+    Method storeFence = null;
+    Method loadFence = null;
+    Object target = null;
+    try {
+      Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+      storeFence = varHandle.getMethod("storeFence");
+      loadFence = varHandle.getMethod("loadFence");
+    } catch (Exception exp) {
+      try {
+        Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+        Field field = unsafe.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        target = field.get(null);
+        storeFence = unsafe.getMethod("storeFence");
+        loadFence = unsafe.getMethod("loadFence");
+      } catch (Exception unsafeExp) {
+        storeFence = null;
+        loadFence = null;
+        target = null;
+      }
+    }
+    STORE_FENCE = storeFence;
+    LOAD_FENCE = loadFence;
+    TARGET = target;
+  }
+
+  // Written and read by the fallback only
+  private static volatile long fallback;
+
+  private Fences() {
+  }
+
+  /**
+   * Keep the stores before the fence from being reordered with the stores
+   * after it
+   */
+  static void storeFence() {
+    if (STORE_FENCE == null || !invoke(STORE_FENCE)) {
+      fallback++;
+    }
+  }
+
+  /**
+   * Keep the loads before the fence from being reordered with the loads after
+   * it
+   */
+  static void loadFence() {
+    if (LOAD_FENCE == null || !invoke(LOAD_FENCE)) {
+      long ignored = fallback;
+    }
+  }
+
+  // ===================================================================================
+
+  private static boolean invoke(Method pFence) {
+    try {
+      pFence.invoke(TARGET);
+      return true;
+    } catch (Exception exp) {
+      return false;
+    }
+  }
+
+}
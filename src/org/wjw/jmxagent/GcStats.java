@@ -0,0 +1,261 @@
+package org.wjw.jmxagent;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Aggregates the notification every garbage collector sends after a
+ * collection, so that no collection is missed and nothing needs to be polled.
+ * Per collector the durations go into a {@link LatencyHistogram}; for
+ * concurrent collectors they are the durations of their cycles rather than
+ * pauses. Per memory pool the growth between collections is counted as
+ * allocated and the growth during a collection as promoted.
+ *
+ * The longest collection and the allocated and promoted bytes are
+ * additionally kept for each of the last <code>gc.intervals</code> intervals
+ * of <code>gc.interval</code> milliseconds. All counters are allocated up front
+ * for the collectors and pools of the JVM.
+ */
+final class GcStats implements GcStatsMXBean, NotificationListener {
+
+  private final long interval;
+
+  private final int intervals;
+
+  private final Map<String, LatencyHistogram> durations = new LinkedHashMap<String, LatencyHistogram>();
+
+  private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+
+  private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+
+  // Guarded by this
+  private final long[] maxDurations;
+
+  // Interval each slot of the rings belongs to, guarded by this
+  private final long[] slotIntervals;
+
+  private long collections;
+
+  private long totalDuration;
+
+  /**
+   * Create the statistics from the <code>gc.*</code> options
+   *
+   * @param pConfig agent configuration
+   */
+  GcStats(AgentConfig pConfig) {
+    interval = Math.max(1, pConfig.getLong("gc.interval", 60000));
+    intervals = Math.max(2, pConfig.getInt("gc.intervals", 60));
+    maxDurations = new long[intervals];
+    slotIntervals = new long[intervals];
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      durations.put(gc.getName(), new LatencyHistogram());
+      if (gc instanceof NotificationEmitter) {
+        emitters.add((NotificationEmitter) gc);
+      }
+    }
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pools.put(pool.getName(), new Pool(intervals));
+    }
+  }
+
+  /**
+   * Start listening to the garbage collectors
+   */
+  void start() {
+    NotificationFilter filter = new NotificationFilter() {
+      private static final long serialVersionUID = 1L;
+
+      public boolean isNotificationEnabled(Notification pNotification) {
+        return GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(pNotification.getType());
+      }
+    };
+    for (NotificationEmitter emitter : emitters) {
+      emitter.addNotificationListener(this, filter, null);
+    }
+  }
+
+  /**
+   * Stop listening
+   */
+  void stop() {
+    for (NotificationEmitter emitter : emitters) {
+      try {
+        emitter.removeNotificationListener(this);
+      } catch (ListenerNotFoundException exp) {
+        // Never added
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void handleNotification(Notification pNotification, Object pHandback) {
+    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+        .from((CompositeData) pNotification.getUserData());
+    GcInfo gc = info.getGcInfo();
+    long duration = gc.getDuration();
+    LatencyHistogram histogram = durations.get(info.getGcName());
+    if (histogram != null) {
+      histogram.record(duration * 1000000L);
+    }
+    Map<String, MemoryUsage> before = gc.getMemoryUsageBeforeGc();
+    Map<String, MemoryUsage> after = gc.getMemoryUsageAfterGc();
+    synchronized (this) {
+      int slot = slot(System.currentTimeMillis() / interval);
+      collections++;
+      totalDuration += duration;
+      maxDurations[slot] = Math.max(maxDurations[slot], duration);
+      for (Map.Entry<String, MemoryUsage> entry : before.entrySet()) {
+        Pool pool = pools.get(entry.getKey());
+        MemoryUsage usageAfter = after.get(entry.getKey());
+        if (pool != null && usageAfter != null) {
+          pool.collected(slot, entry.getValue().getUsed(), usageAfter.getUsed());
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getCollections() {
+    return collections;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getTotalDurationMillis() {
+    return totalDuration;
+  }
+
+  /** {@inheritDoc} */
+  public Map<String, LatencySummary> getDurations() {
+    Map<String, LatencySummary> ret = new TreeMap<String, LatencySummary>();
+    for (Map.Entry<String, LatencyHistogram> entry : durations.entrySet()) {
+      ret.put(entry.getKey(), entry.getValue().summary());
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public long getIntervalMillis() {
+    return interval;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long[] getMaxDurationMillisPerInterval() {
+    long current = System.currentTimeMillis() / interval;
+    long[] ret = new long[intervals];
+    for (int i = 0; i < intervals; i++) {
+      long iv = current - intervals + 1 + i;
+      int slot = (int) (iv % intervals);
+      ret[i] = slotIntervals[slot] == iv ? maxDurations[slot] : 0;
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Map<String, Long> getAllocatedBytes() {
+    Map<String, Long> ret = new TreeMap<String, Long>();
+    for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+      ret.put(entry.getKey(), Long.valueOf(entry.getValue().allocated));
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Map<String, Long> getPromotedBytes() {
+    Map<String, Long> ret = new TreeMap<String, Long>();
+    for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+      ret.put(entry.getKey(), Long.valueOf(entry.getValue().promoted));
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Map<String, Long> getAllocationRates() {
+    return rates(true);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Map<String, Long> getPromotionRates() {
+    return rates(false);
+  }
+
+  // ===================================================================================
+
+  // Slot of an interval, cleared if it held an older interval. Must hold the lock.
+  private int slot(long pInterval) {
+    int slot = (int) (pInterval % intervals);
+    if (slotIntervals[slot] != pInterval) {
+      slotIntervals[slot] = pInterval;
+      maxDurations[slot] = 0;
+      for (Pool pool : pools.values()) {
+        pool.allocatedPerInterval[slot] = 0;
+        pool.promotedPerInterval[slot] = 0;
+      }
+    }
+    return slot;
+  }
+
+  // Rates of the last complete interval. Must hold the lock.
+  private Map<String, Long> rates(boolean pAllocated) {
+    long last = System.currentTimeMillis() / interval - 1;
+    int slot = (int) (last % intervals);
+    boolean valid = slotIntervals[slot] == last;
+    Map<String, Long> ret = new TreeMap<String, Long>();
+    for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+      long bytes = !valid ? 0 : pAllocated ? entry.getValue().allocatedPerInterval[slot]
+          : entry.getValue().promotedPerInterval[slot];
+      ret.put(entry.getKey(), Long.valueOf(bytes * 1000 / interval));
+    }
+    return ret;
+  }
+
+  // Counters of one memory pool, guarded by the GcStats
+  private static final class Pool {
+
+    final long[] allocatedPerInterval;
+
+    final long[] promotedPerInterval;
+
+    long allocated;
+
+    long promoted;
+
+    // Usage after the last collection, -1 before the first one
+    private long lastUsed = -1;
+
+    Pool(int pIntervals) {
+      allocatedPerInterval = new long[pIntervals];
+      promotedPerInterval = new long[pIntervals];
+    }
+
+    void collected(int pSlot, long pBefore, long pAfter) {
+      if (lastUsed >= 0 && pBefore > lastUsed) {
+        allocated += pBefore - lastUsed;
+        allocatedPerInterval[pSlot] += pBefore - lastUsed;
+      }
+      if (pAfter > pBefore) {
+        promoted += pAfter - pBefore;
+        promotedPerInterval[pSlot] += pAfter - pBefore;
+      }
+      lastUsed = pAfter;
+    }
+  }
+
+}
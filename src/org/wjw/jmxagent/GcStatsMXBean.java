@@ -0,0 +1,64 @@
+package org.wjw.jmxagent;
+
+import java.util.Map;
+
+/**
+ * Garbage collections aggregated from the notifications of the garbage
+ * collectors, registered as <code>org.wjw.jmxagent:type=GcStats</code>. All
+ * attributes can be read with a single <code>getAttributes()</code> call.
+ */
+public interface GcStatsMXBean {
+
+  /**
+   * @return number of collections since the agent started
+   */
+  long getCollections();
+
+  /**
+   * @return duration of all collections since the agent started in
+   *         milliseconds
+   */
+  long getTotalDurationMillis();
+
+  /**
+   * @return distribution of the collection durations per collector, e.g.
+   *         <code>G1 Young Generation</code>
+   */
+  Map<String, LatencySummary> getDurations();
+
+  /**
+   * @return length of an interval in milliseconds
+   */
+  long getIntervalMillis();
+
+  /**
+   * @return longest collection of each of the last intervals in milliseconds,
+   *         oldest first, the last one being the current interval
+   */
+  long[] getMaxDurationMillisPerInterval();
+
+  /**
+   * @return bytes allocated into each memory pool, that is its growth between
+   *         collections, since the agent started
+   */
+  Map<String, Long> getAllocatedBytes();
+
+  /**
+   * @return bytes promoted into each memory pool, that is its growth during
+   *         collections, since the agent started
+   */
+  Map<String, Long> getPromotedBytes();
+
+  /**
+   * @return bytes per second allocated into each memory pool in the last
+   *         complete interval
+   */
+  Map<String, Long> getAllocationRates();
+
+  /**
+   * @return bytes per second promoted into each memory pool in the last
+   *         complete interval
+   */
+  Map<String, Long> getPromotionRates();
+
+}
@@ -0,0 +1,230 @@
+package org.wjw.jmxagent;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import javax.management.MBeanServer;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server which answers batched JSON requests (see
+ * {@link JmxRequestHandler}) with a single JSON response, so that a scraper
+ * needs one round-trip instead of one RMI call per attribute.
+ *
+ * Requests are POSTed to <code>/jmx</code>. With <code>metrics=true</code>
+ * the MBeans are additionally served in the Prometheus text format at
+ * <code>/metrics</code> (see {@link PrometheusHandler}). If the agent is
+ * configured with a user and password, HTTP basic authentication with the same
+ * credentials is required.
+ */
+final class HttpAgent {
+
+  private static final String UTF8 = "UTF-8";
+
+  private final HttpServer server;
+
+  private final ExecutorService executor;
+
+  private final BasicAuthenticator authenticator;
+
+  private final PrometheusHandler metricsHandler;
+
+  /**
+   * Create the HTTP server, bound but not started yet.
+   *
+   * @param pConfig agent configuration (<code>http</code>,
+   *          <code>http.host</code>, <code>http.threads</code>,
+   *          <code>http.maxBody</code>, <code>http.write</code>,
+   *          <code>metrics</code>, <code>user</code> and
+   *          <code>password</code> are used)
+   * @param pMBeanServer the MBeanServer to serve
+   * @param pHost host to bind to if no <code>http.host</code> is given
+   * @param pStats statistics counting rejected credentials, or null
+   */
+  HttpAgent(AgentConfig pConfig, MBeanServer pMBeanServer, String pHost, AgentStats pStats) throws Exception {
+    this(pConfig, new JmxRequestHandler(pMBeanServer, pConfig.getBoolean("http.write", false)), pConfig.getBoolean("metrics", false) ? pMBeanServer : null,
+        pHost, pStats);
+  }
+
+  /**
+   * Create a HTTP server answering the requests to <code>/jmx</code> with a
+   * handler of its own, bound but not started yet.
+   *
+   * @param pConfig agent configuration, as above without <code>metrics</code>
+   * @param pHandler handler of the JSON requests
+   * @param pHost host to bind to if no <code>http.host</code> is given
+   */
+  HttpAgent(AgentConfig pConfig, RequestHandler pHandler, String pHost) throws Exception {
+    this(pConfig, pHandler, null, pHost, null);
+  }
+
+  private HttpAgent(AgentConfig pConfig, RequestHandler pHandler, MBeanServer pMetricsServer, String pHost,
+      final AgentStats pStats) throws Exception {
+    int port = pConfig.getInt("http", 8778);
+    String host = pConfig.get("http.host", pHost);
+    if ("*".equals(host)) {
+      host = "0.0.0.0";
+    }
+    int threads = pConfig.getInt("http.threads", 2);
+    server = HttpServer.create(new InetSocketAddress(host, port), pConfig.getInt("http.backlog", 50));
+    executor = DaemonThreadFactory.newRequestExecutor("JmxAgent HTTP", threads);
+    server.setExecutor(executor);
+
+    final String user = pConfig.get("user");
+    final String password = pConfig.get("password");
+    if (user != null && password != null) {
+      authenticator = new BasicAuthenticator("jmxagent") {
+        @Override
+        public boolean checkCredentials(String pUser, String pPassword) {
+          if (user.equals(pUser) && password.equals(pPassword)) {
+            return true;
+          }
+          if (pStats != null) {
+            pStats.authenticationFailed();
+          }
+          return false;
+        }
+      };
+    } else {
+      authenticator = null;
+    }
+    addContext("/jmx", new JsonHandler(pHandler, Math.max(1, pConfig.getInt("http.maxBody", 1024 * 1024))));
+    if (pMetricsServer != null) {
+      metricsHandler = new PrometheusHandler(pMetricsServer, MetricRule.parse(pConfig));
+      addContext("/metrics", metricsHandler);
+    } else {
+      metricsHandler = null;
+    }
+  }
+
+  /**
+   * Start serving requests.
+   */
+  void start() throws InterruptedException {
+    // The HTTP dispatcher thread inherits its daemon flag from the thread
+    // calling start(), and premain runs on the (non-daemon) main thread. Start
+    // it from a daemon thread so that it never keeps the JVM alive.
+    Thread starter = new DaemonThreadFactory("JmxAgent HTTP Starter").newThread(new Runnable() {
+      public void run() {
+        server.start();
+      }
+    });
+    starter.start();
+    starter.join();
+  }
+
+  /**
+   * Stop the server, waiting at most one second for running exchanges.
+   */
+  void stop() {
+    server.stop(1);
+    executor.shutdownNow();
+    if (metricsHandler != null) {
+      metricsHandler.close();
+    }
+  }
+
+  InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  /**
+   * Answers the parsed JSON requests POSTed to <code>/jmx</code>
+   */
+  interface RequestHandler {
+
+    /**
+     * Execute a single request or a list of requests and write the results.
+     *
+     * @param pRequest parsed JSON request (object or array of objects)
+     * @param pWriter writer to stream the results to
+     */
+    void handle(Object pRequest, JsonWriter pWriter) throws IOException;
+  }
+
+  // ===================================================================================
+
+  private void addContext(String pPath, HttpHandler pHandler) {
+    HttpContext ctx = server.createContext(pPath, pHandler);
+    if (authenticator != null) {
+      ctx.setAuthenticator(authenticator);
+    }
+  }
+
+  private static class JsonHandler implements HttpHandler {
+
+    private final RequestHandler requestHandler;
+
+    private final int maxBody;
+
+    JsonHandler(RequestHandler pRequestHandler, int pMaxBody) {
+      requestHandler = pRequestHandler;
+      maxBody = pMaxBody;
+    }
+
+    /** {@inheritDoc} */
+    public void handle(HttpExchange pExchange) throws IOException {
+      try {
+        if (!"POST".equals(pExchange.getRequestMethod())) {
+          pExchange.getResponseHeaders().set("Allow", "POST");
+          pExchange.sendResponseHeaders(405, -1);
+          return;
+        }
+        String body = readBody(pExchange.getRequestBody(), maxBody);
+        if (body == null) {
+          sendError(pExchange, 413, "Request body larger than " + maxBody + " bytes");
+          return;
+        }
+        Object request;
+        try {
+          request = JsonParser.parse(body);
+        } catch (IllegalArgumentException exp) {
+          sendError(pExchange, 400, exp.getMessage());
+          return;
+        }
+        pExchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        // Length 0: chunked, the results are streamed as they are computed
+        pExchange.sendResponseHeaders(200, 0);
+        Writer out = new BufferedWriter(new OutputStreamWriter(pExchange.getResponseBody(), UTF8), 8192);
+        JsonWriter writer = new JsonWriter(out);
+        requestHandler.handle(request, writer);
+        writer.flush();
+      } finally {
+        pExchange.close();
+      }
+    }
+
+    private static void sendError(HttpExchange pExchange, int pStatus, String pMessage) throws IOException {
+      byte[] msg = pMessage.getBytes(UTF8);
+      pExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      pExchange.sendResponseHeaders(pStatus, msg.length);
+      pExchange.getResponseBody().write(msg);
+    }
+
+    // Null if the body has more than pMaxBody bytes, the rest is not read
+    private static String readBody(InputStream pIn, int pMaxBody) throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      int len;
+      while ((len = pIn.read(chunk)) != -1) {
+        if (buf.size() + len > pMaxBody) {
+          return null;
+        }
+        buf.write(chunk, 0, len);
+      }
+      return buf.toString(UTF8);
+    }
+  }
+
+}
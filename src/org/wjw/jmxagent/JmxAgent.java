@@ -1,27 +1,94 @@
 package org.wjw.jmxagent;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.rmi.NoSuchObjectException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.management.remote.JMXAuthenticator;
 import javax.management.remote.JMXConnectorServer;
-import javax.management.remote.JMXConnectorServerFactory;
 import javax.management.remote.JMXPrincipal;
 import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
 import javax.security.auth.Subject;
 
 public class JmxAgent {
 
+  /**
+   * Domain under which the agent registers its own MBeans
+   */
+  static final String AGENT_DOMAIN = "org.wjw.jmxagent";
+
+  /**
+   * System properties with the URLs of the running agent's connectors, read
+   * by the {@link Aggregator} through the Attach API
+   */
+  static final String RMI_URL_PROPERTY = AGENT_DOMAIN + ".rmi.url";
+
+  static final String NIO_URL_PROPERTY = AGENT_DOMAIN + ".nio.url";
+
+  // The currently running agent, replaced when attached again
+  private static JmxAgent running;
+
+  private MBeanServer mbs;
+
+  // Set if the platform MBeanServer is created on first use
+  private LazyMBeanServer lazyServer;
+
+  private Registry registry;
+
+  private AgentRMIServerImpl serverImpl;
+
+  private JMXConnectorServer connector;
+
+  private CleanupThread cleaner;
+
+  private Thread shutdownHook;
+
+  private HttpAgent httpAgent;
+
+  private Sampler sampler;
+
+  private Subscriptions subscriptions;
+
+  private MBeanIndexForwarder index;
+
+  private Profiler profiler;
+
+  private GcStats gcStats;
+
+  private CountersFile counters;
+
+  private PushExporter push;
+
+  private BatchService batch;
+
+  private AggregationService aggregation;
+
+  private NioConnectorServer nioConnector;
+
+  private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
   private JmxAgent() {
   }
 
@@ -33,6 +100,7 @@ public class JmxAgent {
    *          arguments as given on the command line
    */
   public static void premain(String agentArgs) {
+    final StartupTimer timer = new StartupTimer();
     if (System.getProperty("user.dir").startsWith(".")) { //user.dirɾ·
       File ff = new File(System.getProperty("user.dir"));
       try {
@@ -42,14 +110,104 @@ public class JmxAgent {
       }
     }
 
-    Map<String, String> argsMap = split(agentArgs);
-    startAgent(argsMap);
+    final Map<String, String> argsMap = split(agentArgs);
+    readConfigFile(argsMap);
+    timer.phase("args");
+    if (new AgentConfig(argsMap).getBoolean("async", false)) {
+      // Don't delay the application: start the servers in the background
+      new DaemonThreadFactory("JmxAgent Starter").newThread(new Runnable() {
+        public void run() {
+          startAgent(argsMap, timer);
+        }
+      }).start();
+      timer.blockingEnded(true);
+    } else {
+      startAgent(argsMap, timer);
+      timer.blockingEnded(false);
+    }
   }
 
-  private static void startAgent(Map<String, String> argsMap) {
+  /**
+   * Entry point for the agent when it is attached to a running JVM (e.g. via
+   * <code>VirtualMachine.loadAgent()</code>). If the agent is already running,
+   * it is stopped and started again with the new arguments. The single
+   * argument <code>stop</code> stops the agent.
+   * 
+   * @param agentArgs
+   *          arguments as given to the attach call
+   */
+  public static void agentmain(String agentArgs) {
+    if ("stop".equals(agentArgs)) {
+      stopAgent();
+      return;
+    }
+    premain(agentArgs);
+  }
+
+  /**
+   * Runs the {@link Aggregator}, serving all JVMs of this host through one
+   * HTTP endpoint, until the process is killed.
+   * 
+   * @param args
+   *          options, as for the agent
+   */
+  public static void main(String[] args) throws Exception {
+    StringBuilder agentArgs = new StringBuilder();
+    for (String arg : args) {
+      agentArgs.append(agentArgs.length() > 0 ? "," : "").append(arg);
+    }
+    Map<String, String> argsMap = split(agentArgs.toString());
+    readConfigFile(argsMap);
+    final Aggregator aggregator;
+    try {
+      aggregator = new Aggregator(new AgentConfig(argsMap));
+    } catch (IllegalStateException e) {
+      System.err.println("JmxAgent: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    final CountDownLatch stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        aggregator.stop();
+        stopped.countDown();
+      }
+    }));
+    aggregator.start();
+    // All threads of the aggregator are daemon threads
+    stopped.await();
+  }
+
+  private static synchronized void startAgent(Map<String, String> argsMap, StartupTimer timer) {
+    stopAgent();
+    timer.restart();
+    JmxAgent agent = new JmxAgent();
+    if (agent.start(argsMap, timer)) {
+      running = agent;
+    }
+  }
+
+  private static synchronized void stopAgent() {
+    if (running != null) {
+      System.out.println("Stopping JmxAgent");
+      running.stop();
+      running = null;
+    }
+  }
+
+  private boolean start(Map<String, String> argsMap, StartupTimer timer) {
     int jmxPort = 5678;
     String jmxHost = "127.0.0.1";
     try {
+      AgentConfig config = new AgentConfig(argsMap);
+      String threads = config.get("threads", "platform");
+      if (!"platform".equals(threads) && !"virtual".equals(threads)) {
+        System.err.println("JmxAgent: Unknown threads '" + threads + "', using platform");
+        threads = "platform";
+      }
+      if (!DaemonThreadFactory.setVirtual("virtual".equals(threads))) {
+        System.err.println("JmxAgent: Virtual threads need Java 21 or later, using platform threads");
+      }
       String strJmxPort = argsMap.get("port");
       if (strJmxPort != null) {
         try {
@@ -87,37 +245,360 @@ public class JmxAgent {
         });
       }
 
+      // Registry and connector share one port as they are exported with equal socket factories
+      int serverPort = jmxPort;
+      TransportStats transportStats = null;
+      CompressionStats compressionStats = null;
+      RMIServerSocketFactory ssf = null;
+      RMIClientSocketFactory csf = null;
+      String compress = config.get("compress", "none");
+      if (!"none".equals(compress) && !"deflate".equals(compress)) {
+        System.err.println("JmxAgent: Unknown compression '" + compress + "', using none");
+        compress = "none";
+      }
+      if (config.getBoolean("rmi.factory", true) || "deflate".equals(compress)) {
+        transportStats = new TransportStats();
+        AgentSocketFactory socketFactory = new AgentSocketFactory(config, transportStats);
+        ssf = socketFactory;
+        if (config.getBoolean("rmi.clientFactory", false)) {
+          csf = socketFactory;
+        }
+        if (env == null) {
+          env = new HashMap<String, Object>();
+        }
+        if ("deflate".equals(compress)) {
+          // The registry must stay readable for plain clients, so the compressing connector gets its own port
+          compressionStats = new CompressionStats();
+          AgentSocketFactory compressing = new AgentSocketFactory(config, transportStats, compressionStats);
+          serverPort = config.getInt("compress.port", jmxPort + 1);
+          env.put(RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE, compressing);
+          env.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, compressing);
+        } else {
+          env.put(RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE, ssf);
+          if (csf != null) {
+            env.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE, csf);
+          }
+        }
+      }
+
+      AgentStats stats = null;
+      if (config.getBoolean("stats", true)) {
+        stats = new AgentStats(config, transportStats);
+        if (env != null && env.containsKey(JMXConnectorServer.AUTHENTICATOR)) {
+          env.put(JMXConnectorServer.AUTHENTICATOR, stats.countFailures((JMXAuthenticator) env
+              .get(JMXConnectorServer.AUTHENTICATOR)));
+        }
+      }
+
+      timer.phase("setup");
+
       final String localHostname = InetAddress.getLocalHost().getHostName();
+      timer.phase("dns");
       System.setProperty("java.rmi.server.hostname", jmxHost);
-      LocateRegistry.createRegistry(jmxPort);
-      //LocateRegistry.createRegistry(jmxPort, RMISocketFactory.getDefaultSocketFactory(), RMISocketFactory.getDefaultSocketFactory());
-      System.out.println("Getting the platform's MBean Server");
-      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      registry = LocateRegistry.createRegistry(jmxPort, csf, ssf);
+      timer.phase("registry");
+      String mbeanServer = config.get("mbeanserver", "eager");
+      if (!"eager".equals(mbeanServer) && !"lazy".equals(mbeanServer)) {
+        System.err.println("JmxAgent: Unknown mbeanserver '" + mbeanServer + "', using eager");
+        mbeanServer = "eager";
+      }
+      if ("lazy".equals(mbeanServer)) {
+        // Created when the first request comes in
+        lazyServer = new LazyMBeanServer(timer);
+        mbs = lazyServer;
+        timer.setLazyMBeanServer(true);
+      } else {
+        System.out.println("Getting the platform's MBean Server");
+        mbs = ManagementFactory.getPlatformMBeanServer();
+        timer.phase("mbeanserver");
+      }
+      registerMBean(timer, "Startup");
+      registerMBean(new TopThreads(config), "TopThreads");
+      if (transportStats != null) {
+        registerMBean(transportStats, "Transport");
+      }
+      if (compressionStats != null) {
+        registerMBean(compressionStats, "Compression");
+      }
 
-      JMXServiceURL localUrl = new JMXServiceURL("service:jmx:rmi://" + localHostname + ":" + jmxPort + "/jndi/rmi://"
+      JMXServiceURL localUrl = new JMXServiceURL("service:jmx:rmi://" + localHostname + ":" + serverPort + "/jndi/rmi://"
           + localHostname + ":" + jmxPort + "/jmxrmi");
 
-      JMXServiceURL hostUrl = new JMXServiceURL("service:jmx:rmi://" + "0.0.0.0" + ":" + jmxPort + "/jndi/rmi://"
+      JMXServiceURL hostUrl = new JMXServiceURL("service:jmx:rmi://" + "0.0.0.0" + ":" + serverPort + "/jndi/rmi://"
           + "0.0.0.0" + ":" + jmxPort + "/jmxrmi");
 
       System.out.println("InetAddress.getLocalHost().getHostName() Connection URL: " + localUrl);
       System.out.println("Used host Connection URL: " + hostUrl);
       System.out.println("Creating RMI connector server");
-      JMXConnectorServer cs = JMXConnectorServerFactory.newJMXConnectorServer(hostUrl, env, mbs);
+      // Created here, so that the cleanup can unexport it if stopping hangs
+      serverImpl = new AgentRMIServerImpl(serverPort, env != null ? (RMIClientSocketFactory) env
+          .get(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE) : null, env != null ? (RMIServerSocketFactory) env
+          .get(RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE) : null, env);
+      JMXConnectorServer cs = new RMIConnectorServer(hostUrl, env, serverImpl, mbs);
+      connector = cs;
+
+      if (config.getBoolean("index", false)) {
+        index = new MBeanIndexForwarder();
+        cs.setMBeanServerForwarder(index);
+        registerMBean(index, "MBeanIndex");
+      }
+      if (config.getBoolean("cache", false)) {
+        AttributeCacheForwarder cache = new AttributeCacheForwarder(config);
+        cs.setMBeanServerForwarder(cache);
+        registerMBean(cache, "AttributeCache");
+      }
+      // The agent's services read behind the admission control, their calls
+      // were admitted and charged to the caller already
+      MBeanServer services = null;
+      if (config.getBoolean("admission", false)) {
+        services = cs.getMBeanServer();
+        // In front of index and cache, so that it limits everything behind it
+        AdmissionControl admission = new AdmissionControl(config);
+        cs.setMBeanServerForwarder(admission.getForwarder());
+        registerMBean(admission, "AdmissionControl");
+      }
+      if (stats != null) {
+        // Outermost, so that latencies include the time waiting for admission
+        cs.setMBeanServerForwarder(stats.getForwarder());
+        cs.addNotificationListener(stats, null, null);
+        registerMBean(stats, "AgentStats");
+      }
+      if (services == null) {
+        services = cs.getMBeanServer();
+      }
+      // Pages are read from the index if there is one
+      registerMBean(new QueryService(services), "Query");
+      batch = new BatchService(config, services);
+      registerMBean(batch, "Batch");
+      aggregation = new AggregationService(config, services);
+      registerMBean(aggregation, "Aggregation");
       cs.start();
+      timer.phase("connector");
+      System.setProperty(RMI_URL_PROPERTY, "service:jmx:rmi:///jndi/rmi://" + localHost(jmxHost) + ":" + jmxPort
+          + "/jmxrmi");
+
+      if (config.containsKey("nio")) {
+        // Serves the forwarder chain of the RMI connector server
+        Map<String, Object> nioEnv = new HashMap<String, Object>();
+        if (env != null && env.containsKey(JMXConnectorServer.AUTHENTICATOR)) {
+          nioEnv.put(JMXConnectorServer.AUTHENTICATOR, env.get(JMXConnectorServer.AUTHENTICATOR));
+        }
+        nioEnv.put(NioConnectorServer.THREADS, Integer.valueOf(config.getInt("nio.threads", 4)));
+        nioEnv.put(NioConnectorServer.MAX_FRAME, Integer.valueOf(config.getInt("nio.maxFrame", 16 * 1024 * 1024)));
+        nioEnv.put(NioConnectorServer.MAX_PENDING, Long.valueOf(config.getLong("nio.maxPending", 4 * 1024 * 1024)));
+        nioEnv.put(NioConnectorServer.MAX_IN_FLIGHT, Integer.valueOf(config.getInt("nio.maxInFlight", 16)));
+        nioConnector = new NioConnectorServer(new JMXServiceURL(NioProtocol.PROTOCOL, config.get("nio.host", jmxHost),
+            config.getInt("nio", 5679)), nioEnv, cs.getMBeanServer());
+        if (stats != null) {
+          nioConnector.addNotificationListener(stats, null, null);
+        }
+        nioConnector.start();
+        System.out.println("NIO connector URL: " + nioConnector.getAddress());
+        JMXServiceURL nioUrl = nioConnector.getAddress();
+        System.setProperty(NIO_URL_PROPERTY, new JMXServiceURL(nioUrl.getProtocol(), localHost(nioUrl.getHost()),
+            nioUrl.getPort()).toString());
+        timer.phase("nio");
+      }
+
+      Sampler configured = new Sampler(config, mbs);
+      if (configured.hasSeries()) {
+        sampler = configured;
+        registerMBean(sampler, "Sampler");
+        sampler.start();
+      }
+      if (config.getBoolean("subscriptions", false)) {
+        subscriptions = new Subscriptions(config, mbs);
+        registerMBean(subscriptions, "Subscriptions");
+        subscriptions.start();
+      }
+      if (config.getBoolean("profiler", false)) {
+        profiler = new Profiler(config);
+        registerMBean(profiler, "Profiler");
+      }
+      if (config.getBoolean("gc", true)) {
+        try {
+          GcStats gc = new GcStats(config);
+          registerMBean(gc, "GcStats");
+          gc.start();
+          gcStats = gc;
+        } catch (LinkageError e) {
+          System.err.println("JmxAgent: No GC notifications on this JVM, GcStats disabled");
+        }
+      }
+      if (config.containsKey("counters.file")) {
+        // After the agent's own MBeans, which it publishes too
+        counters = new CountersFile(config, mbs);
+        counters.start();
+        System.out.println("Publishing " + counters.size() + " values to " + counters.getFile());
+      }
+      if (config.containsKey("push")) {
+        push = new PushExporter(config, mbs);
+        registerMBean(push, "PushExporter");
+        push.start();
+        System.out.println("Pushing " + push.size() + " values to " + push.getTarget());
+      }
 
-      final CleanupThread cleaner = new CleanupThread(cs);
+      final CleanupThread cleanupThread = new CleanupThread(cs, serverImpl, registry, config);
+      cleaner = cleanupThread;
 
-      java.lang.Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      shutdownHook = new Thread(new Runnable() {
         public void run() {
-          cleaner.stoped = true;
-          cleaner.interrupt();
+          cleanupThread.stoped = true;
+          cleanupThread.interrupt();
         }
-      }));
+      });
+      java.lang.Runtime.getRuntime().addShutdownHook(shutdownHook);
 
-      cleaner.start();
+      cleanupThread.start();
+
+      if (config.containsKey("http") || config.getBoolean("metrics", false)) {
+        // Serve the forwarder chain, so that HTTP clients share e.g. the cache
+        httpAgent = new HttpAgent(config, cs.getMBeanServer(), jmxHost, stats);
+        httpAgent.start();
+        System.out.println("JSON HTTP endpoint: http://" + jmxHost + ":" + httpAgent.getAddress().getPort() + "/jmx");
+        if (config.getBoolean("metrics", false)) {
+          System.out.println("Prometheus endpoint: http://" + jmxHost + ":" + httpAgent.getAddress().getPort()
+              + "/metrics");
+        }
+        timer.phase("http");
+      }
+      timer.started();
+      return true;
     } catch (Exception e) {
       e.printStackTrace(System.err);
+      stop();
+      return false;
+    }
+  }
+
+  //Stop everything started by start(), so that the agent can be started again in the same JVM
+  private void stop() {
+    if (shutdownHook != null) {
+      try {
+        java.lang.Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        //JVM is already shutting down
+      }
+    }
+    if (httpAgent != null) {
+      httpAgent.stop();
+    }
+    if (sampler != null) {
+      sampler.stop();
+    }
+    if (subscriptions != null) {
+      subscriptions.stop();
+    }
+    if (profiler != null) {
+      profiler.stop();
+    }
+    if (gcStats != null) {
+      gcStats.stop();
+    }
+    if (counters != null) {
+      counters.stop();
+    }
+    if (push != null) {
+      push.stop();
+    }
+    if (batch != null) {
+      batch.stop();
+    }
+    if (aggregation != null) {
+      aggregation.stop();
+    }
+    if (cleaner != null) {
+      cleaner.stoped = true;
+      cleaner.interrupt();
+      try {
+        cleaner.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    System.clearProperty(RMI_URL_PROPERTY);
+    System.clearProperty(NIO_URL_PROPERTY);
+    if (nioConnector != null) {
+      try {
+        nioConnector.stop();
+      } catch (IOException e) {
+        e.printStackTrace(System.err);
+      }
+    }
+    if (connector != null) {
+      try {
+        connector.stop();
+      } catch (IOException e) {
+        e.printStackTrace(System.err);
+      }
+    }
+    if (index != null) {
+      index.close();
+    }
+    if (registry != null) {
+      try {
+        UnicastRemoteObject.unexportObject(registry, true);
+      } catch (NoSuchObjectException e) {
+        //already unexported
+      }
+    }
+    for (ObjectName name : mbeanNames) {
+      if (lazyServer != null && !lazyServer.isInitialized()) {
+        //never registered
+        break;
+      }
+      try {
+        mbs.unregisterMBean(name);
+      } catch (Exception e) {
+        //already unregistered
+      }
+    }
+    mbeanNames.clear();
+  }
+
+  //Register one of the agent's own MBeans, it gets unregistered again on stop()
+  private void registerMBean(Object mbean, String type) throws Exception {
+    ObjectName name = new ObjectName(AGENT_DOMAIN + ":type=" + type);
+    if (lazyServer != null) {
+      lazyServer.registerOnInit(mbean, name);
+    } else {
+      mbs.registerMBean(mbean, name);
+    }
+    mbeanNames.add(name);
+  }
+
+  //The address to connect to from this host
+  private static String localHost(String pHost) {
+    return "0.0.0.0".equals(pHost) ? "127.0.0.1" : pHost;
+  }
+
+  //Add the options of the properties file given with "config" which are not given on the command line
+  private static void readConfigFile(Map<String, String> argsMap) {
+    String file = argsMap.get("config");
+    if (file == null) {
+      return;
+    }
+    Properties props = new Properties();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      props.load(in);
+    } catch (IOException e) {
+      System.err.println("JmxAgent: Cannot read config file " + file);
+      e.printStackTrace(System.err);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          //ignore
+        }
+      }
+    }
+    for (String key : props.stringPropertyNames()) {
+      if (!argsMap.containsKey(key)) {
+        argsMap.put(key, props.getProperty(key).trim());
+      }
     }
   }
 
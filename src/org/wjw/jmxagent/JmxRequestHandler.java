@@ -0,0 +1,478 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeMBeanException;
+
+/**
+ * Executes JSON requests against an <code>MBeanServerConnection</code>. A
+ * request is a JSON object with a <code>type</code> and type specific
+ * members:
+ *
+ * <ul>
+ * <li><code>{"type":"read","mbean":"java.lang:type=Memory","attribute":"HeapMemoryUsage","path":"used"}</code>
+ * reads one, several (JSON array) or all (no <code>attribute</code>)
+ * attributes. The <code>mbean</code> can be a pattern in which case the value
+ * is a map of ObjectName to attribute values. An inner <code>path</code> (as
+ * understood by {@link EscapeUtil#parsePath(String)}) can be given when a
+ * single attribute of a single MBean is read.</li>
+ * <li><code>{"type":"search","mbean":"java.lang:*"}</code> returns the names
+ * of all matching MBeans sorted by canonical name. They are fetched and
+ * written page by page, so that even a huge result is never held in memory
+ * at once. With <code>"limit":1000</code> only one page of names is returned
+ * as <code>{"names":[...],"next":...}</code>; passing <code>next</code> as
+ * <code>"after"</code> returns the following page. <code>next</code> is null
+ * on the last page.</li>
+ * <li><code>{"type":"write","mbean":"java.lang:type=Memory","attribute":"Verbose","value":true}</code>
+ * sets an attribute and returns its previous value. The value is converted to
+ * the type of the attribute.</li>
+ * <li><code>{"type":"exec","mbean":"java.lang:type=Threading","operation":"getThreadCpuTime","arguments":[1]}</code>
+ * invokes an operation. If it is overloaded with the same number of
+ * parameters, the signature must be given as in
+ * <code>"operation":"getThreadCpuTime(long)"</code>. The arguments are
+ * converted to the parameter types, <code>path</code> navigates into the
+ * result.</li>
+ * </ul>
+ *
+ * <code>write</code> and <code>exec</code> are only executed if the handler
+ * was created as writable, otherwise they fail with status 403.
+ *
+ * Several requests can be given as a JSON array, in which case the response is
+ * an array with one result per request, in the same order. Each result echoes
+ * the request and carries a HTTP like <code>status</code>, the
+ * <code>value</code> on success or <code>error_type</code> and
+ * <code>error</code> on failure.
+ */
+final class JmxRequestHandler implements HttpAgent.RequestHandler {
+
+  private static final int SEARCH_PAGE_SIZE = 1000;
+
+  private static final Set<String> PRIMITIVES = new HashSet<String>(Arrays.asList("int", "long", "short", "byte",
+      "double", "float", "boolean", "char"));
+
+  private final MBeanServerConnection server;
+
+  private final QueryService queries;
+
+  private final boolean writable;
+
+  /**
+   * @param pServer connection to execute the requests on
+   * @param pWritable whether <code>write</code> and <code>exec</code>
+   *          requests are allowed
+   */
+  JmxRequestHandler(MBeanServerConnection pServer, boolean pWritable) {
+    server = pServer;
+    queries = new QueryService(pServer);
+    writable = pWritable;
+  }
+
+  /** {@inheritDoc} */
+  public void handle(Object pRequest, JsonWriter pWriter) throws IOException {
+    if (pRequest instanceof List) {
+      pWriter.beginArray();
+      for (Object req : (List<?>) pRequest) {
+        handleSingle(req, pWriter);
+      }
+      pWriter.endArray();
+    } else {
+      handleSingle(pRequest, pWriter);
+    }
+  }
+
+  /**
+   * Execute a single request
+   *
+   * @param pRequest request as parsed from JSON
+   * @return the value of the request
+   * @throws Exception if the request fails
+   */
+  Object execute(Map<?, ?> pRequest) throws Exception {
+    String type = stringMember(pRequest, "type", true);
+    if ("read".equals(type)) {
+      return read(pRequest);
+    } else if ("search".equals(type)) {
+      return search(pRequest);
+    } else if ("write".equals(type) || "exec".equals(type)) {
+      if (!writable) {
+        throw new SecurityException("'" + type + "' requests are not enabled");
+      }
+      return "write".equals(type) ? write(pRequest) : exec(pRequest);
+    }
+    throw new IllegalArgumentException("Unknown request type '" + type + "'");
+  }
+
+  /**
+   * Write the result of a request
+   *
+   * @param pRequest the request as parsed from JSON
+   * @param pValue value of the request if successful
+   * @param pError error of the request, or null if successful
+   * @param pWriter writer to write the result to
+   */
+  void writeResult(Object pRequest, Object pValue, Throwable pError, JsonWriter pWriter) throws IOException {
+    Object value = pValue;
+    Throwable error = pError != null ? unwrap(pError) : null;
+    if (error == null && !(pRequest instanceof Map)) {
+      error = new IllegalArgumentException("Request must be a JSON object");
+    }
+    pWriter.beginObject();
+    pWriter.name("request").value(pRequest);
+    if (error == null) {
+      pWriter.name("value").value(value);
+      pWriter.name("status").value(Integer.valueOf(200));
+    } else {
+      pWriter.name("status").value(Integer.valueOf(status(error)));
+      pWriter.name("error_type").value(error.getClass().getName());
+      pWriter.name("error").value(String.valueOf(error.getMessage()));
+    }
+    pWriter.name("timestamp").value(Long.valueOf(System.currentTimeMillis() / 1000));
+    pWriter.endObject();
+  }
+
+  // ===================================================================================
+
+  private void handleSingle(Object pRequest, JsonWriter pWriter) throws IOException {
+    Object value = null;
+    Throwable error = null;
+    if (pRequest instanceof Map) {
+      try {
+        value = execute((Map<?, ?>) pRequest);
+      } catch (Exception exp) {
+        error = exp;
+      }
+    }
+    writeResult(pRequest, value, error, pWriter);
+  }
+
+  private Object read(Map<?, ?> pRequest) throws Exception {
+    ObjectName name = new ObjectName(stringMember(pRequest, "mbean", true));
+    Object attrs = pRequest.get("attribute");
+    String path = stringMember(pRequest, "path", false);
+    if (name.isPattern()) {
+      if (path != null) {
+        throw new IllegalArgumentException("A path can only be used when reading from a single MBean");
+      }
+      Map<String, Object> ret = new LinkedHashMap<String, Object>();
+      for (ObjectName n : new TreeSet<ObjectName>(server.queryNames(name, null))) {
+        try {
+          ret.put(n.getCanonicalName(), readAttributes(n, attrs));
+        } catch (InstanceNotFoundException exp) {
+          // Unregistered in the meantime
+        }
+      }
+      return ret;
+    }
+    if (attrs instanceof String) {
+      Object value = server.getAttribute(name, (String) attrs);
+      return PathExtractor.extract(value, EscapeUtil.parsePath(path));
+    }
+    if (path != null) {
+      throw new IllegalArgumentException("A path can only be used when reading a single attribute");
+    }
+    return readAttributes(name, attrs);
+  }
+
+  private Map<String, Object> readAttributes(ObjectName pName, Object pAttrs) throws Exception {
+    String[] attrNames;
+    if (pAttrs == null) {
+      attrNames = readableAttributes(pName);
+    } else if (pAttrs instanceof String) {
+      attrNames = new String[] { (String) pAttrs };
+    } else if (pAttrs instanceof List) {
+      List<?> list = (List<?>) pAttrs;
+      attrNames = new String[list.size()];
+      for (int i = 0; i < attrNames.length; i++) {
+        attrNames[i] = String.valueOf(list.get(i));
+      }
+    } else {
+      throw new IllegalArgumentException("'attribute' must be a string or an array of strings");
+    }
+    Map<String, Object> ret = new LinkedHashMap<String, Object>();
+    AttributeList values = server.getAttributes(pName, attrNames);
+    for (Object o : values) {
+      Attribute attr = (Attribute) o;
+      ret.put(attr.getName(), attr.getValue());
+    }
+    return ret;
+  }
+
+  private String[] readableAttributes(ObjectName pName) throws Exception {
+    MBeanAttributeInfo[] infos = server.getMBeanInfo(pName).getAttributes();
+    List<String> ret = new ArrayList<String>(infos.length);
+    for (MBeanAttributeInfo info : infos) {
+      if (info.isReadable()) {
+        ret.add(info.getName());
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  private Object search(Map<?, ?> pRequest) throws Exception {
+    ObjectName pattern = new ObjectName(stringMember(pRequest, "mbean", true));
+    Object limit = pRequest.get("limit");
+    if (limit == null) {
+      return queries.names(pattern, SEARCH_PAGE_SIZE);
+    }
+    if (!(limit instanceof Number) || ((Number) limit).intValue() < 1) {
+      throw new IllegalArgumentException("'limit' must be a positive number");
+    }
+    int size = ((Number) limit).intValue();
+    List<ObjectName> page = queries.page(pattern, stringMember(pRequest, "after", false), size + 1);
+    Map<String, Object> ret = new LinkedHashMap<String, Object>();
+    ret.put("names", page.subList(0, Math.min(size, page.size())));
+    ret.put("next", page.size() > size ? page.get(size - 1).getCanonicalName() : null);
+    return ret;
+  }
+
+  private Object write(Map<?, ?> pRequest) throws Exception {
+    ObjectName name = singleMBean(pRequest);
+    String attribute = stringMember(pRequest, "attribute", true);
+    if (!pRequest.containsKey("value")) {
+      throw new IllegalArgumentException("Missing 'value' in request");
+    }
+    if (pRequest.get("path") != null) {
+      throw new IllegalArgumentException("A path can not be used when writing");
+    }
+    MBeanAttributeInfo info = null;
+    for (MBeanAttributeInfo a : server.getMBeanInfo(name).getAttributes()) {
+      if (a.getName().equals(attribute)) {
+        info = a;
+      }
+    }
+    if (info == null || !info.isWritable()) {
+      throw new AttributeNotFoundException("No writable attribute " + attribute + " in " + name);
+    }
+    Object old = info.isReadable() ? server.getAttribute(name, attribute) : null;
+    server.setAttribute(name, new Attribute(attribute, convert(pRequest.get("value"), info.getType())));
+    return old;
+  }
+
+  private Object exec(Map<?, ?> pRequest) throws Exception {
+    ObjectName name = singleMBean(pRequest);
+    String operation = stringMember(pRequest, "operation", true);
+    Object args = pRequest.get("arguments");
+    List<?> arguments;
+    if (args == null) {
+      arguments = Collections.emptyList();
+    } else if (args instanceof List) {
+      arguments = (List<?>) args;
+    } else {
+      throw new IllegalArgumentException("'arguments' must be an array");
+    }
+    MBeanParameterInfo[] params = operation(name, operation, arguments.size()).getSignature();
+    Object[] values = new Object[params.length];
+    String[] signature = new String[params.length];
+    for (int i = 0; i < params.length; i++) {
+      signature[i] = params[i].getType();
+      values[i] = convert(arguments.get(i), signature[i]);
+    }
+    int paren = operation.indexOf('(');
+    Object result = server.invoke(name, paren < 0 ? operation : operation.substring(0, paren), values, signature);
+    return PathExtractor.extract(result, EscapeUtil.parsePath(stringMember(pRequest, "path", false)));
+  }
+
+  // The operation matching "name" or "name(type,...)" with the given number of parameters
+  private MBeanOperationInfo operation(ObjectName pName, String pOperation, int pArgCount) throws Exception {
+    int paren = pOperation.indexOf('(');
+    String opName = paren < 0 ? pOperation : pOperation.substring(0, paren);
+    String[] types = null;
+    if (paren >= 0) {
+      if (!pOperation.endsWith(")")) {
+        throw new IllegalArgumentException("Invalid signature " + pOperation);
+      }
+      String sig = pOperation.substring(paren + 1, pOperation.length() - 1).trim();
+      types = sig.length() == 0 ? new String[0] : sig.split("\\s*,\\s*");
+    }
+    List<MBeanOperationInfo> candidates = new ArrayList<MBeanOperationInfo>();
+    for (MBeanOperationInfo op : server.getMBeanInfo(pName).getOperations()) {
+      if (op.getName().equals(opName) && op.getSignature().length == pArgCount
+          && (types == null || Arrays.equals(types, typesOf(op)))) {
+        candidates.add(op);
+      }
+    }
+    if (candidates.isEmpty()) {
+      throw new IllegalArgumentException("No operation " + pOperation + " with " + pArgCount + " arguments in "
+          + pName);
+    }
+    if (candidates.size() > 1) {
+      throw new IllegalArgumentException("Operation " + opName + " is overloaded, give its signature as "
+          + opName + "(type,...)");
+    }
+    return candidates.get(0);
+  }
+
+  private ObjectName singleMBean(Map<?, ?> pRequest) throws MalformedObjectNameException {
+    ObjectName name = new ObjectName(stringMember(pRequest, "mbean", true));
+    if (name.isPattern()) {
+      throw new IllegalArgumentException("'mbean' must not be a pattern");
+    }
+    return name;
+  }
+
+  private static String[] typesOf(MBeanOperationInfo pOperation) {
+    MBeanParameterInfo[] params = pOperation.getSignature();
+    String[] ret = new String[params.length];
+    for (int i = 0; i < params.length; i++) {
+      ret[i] = params[i].getType();
+    }
+    return ret;
+  }
+
+  // Convert a JSON value to a Java type given by its name
+  private static Object convert(Object pValue, String pType) throws Exception {
+    if (pValue == null) {
+      if (PRIMITIVES.contains(pType)) {
+        throw new IllegalArgumentException("null is not a valid " + pType);
+      }
+      return null;
+    }
+    if ("java.lang.String".equals(pType)) {
+      if (pValue instanceof Map || pValue instanceof List) {
+        throw new IllegalArgumentException("Expected a string, got " + pValue);
+      }
+      return String.valueOf(pValue);
+    } else if ("int".equals(pType) || "java.lang.Integer".equals(pType)) {
+      return Integer.valueOf((int) toLong(pValue, Integer.MIN_VALUE, Integer.MAX_VALUE, pType));
+    } else if ("long".equals(pType) || "java.lang.Long".equals(pType)) {
+      return Long.valueOf(toLong(pValue, Long.MIN_VALUE, Long.MAX_VALUE, pType));
+    } else if ("short".equals(pType) || "java.lang.Short".equals(pType)) {
+      return Short.valueOf((short) toLong(pValue, Short.MIN_VALUE, Short.MAX_VALUE, pType));
+    } else if ("byte".equals(pType) || "java.lang.Byte".equals(pType)) {
+      return Byte.valueOf((byte) toLong(pValue, Byte.MIN_VALUE, Byte.MAX_VALUE, pType));
+    } else if ("double".equals(pType) || "java.lang.Double".equals(pType)) {
+      return Double.valueOf(toDouble(pValue));
+    } else if ("float".equals(pType) || "java.lang.Float".equals(pType)) {
+      double value = toDouble(pValue);
+      if (Math.abs(value) > Float.MAX_VALUE && !Double.isInfinite(value)) {
+        throw new IllegalArgumentException(pValue + " is out of the range of " + pType);
+      }
+      return Float.valueOf((float) value);
+    } else if ("boolean".equals(pType) || "java.lang.Boolean".equals(pType)) {
+      if (pValue instanceof Boolean) {
+        return pValue;
+      } else if ("true".equals(pValue) || "false".equals(pValue)) {
+        return Boolean.valueOf((String) pValue);
+      }
+      throw new IllegalArgumentException("Expected a boolean, got " + pValue);
+    } else if ("char".equals(pType) || "java.lang.Character".equals(pType)) {
+      if (pValue instanceof String && ((String) pValue).length() == 1) {
+        return Character.valueOf(((String) pValue).charAt(0));
+      }
+      throw new IllegalArgumentException("Expected a single character, got " + pValue);
+    } else if ("javax.management.ObjectName".equals(pType)) {
+      return new ObjectName(String.valueOf(pValue));
+    } else if (pType.startsWith("[") && pValue instanceof List) {
+      Class<?> component = Class.forName(pType).getComponentType();
+      List<?> list = (List<?>) pValue;
+      Object ret = Array.newInstance(component, list.size());
+      for (int i = 0; i < list.size(); i++) {
+        Array.set(ret, i, convert(list.get(i), component.getName()));
+      }
+      return ret;
+    }
+    // Let the MBean decide
+    return pValue;
+  }
+
+  // An integral number between pMin and pMax, fractions are not truncated
+  private static long toLong(Object pValue, long pMin, long pMax, String pType) {
+    long ret;
+    if (pValue instanceof Double || pValue instanceof Float) {
+      double value = ((Number) pValue).doubleValue();
+      if (value != Math.floor(value) || Double.isInfinite(value)) {
+        throw new IllegalArgumentException("Expected an integral number, got " + pValue);
+      }
+      // 2^63 is the first double above Long.MAX_VALUE
+      if (value < Long.MIN_VALUE || value >= 0x1p63) {
+        throw new IllegalArgumentException(pValue + " is out of the range of " + pType);
+      }
+      ret = (long) value;
+    } else if (pValue instanceof Number) {
+      ret = ((Number) pValue).longValue();
+    } else if (pValue instanceof String) {
+      try {
+        ret = Long.parseLong(((String) pValue).trim());
+      } catch (NumberFormatException exp) {
+        throw new IllegalArgumentException("Expected an integral number, got " + pValue);
+      }
+    } else {
+      throw new IllegalArgumentException("Expected a number, got " + pValue);
+    }
+    if (ret < pMin || ret > pMax) {
+      throw new IllegalArgumentException(pValue + " is out of the range of " + pType);
+    }
+    return ret;
+  }
+
+  private static double toDouble(Object pValue) {
+    if (pValue instanceof Number) {
+      return ((Number) pValue).doubleValue();
+    } else if (pValue instanceof String) {
+      return Double.parseDouble(((String) pValue).trim());
+    }
+    throw new IllegalArgumentException("Expected a number, got " + pValue);
+  }
+
+  private static String stringMember(Map<?, ?> pRequest, String pKey, boolean pMandatory) {
+    Object value = pRequest.get(pKey);
+    if (value == null) {
+      if (pMandatory) {
+        throw new IllegalArgumentException("Missing '" + pKey + "' in request");
+      }
+      return null;
+    }
+    if (!(value instanceof String)) {
+      throw new IllegalArgumentException("'" + pKey + "' must be a string");
+    }
+    return (String) value;
+  }
+
+  // The exception thrown by the MBean itself
+  static Throwable unwrap(Throwable pExp) {
+    Throwable exp = pExp;
+    while ((exp instanceof MBeanException || exp instanceof ReflectionException || exp instanceof RuntimeMBeanException)
+        && exp.getCause() != null) {
+      exp = exp.getCause();
+    }
+    return exp;
+  }
+
+  // HTTP like status of a failed request
+  static int status(Throwable pExp) {
+    if (pExp instanceof IllegalArgumentException || pExp instanceof MalformedObjectNameException) {
+      return 400;
+    } else if (pExp instanceof TimeoutException) {
+      return 408;
+    } else if (pExp instanceof SecurityException) {
+      return 403;
+    } else if (pExp instanceof InstanceNotFoundException || pExp instanceof AttributeNotFoundException) {
+      return 404;
+    }
+    return 500;
+  }
+
+}
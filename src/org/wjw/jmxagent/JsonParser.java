@@ -0,0 +1,228 @@
+package org.wjw.jmxagent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for the requests posted to the agent. Objects are
+ * returned as (ordered) <code>Map</code>s, arrays as <code>List</code>s,
+ * integral numbers as <code>Long</code> and all other numbers as
+ * <code>Double</code>.
+ */
+final class JsonParser {
+
+  // Deepest nesting of objects and arrays accepted, the parser recurses per level
+  static final int MAX_DEPTH = 64;
+
+  private final String in;
+
+  private int pos = 0;
+
+  private int depth = 0;
+
+  private JsonParser(String pIn) {
+    in = pIn;
+  }
+
+  /**
+   * Parse a JSON document
+   *
+   * @param pJson JSON text
+   * @return the parsed value
+   * @throws IllegalArgumentException if the text is not valid JSON or nested
+   *           deeper than {@link #MAX_DEPTH} levels
+   */
+  static Object parse(String pJson) {
+    JsonParser parser = new JsonParser(pJson);
+    Object ret = parser.readValue();
+    parser.skipWhitespace();
+    if (parser.pos != pJson.length()) {
+      throw parser.error("Unexpected trailing content");
+    }
+    return ret;
+  }
+
+  // ===================================================================================
+
+  private Object readValue() {
+    skipWhitespace();
+    if (pos >= in.length()) {
+      throw error("Unexpected end of input");
+    }
+    char c = in.charAt(pos);
+    if (c == '{') {
+      enter();
+      Object ret = readObject();
+      depth--;
+      return ret;
+    } else if (c == '[') {
+      enter();
+      Object ret = readArray();
+      depth--;
+      return ret;
+    } else if (c == '"') {
+      return readString();
+    } else if (c == '-' || (c >= '0' && c <= '9')) {
+      return readNumber();
+    } else if (in.startsWith("true", pos)) {
+      pos += 4;
+      return Boolean.TRUE;
+    } else if (in.startsWith("false", pos)) {
+      pos += 5;
+      return Boolean.FALSE;
+    } else if (in.startsWith("null", pos)) {
+      pos += 4;
+      return null;
+    }
+    throw error("Unexpected character '" + c + "'");
+  }
+
+  private Map<String, Object> readObject() {
+    Map<String, Object> ret = new LinkedHashMap<String, Object>();
+    pos++;
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return ret;
+    }
+    while (true) {
+      skipWhitespace();
+      if (peek() != '"') {
+        throw error("Expected member name");
+      }
+      String key = readString();
+      skipWhitespace();
+      expect(':');
+      ret.put(key, readValue());
+      skipWhitespace();
+      if (peek() == ',') {
+        pos++;
+      } else {
+        expect('}');
+        return ret;
+      }
+    }
+  }
+
+  private List<Object> readArray() {
+    List<Object> ret = new ArrayList<Object>();
+    pos++;
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return ret;
+    }
+    while (true) {
+      ret.add(readValue());
+      skipWhitespace();
+      if (peek() == ',') {
+        pos++;
+      } else {
+        expect(']');
+        return ret;
+      }
+    }
+  }
+
+  private String readString() {
+    pos++;
+    StringBuilder buf = new StringBuilder();
+    while (pos < in.length()) {
+      char c = in.charAt(pos++);
+      if (c == '"') {
+        return buf.toString();
+      } else if (c == '\\') {
+        if (pos >= in.length()) {
+          break;
+        }
+        char e = in.charAt(pos++);
+        switch (e) {
+          case 'n':
+            buf.append('\n');
+            break;
+          case 'r':
+            buf.append('\r');
+            break;
+          case 't':
+            buf.append('\t');
+            break;
+          case 'b':
+            buf.append('\b');
+            break;
+          case 'f':
+            buf.append('\f');
+            break;
+          case 'u':
+            if (pos + 4 > in.length()) {
+              throw error("Invalid unicode escape");
+            }
+            try {
+              buf.append((char) Integer.parseInt(in.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException exp) {
+              throw error("Invalid unicode escape");
+            }
+            pos += 4;
+            break;
+          default:
+            buf.append(e);
+        }
+      } else {
+        buf.append(c);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private Number readNumber() {
+    int start = pos;
+    boolean integral = true;
+    while (pos < in.length()) {
+      char c = in.charAt(pos);
+      if (c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+      } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+        break;
+      }
+      pos++;
+    }
+    String number = in.substring(start, pos);
+    try {
+      return integral ? (Number) Long.valueOf(number) : (Number) Double.valueOf(number);
+    } catch (NumberFormatException exp) {
+      throw error("Invalid number " + number);
+    }
+  }
+
+  private char peek() {
+    if (pos >= in.length()) {
+      throw error("Unexpected end of input");
+    }
+    return in.charAt(pos);
+  }
+
+  private void expect(char pChar) {
+    if (peek() != pChar) {
+      throw error("Expected '" + pChar + "'");
+    }
+    pos++;
+  }
+
+  private void skipWhitespace() {
+    while (pos < in.length() && Character.isWhitespace(in.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private void enter() {
+    if (++depth > MAX_DEPTH) {
+      throw error("Nested deeper than " + MAX_DEPTH + " levels");
+    }
+  }
+
+  private IllegalArgumentException error(String pMessage) {
+    return new IllegalArgumentException("Invalid JSON request: " + pMessage + " at position " + pos);
+  }
+
+}
@@ -0,0 +1,212 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Minimal streaming JSON writer. Values are written directly to the underlying
+ * writer so that large responses never need to be built up in memory.
+ *
+ * Besides the usual JSON types (maps, collections, arrays, numbers, booleans
+ * and strings) the writer knows about the JMX open types:
+ * <code>CompositeData</code> is written as an object,
+ * <code>TabularData</code> as an array of its rows and
+ * <code>ObjectName</code> as its canonical name.
+ */
+final class JsonWriter {
+
+  private final Writer out;
+
+  // One flag per nesting level: true if the next element is the first one
+  private boolean[] first = new boolean[16];
+
+  private int depth = 0;
+
+  JsonWriter(Writer pOut) {
+    out = pOut;
+  }
+
+  JsonWriter beginObject() throws IOException {
+    separator();
+    out.write('{');
+    push();
+    return this;
+  }
+
+  JsonWriter endObject() throws IOException {
+    depth--;
+    out.write('}');
+    return this;
+  }
+
+  JsonWriter beginArray() throws IOException {
+    separator();
+    out.write('[');
+    push();
+    return this;
+  }
+
+  JsonWriter endArray() throws IOException {
+    depth--;
+    out.write(']');
+    return this;
+  }
+
+  /**
+   * Write the key of the next object member. Must be followed by exactly one
+   * value.
+   *
+   * @param pName member name
+   * @return this writer
+   */
+  JsonWriter name(String pName) throws IOException {
+    separator();
+    string(pName);
+    out.write(':');
+    // The value following a name needs no separator
+    first[depth] = true;
+    return this;
+  }
+
+  /**
+   * Write an arbitrary value, converting JMX types as described in the class
+   * comment.
+   *
+   * @param pValue value to write, can be null
+   * @return this writer
+   */
+  JsonWriter value(Object pValue) throws IOException {
+    if (pValue == null) {
+      raw("null");
+    } else if (pValue instanceof String) {
+      separator();
+      string((String) pValue);
+    } else if (pValue instanceof Number) {
+      number((Number) pValue);
+    } else if (pValue instanceof Boolean) {
+      raw(pValue.toString());
+    } else if (pValue instanceof ObjectName) {
+      separator();
+      string(((ObjectName) pValue).getCanonicalName());
+    } else if (pValue instanceof CompositeData) {
+      CompositeData cd = (CompositeData) pValue;
+      beginObject();
+      for (String key : cd.getCompositeType().keySet()) {
+        name(key).value(cd.get(key));
+      }
+      endObject();
+    } else if (pValue instanceof TabularData) {
+      beginArray();
+      for (Object row : ((TabularData) pValue).values()) {
+        value(row);
+      }
+      endArray();
+    } else if (pValue instanceof Map) {
+      beginObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) pValue).entrySet()) {
+        name(String.valueOf(entry.getKey())).value(entry.getValue());
+      }
+      endObject();
+    } else if (pValue instanceof Iterable) {
+      beginArray();
+      for (Iterator<?> it = ((Iterable<?>) pValue).iterator(); it.hasNext();) {
+        value(it.next());
+      }
+      endArray();
+    } else if (pValue.getClass().isArray()) {
+      beginArray();
+      int len = Array.getLength(pValue);
+      for (int i = 0; i < len; i++) {
+        value(Array.get(pValue, i));
+      }
+      endArray();
+    } else {
+      separator();
+      string(pValue.toString());
+    }
+    return this;
+  }
+
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  // ===================================================================================
+
+  private void number(Number pNumber) throws IOException {
+    if ((pNumber instanceof Double && (((Double) pNumber).isNaN() || ((Double) pNumber).isInfinite()))
+        || (pNumber instanceof Float && (((Float) pNumber).isNaN() || ((Float) pNumber).isInfinite()))) {
+      // Not representable in JSON
+      raw("null");
+    } else {
+      raw(pNumber.toString());
+    }
+  }
+
+  private void raw(String pValue) throws IOException {
+    separator();
+    out.write(pValue);
+  }
+
+  private void separator() throws IOException {
+    if (depth > 0) {
+      if (first[depth]) {
+        first[depth] = false;
+      } else {
+        out.write(',');
+      }
+    }
+  }
+
+  private void push() {
+    depth++;
+    if (depth == first.length) {
+      boolean[] grown = new boolean[first.length * 2];
+      System.arraycopy(first, 0, grown, 0, first.length);
+      first = grown;
+    }
+    first[depth] = true;
+  }
+
+  private void string(String pValue) throws IOException {
+    out.write('"');
+    int len = pValue.length();
+    for (int i = 0; i < len; i++) {
+      char c = pValue.charAt(i);
+      switch (c) {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            out.write("\\u00");
+            out.write(Character.forDigit(c >> 4, 16));
+            out.write(Character.forDigit(c & 0xF, 16));
+          } else {
+            out.write(c);
+          }
+      }
+    }
+    out.write('"');
+  }
+
+}
@@ -0,0 +1,134 @@
+package org.wjw.jmxagent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size latency histogram with log-linear buckets: every power of two is
+ * split into 8 buckets, so a recorded value is off by at most 12.5%. Values
+ * are recorded in microseconds up to about 71 minutes, longer ones end up in
+ * the last bucket.
+ *
+ * Recording is lock-free and allocation-free. The counters are striped by
+ * thread, so that threads recording at the same time rarely update the same
+ * cache line; reading sums up the stripes.
+ */
+final class LatencyHistogram {
+
+  // log2 of the number of buckets per power of two
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  // Values up to 2^32 - 1 micros get their own bucket
+  private static final int MAX_EXPONENT = 31;
+
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+  // Per stripe: the buckets, followed by the count and the sum
+  private static final int STRIPE_LENGTH = BUCKETS + 2;
+
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a latency
+   *
+   * @param pNanos latency in nanoseconds
+   */
+  void record(long pNanos) {
+    long micros = Math.max(0, pNanos / 1000);
+    int offset = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH;
+    counts.incrementAndGet(offset + bucket(micros));
+    counts.incrementAndGet(offset + BUCKETS);
+    counts.addAndGet(offset + BUCKETS + 1, micros);
+    long m = max.get();
+    while (micros > m && !max.compareAndSet(m, micros)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * @return count, mean, percentiles and maximum of the values recorded so far
+   */
+  LatencySummary summary() {
+    long[] buckets = new long[BUCKETS];
+    long count = 0;
+    long sum = 0;
+    for (int s = 0; s < STRIPES; s++) {
+      int offset = s * STRIPE_LENGTH;
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] += counts.get(offset + i);
+      }
+      count += counts.get(offset + BUCKETS);
+      sum += counts.get(offset + BUCKETS + 1);
+    }
+    long maxMicros = max.get();
+    return new LatencySummary(count, count == 0 ? 0 : sum / count, percentile(buckets, 0.5, maxMicros),
+        percentile(buckets, 0.9, maxMicros), percentile(buckets, 0.99, maxMicros), percentile(buckets, 0.999,
+            maxMicros), maxMicros);
+  }
+
+  /**
+   * Forget all recorded values. Values recorded concurrently may or may not be
+   * forgotten.
+   */
+  void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    max.set(0);
+  }
+
+  // ===================================================================================
+
+  static int bucket(long pMicros) {
+    if (pMicros < SUB_BUCKETS) {
+      return (int) pMicros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(pMicros);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int mantissa = (int) (pMicros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+  }
+
+  // Highest value falling into a bucket
+  static long upperBound(int pBucket) {
+    if (pBucket < SUB_BUCKETS) {
+      return pBucket;
+    }
+    int exponent = pBucket / SUB_BUCKETS + SUB_BITS - 1;
+    long width = 1L << (exponent - SUB_BITS);
+    return (SUB_BUCKETS + pBucket % SUB_BUCKETS) * width + width - 1;
+  }
+
+  private static long percentile(long[] pBuckets, double pFraction, long pMax) {
+    long total = 0;
+    for (long c : pBuckets) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * pFraction);
+    long seen = 0;
+    for (int i = 0; i < pBuckets.length; i++) {
+      seen += pBuckets[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), pMax);
+      }
+    }
+    return pMax;
+  }
+
+  private static int stripes() {
+    int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    return Integer.highestOneBit(Math.max(1, cpus) * 2 - 1);
+  }
+
+}
@@ -0,0 +1,87 @@
+package org.wjw.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Count and distribution of the latencies recorded by a histogram of the
+ * {@link AgentStatsMXBean}. Percentiles are upper bounds of the histogram
+ * buckets, which are at most 12.5% off.
+ */
+public class LatencySummary {
+
+  private final long count;
+
+  private final long meanMicros;
+
+  private final long p50Micros;
+
+  private final long p90Micros;
+
+  private final long p99Micros;
+
+  private final long p999Micros;
+
+  private final long maxMicros;
+
+  @ConstructorProperties({ "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros" })
+  public LatencySummary(long pCount, long pMeanMicros, long pP50Micros, long pP90Micros, long pP99Micros,
+      long pP999Micros, long pMaxMicros) {
+    count = pCount;
+    meanMicros = pMeanMicros;
+    p50Micros = pP50Micros;
+    p90Micros = pP90Micros;
+    p99Micros = pP99Micros;
+    p999Micros = pP999Micros;
+    maxMicros = pMaxMicros;
+  }
+
+  /**
+   * @return number of recorded calls
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return mean latency in microseconds
+   */
+  public long getMeanMicros() {
+    return meanMicros;
+  }
+
+  /**
+   * @return median latency in microseconds
+   */
+  public long getP50Micros() {
+    return p50Micros;
+  }
+
+  /**
+   * @return 90th percentile of the latency in microseconds
+   */
+  public long getP90Micros() {
+    return p90Micros;
+  }
+
+  /**
+   * @return 99th percentile of the latency in microseconds
+   */
+  public long getP99Micros() {
+    return p99Micros;
+  }
+
+  /**
+   * @return 99.9th percentile of the latency in microseconds
+   */
+  public long getP999Micros() {
+    return p999Micros;
+  }
+
+  /**
+   * @return highest latency in microseconds
+   */
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+}
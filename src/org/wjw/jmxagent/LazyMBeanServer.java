@@ -0,0 +1,81 @@
+package org.wjw.jmxagent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Stands in for the platform MBeanServer until it is used for the first time,
+ * e.g. when the first client connects. Creating the platform MBeanServer
+ * registers all platform MXBeans, which is a noticeable part of the agent
+ * startup.
+ *
+ * The agent's own MBeans are registered with {@link #registerOnInit} so that
+ * registering them does not create the MBeanServer.
+ */
+final class LazyMBeanServer extends MBeanServerForwarderSupport {
+
+  private volatile MBeanServer platform;
+
+  private final List<Object[]> pending = new ArrayList<Object[]>();
+
+  private final StartupTimer timer;
+
+  LazyMBeanServer(StartupTimer pTimer) {
+    timer = pTimer;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MBeanServer getMBeanServer() {
+    MBeanServer ret = platform;
+    if (ret == null) {
+      synchronized (this) {
+        if (platform == null) {
+          long start = System.nanoTime();
+          MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+          timer.record("mbeanserver", System.nanoTime() - start);
+          for (Object[] registration : pending) {
+            try {
+              mbs.registerMBean(registration[0], (ObjectName) registration[1]);
+            } catch (Exception e) {
+              e.printStackTrace(System.err);
+            }
+          }
+          pending.clear();
+          platform = mbs;
+        }
+        ret = platform;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return true if the platform MBeanServer has been created
+   */
+  boolean isInitialized() {
+    return platform != null;
+  }
+
+  /**
+   * Register an MBean now if the MBeanServer is already initialized, otherwise
+   * as soon as it gets initialized.
+   *
+   * @param pMBean MBean to register
+   * @param pName its name
+   */
+  void registerOnInit(Object pMBean, ObjectName pName) throws Exception {
+    synchronized (this) {
+      if (platform == null) {
+        pending.add(new Object[] { pMBean, pName });
+        return;
+      }
+    }
+    platform.registerMBean(pMBean, pName);
+  }
+
+}
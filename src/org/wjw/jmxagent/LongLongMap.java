@@ -0,0 +1,95 @@
+package org.wjw.jmxagent;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to long without boxing. Clearing keeps
+ * the arrays, so that a map filled again and again with about the same number
+ * of entries does not allocate. The key 0 is reserved for empty slots.
+ *
+ * Not thread-safe.
+ */
+final class LongLongMap {
+
+  private long[] keys;
+
+  private long[] values;
+
+  private int size;
+
+  LongLongMap(int pExpectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, pExpectedSize) * 4 - 1);
+    keys = new long[capacity];
+    values = new long[capacity];
+  }
+
+  /**
+   * @param pKey key, not 0
+   * @param pValue value
+   */
+  void put(long pKey, long pValue) {
+    if (pKey == 0) {
+      throw new IllegalArgumentException("Key 0 is reserved");
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+    }
+    int i = slot(keys, pKey);
+    if (keys[i] == 0) {
+      keys[i] = pKey;
+      size++;
+    }
+    values[i] = pValue;
+  }
+
+  /**
+   * @param pKey key
+   * @param pDefault value returned if the key is not in the map
+   * @return the value of the key
+   */
+  long get(long pKey, long pDefault) {
+    if (pKey == 0) {
+      return pDefault;
+    }
+    int i = slot(keys, pKey);
+    return keys[i] == pKey ? values[i] : pDefault;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    Arrays.fill(keys, 0);
+    size = 0;
+  }
+
+  // ===================================================================================
+
+  // Slot holding the key, or the empty slot where it belongs
+  private static int slot(long[] pKeys, long pKey) {
+    int mask = pKeys.length - 1;
+    // Spread the bits, thread ids are small sequential numbers
+    long h = pKey * 0x9E3779B97F4A7C15L;
+    int i = (int) (h ^ (h >>> 32)) & mask;
+    while (pKeys[i] != 0 && pKeys[i] != pKey) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new long[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int j = slot(keys, oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+}
@@ -0,0 +1,417 @@
+package org.wjw.jmxagent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+
+/**
+ * <code>MBeanServerForwarder</code> which answers <code>queryNames</code>,
+ * <code>queryMBeans</code> and <code>getMBeanInfo</code> from an index of all
+ * registered MBeans instead of scanning the MBeanServer.
+ *
+ * All names are kept sorted by their canonical name, so that the MBeans of a
+ * domain are a contiguous range, and are additionally indexed by each of their
+ * key properties. A pattern query only checks the names of the smallest
+ * matching property set, or of its domain if it has no fixed property. The
+ * <code>MBeanInfo</code> of MBeans declaring it immutable (the
+ * <code>immutableInfo</code> descriptor field, set for all standard MBeans and
+ * MXBeans) and the <code>ObjectInstance</code> are cached per MBean.
+ *
+ * The index is built on first use and kept up to date by listening to the
+ * registration notifications of the <code>MBeanServerDelegate</code>. Queries
+ * with a <code>QueryExp</code> or for the default domain are passed through.
+ */
+final class MBeanIndexForwarder extends MBeanServerForwarderSupport implements MBeanIndexMXBean,
+    NotificationListener {
+
+  // All MBeans by canonical name
+  private final ConcurrentSkipListMap<String, Entry> names = new ConcurrentSkipListMap<String, Entry>();
+
+  // "key=value" -> MBeans having this key property
+  private final ConcurrentMap<String, Set<ObjectName>> byProperty = new ConcurrentHashMap<String, Set<ObjectName>>();
+
+  // Guards the updates of the property index
+  private final Object indexLock = new Object();
+
+  private volatile boolean initialized;
+
+  // Names unregistered while the index is built
+  private volatile Set<ObjectName> unregisteredDuringInit;
+
+  private final AtomicLong infoHits = new AtomicLong();
+
+  private final AtomicLong infoMisses = new AtomicLong();
+
+  private final AtomicLong indexedQueries = new AtomicLong();
+
+  private final AtomicLong scannedNames = new AtomicLong();
+
+  /**
+   * Stop listening for registrations
+   */
+  synchronized void close() {
+    if (initialized) {
+      try {
+        getMBeanServer().removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+      } catch (Exception e) {
+        // Already gone
+      }
+      initialized = false;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void handleNotification(Notification pNotification, Object pHandback) {
+    if (!(pNotification instanceof MBeanServerNotification)) {
+      return;
+    }
+    ObjectName name = ((MBeanServerNotification) pNotification).getMBeanName();
+    boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(pNotification.getType());
+    Set<ObjectName> pending = unregisteredDuringInit;
+    if (pending != null) {
+      if (registered) {
+        pending.remove(name);
+      } else {
+        pending.add(name);
+      }
+    }
+    if (registered) {
+      add(name);
+    } else {
+      remove(name);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+    if (!isIndexed(name, query)) {
+      return super.queryNames(name, query);
+    }
+    Set<ObjectName> ret = new HashSet<ObjectName>();
+    for (ObjectName candidate : candidates(name)) {
+      if (name == null || name.apply(candidate)) {
+        ret.add(candidate);
+      }
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+    if (!isIndexed(name, query)) {
+      return super.queryMBeans(name, query);
+    }
+    Set<ObjectInstance> ret = new HashSet<ObjectInstance>();
+    for (ObjectName candidate : candidates(name)) {
+      if (name == null || name.apply(candidate)) {
+        try {
+          ret.add(getObjectInstance(candidate));
+        } catch (InstanceNotFoundException exp) {
+          // Unregistered in the meantime
+        }
+      }
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+    Entry entry = entry(name);
+    if (entry == null) {
+      return super.getObjectInstance(name);
+    }
+    ObjectInstance instance = entry.instance;
+    if (instance == null) {
+      instance = super.getObjectInstance(name);
+      entry.instance = instance;
+    }
+    return instance;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException,
+      ReflectionException {
+    Entry entry = entry(name);
+    if (entry == null) {
+      return super.getMBeanInfo(name);
+    }
+    MBeanInfo info = entry.info;
+    if (info != null) {
+      infoHits.incrementAndGet();
+      return info;
+    }
+    infoMisses.incrementAndGet();
+    info = super.getMBeanInfo(name);
+    // An entry replaced by a new registration in the meantime is never seen again
+    if (isImmutable(info)) {
+      entry.info = info;
+    }
+    return info;
+  }
+
+  /**
+   * Get a page of the MBeans matching a pattern, sorted by canonical name
+   *
+   * @param pPattern pattern, null for all MBeans
+   * @param pAfter canonical name all returned names are greater than, or null
+   * @param pSize maximum number of names
+   * @return the names, or null if the query cannot be answered from the index
+   */
+  List<ObjectName> page(ObjectName pPattern, String pAfter, int pSize) {
+    if (!isIndexed(pPattern, null)) {
+      return null;
+    }
+    Set<ObjectName> smallest = smallestPropertySet(pPattern);
+    if (smallest != null) {
+      scannedNames.addAndGet(smallest.size());
+      return QueryService.select(smallest, pPattern, pAfter, pSize);
+    }
+    NavigableMap<String, Entry> range = range(pPattern, pAfter);
+    List<ObjectName> ret = new ArrayList<ObjectName>(Math.min(pSize, 1024));
+    for (Entry entry : range.values()) {
+      if (ret.size() >= pSize) {
+        break;
+      }
+      scannedNames.incrementAndGet();
+      if (pPattern == null || pPattern.apply(entry.name)) {
+        ret.add(entry.name);
+      }
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public int getSize() {
+    return names.size();
+  }
+
+  /** {@inheritDoc} */
+  public int getInfoCacheSize() {
+    int ret = 0;
+    for (Entry entry : names.values()) {
+      if (entry.info != null) {
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  /** {@inheritDoc} */
+  public long getInfoHits() {
+    return infoHits.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getInfoMisses() {
+    return infoMisses.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getIndexedQueries() {
+    return indexedQueries.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getScannedNames() {
+    return scannedNames.get();
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void rebuild() {
+    close();
+    names.clear();
+    synchronized (indexLock) {
+      byProperty.clear();
+    }
+    ensureInitialized();
+  }
+
+  // ===================================================================================
+
+  private boolean isIndexed(ObjectName pName, QueryExp pQuery) {
+    // The MBeanServer replaces an empty domain with its default domain
+    if (pQuery != null || (pName != null && pName.getDomain().length() == 0)) {
+      return false;
+    }
+    ensureInitialized();
+    indexedQueries.incrementAndGet();
+    return true;
+  }
+
+  private void ensureInitialized() {
+    if (initialized) {
+      return;
+    }
+    synchronized (this) {
+      if (initialized) {
+        return;
+      }
+      unregisteredDuringInit = Collections.synchronizedSet(new HashSet<ObjectName>());
+      try {
+        // Listen first so that no registration is missed while scanning
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        getMBeanServer().addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+      } catch (InstanceNotFoundException exp) {
+        throw new IllegalStateException("No MBeanServerDelegate", exp);
+      }
+      for (ObjectName name : getMBeanServer().queryNames(null, null)) {
+        add(name);
+      }
+      Set<ObjectName> pending = unregisteredDuringInit;
+      unregisteredDuringInit = null;
+      synchronized (pending) {
+        for (ObjectName name : pending) {
+          remove(name);
+        }
+      }
+      initialized = true;
+    }
+  }
+
+  private Entry entry(ObjectName pName) {
+    if (pName.isPattern()) {
+      return null;
+    }
+    ensureInitialized();
+    return names.get(pName.getCanonicalName());
+  }
+
+  private Collection<ObjectName> candidates(ObjectName pPattern) {
+    Set<ObjectName> smallest = smallestPropertySet(pPattern);
+    if (smallest != null) {
+      scannedNames.addAndGet(smallest.size());
+      return smallest;
+    }
+    Collection<ObjectName> ret = new ArrayList<ObjectName>();
+    for (Entry entry : range(pPattern, null).values()) {
+      ret.add(entry.name);
+    }
+    scannedNames.addAndGet(ret.size());
+    return ret;
+  }
+
+  // The smallest set of MBeans having one of the fixed key properties of the
+  // pattern, or null if it has none
+  private Set<ObjectName> smallestPropertySet(ObjectName pPattern) {
+    if (pPattern == null) {
+      return null;
+    }
+    Set<ObjectName> smallest = null;
+    for (Map.Entry<String, String> prop : pPattern.getKeyPropertyList().entrySet()) {
+      if (pPattern.isPropertyValuePattern(prop.getKey())) {
+        continue;
+      }
+      Set<ObjectName> set = byProperty.get(prop.getKey() + "=" + prop.getValue());
+      if (set == null) {
+        return Collections.emptySet();
+      }
+      if (smallest == null || set.size() < smallest.size()) {
+        smallest = set;
+      }
+    }
+    return smallest;
+  }
+
+  // The sorted range of MBeans which can match the pattern's domain
+  // The names which can match, greater than pAfter if not null
+  private NavigableMap<String, Entry> range(ObjectName pPattern, String pAfter) {
+    if (pPattern == null || pPattern.isDomainPattern()) {
+      return pAfter != null ? names.tailMap(pAfter, false) : names;
+    }
+    // ';' follows ':' and therefore ends the range of the domain
+    String domain = pPattern.getDomain();
+    String from = domain + ":";
+    String to = domain + ";";
+    if (pAfter == null || pAfter.compareTo(from) < 0) {
+      return names.subMap(from, true, to, false);
+    } else if (pAfter.compareTo(to) >= 0) {
+      // Past the domain, the submap would throw
+      return names.subMap(to, true, to, false);
+    }
+    return names.subMap(pAfter, false, to, false);
+  }
+
+  private void add(ObjectName pName) {
+    if (names.putIfAbsent(pName.getCanonicalName(), new Entry(pName)) != null) {
+      return;
+    }
+    synchronized (indexLock) {
+      for (Map.Entry<String, String> prop : pName.getKeyPropertyList().entrySet()) {
+        String key = prop.getKey() + "=" + prop.getValue();
+        Set<ObjectName> set = byProperty.get(key);
+        if (set == null) {
+          set = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>(4));
+          byProperty.put(key, set);
+        }
+        set.add(pName);
+      }
+    }
+  }
+
+  private void remove(ObjectName pName) {
+    Entry entry = names.remove(pName.getCanonicalName());
+    if (entry == null) {
+      return;
+    }
+    synchronized (indexLock) {
+      for (Map.Entry<String, String> prop : pName.getKeyPropertyList().entrySet()) {
+        String key = prop.getKey() + "=" + prop.getValue();
+        Set<ObjectName> set = byProperty.get(key);
+        if (set != null) {
+          set.remove(pName);
+          if (set.isEmpty()) {
+            byProperty.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean isImmutable(MBeanInfo pInfo) {
+    Object immutable = pInfo.getDescriptor().getFieldValue("immutableInfo");
+    return immutable != null && "true".equalsIgnoreCase(immutable.toString());
+  }
+
+  // A registered MBean with its cached metadata
+  private static final class Entry {
+
+    final ObjectName name;
+
+    volatile MBeanInfo info;
+
+    volatile ObjectInstance instance;
+
+    Entry(ObjectName pName) {
+      name = pName;
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the MBean index in front of the MBeanServer,
+ * registered as <code>org.wjw.jmxagent:type=MBeanIndex</code>.
+ */
+public interface MBeanIndexMXBean {
+
+  /**
+   * @return number of indexed MBean names
+   */
+  int getSize();
+
+  /**
+   * @return number of cached MBeanInfos
+   */
+  int getInfoCacheSize();
+
+  /**
+   * @return number of getMBeanInfo calls answered from the cache
+   */
+  long getInfoHits();
+
+  /**
+   * @return number of getMBeanInfo calls which went through to the MBean
+   */
+  long getInfoMisses();
+
+  /**
+   * @return number of queries answered from the index
+   */
+  long getIndexedQueries();
+
+  /**
+   * @return number of names checked against a query pattern
+   */
+  long getScannedNames();
+
+  /**
+   * Rebuild the index and drop all cached MBeanInfos
+   */
+  void rebuild();
+
+}
@@ -0,0 +1,262 @@
+package org.wjw.jmxagent;
+
+import java.io.ObjectInputStream;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.InvalidAttributeValueException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.OperationsException;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.loading.ClassLoaderRepository;
+import javax.management.remote.MBeanServerForwarder;
+
+/**
+ * Base class for the agent's <code>MBeanServerForwarder</code>s which are put
+ * in front of the MBeanServer served by the <code>JMXConnectorServer</code>.
+ * Every method simply delegates to the next MBeanServer in the chain, so that
+ * subclasses only need to override the calls they are interested in.
+ */
+@SuppressWarnings("deprecation")
+abstract class MBeanServerForwarderSupport implements MBeanServerForwarder {
+
+  private MBeanServer mbs;
+
+  /** {@inheritDoc} */
+  public MBeanServer getMBeanServer() {
+    return mbs;
+  }
+
+  /** {@inheritDoc} */
+  public void setMBeanServer(MBeanServer pMbs) {
+    if (pMbs == null) {
+      throw new IllegalArgumentException("Null MBeanServer");
+    }
+    if (mbs != null) {
+      throw new IllegalArgumentException("MBeanServer object already initialized");
+    }
+    mbs = pMbs;
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance createMBean(String className, ObjectName name) throws ReflectionException,
+      InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException {
+    return getMBeanServer().createMBean(className, name);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName)
+      throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+      NotCompliantMBeanException, InstanceNotFoundException {
+    return getMBeanServer().createMBean(className, name, loaderName);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature)
+      throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException,
+      NotCompliantMBeanException {
+    return getMBeanServer().createMBean(className, name, params, signature);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, Object[] params,
+      String[] signature) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException,
+      MBeanException, NotCompliantMBeanException, InstanceNotFoundException {
+    return getMBeanServer().createMBean(className, name, loaderName, params, signature);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance registerMBean(Object object, ObjectName name) throws InstanceAlreadyExistsException,
+      MBeanRegistrationException, NotCompliantMBeanException {
+    return getMBeanServer().registerMBean(object, name);
+  }
+
+  /** {@inheritDoc} */
+  public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException {
+    getMBeanServer().unregisterMBean(name);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException {
+    return getMBeanServer().getObjectInstance(name);
+  }
+
+  /** {@inheritDoc} */
+  public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) {
+    return getMBeanServer().queryMBeans(name, query);
+  }
+
+  /** {@inheritDoc} */
+  public Set<ObjectName> queryNames(ObjectName name, QueryExp query) {
+    return getMBeanServer().queryNames(name, query);
+  }
+
+  /** {@inheritDoc} */
+  public boolean isRegistered(ObjectName name) {
+    return getMBeanServer().isRegistered(name);
+  }
+
+  /** {@inheritDoc} */
+  public Integer getMBeanCount() {
+    return getMBeanServer().getMBeanCount();
+  }
+
+  /** {@inheritDoc} */
+  public Object getAttribute(ObjectName name, String attribute) throws MBeanException, AttributeNotFoundException,
+      InstanceNotFoundException, ReflectionException {
+    return getMBeanServer().getAttribute(name, attribute);
+  }
+
+  /** {@inheritDoc} */
+  public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException,
+      ReflectionException {
+    return getMBeanServer().getAttributes(name, attributes);
+  }
+
+  /** {@inheritDoc} */
+  public void setAttribute(ObjectName name, Attribute attribute) throws InstanceNotFoundException,
+      AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+    getMBeanServer().setAttribute(name, attribute);
+  }
+
+  /** {@inheritDoc} */
+  public AttributeList setAttributes(ObjectName name, AttributeList attributes) throws InstanceNotFoundException,
+      ReflectionException {
+    return getMBeanServer().setAttributes(name, attributes);
+  }
+
+  /** {@inheritDoc} */
+  public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature)
+      throws InstanceNotFoundException, MBeanException, ReflectionException {
+    return getMBeanServer().invoke(name, operationName, params, signature);
+  }
+
+  /** {@inheritDoc} */
+  public String getDefaultDomain() {
+    return getMBeanServer().getDefaultDomain();
+  }
+
+  /** {@inheritDoc} */
+  public String[] getDomains() {
+    return getMBeanServer().getDomains();
+  }
+
+  /** {@inheritDoc} */
+  public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+      Object handback) throws InstanceNotFoundException {
+    getMBeanServer().addNotificationListener(name, listener, filter, handback);
+  }
+
+  /** {@inheritDoc} */
+  public void addNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter,
+      Object handback) throws InstanceNotFoundException {
+    getMBeanServer().addNotificationListener(name, listener, filter, handback);
+  }
+
+  /** {@inheritDoc} */
+  public void removeNotificationListener(ObjectName name, ObjectName listener) throws InstanceNotFoundException,
+      ListenerNotFoundException {
+    getMBeanServer().removeNotificationListener(name, listener);
+  }
+
+  /** {@inheritDoc} */
+  public void removeNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter,
+      Object handback) throws InstanceNotFoundException, ListenerNotFoundException {
+    getMBeanServer().removeNotificationListener(name, listener, filter, handback);
+  }
+
+  /** {@inheritDoc} */
+  public void removeNotificationListener(ObjectName name, NotificationListener listener)
+      throws InstanceNotFoundException, ListenerNotFoundException {
+    getMBeanServer().removeNotificationListener(name, listener);
+  }
+
+  /** {@inheritDoc} */
+  public void removeNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter,
+      Object handback) throws InstanceNotFoundException, ListenerNotFoundException {
+    getMBeanServer().removeNotificationListener(name, listener, filter, handback);
+  }
+
+  /** {@inheritDoc} */
+  public MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException,
+      ReflectionException {
+    return getMBeanServer().getMBeanInfo(name);
+  }
+
+  /** {@inheritDoc} */
+  public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException {
+    return getMBeanServer().isInstanceOf(name, className);
+  }
+
+  /** {@inheritDoc} */
+  public Object instantiate(String className) throws ReflectionException, MBeanException {
+    return getMBeanServer().instantiate(className);
+  }
+
+  /** {@inheritDoc} */
+  public Object instantiate(String className, ObjectName loaderName) throws ReflectionException, MBeanException,
+      InstanceNotFoundException {
+    return getMBeanServer().instantiate(className, loaderName);
+  }
+
+  /** {@inheritDoc} */
+  public Object instantiate(String className, Object[] params, String[] signature) throws ReflectionException,
+      MBeanException {
+    return getMBeanServer().instantiate(className, params, signature);
+  }
+
+  /** {@inheritDoc} */
+  public Object instantiate(String className, ObjectName loaderName, Object[] params, String[] signature)
+      throws ReflectionException, MBeanException, InstanceNotFoundException {
+    return getMBeanServer().instantiate(className, loaderName, params, signature);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInputStream deserialize(ObjectName name, byte[] data) throws InstanceNotFoundException,
+      OperationsException {
+    return getMBeanServer().deserialize(name, data);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInputStream deserialize(String className, byte[] data) throws OperationsException,
+      ReflectionException {
+    return getMBeanServer().deserialize(className, data);
+  }
+
+  /** {@inheritDoc} */
+  public ObjectInputStream deserialize(String className, ObjectName loaderName, byte[] data)
+      throws InstanceNotFoundException, OperationsException, ReflectionException {
+    return getMBeanServer().deserialize(className, loaderName, data);
+  }
+
+  /** {@inheritDoc} */
+  public ClassLoader getClassLoaderFor(ObjectName mbeanName) throws InstanceNotFoundException {
+    return getMBeanServer().getClassLoaderFor(mbeanName);
+  }
+
+  /** {@inheritDoc} */
+  public ClassLoader getClassLoader(ObjectName loaderName) throws InstanceNotFoundException {
+    return getMBeanServer().getClassLoader(loaderName);
+  }
+
+  /** {@inheritDoc} */
+  public ClassLoaderRepository getClassLoaderRepository() {
+    return getMBeanServer().getClassLoaderRepository();
+  }
+
+}
@@ -0,0 +1,193 @@
+package org.wjw.jmxagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Rule mapping MBean attributes to Prometheus metric families. Rules are
+ * configured with the options
+ *
+ * <ul>
+ * <li><code>metrics.rule.&lt;id&gt;.pattern</code> ObjectName pattern of the
+ * MBeans the rule applies to (mandatory)</li>
+ * <li><code>metrics.rule.&lt;id&gt;.name</code> name template, default
+ * <code>{domain}_{type}_{attribute}</code>. <code>{domain}</code>,
+ * <code>{attribute}</code>, <code>{key}</code> (the item of a
+ * <code>CompositeData</code>) and any ObjectName key property in braces are
+ * replaced. For composite values without <code>{key}</code> in the template,
+ * <code>_&lt;key&gt;</code> is appended.</li>
+ * <li><code>metrics.rule.&lt;id&gt;.attributes</code> space or comma separated
+ * attributes to export, default all numeric, boolean and composite
+ * attributes</li>
+ * <li><code>metrics.rule.&lt;id&gt;.labels</code> key properties to export as
+ * labels, default all properties not used in the name template</li>
+ * <li><code>metrics.rule.&lt;id&gt;.type</code> <code>gauge</code>,
+ * <code>counter</code> or <code>untyped</code> (default)</li>
+ * </ul>
+ *
+ * Rules are applied in the order of their ids, the first rule matching an
+ * MBean wins. Without any rule, all MBeans are exported with the defaults.
+ */
+final class MetricRule {
+
+  static final String DEFAULT_NAME = "{domain}_{type}_{attribute}";
+
+  final String id;
+
+  final ObjectName pattern;
+
+  final String nameTemplate;
+
+  final String[] attributes;
+
+  final String[] labels;
+
+  final String type;
+
+  MetricRule(String pId, ObjectName pPattern, String pNameTemplate, String[] pAttributes, String[] pLabels,
+      String pType) {
+    id = pId;
+    pattern = pPattern;
+    nameTemplate = pNameTemplate;
+    attributes = pAttributes;
+    labels = pLabels;
+    type = pType;
+  }
+
+  /**
+   * Parse all rules from the agent configuration
+   *
+   * @param pConfig agent configuration
+   * @return the rules ordered by id, or a single catch-all rule if none is
+   *         configured
+   */
+  static List<MetricRule> parse(AgentConfig pConfig) throws MalformedObjectNameException {
+    Map<String, Map<String, String>> byId = new TreeMap<String, Map<String, String>>();
+    for (Map.Entry<String, String> entry : pConfig.withPrefix("metrics.rule.").entrySet()) {
+      int idx = entry.getKey().indexOf('.');
+      if (idx < 0) {
+        continue;
+      }
+      String id = entry.getKey().substring(0, idx);
+      Map<String, String> props = byId.get(id);
+      if (props == null) {
+        props = new TreeMap<String, String>();
+        byId.put(id, props);
+      }
+      props.put(entry.getKey().substring(idx + 1), entry.getValue());
+    }
+    List<MetricRule> ret = new ArrayList<MetricRule>();
+    for (Map.Entry<String, Map<String, String>> entry : byId.entrySet()) {
+      Map<String, String> props = entry.getValue();
+      String pattern = props.get("pattern");
+      if (pattern == null) {
+        System.err.println("JmxAgent: metrics rule " + entry.getKey() + " has no pattern, ignored");
+        continue;
+      }
+      String type = props.containsKey("type") ? props.get("type").trim() : "untyped";
+      ret.add(new MetricRule(entry.getKey(), new ObjectName(pattern.trim()), props.containsKey("name") ? props
+          .get("name").trim() : DEFAULT_NAME, list(props.get("attributes")), list(props.get("labels")), type));
+    }
+    if (ret.isEmpty()) {
+      ret.add(new MetricRule("default", new ObjectName("*:*"), DEFAULT_NAME, null, null, "untyped"));
+    }
+    return Collections.unmodifiableList(ret);
+  }
+
+  /**
+   * Replace the ObjectName related placeholders of the name template, leaving
+   * <code>{attribute}</code> and <code>{key}</code> in place.
+   *
+   * @param pName MBean name
+   * @return the partially expanded template
+   */
+  String expandForMBean(ObjectName pName) {
+    StringBuilder buf = new StringBuilder();
+    int pos = 0;
+    while (pos < nameTemplate.length()) {
+      int start = nameTemplate.indexOf('{', pos);
+      int end = start < 0 ? -1 : nameTemplate.indexOf('}', start);
+      if (end < 0) {
+        buf.append(nameTemplate, pos, nameTemplate.length());
+        break;
+      }
+      buf.append(nameTemplate, pos, start);
+      String placeholder = nameTemplate.substring(start + 1, end);
+      if ("attribute".equals(placeholder) || "key".equals(placeholder)) {
+        buf.append('{').append(placeholder).append('}');
+      } else if ("domain".equals(placeholder)) {
+        buf.append(pName.getDomain());
+      } else {
+        String value = pName.getKeyProperty(placeholder);
+        if (value != null) {
+          buf.append(value.startsWith("\"") ? ObjectName.unquote(value) : value);
+        }
+      }
+      pos = end + 1;
+    }
+    return buf.toString();
+  }
+
+  /**
+   * @param pProperty ObjectName key property
+   * @return true if the property is used in the name template
+   */
+  boolean usesProperty(String pProperty) {
+    return nameTemplate.indexOf("{" + pProperty + "}") >= 0;
+  }
+
+  /**
+   * Expand the remaining placeholders and turn the result into a valid metric
+   * name.
+   *
+   * @param pExpanded template as returned by {@link #expandForMBean(ObjectName)}
+   * @param pAttribute attribute name
+   * @param pKey composite data item or null
+   * @return metric name
+   */
+  static String metricName(String pExpanded, String pAttribute, String pKey) {
+    String name = pExpanded.replace("{attribute}", pAttribute);
+    if (pKey != null) {
+      name = name.indexOf("{key}") >= 0 ? name.replace("{key}", pKey) : name + "_" + pKey;
+    } else {
+      name = name.replace("{key}", "");
+    }
+    return sanitize(name);
+  }
+
+  // ===================================================================================
+
+  private static String sanitize(String pName) {
+    StringBuilder buf = new StringBuilder(pName.length());
+    for (int i = 0; i < pName.length(); i++) {
+      char c = pName.charAt(i);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == ':'
+          || (c >= '0' && c <= '9' && buf.length() > 0);
+      if (!valid) {
+        c = '_';
+      }
+      // Collapse runs of underscores from empty placeholders or replaced chars
+      if (c != '_' || (buf.length() > 0 && buf.charAt(buf.length() - 1) != '_')) {
+        buf.append(c);
+      }
+    }
+    while (buf.length() > 0 && buf.charAt(buf.length() - 1) == '_') {
+      buf.setLength(buf.length() - 1);
+    }
+    return buf.toString();
+  }
+
+  private static String[] list(String pValue) {
+    if (pValue == null || pValue.trim().length() == 0) {
+      return null;
+    }
+    return pValue.trim().split("[\\s,]+");
+  }
+
+}
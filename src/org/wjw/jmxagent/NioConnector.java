@@ -0,0 +1,438 @@
+package org.wjw.jmxagent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.security.auth.Subject;
+
+/**
+ * Client of the <code>jmxnio</code> protocol (see {@link NioProtocol}). With
+ * JmxAgent.jar in the classpath, standard client code connects to the
+ * {@link NioConnectorServer} by using an URL like
+ * <code>service:jmx:jmxnio://host:port</code> with
+ * <code>JMXConnectorFactory</code>.
+ *
+ * A single connection carries all requests. Threads calling the
+ * <code>MBeanServerConnection</code> at the same time do not wait for each
+ * other: each request gets an id and is sent at once, a reader thread hands
+ * the responses to the waiting callers. Notifications are delivered on a
+ * separate thread, so that a slow listener does not delay the responses.
+ */
+final class NioConnector implements JMXConnector {
+
+  private final JMXServiceURL address;
+
+  private final Map<String, ?> environment;
+
+  private final NotificationBroadcasterSupport broadcaster = new NotificationBroadcasterSupport();
+
+  private final AtomicLong notificationSequence = new AtomicLong();
+
+  private final AtomicInteger requestIds = new AtomicInteger();
+
+  private final Map<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+
+  private final Map<Integer, Listener> listeners = new ConcurrentHashMap<Integer, Listener>();
+
+  private Socket socket;
+
+  // Guarded by itself
+  private OutputStream out;
+
+  private ClassLoader loader;
+
+  private ExecutorService dispatcher;
+
+  private MBeanServerConnection connection;
+
+  private volatile String connectionId;
+
+  private volatile boolean closed;
+
+  /**
+   * Create an unconnected connector
+   *
+   * @param pAddress address of the connector server
+   * @param pEnvironment environment, may be null
+   */
+  NioConnector(JMXServiceURL pAddress, Map<String, ?> pEnvironment) {
+    address = pAddress;
+    environment = pEnvironment;
+  }
+
+  /** {@inheritDoc} */
+  public void connect() throws IOException {
+    connect(null);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void connect(Map<String, ?> pEnvironment) throws IOException {
+    if (closed) {
+      throw new IOException("Connector closed");
+    }
+    if (connectionId != null) {
+      return;
+    }
+    Map<String, Object> env = new HashMap<String, Object>();
+    if (environment != null) {
+      env.putAll(environment);
+    }
+    if (pEnvironment != null) {
+      env.putAll(pEnvironment);
+    }
+    loader = (ClassLoader) env.get(JMXConnectorFactory.DEFAULT_CLASS_LOADER);
+    if (loader == null) {
+      loader = Thread.currentThread().getContextClassLoader();
+    }
+
+    socket = new Socket();
+    DataInputStream in;
+    String id;
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(address.getHost(), address.getPort()));
+      out = socket.getOutputStream();
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+      NioProtocol.Frame hello = new NioProtocol.Frame(NioProtocol.HELLO, 0);
+      BinaryCodec.Encoder encoder = new BinaryCodec.Encoder(hello);
+      encoder.writeValue(Integer.valueOf(NioProtocol.VERSION));
+      encoder.writeValue(env.get(CREDENTIALS));
+      hello.finish().writeTo(out);
+      byte[] welcome = readFrame(in);
+      Object value = new BinaryCodec.Decoder(welcome, loader, true).readValue();
+      if (welcome[0] == NioProtocol.EXCEPTION) {
+        if (value instanceof SecurityException) {
+          throw (SecurityException) value;
+        }
+        throw value instanceof IOException ? (IOException) value : new IOException(String.valueOf(value));
+      } else if (welcome[0] != NioProtocol.WELCOME) {
+        throw new IOException("Unexpected frame of kind " + welcome[0]);
+      }
+      id = (String) value;
+    } catch (IOException exp) {
+      socket.close();
+      throw exp;
+    } catch (RuntimeException exp) {
+      socket.close();
+      throw exp;
+    }
+
+    dispatcher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("JmxAgent NIO Notifications"));
+    connection = (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+        new Class<?>[] { MBeanServerConnection.class }, new Handler());
+    final DataInputStream input = in;
+    new DaemonThreadFactory("JmxAgent NIO Client").newThread(new Runnable() {
+      public void run() {
+        receive(input);
+      }
+    }).start();
+    connectionId = id;
+    notify(JMXConnectionNotification.OPENED, "Connected to " + address);
+  }
+
+  /** {@inheritDoc} */
+  public MBeanServerConnection getMBeanServerConnection() throws IOException {
+    return getMBeanServerConnection(null);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized MBeanServerConnection getMBeanServerConnection(Subject pDelegationSubject) throws IOException {
+    if (pDelegationSubject != null) {
+      throw new UnsupportedOperationException("The " + NioProtocol.PROTOCOL
+          + " connector does not support subject delegation");
+    }
+    checkConnected();
+    return connection;
+  }
+
+  /** {@inheritDoc} */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (connectionId == null) {
+        return;
+      }
+      socket.close();
+    }
+    failCalls("Connector closed");
+    dispatcher.shutdown();
+    notify(JMXConnectionNotification.CLOSED, "Connection closed");
+  }
+
+  /** {@inheritDoc} */
+  public void addConnectionNotificationListener(NotificationListener pListener, NotificationFilter pFilter,
+      Object pHandback) {
+    broadcaster.addNotificationListener(pListener, pFilter, pHandback);
+  }
+
+  /** {@inheritDoc} */
+  public void removeConnectionNotificationListener(NotificationListener pListener)
+      throws ListenerNotFoundException {
+    broadcaster.removeNotificationListener(pListener);
+  }
+
+  /** {@inheritDoc} */
+  public void removeConnectionNotificationListener(NotificationListener pListener, NotificationFilter pFilter,
+      Object pHandback) throws ListenerNotFoundException {
+    broadcaster.removeNotificationListener(pListener, pFilter, pHandback);
+  }
+
+  /** {@inheritDoc} */
+  public String getConnectionId() throws IOException {
+    checkConnected();
+    return connectionId;
+  }
+
+  // ===================================================================================
+
+  private void checkConnected() throws IOException {
+    if (closed || connectionId == null) {
+      throw new IOException(closed ? "Connector closed" : "Not connected");
+    }
+  }
+
+  private void notify(String pType, String pMessage) {
+    broadcaster.sendNotification(new JMXConnectionNotification(pType, this, connectionId, notificationSequence
+        .incrementAndGet(), pMessage, null));
+  }
+
+  private static byte[] readFrame(DataInputStream pIn) throws IOException {
+    int length = pIn.readInt();
+    if (length < NioProtocol.HEADER_SIZE) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    byte[] frame = new byte[length];
+    pIn.readFully(frame);
+    return frame;
+  }
+
+  // Loop of the reader thread
+  private void receive(DataInputStream pIn) {
+    try {
+      while (true) {
+        final byte[] frame = readFrame(pIn);
+        int id = NioProtocol.id(frame);
+        if (frame[0] == NioProtocol.NOTIFICATION) {
+          final Listener listener = listeners.get(Integer.valueOf(id));
+          if (listener != null) {
+            dispatcher.execute(new Runnable() {
+              public void run() {
+                listener.deliver(frame);
+              }
+            });
+          }
+        } else {
+          Call call = calls.remove(Integer.valueOf(id));
+          if (call != null) {
+            call.complete(frame, null);
+          }
+        }
+      }
+    } catch (RejectedExecutionException exp) {
+      // closed
+    } catch (IOException exp) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // failed anyway
+      }
+      failCalls(exp instanceof EOFException ? "Connection closed by the server" : exp.toString());
+      dispatcher.shutdown();
+      notify(JMXConnectionNotification.FAILED, exp.toString());
+    }
+  }
+
+  private void failCalls(String pReason) {
+    for (Integer id : new ArrayList<Integer>(calls.keySet())) {
+      Call call = calls.remove(id);
+      if (call != null) {
+        call.complete(null, new IOException(pReason));
+      }
+    }
+  }
+
+  // Send a request and wait for its response
+  private Object call(int pOperation, Object[] pArguments, Class<?>[] pExceptions) throws Exception {
+    checkConnected();
+    Integer id = Integer.valueOf(requestIds.incrementAndGet());
+    NioProtocol.Frame request = new NioProtocol.Frame(NioProtocol.REQUEST, id.intValue());
+    request.write(pOperation);
+    new BinaryCodec.Encoder(request).writeValue(pArguments);
+    Call call = new Call();
+    calls.put(id, call);
+    try {
+      synchronized (out) {
+        request.finish().writeTo(out);
+      }
+    } catch (IOException exp) {
+      calls.remove(id);
+      throw exp;
+    }
+    if (closed) {
+      // The reader may have failed the calls before this one was added
+      failCalls("Connector closed");
+    }
+    byte[] response = call.await();
+    Object value = new BinaryCodec.Decoder(response, loader, true).readValue();
+    if (response[0] != NioProtocol.EXCEPTION) {
+      return value;
+    }
+    if (value instanceof RuntimeException) {
+      throw (RuntimeException) value;
+    } else if (value instanceof Error) {
+      throw (Error) value;
+    }
+    for (Class<?> declared : pExceptions) {
+      if (declared.isInstance(value)) {
+        throw (Exception) value;
+      }
+    }
+    throw new IOException("Request failed: " + value, (Throwable) value);
+  }
+
+  // A request waiting for its response
+  private static final class Call {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile byte[] response;
+
+    private volatile IOException failure;
+
+    void complete(byte[] pResponse, IOException pFailure) {
+      response = pResponse;
+      failure = pFailure;
+      done.countDown();
+    }
+
+    byte[] await() throws IOException {
+      try {
+        done.await();
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the response", exp);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return response;
+    }
+  }
+
+  // A listener added through the MBeanServerConnection
+  private final class Listener {
+
+    final ObjectName name;
+
+    final NotificationListener listener;
+
+    final NotificationFilter filter;
+
+    final Object handback;
+
+    Listener(ObjectName pName, NotificationListener pListener, NotificationFilter pFilter, Object pHandback) {
+      name = pName;
+      listener = pListener;
+      filter = pFilter;
+      handback = pHandback;
+    }
+
+    void deliver(byte[] pFrame) {
+      try {
+        Notification notification = (Notification) new BinaryCodec.Decoder(pFrame, loader, true).readValue();
+        listener.handleNotification(notification, handback);
+      } catch (Exception exp) {
+        System.err.println("JmxAgent: Cannot deliver notification of " + name);
+        exp.printStackTrace(System.err);
+      }
+    }
+  }
+
+  // The MBeanServerConnection, sending each call as request
+  private final class Handler implements InvocationHandler {
+
+    /** {@inheritDoc} */
+    public Object invoke(Object pProxy, Method pMethod, Object[] pArgs) throws Throwable {
+      if (pMethod.getDeclaringClass() == Object.class) {
+        if ("equals".equals(pMethod.getName())) {
+          return Boolean.valueOf(pProxy == pArgs[0]);
+        } else if ("hashCode".equals(pMethod.getName())) {
+          return Integer.valueOf(System.identityHashCode(pProxy));
+        }
+        return "MBeanServerConnection of " + NioConnector.this.address;
+      }
+      Object[] args = pArgs != null ? pArgs : new Object[0];
+      int operation = NioProtocol.operation(pMethod);
+      if (operation >= 0) {
+        return call(operation, args, pMethod.getExceptionTypes());
+      }
+      ObjectName name = (ObjectName) args[0];
+      NotificationListener listener = (NotificationListener) args[1];
+      if ("addNotificationListener".equals(pMethod.getName())) {
+        Integer id = (Integer) call(NioProtocol.ADD_LISTENER, new Object[] { name, args[2] }, pMethod
+            .getExceptionTypes());
+        listeners.put(id, new Listener(name, listener, (NotificationFilter) args[2], args[3]));
+        return null;
+      }
+      // removeNotificationListener, either all registrations of the listener or the one given exactly
+      List<Integer> ids = new ArrayList<Integer>();
+      for (Map.Entry<Integer, Listener> entry : listeners.entrySet()) {
+        Listener registered = entry.getValue();
+        if (registered.name.equals(name) && registered.listener == listener
+            && (args.length == 2 || (registered.filter == args[2] && registered.handback == args[3]))) {
+          ids.add(entry.getKey());
+        }
+      }
+      if (ids.isEmpty()) {
+        throw new ListenerNotFoundException("Listener not registered for " + name);
+      }
+      int[] removed = new int[ids.size()];
+      for (int i = 0; i < removed.length; i++) {
+        removed[i] = ids.get(i).intValue();
+        listeners.remove(ids.get(i));
+      }
+      call(NioProtocol.REMOVE_LISTENERS, new Object[] { name, removed }, pMethod.getExceptionTypes());
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,44 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorProvider;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerProvider;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Makes the <code>jmxnio</code> protocol available to
+ * <code>JMXConnectorFactory</code> and <code>JMXConnectorServerFactory</code>.
+ * It is found through <code>META-INF/services</code> when JmxAgent.jar is in
+ * the classpath, so that a client only needs an URL like
+ * <code>service:jmx:jmxnio://host:port</code>.
+ */
+public class NioConnectorProvider implements JMXConnectorProvider, JMXConnectorServerProvider {
+
+  /** {@inheritDoc} */
+  public JMXConnector newJMXConnector(JMXServiceURL pServiceURL, Map<String, ?> pEnvironment) throws IOException {
+    checkProtocol(pServiceURL);
+    return new NioConnector(pServiceURL, pEnvironment);
+  }
+
+  /** {@inheritDoc} */
+  public JMXConnectorServer newJMXConnectorServer(JMXServiceURL pServiceURL, Map<String, ?> pEnvironment,
+      MBeanServer pMBeanServer) throws IOException {
+    checkProtocol(pServiceURL);
+    return new NioConnectorServer(pServiceURL, pEnvironment, pMBeanServer);
+  }
+
+  // ===================================================================================
+
+  private static void checkProtocol(JMXServiceURL pServiceURL) throws MalformedURLException {
+    if (!NioProtocol.PROTOCOL.equals(pServiceURL.getProtocol())) {
+      throw new MalformedURLException("Protocol not " + NioProtocol.PROTOCOL + ": " + pServiceURL.getProtocol());
+    }
+  }
+
+}
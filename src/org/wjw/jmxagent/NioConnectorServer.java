@@ -0,0 +1,781 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXAuthenticator;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXPrincipal;
+import javax.management.remote.JMXServiceURL;
+import javax.security.auth.Subject;
+
+/**
+ * Connector server for the <code>jmxnio</code> protocol (see
+ * {@link NioProtocol}), an alternative to the RMI connector for many
+ * collectors polling the same JVM. All connections share a single port and a
+ * single selector thread; there is no registry lookup, no thread per connection
+ * and no Java serialization of open type values. Requests are executed by a
+ * pool of <code>nio.threads</code> threads (or each on its own virtual thread
+ * with <code>threads=virtual</code>), so that the requests of one
+ * connection are pipelined and answered as soon as each completes.
+ *
+ * Responses are written directly by the executing thread while the socket
+ * accepts them, the rest is queued and written by the selector thread. While a
+ * connection has more than <code>nio.maxPending</code> bytes queued its
+ * requests are no longer read and its notifications are dropped. Reading also
+ * pauses while <code>nio.maxInFlight</code> requests of a connection are
+ * executing or waiting for a thread, so that a client pipelining requests can
+ * not queue more than that.
+ *
+ * The environment takes <code>JMXConnectorServer.AUTHENTICATOR</code> and the
+ * options {@link #THREADS}, {@link #MAX_FRAME}, {@link #MAX_PENDING} and
+ * {@link #MAX_IN_FLIGHT}.
+ */
+final class NioConnectorServer extends JMXConnectorServer {
+
+  /**
+   * Number of threads executing requests, default 4
+   */
+  static final String THREADS = "org.wjw.jmxagent.nio.threads";
+
+  /**
+   * Maximum size in bytes of a received frame, default 16 MB
+   */
+  static final String MAX_FRAME = "org.wjw.jmxagent.nio.maxFrame";
+
+  /**
+   * Bytes queued for a connection before reading from it pauses, default 4 MB
+   */
+  static final String MAX_PENDING = "org.wjw.jmxagent.nio.maxPending";
+
+  /**
+   * Requests of a connection executing or queued before reading from it
+   * pauses, default 16
+   */
+  static final String MAX_IN_FLIGHT = "org.wjw.jmxagent.nio.maxInFlight";
+
+  // Notifications sent by one task before it makes way for other connections
+  private static final int NOTIFICATION_BATCH = 64;
+
+  private final JMXServiceURL requestedAddress;
+
+  private final Map<String, ?> environment;
+
+  private final JMXAuthenticator authenticator;
+
+  private final int threads;
+
+  private final int maxFrame;
+
+  private final long maxPending;
+
+  private final int maxInFlight;
+
+  private final Set<Connection> connections = Collections
+      .newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+  private final AtomicInteger connectionCounter = new AtomicInteger();
+
+  private final AtomicInteger listenerCounter = new AtomicInteger();
+
+  private final AtomicLong droppedNotifications = new AtomicLong();
+
+  // Connections below maxInFlight again, resumed by the selector thread
+  private final Queue<Connection> resumed = new ConcurrentLinkedQueue<Connection>();
+
+  private volatile JMXServiceURL address;
+
+  private ServerSocketChannel serverChannel;
+
+  private Selector selector;
+
+  private Thread selectorThread;
+
+  private ExecutorService executor;
+
+  private volatile boolean active;
+
+  private volatile boolean stopped;
+
+  /**
+   * Create the connector server, it is started with {@link #start()}
+   *
+   * @param pAddress address to bind to, port 0 for any free port
+   * @param pEnvironment authenticator and options, may be null
+   * @param pServer MBeanServer serving the requests, null if the connector
+   *          server is registered as MBean
+   */
+  NioConnectorServer(JMXServiceURL pAddress, Map<String, ?> pEnvironment, MBeanServer pServer) {
+    super(pServer);
+    requestedAddress = pAddress;
+    environment = pEnvironment != null ? pEnvironment : Collections.<String, Object> emptyMap();
+    authenticator = (JMXAuthenticator) environment.get(AUTHENTICATOR);
+    threads = Math.max(1, (int) option(THREADS, 4));
+    maxFrame = (int) Math.min(Integer.MAX_VALUE - 4, Math.max(1024, option(MAX_FRAME, 16 * 1024 * 1024)));
+    maxPending = Math.max(64 * 1024, option(MAX_PENDING, 4 * 1024 * 1024));
+    maxInFlight = (int) Math.max(1, Math.min(Integer.MAX_VALUE, option(MAX_IN_FLIGHT, 16)));
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void start() throws IOException {
+    if (stopped) {
+      throw new IOException("The connector server has been stopped");
+    }
+    if (active) {
+      return;
+    }
+    if (getMBeanServer() == null) {
+      throw new IllegalStateException("No MBeanServer, the connector server must be registered first");
+    }
+    String host = requestedAddress.getHost();
+    InetSocketAddress bindAddress = host == null || host.length() == 0 ? new InetSocketAddress(requestedAddress
+        .getPort()) : new InetSocketAddress(host, requestedAddress.getPort());
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(bindAddress);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException exp) {
+      serverChannel.close();
+      selector.close();
+      throw exp;
+    }
+    address = new JMXServiceURL(NioProtocol.PROTOCOL, host, serverChannel.socket().getLocalPort());
+    executor = DaemonThreadFactory.newRequestExecutor("JmxAgent NIO Worker", threads);
+    selectorThread = new DaemonThreadFactory("JmxAgent NIO Connector").newThread(new Runnable() {
+      public void run() {
+        select();
+      }
+    });
+    active = true;
+    selectorThread.start();
+  }
+
+  /** {@inheritDoc} */
+  public void stop() throws IOException {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      if (!active) {
+        return;
+      }
+      active = false;
+    }
+    selector.wakeup();
+    try {
+      selectorThread.join(5000);
+    } catch (InterruptedException exp) {
+      Thread.currentThread().interrupt();
+    }
+    for (Connection connection : connections) {
+      connection.close(null);
+    }
+    executor.shutdownNow();
+    serverChannel.close();
+    selector.close();
+  }
+
+  /** {@inheritDoc} */
+  public boolean isActive() {
+    return active;
+  }
+
+  /** {@inheritDoc} */
+  public JMXServiceURL getAddress() {
+    return address != null ? address : requestedAddress;
+  }
+
+  /** {@inheritDoc} */
+  public Map<String, ?> getAttributes() {
+    // Only the options, not the authenticator
+    Map<String, Object> ret = new HashMap<String, Object>();
+    for (Map.Entry<String, ?> entry : environment.entrySet()) {
+      if (entry.getValue() instanceof String || entry.getValue() instanceof Number) {
+        ret.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return Collections.unmodifiableMap(ret);
+  }
+
+  /**
+   * @return number of notifications dropped because a client did not read
+   *         fast enough
+   */
+  long getDroppedNotifications() {
+    return droppedNotifications.get();
+  }
+
+  // ===================================================================================
+
+  private long option(String pName, long pDefault) {
+    Object value = environment.get(pName);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(value.toString().trim());
+      } catch (NumberFormatException exp) {
+        System.err.println("JmxAgent: Invalid " + pName + " '" + value + "', using " + pDefault);
+      }
+    }
+    return pDefault;
+  }
+
+  // Loop of the selector thread
+  private void select() {
+    try {
+      while (active) {
+        selector.select();
+        for (Connection connection = resumed.poll(); connection != null; connection = resumed.poll()) {
+          connection.resume();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          if (key.isWritable()) {
+            connection.flush();
+          }
+          if (key.isValid() && key.isReadable()) {
+            connection.read();
+          }
+        }
+      }
+    } catch (ClosedSelectorException exp) {
+      // stopped
+    } catch (IOException exp) {
+      if (active) {
+        System.err.println("JmxAgent: NIO connector failed");
+        exp.printStackTrace(System.err);
+      }
+    }
+  }
+
+  private void accept() {
+    SocketChannel channel = null;
+    try {
+      channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Connection connection = new Connection(channel);
+      connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      connections.add(connection);
+    } catch (IOException exp) {
+      // The client is gone already
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // closing anyway
+        }
+      }
+    }
+  }
+
+  private static Throwable unwrap(Throwable pThrowable) {
+    Throwable ret = pThrowable;
+    while (true) {
+      if (ret instanceof InvocationTargetException && ret.getCause() != null) {
+        ret = ret.getCause();
+      } else if (ret instanceof PrivilegedActionException && ret.getCause() != null) {
+        ret = ret.getCause();
+      } else {
+        return ret;
+      }
+    }
+  }
+
+  // A listener registered by a client
+  private static final class Registration {
+
+    final ObjectName name;
+
+    final NotificationListener listener;
+
+    Registration(ObjectName pName, NotificationListener pListener) {
+      name = pName;
+      listener = pListener;
+    }
+  }
+
+  // A notification waiting to be sent to a client
+  private static final class QueuedNotification {
+
+    final int listenerId;
+
+    final Notification notification;
+
+    QueuedNotification(int pListenerId, Notification pNotification) {
+      listenerId = pListenerId;
+      notification = pNotification;
+    }
+  }
+
+  // State of one client connection
+  private final class Connection {
+
+    private final SocketChannel channel;
+
+    // Read by the selector thread only
+    private ByteBuffer in = ByteBuffer.allocate(8192);
+
+    // Frames not yet written, guarded by itself
+    private final Queue<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+    private long pending;
+
+    // Requests dispatched but not answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Map<Integer, Registration> listeners = new ConcurrentHashMap<Integer, Registration>();
+
+    // Notifications in the order they were sent, guarded by itself
+    private final Queue<QueuedNotification> notifications = new ArrayDeque<QueuedNotification>();
+
+    // Whether a task is sending the notifications, guarded by notifications
+    private boolean notifying;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    volatile SelectionKey key;
+
+    private boolean helloReceived;
+
+    private volatile boolean authenticated;
+
+    private volatile Subject subject;
+
+    private volatile String connectionId;
+
+    // Head of the forwarder chain when the client connected
+    private volatile MBeanServer server;
+
+    Connection(SocketChannel pChannel) {
+      channel = pChannel;
+    }
+
+    // Called by the selector thread
+    void read() {
+      int read;
+      try {
+        read = channel.read(in);
+      } catch (IOException exp) {
+        close(exp);
+        return;
+      }
+      if (read < 0) {
+        close(null);
+        return;
+      }
+      dispatch();
+    }
+
+    // Called by the selector thread when requests completed below maxInFlight
+    void resume() {
+      if (!closed.get()) {
+        dispatch();
+      }
+    }
+
+    // Dispatch the complete frames read so far, called by the selector thread
+    private void dispatch() {
+      in.flip();
+      int needed = 0;
+      while (in.remaining() >= 4) {
+        if (inFlight.get() >= maxInFlight) {
+          // The rest is dispatched by resume()
+          break;
+        }
+        int length = in.getInt(in.position());
+        if (length < NioProtocol.HEADER_SIZE || length > maxFrame) {
+          close(new IOException("Invalid frame length " + length));
+          return;
+        }
+        if (in.remaining() < 4 + length) {
+          needed = 4 + length;
+          break;
+        }
+        byte[] frame = new byte[length];
+        in.position(in.position() + 4);
+        in.get(frame);
+        if (!received(frame)) {
+          return;
+        }
+      }
+      in.compact();
+      if (needed > in.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(needed);
+        in.flip();
+        larger.put(in);
+        in = larger;
+      }
+      synchronized (out) {
+        updateInterest();
+      }
+    }
+
+    // Called by the selector thread when the channel is writable
+    void flush() {
+      synchronized (out) {
+        try {
+          while (!out.isEmpty()) {
+            ByteBuffer buffer = out.peek();
+            pending -= channel.write(buffer);
+            if (buffer.hasRemaining()) {
+              break;
+            }
+            out.poll();
+          }
+        } catch (IOException exp) {
+          close(exp);
+          return;
+        }
+        updateInterest();
+      }
+    }
+
+    // Send a frame from any thread
+    void send(NioProtocol.Frame pFrame) {
+      ByteBuffer buffer = pFrame.toBuffer();
+      synchronized (out) {
+        if (closed.get()) {
+          return;
+        }
+        if (out.isEmpty()) {
+          try {
+            channel.write(buffer);
+          } catch (IOException exp) {
+            close(exp);
+            return;
+          }
+          if (!buffer.hasRemaining()) {
+            return;
+          }
+        }
+        out.add(buffer);
+        pending += buffer.remaining();
+        updateInterest();
+      }
+      selector.wakeup();
+    }
+
+    boolean isCongested() {
+      synchronized (out) {
+        return pending > maxPending;
+      }
+    }
+
+    void close(Throwable pError) {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      connections.remove(this);
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException exp) {
+        // closed anyway
+      }
+      for (Registration registration : listeners.values()) {
+        try {
+          server.removeNotificationListener(registration.name, registration.listener);
+        } catch (Exception exp) {
+          // MBean already unregistered
+        }
+      }
+      listeners.clear();
+      if (connectionId != null) {
+        if (pError != null) {
+          connectionFailed(connectionId, pError.toString(), null);
+        } else {
+          connectionClosed(connectionId, "Client disconnected", null);
+        }
+      }
+    }
+
+    // Must hold the lock of out
+    private void updateInterest() {
+      SelectionKey k = key;
+      if (k != null && k.isValid()) {
+        k.interestOps((pending > maxPending || inFlight.get() >= maxInFlight ? 0 : SelectionKey.OP_READ)
+            | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+      }
+    }
+
+    // Dispatch a complete frame, false if the connection got closed
+    private boolean received(final byte[] pFrame) {
+      byte kind = pFrame[0];
+      Runnable task;
+      if (kind == NioProtocol.HELLO && !helloReceived) {
+        helloReceived = true;
+        task = new Runnable() {
+          public void run() {
+            hello(pFrame);
+          }
+        };
+      } else if (kind == NioProtocol.REQUEST && authenticated) {
+        inFlight.incrementAndGet();
+        task = new Runnable() {
+          public void run() {
+            try {
+              request(pFrame);
+            } finally {
+              completed();
+            }
+          }
+        };
+      } else {
+        close(new IOException("Unexpected frame of kind " + kind));
+        return false;
+      }
+      try {
+        executor.execute(task);
+        return true;
+      } catch (RejectedExecutionException exp) {
+        close(null);
+        return false;
+      }
+    }
+
+    private void completed() {
+      if (inFlight.getAndDecrement() == maxInFlight) {
+        resumed.add(this);
+        selector.wakeup();
+      }
+    }
+
+    private void hello(byte[] pFrame) {
+      int id = NioProtocol.id(pFrame);
+      try {
+        // Nothing is deserialized before the client is authenticated
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(pFrame, null, false);
+        Object version = decoder.readValue();
+        if (!Integer.valueOf(NioProtocol.VERSION).equals(version)) {
+          throw new IOException("Unsupported protocol version " + version);
+        }
+        Object credentials = decoder.readValue();
+        if (authenticator != null) {
+          subject = authenticator.authenticate(credentials);
+        }
+        StringBuilder connection = new StringBuilder(NioProtocol.PROTOCOL).append("://");
+        Socket socket = channel.socket();
+        connection.append(socket.getInetAddress().getHostAddress()).append(':').append(socket.getPort());
+        if (subject != null) {
+          for (JMXPrincipal principal : subject.getPrincipals(JMXPrincipal.class)) {
+            connection.append(' ').append(principal.getName().replace(' ', '_'));
+          }
+        }
+        connectionId = connection.append(' ').append(connectionCounter.incrementAndGet()).toString();
+        server = getMBeanServer();
+        NioProtocol.Frame welcome = new NioProtocol.Frame(NioProtocol.WELCOME, id);
+        new BinaryCodec.Encoder(welcome).writeValue(connectionId);
+        authenticated = true;
+        send(welcome);
+        connectionOpened(connectionId, "Client connected", null);
+      } catch (Throwable exp) {
+        // Errors too, e.g. an OutOfMemoryError, so that the client is never left waiting
+        NioProtocol.Frame rejected = new NioProtocol.Frame(NioProtocol.EXCEPTION, id);
+        try {
+          new BinaryCodec.Encoder(rejected).writeValue(exp instanceof SecurityException ? new SecurityException(exp
+              .getMessage()) : new IOException(exp.toString()));
+          send(rejected);
+        } catch (IOException ignored) {
+          // closed below
+        }
+        close(null);
+      }
+    }
+
+    private void request(byte[] pFrame) {
+      int id = NioProtocol.id(pFrame);
+      NioProtocol.Frame response;
+      try {
+        BinaryCodec.Decoder decoder = new BinaryCodec.Decoder(pFrame, null, true);
+        final int operation = decoder.readByte();
+        final Object[] arguments = (Object[]) decoder.readValue();
+        Object result;
+        if (subject == null) {
+          result = execute(operation, arguments);
+        } else {
+          result = Subject.doAs(subject, new PrivilegedExceptionAction<Object>() {
+            public Object run() throws Exception {
+              return execute(operation, arguments);
+            }
+          });
+        }
+        response = new NioProtocol.Frame(NioProtocol.RESPONSE, id);
+        new BinaryCodec.Encoder(response).writeValue(result);
+      } catch (Exception exp) {
+        response = new NioProtocol.Frame(NioProtocol.EXCEPTION, id);
+        Throwable error = unwrap(exp);
+        try {
+          new BinaryCodec.Encoder(response).writeValue(error);
+        } catch (IOException notSerializable) {
+          response = new NioProtocol.Frame(NioProtocol.EXCEPTION, id);
+          try {
+            new BinaryCodec.Encoder(response).writeValue(new IOException(error.toString()));
+          } catch (IOException never) {
+            throw new IllegalStateException(never);
+          }
+        }
+      } catch (Throwable exp) {
+        // e.g. an OutOfMemoryError decoding the request, errors of the MBean
+        // arrive wrapped in an InvocationTargetException
+        close(exp);
+        return;
+      }
+      send(response);
+    }
+
+    private Object execute(int pOperation, Object[] pArguments) throws Exception {
+      if (pOperation == NioProtocol.ADD_LISTENER) {
+        Integer listenerId = Integer.valueOf(listenerCounter.incrementAndGet());
+        ObjectName name = (ObjectName) pArguments[0];
+        NotificationListener listener = new ClientListener(listenerId.intValue());
+        server.addNotificationListener(name, listener, (NotificationFilter) pArguments[1], null);
+        listeners.put(listenerId, new Registration(name, listener));
+        return listenerId;
+      } else if (pOperation == NioProtocol.REMOVE_LISTENERS) {
+        boolean found = false;
+        for (int listenerId : (int[]) pArguments[1]) {
+          Registration registration = listeners.remove(Integer.valueOf(listenerId));
+          if (registration != null) {
+            found = true;
+            server.removeNotificationListener(registration.name, registration.listener);
+          }
+        }
+        if (!found) {
+          throw new ListenerNotFoundException("Listener not registered");
+        }
+        return null;
+      }
+      Method method = NioProtocol.method(pOperation);
+      if (method == null) {
+        throw new IOException("Unknown operation " + pOperation);
+      }
+      return method.invoke(server, pArguments);
+    }
+
+    // Queue a notification, started by a task unless one is already sending.
+    // Not encoded on the thread sending the notification, which may be one of
+    // the application, and only one task at a time per connection, so that
+    // the client receives them in order as with the RMI connector.
+    private void queueNotification(int pListenerId, Notification pNotification) {
+      synchronized (notifications) {
+        notifications.add(new QueuedNotification(pListenerId, pNotification));
+        if (notifying) {
+          return;
+        }
+        notifying = true;
+      }
+      startNotifying();
+    }
+
+    private void startNotifying() {
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            sendNotifications();
+          }
+        });
+      } catch (RejectedExecutionException exp) {
+        synchronized (notifications) {
+          droppedNotifications.addAndGet(notifications.size());
+          notifications.clear();
+          notifying = false;
+        }
+      }
+    }
+
+    // Run by one task at a time
+    private void sendNotifications() {
+      for (int i = 0; i < NOTIFICATION_BATCH; i++) {
+        QueuedNotification next;
+        synchronized (notifications) {
+          next = notifications.poll();
+          if (next == null) {
+            notifying = false;
+            return;
+          }
+        }
+        NioProtocol.Frame frame = new NioProtocol.Frame(NioProtocol.NOTIFICATION, next.listenerId);
+        try {
+          new BinaryCodec.Encoder(frame).writeValue(next.notification);
+        } catch (IOException exp) {
+          droppedNotifications.incrementAndGet();
+          continue;
+        }
+        send(frame);
+      }
+      // Let the requests and notifications of the other connections run
+      startNotifying();
+    }
+
+    // Forwards the notifications of one listener of the client
+    private final class ClientListener implements NotificationListener {
+
+      private final int listenerId;
+
+      ClientListener(int pListenerId) {
+        listenerId = pListenerId;
+      }
+
+      public void handleNotification(Notification pNotification, Object pHandback) {
+        if (isCongested()) {
+          droppedNotifications.incrementAndGet();
+          return;
+        }
+        queueNotification(listenerId, pNotification);
+      }
+    }
+  }
+
+}
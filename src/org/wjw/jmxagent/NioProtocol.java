@@ -0,0 +1,181 @@
+package org.wjw.jmxagent;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationListener;
+
+/**
+ * Framing and operations of the <code>jmxnio</code> connector protocol, shared
+ * by {@link NioConnectorServer} and {@link NioConnector}.
+ *
+ * Every frame is a 32 bit length (of the rest of the frame), the kind, a 32 bit
+ * id and the payload encoded with {@link BinaryCodec}, all big-endian. The
+ * client starts with a {@link #HELLO} carrying the version and the
+ * credentials, which the server answers with a {@link #WELCOME} carrying the
+ * connection id or an {@link #EXCEPTION}. Afterwards the client sends
+ * {@link #REQUEST}s with ids of its choice, without waiting for the previous
+ * responses. The server executes them concurrently and answers each with a
+ * {@link #RESPONSE} or an {@link #EXCEPTION} with the same id, in any order.
+ * Notifications are pushed as {@link #NOTIFICATION} with the id of the
+ * listener.
+ *
+ * A request consists of the operation (an unsigned byte) and the arguments as
+ * an <code>Object[]</code>. The operations are the methods of
+ * <code>MBeanServerConnection</code> in the order of their signature, plus
+ * {@link #ADD_LISTENER} and {@link #REMOVE_LISTENERS} for client side
+ * listeners.
+ */
+final class NioProtocol {
+
+  static final String PROTOCOL = "jmxnio";
+
+  static final int VERSION = 1;
+
+  static final byte HELLO = 1;
+
+  static final byte WELCOME = 2;
+
+  static final byte REQUEST = 3;
+
+  static final byte RESPONSE = 4;
+
+  static final byte EXCEPTION = 5;
+
+  static final byte NOTIFICATION = 6;
+
+  // Bytes of the frame header after the length: kind and id
+  static final int HEADER_SIZE = 5;
+
+  /**
+   * Arguments: ObjectName, NotificationFilter. Result: the listener id.
+   */
+  static final int ADD_LISTENER = 250;
+
+  /**
+   * Arguments: ObjectName, int[] listener ids.
+   */
+  static final int REMOVE_LISTENERS = 251;
+
+  // Methods of MBeanServerConnection not taking a client side listener
+  private static final Method[] METHODS = methods();
+
+  private static final Map<Method, Integer> OPERATIONS = new HashMap<Method, Integer>();
+
+  static {
+    for (int i = 0; i < METHODS.length; i++) {
+      OPERATIONS.put(METHODS[i], Integer.valueOf(i));
+    }
+  }
+
+  private NioProtocol() {
+  }
+
+  /**
+   * @param pOperation operation of a request
+   * @return its method, or null for the listener operations and unknown ones
+   */
+  static Method method(int pOperation) {
+    return pOperation < METHODS.length ? METHODS[pOperation] : null;
+  }
+
+  /**
+   * @param pMethod method of <code>MBeanServerConnection</code>
+   * @return its operation, or -1 if it takes a client side listener
+   */
+  static int operation(Method pMethod) {
+    Integer op = OPERATIONS.get(pMethod);
+    return op != null ? op.intValue() : -1;
+  }
+
+  /**
+   * @param pFrame a received frame, without the length
+   * @return its id
+   */
+  static int id(byte[] pFrame) {
+    return ((pFrame[1] & 0xFF) << 24) | ((pFrame[2] & 0xFF) << 16) | ((pFrame[3] & 0xFF) << 8) | (pFrame[4] & 0xFF);
+  }
+
+  // ===================================================================================
+
+  private static Method[] methods() {
+    List<Method> ret = new ArrayList<Method>();
+    for (Method method : MBeanServerConnection.class.getMethods()) {
+      if (!Arrays.asList(method.getParameterTypes()).contains(NotificationListener.class)) {
+        ret.add(method);
+      }
+    }
+    // getMethods() has no defined order, but both sides must agree
+    Collections.sort(ret, new Comparator<Method>() {
+      public int compare(Method pFirst, Method pSecond) {
+        return signature(pFirst).compareTo(signature(pSecond));
+      }
+    });
+    if (ret.size() >= ADD_LISTENER) {
+      throw new IllegalStateException("Too many methods in MBeanServerConnection");
+    }
+    return ret.toArray(new Method[ret.size()]);
+  }
+
+  private static String signature(Method pMethod) {
+    StringBuilder ret = new StringBuilder(pMethod.getName()).append('(');
+    for (Class<?> type : pMethod.getParameterTypes()) {
+      ret.append(type.getName()).append(',');
+    }
+    return ret.append(')').toString();
+  }
+
+  /**
+   * A frame being written. The payload is written to the frame itself, e.g.
+   * with a {@link BinaryCodec.Encoder}.
+   */
+  static final class Frame extends ByteArrayOutputStream {
+
+    /**
+     * Start a frame
+     *
+     * @param pKind kind of the frame
+     * @param pId id of the request or listener
+     */
+    Frame(byte pKind, int pId) {
+      super(256);
+      count = 4;
+      write(pKind);
+      write(pId >>> 24);
+      write(pId >>> 16);
+      write(pId >>> 8);
+      write(pId);
+    }
+
+    /**
+     * Complete the frame by setting its length. Afterwards it is written with
+     * <code>writeTo()</code> or {@link #toBuffer()}.
+     */
+    Frame finish() {
+      int length = count - 4;
+      buf[0] = (byte) (length >>> 24);
+      buf[1] = (byte) (length >>> 16);
+      buf[2] = (byte) (length >>> 8);
+      buf[3] = (byte) length;
+      return this;
+    }
+
+    /**
+     * @return the finished frame, without copying it
+     */
+    ByteBuffer toBuffer() {
+      finish();
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+  }
+
+}
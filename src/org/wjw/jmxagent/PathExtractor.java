@@ -0,0 +1,109 @@
+package org.wjw.jmxagent;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Navigates into an attribute value along an inner path as parsed by
+ * {@link EscapeUtil#parsePath(String)}. E.g. the path <code>used</code>
+ * applied to the value of <code>HeapMemoryUsage</code> returns the used heap.
+ *
+ * <ul>
+ * <li><code>CompositeData</code> and <code>Map</code>s are navigated by key</li>
+ * <li><code>TabularData</code>, collections and arrays are navigated by their
+ * numeric index</li>
+ * </ul>
+ */
+final class PathExtractor {
+
+  private PathExtractor() {
+  }
+
+  /**
+   * Extract the value the given path points to
+   *
+   * @param pValue value to start from
+   * @param pPath path elements, can be null for no path
+   * @return the extracted value
+   * @throws IllegalArgumentException if the path can not be applied to the
+   *           value
+   */
+  static Object extract(Object pValue, List<String> pPath) {
+    Object value = pValue;
+    if (pPath != null) {
+      for (int i = 0; i < pPath.size(); i++) {
+        value = step(value, pPath.get(i));
+      }
+    }
+    return value;
+  }
+
+  // ===================================================================================
+
+  private static Object step(Object pValue, String pElement) {
+    if (pValue == null) {
+      throw new IllegalArgumentException("Cannot apply path element '" + pElement + "' to a null value");
+    }
+    if (pValue instanceof CompositeData) {
+      CompositeData cd = (CompositeData) pValue;
+      if (!cd.containsKey(pElement)) {
+        throw new IllegalArgumentException("No key '" + pElement + "' in composite data of type "
+            + cd.getCompositeType().getTypeName());
+      }
+      return cd.get(pElement);
+    }
+    if (pValue instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) pValue;
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        if (pElement.equals(String.valueOf(entry.getKey()))) {
+          return entry.getValue();
+        }
+      }
+      throw new IllegalArgumentException("No key '" + pElement + "' in map");
+    }
+    if (pValue instanceof TabularData) {
+      return elementAt(((TabularData) pValue).values(), pElement);
+    }
+    if (pValue instanceof Collection) {
+      return elementAt((Collection<?>) pValue, pElement);
+    }
+    if (pValue.getClass().isArray()) {
+      int idx = index(pElement, Array.getLength(pValue));
+      return Array.get(pValue, idx);
+    }
+    throw new IllegalArgumentException("Cannot apply path element '" + pElement + "' to a value of type "
+        + pValue.getClass().getName());
+  }
+
+  private static Object elementAt(Collection<?> pCollection, String pElement) {
+    int idx = index(pElement, pCollection.size());
+    if (pCollection instanceof List) {
+      return ((List<?>) pCollection).get(idx);
+    }
+    Iterator<?> it = pCollection.iterator();
+    for (int i = 0; i < idx; i++) {
+      it.next();
+    }
+    return it.next();
+  }
+
+  private static int index(String pElement, int pSize) {
+    int idx;
+    try {
+      idx = Integer.parseInt(pElement);
+    } catch (NumberFormatException exp) {
+      throw new IllegalArgumentException("Path element '" + pElement + "' is not a valid index");
+    }
+    if (idx < 0 || idx >= pSize) {
+      throw new IllegalArgumentException("Index " + idx + " out of range (size " + pSize + ")");
+    }
+    return idx;
+  }
+
+}
@@ -0,0 +1,303 @@
+package org.wjw.jmxagent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stack-sampling profiler for hosts where attaching a native profiler is not
+ * allowed. Every <code>profiler.interval</code> milliseconds the stacks of all
+ * runnable threads (of all threads with <code>profiler.allThreads=true</code>)
+ * are taken with <code>ThreadMXBean.getThreadInfo()</code>, in batches so that
+ * each safepoint stays short, and merged into a trie of frames.
+ *
+ * Frames are interned as <code>class.method</code>, so that a trie node is
+ * only an int frame id, child and sibling links and a sample count held in
+ * arrays. The trie never grows beyond <code>profiler.maxNodes</code> nodes;
+ * samples which would need more are counted as dropped. Stacks deeper than
+ * <code>profiler.depth</code> frames are cut and rooted at the frame
+ * <code>[truncated]</code>.
+ */
+final class Profiler implements ProfilerMXBean {
+
+  // Threads per getThreadInfo() call
+  private static final int BATCH_SIZE = 64;
+
+  private static final int ROOT = 0;
+
+  private static final int NONE = -1;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final int depth;
+
+  private final int maxNodes;
+
+  private final boolean allThreads;
+
+  private volatile long interval;
+
+  private volatile long lastSampleNanos;
+
+  private ScheduledExecutorService executor;
+
+  // The trie and the frames, guarded by this
+  private final Map<StackTraceElement, Integer> frameIds = new HashMap<StackTraceElement, Integer>();
+
+  private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+  private final List<String> frameNames = new ArrayList<String>();
+
+  private int truncatedFrame;
+
+  private int[] nodeFrames;
+
+  private int[] firstChilds;
+
+  private int[] nextSiblings;
+
+  private long[] counts;
+
+  private int nodes;
+
+  private long samples;
+
+  private long dropped;
+
+  /**
+   * Create the profiler from the <code>profiler.*</code> options
+   *
+   * @param pConfig agent configuration
+   */
+  Profiler(AgentConfig pConfig) {
+    interval = Math.max(1, pConfig.getLong("profiler.interval", 10));
+    depth = Math.max(1, pConfig.getInt("profiler.depth", 64));
+    maxNodes = Math.max(16, pConfig.getInt("profiler.maxNodes", 200000));
+    allThreads = pConfig.getBoolean("profiler.allThreads", false);
+    reset();
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Profiler"));
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sample();
+        } catch (RuntimeException exp) {
+          // Keep the schedule alive
+          exp.printStackTrace(System.err);
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public synchronized void reset() {
+    frameIds.clear();
+    nameIds.clear();
+    frameNames.clear();
+    truncatedFrame = intern("[truncated]");
+    int size = Math.min(1024, maxNodes);
+    nodeFrames = new int[size];
+    firstChilds = new int[size];
+    nextSiblings = new int[size];
+    counts = new long[size];
+    nodeFrames[ROOT] = NONE;
+    firstChilds[ROOT] = NONE;
+    nextSiblings[ROOT] = NONE;
+    nodes = 1;
+    samples = 0;
+    dropped = 0;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized String dump() {
+    StringBuilder ret = new StringBuilder();
+    appendStacks(ret, new StringBuilder(), ROOT);
+    return ret.toString();
+  }
+
+  /** {@inheritDoc} */
+  public synchronized boolean isRunning() {
+    return executor != null;
+  }
+
+  /** {@inheritDoc} */
+  public long getIntervalMillis() {
+    return interval;
+  }
+
+  /** {@inheritDoc} */
+  public void setIntervalMillis(long pInterval) {
+    if (pInterval < 1) {
+      throw new IllegalArgumentException("Interval must be at least 1 ms");
+    }
+    interval = pInterval;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getSamples() {
+    return samples;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getDroppedSamples() {
+    return dropped;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized int getNodes() {
+    return nodes;
+  }
+
+  /** {@inheritDoc} */
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized int getFrames() {
+    return frameNames.size();
+  }
+
+  /** {@inheritDoc} */
+  public long getLastSampleMicros() {
+    return lastSampleNanos / 1000;
+  }
+
+  // ===================================================================================
+
+  private void sample() {
+    long start = System.nanoTime();
+    long self = Thread.currentThread().getId();
+    long[] ids = threads.getAllThreadIds();
+    for (int from = 0; from < ids.length; from += BATCH_SIZE) {
+      ThreadInfo[] infos = threads.getThreadInfo(Arrays.copyOfRange(ids, from, Math.min(ids.length, from
+          + BATCH_SIZE)), depth);
+      synchronized (this) {
+        for (ThreadInfo info : infos) {
+          // null if the thread died in the meantime
+          if (info != null && info.getThreadId() != self
+              && (allThreads || info.getThreadState() == Thread.State.RUNNABLE)) {
+            add(info.getStackTrace());
+          }
+        }
+      }
+    }
+    lastSampleNanos = System.nanoTime() - start;
+  }
+
+  // Must hold the lock
+  private void add(StackTraceElement[] pStack) {
+    if (pStack.length == 0) {
+      return;
+    }
+    int node = ROOT;
+    if (pStack.length >= depth) {
+      node = child(node, truncatedFrame);
+    }
+    // The trie starts at the thread's entry point, which is the last element
+    for (int i = pStack.length - 1; i >= 0 && node != NONE; i--) {
+      int frame = frame(pStack[i]);
+      node = frame != NONE ? child(node, frame) : NONE;
+    }
+    if (node == NONE) {
+      dropped++;
+      return;
+    }
+    counts[node]++;
+    samples++;
+  }
+
+  private int frame(StackTraceElement pElement) {
+    Integer id = frameIds.get(pElement);
+    if (id != null) {
+      return id.intValue();
+    }
+    String name = pElement.getClassName() + "." + pElement.getMethodName();
+    if (!nameIds.containsKey(name) && frameNames.size() >= maxNodes) {
+      return NONE;
+    }
+    int frame = intern(name);
+    // Elements differing only in the line number map to the same frame
+    if (frameIds.size() < maxNodes) {
+      frameIds.put(pElement, Integer.valueOf(frame));
+    }
+    return frame;
+  }
+
+  private int intern(String pName) {
+    Integer id = nameIds.get(pName);
+    if (id == null) {
+      id = Integer.valueOf(frameNames.size());
+      frameNames.add(pName);
+      nameIds.put(pName, id);
+    }
+    return id.intValue();
+  }
+
+  // The child of a node for a frame, created if missing. NONE if the trie is full.
+  private int child(int pNode, int pFrame) {
+    for (int c = firstChilds[pNode]; c != NONE; c = nextSiblings[c]) {
+      if (nodeFrames[c] == pFrame) {
+        return c;
+      }
+    }
+    if (nodes >= maxNodes) {
+      return NONE;
+    }
+    if (nodes == nodeFrames.length) {
+      int size = (int) Math.min((long) nodes * 2, maxNodes);
+      nodeFrames = Arrays.copyOf(nodeFrames, size);
+      firstChilds = Arrays.copyOf(firstChilds, size);
+      nextSiblings = Arrays.copyOf(nextSiblings, size);
+      counts = Arrays.copyOf(counts, size);
+    }
+    int c = nodes++;
+    nodeFrames[c] = pFrame;
+    firstChilds[c] = NONE;
+    nextSiblings[c] = firstChilds[pNode];
+    counts[c] = 0;
+    firstChilds[pNode] = c;
+    return c;
+  }
+
+  // Append a line for every node below pNode with samples
+  private void appendStacks(StringBuilder pOut, StringBuilder pPath, int pNode) {
+    int length = pPath.length();
+    if (pNode != ROOT) {
+      if (length > 0) {
+        pPath.append(';');
+      }
+      pPath.append(frameNames.get(nodeFrames[pNode]));
+      if (counts[pNode] > 0) {
+        pOut.append(pPath).append(' ').append(counts[pNode]).append('\n');
+      }
+    }
+    for (int c = firstChilds[pNode]; c != NONE; c = nextSiblings[c]) {
+      appendStacks(pOut, pPath, c);
+    }
+    pPath.setLength(length);
+  }
+
+}
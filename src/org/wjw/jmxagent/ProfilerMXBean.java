@@ -0,0 +1,80 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the stack-sampling profiler, registered as
+ * <code>org.wjw.jmxagent:type=Profiler</code>.
+ */
+public interface ProfilerMXBean {
+
+  /**
+   * Start sampling, keeping the samples taken so far
+   */
+  void start();
+
+  /**
+   * Stop sampling. The samples are kept until {@link #reset()}.
+   */
+  void stop();
+
+  /**
+   * Forget all samples
+   */
+  void reset();
+
+  /**
+   * Get the samples in the collapsed stack format understood by flame graph
+   * tools: one line per distinct stack with its frames from the thread's entry
+   * point to the sampled method, separated by <code>;</code>, followed by a
+   * space and the number of samples.
+   *
+   * @return collapsed stacks
+   */
+  String dump();
+
+  /**
+   * @return true while sampling
+   */
+  boolean isRunning();
+
+  /**
+   * @return time between two samples in milliseconds
+   */
+  long getIntervalMillis();
+
+  /**
+   * @param pInterval time between two samples in milliseconds, effective with
+   *          the next {@link #start()}
+   */
+  void setIntervalMillis(long pInterval);
+
+  /**
+   * @return number of stacks sampled
+   */
+  long getSamples();
+
+  /**
+   * @return number of stacks dropped because the trie reached its maximum size
+   */
+  long getDroppedSamples();
+
+  /**
+   * @return number of nodes in the trie of sampled stacks
+   */
+  int getNodes();
+
+  /**
+   * @return maximum number of nodes in the trie
+   */
+  int getMaxNodes();
+
+  /**
+   * @return number of distinct frames
+   */
+  int getFrames();
+
+  /**
+   * @return duration of the last sampling run in microseconds
+   */
+  long getLastSampleMicros();
+
+}
@@ -0,0 +1,508 @@
+package org.wjw.jmxagent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the MBeans of the MBeanServer in the Prometheus text exposition
+ * format at <code>/metrics</code>, mapped according to the configured
+ * {@link MetricRule}s.
+ *
+ * The response is streamed: MBeans are processed in groups which share the
+ * same metric families (e.g. all memory pools), so that only one group's
+ * values are held in memory at a time. The result of applying the rules to an
+ * ObjectName (metric names and rendered labels) is cached until the MBean is
+ * unregistered. The groups and the order of each group's series are kept
+ * until an MBean is registered or unregistered respectively the series
+ * change, so a steady state scrape neither queries, sorts nor builds names,
+ * and allocates little besides what <code>getAttributes</code> returns.
+ */
+final class PrometheusHandler implements HttpHandler, NotificationListener {
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final MBeanServer server;
+
+  private final List<MetricRule> rules;
+
+  private final ConcurrentMap<ObjectName, Mapping> mappings = new ConcurrentHashMap<ObjectName, Mapping>();
+
+  // Incremented on every registration and unregistration
+  private final AtomicLong generation = new AtomicLong();
+
+  // The groups of the last scrape, null before the first one
+  private volatile Plan plan;
+
+  PrometheusHandler(MBeanServer pServer, List<MetricRule> pRules) throws Exception {
+    server = pServer;
+    rules = pRules;
+    NotificationFilterSupport filter = new NotificationFilterSupport();
+    filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+    filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+    server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+  }
+
+  /**
+   * Stop listening for unregistrations
+   */
+  void close() {
+    try {
+      server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+    } catch (Exception e) {
+      // Already gone
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void handleNotification(Notification pNotification, Object pHandback) {
+    if (pNotification instanceof MBeanServerNotification) {
+      generation.incrementAndGet();
+      if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(pNotification.getType())) {
+        mappings.remove(((MBeanServerNotification) pNotification).getMBeanName());
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void handle(HttpExchange pExchange) throws IOException {
+    try {
+      if (!"GET".equals(pExchange.getRequestMethod())) {
+        pExchange.getResponseHeaders().set("Allow", "GET");
+        pExchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      pExchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      pExchange.sendResponseHeaders(200, 0);
+      Writer out = new BufferedWriter(new OutputStreamWriter(pExchange.getResponseBody(), "UTF-8"), 16384);
+      write(out);
+      out.flush();
+    } finally {
+      pExchange.close();
+    }
+  }
+
+  /**
+   * Write all metrics
+   *
+   * @param pOut writer to write to
+   */
+  void write(Writer pOut) throws IOException {
+    Scratch scratch = new Scratch();
+    for (Group group : plan().groups) {
+      writeGroup(pOut, group, scratch);
+    }
+  }
+
+  // ===================================================================================
+
+  // The groups of all MBeans, queried again only after MBeans were
+  // registered or unregistered
+  private Plan plan() {
+    Plan current = plan;
+    long gen = generation.get();
+    if (current != null && current.generation == gen) {
+      return current;
+    }
+    boolean complete = true;
+    List<Group> groups = new ArrayList<Group>();
+    Set<ObjectName> claimed = rules.size() > 1 ? new HashSet<ObjectName>() : null;
+    for (MetricRule rule : rules) {
+      Map<String, List<Mapping>> byGroup = new LinkedHashMap<String, List<Mapping>>();
+      for (ObjectName name : new TreeSet<ObjectName>(server.queryNames(rule.pattern, null))) {
+        if (claimed != null && !claimed.add(name)) {
+          continue;
+        }
+        Mapping mapping = mapping(name, rule);
+        if (mapping == null) {
+          // Tried again by the next scrape
+          complete = false;
+          continue;
+        }
+        if (mapping.rule != rule) {
+          continue;
+        }
+        List<Mapping> group = byGroup.get(mapping.group);
+        if (group == null) {
+          group = new ArrayList<Mapping>();
+          byGroup.put(mapping.group, group);
+        }
+        group.add(mapping);
+      }
+      for (List<Mapping> group : byGroup.values()) {
+        groups.add(new Group(rule, group.toArray(new Mapping[group.size()])));
+      }
+    }
+    current = new Plan(complete ? gen : -1, groups.toArray(new Group[groups.size()]));
+    plan = current;
+    return current;
+  }
+
+  private void writeGroup(Writer pOut, Group pGroup, Scratch pScratch) throws IOException {
+    int count = 0;
+    for (Mapping mapping : pGroup.mappings) {
+      if (mapping.attributes.length == 0) {
+        continue;
+      }
+      AttributeList attrs;
+      try {
+        attrs = server.getAttributes(mapping.name, mapping.attributes);
+      } catch (Exception exp) {
+        // Unregistered in the meantime or broken MBean: skip it
+        continue;
+      }
+      for (int a = 0; a < attrs.size(); a++) {
+        Attribute attr = (Attribute) attrs.get(a);
+        Object value = attr.getValue();
+        if (value instanceof CompositeData) {
+          CompositeData cd = (CompositeData) value;
+          CompositeSeries composite = mapping.composite(attr.getName(), cd.getCompositeType());
+          for (int k = 0; k < composite.keys.length; k++) {
+            Object item = cd.get(composite.keys[k]);
+            if (item instanceof Number || item instanceof Boolean) {
+              pScratch.set(count++, composite.series[k], item);
+            }
+          }
+        } else if (value instanceof Number || value instanceof Boolean) {
+          pScratch.set(count++, mapping.series(attr.getName(), null), value);
+        }
+      }
+    }
+
+    // Every family is written as one block, in the order of the last scrape
+    // unless the series changed
+    Layout layout = pGroup.layout;
+    if (layout == null || !layout.matches(pScratch.series, count)) {
+      layout = new Layout(pScratch.series, count);
+      pGroup.layout = layout;
+    }
+    String family = null;
+    for (int idx : layout.order) {
+      Series s = layout.series[idx];
+      if (!s.family.equals(family)) {
+        family = s.family;
+        pOut.write("# TYPE ");
+        pOut.write(family);
+        pOut.write(' ');
+        pOut.write(pGroup.rule.type);
+        pOut.write('\n');
+      }
+      pOut.write(family);
+      pOut.write(s.labels);
+      pOut.write(' ');
+      writeNumber(pOut, pScratch.values[idx], pScratch.numBuf);
+      pOut.write('\n');
+    }
+  }
+
+  private Mapping mapping(ObjectName pName, MetricRule pRule) {
+    Mapping mapping = mappings.get(pName);
+    if (mapping == null) {
+      try {
+        mapping = new Mapping(pName, pRule, pRule.attributes != null ? pRule.attributes : exportableAttributes(pName));
+      } catch (Exception exp) {
+        return null;
+      }
+      Mapping other = mappings.putIfAbsent(pName, mapping);
+      if (other != null) {
+        mapping = other;
+      }
+    }
+    return mapping;
+  }
+
+  private String[] exportableAttributes(ObjectName pName) throws Exception {
+    List<String> ret = new ArrayList<String>();
+    for (MBeanAttributeInfo info : server.getMBeanInfo(pName).getAttributes()) {
+      if (info.isReadable() && isExportable(info.getType())) {
+        ret.add(info.getName());
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  private static boolean isExportable(String pType) {
+    return "long".equals(pType) || "int".equals(pType) || "double".equals(pType) || "float".equals(pType)
+        || "short".equals(pType) || "byte".equals(pType) || "boolean".equals(pType)
+        || "java.lang.Long".equals(pType) || "java.lang.Integer".equals(pType)
+        || "java.lang.Double".equals(pType) || "java.lang.Float".equals(pType)
+        || "java.lang.Short".equals(pType) || "java.lang.Byte".equals(pType)
+        || "java.lang.Boolean".equals(pType) || CompositeData.class.getName().equals(pType);
+  }
+
+  private static void writeNumber(Writer pOut, Object pValue, char[] pBuf) throws IOException {
+    if (pValue instanceof Boolean) {
+      pOut.write(((Boolean) pValue).booleanValue() ? '1' : '0');
+    } else if (pValue instanceof Long || pValue instanceof Integer || pValue instanceof Short
+        || pValue instanceof Byte) {
+      writeLong(pOut, ((Number) pValue).longValue(), pBuf);
+    } else {
+      double d = ((Number) pValue).doubleValue();
+      if (Double.isNaN(d)) {
+        pOut.write("NaN");
+      } else if (Double.isInfinite(d)) {
+        pOut.write(d > 0 ? "+Inf" : "-Inf");
+      } else {
+        pOut.write(Double.toString(d));
+      }
+    }
+  }
+
+  // Format a long without creating a String
+  private static void writeLong(Writer pOut, long pValue, char[] pBuf) throws IOException {
+    if (pValue == Long.MIN_VALUE) {
+      pOut.write(Long.toString(pValue));
+      return;
+    }
+    long v = pValue < 0 ? -pValue : pValue;
+    int pos = pBuf.length;
+    do {
+      pBuf[--pos] = (char) ('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+    if (pValue < 0) {
+      pBuf[--pos] = '-';
+    }
+    pOut.write(pBuf, pos, pBuf.length - pos);
+  }
+
+  // The result of applying a rule to an MBean
+  private static final class Mapping {
+
+    final ObjectName name;
+
+    final MetricRule rule;
+
+    final String[] attributes;
+
+    // Expanded name template, also used as grouping key
+    final String group;
+
+    final String labels;
+
+    // attribute -> composite key ("" for simple values) -> series
+    private final ConcurrentMap<String, ConcurrentMap<String, Series>> series = new ConcurrentHashMap<String, ConcurrentMap<String, Series>>();
+
+    // attribute -> keys and series of its last CompositeType
+    private final ConcurrentMap<String, CompositeSeries> composites = new ConcurrentHashMap<String, CompositeSeries>();
+
+    Mapping(ObjectName pName, MetricRule pRule, String[] pAttributes) {
+      name = pName;
+      rule = pRule;
+      attributes = pAttributes;
+      group = pRule.id + "|" + pRule.expandForMBean(pName);
+      labels = renderLabels(pName, pRule);
+    }
+
+    Series series(String pAttribute, String pKey) {
+      ConcurrentMap<String, Series> byKey = series.get(pAttribute);
+      if (byKey == null) {
+        byKey = new ConcurrentHashMap<String, Series>(4);
+        ConcurrentMap<String, Series> other = series.putIfAbsent(pAttribute, byKey);
+        if (other != null) {
+          byKey = other;
+        }
+      }
+      String key = pKey != null ? pKey : "";
+      Series s = byKey.get(key);
+      if (s == null) {
+        s = new Series(MetricRule.metricName(group.substring(rule.id.length() + 1), pAttribute, pKey), labels);
+        byKey.put(key, s);
+      }
+      return s;
+    }
+
+    CompositeSeries composite(String pAttribute, CompositeType pType) {
+      CompositeSeries ret = composites.get(pAttribute);
+      if (ret == null || (ret.type != pType && !ret.type.equals(pType))) {
+        Set<String> keySet = pType.keySet();
+        String[] keys = keySet.toArray(new String[keySet.size()]);
+        Series[] keySeries = new Series[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          keySeries[i] = series(pAttribute, keys[i]);
+        }
+        ret = new CompositeSeries(pType, keys, keySeries);
+        composites.put(pAttribute, ret);
+      }
+      return ret;
+    }
+
+    private static String renderLabels(ObjectName pName, MetricRule pRule) {
+      StringBuilder buf = new StringBuilder();
+      Iterable<String> keys = pRule.labels != null ? Arrays.asList(pRule.labels) : new TreeSet<String>(pName
+          .getKeyPropertyList().keySet());
+      for (String key : keys) {
+        String value = pName.getKeyProperty(key);
+        if (value == null || (pRule.labels == null && pRule.usesProperty(key))) {
+          continue;
+        }
+        if (value.startsWith("\"")) {
+          value = ObjectName.unquote(value);
+        }
+        buf.append(buf.length() == 0 ? '{' : ',');
+        for (int i = 0; i < key.length(); i++) {
+          char c = key.charAt(i);
+          buf.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c >= '0' && c <= '9' && i > 0) ? c
+              : '_');
+        }
+        buf.append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+          char c = value.charAt(i);
+          if (c == '\\' || c == '"') {
+            buf.append('\\').append(c);
+          } else if (c == '\n') {
+            buf.append("\\n");
+          } else {
+            buf.append(c);
+          }
+        }
+        buf.append('"');
+      }
+      if (buf.length() > 0) {
+        buf.append('}');
+      }
+      return buf.toString();
+    }
+  }
+
+  // A single time series: metric family name and rendered labels
+  private static final class Series {
+
+    final String family;
+
+    final String labels;
+
+    Series(String pFamily, String pLabels) {
+      family = pFamily;
+      labels = pLabels;
+    }
+  }
+
+  // The series of the items of a CompositeData attribute
+  private static final class CompositeSeries {
+
+    final CompositeType type;
+
+    final String[] keys;
+
+    final Series[] series;
+
+    CompositeSeries(CompositeType pType, String[] pKeys, Series[] pSeries) {
+      type = pType;
+      keys = pKeys;
+      series = pSeries;
+    }
+  }
+
+  // The groups of all rules, valid while the generation is unchanged
+  private static final class Plan {
+
+    final long generation;
+
+    final Group[] groups;
+
+    Plan(long pGeneration, Group[] pGroups) {
+      generation = pGeneration;
+      groups = pGroups;
+    }
+  }
+
+  // MBeans sharing the same metric families
+  private static final class Group {
+
+    final MetricRule rule;
+
+    final Mapping[] mappings;
+
+    // Replaced when the series read change
+    volatile Layout layout;
+
+    Group(MetricRule pRule, Mapping[] pMappings) {
+      rule = pRule;
+      mappings = pMappings;
+    }
+  }
+
+  // The series of a group in the order read, and the order to write them in
+  private static final class Layout {
+
+    final Series[] series;
+
+    // Indexes into series, stably sorted by family
+    final int[] order;
+
+    Layout(Series[] pSeries, int pCount) {
+      series = Arrays.copyOf(pSeries, pCount);
+      order = new int[pCount];
+      // Insertion sort, which is stable and only runs when the series change
+      for (int i = 0; i < pCount; i++) {
+        int j = i;
+        while (j > 0 && series[order[j - 1]].family.compareTo(series[i].family) > 0) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = i;
+      }
+    }
+
+    boolean matches(Series[] pSeries, int pCount) {
+      if (pCount != series.length) {
+        return false;
+      }
+      for (int i = 0; i < pCount; i++) {
+        if (pSeries[i] != series[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  // The series and values of the group being written, reused for all groups of a scrape
+  private static final class Scratch {
+
+    final char[] numBuf = new char[20];
+
+    Series[] series = new Series[64];
+
+    Object[] values = new Object[64];
+
+    void set(int pIndex, Series pSeries, Object pValue) {
+      if (pIndex == series.length) {
+        series = Arrays.copyOf(series, pIndex * 2);
+        values = Arrays.copyOf(values, pIndex * 2);
+      }
+      series[pIndex] = pSeries;
+      values[pIndex] = pValue;
+    }
+  }
+
+}
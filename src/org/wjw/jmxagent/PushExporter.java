@@ -0,0 +1,565 @@
+package org.wjw.jmxagent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+
+/**
+ * Pushes numeric attributes as StatsD gauges or Influx line protocol to
+ * <code>udp://host:port</code>, <code>tcp://host:port</code> or a rotating
+ * file <code>file:path</code>, for environments where nobody may connect to
+ * the JVM.
+ *
+ * Every <code>push.interval</code> milliseconds the
+ * <code>push.value.&lt;name&gt;</code> series (see {@link AttributeSeries})
+ * are read and formatted, one line per value, into a fixed set of
+ * <code>push.buffers</code> direct buffers of <code>push.flushSize</code>
+ * bytes. A buffer is handed to the sender thread when it is full or after
+ * <code>push.flushInterval</code> milliseconds; with UDP each buffer is one
+ * datagram. Formatting allocates nothing, so the exporter needs the same
+ * memory however long it runs. If the target is slower than the JVM produces
+ * lines, all buffers eventually wait to be sent: then the oldest one is
+ * dropped and its lines are counted as dropped.
+ */
+final class PushExporter implements PushExporterMXBean {
+
+  // Longest number written by putNumber()
+  private static final int MAX_NUMBER = 32;
+
+  private static final String UTF8 = "UTF-8";
+
+  private final MBeanServer server;
+
+  private final String target;
+
+  private final boolean influx;
+
+  private final long interval;
+
+  private final long flushInterval;
+
+  private final AttributeSeries series;
+
+  private final double[] current;
+
+  // Per value: the bytes before and after the number
+  private final byte[][] prefixes;
+
+  private final byte[] suffix;
+
+  private final Sink sink;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock
+  private final ArrayDeque<Batch> free = new ArrayDeque<Batch>();
+
+  private final ArrayDeque<Batch> pending = new ArrayDeque<Batch>();
+
+  private Batch filling;
+
+  private boolean running;
+
+  private final AtomicLong linesSent = new AtomicLong();
+
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  private final AtomicLong linesDropped = new AtomicLong();
+
+  private final AtomicLong sendFailures = new AtomicLong();
+
+  // Digits of a number, only used by the collecting thread
+  private final byte[] digits = new byte[20];
+
+  private ScheduledExecutorService executor;
+
+  private Thread sender;
+
+  /**
+   * Create the exporter from the <code>push.*</code> options
+   *
+   * @param pConfig agent configuration
+   * @param pServer MBeanServer to read from
+   */
+  PushExporter(AgentConfig pConfig, MBeanServer pServer) throws IOException {
+    server = pServer;
+    target = pConfig.get("push");
+    String format = pConfig.get("push.format", "influx");
+    if (!"influx".equals(format) && !"statsd".equals(format)) {
+      throw new IllegalArgumentException("Unknown push.format '" + format + "', expected influx or statsd");
+    }
+    influx = "influx".equals(format);
+    interval = Math.max(1, pConfig.getLong("push.interval", 10000));
+    flushInterval = Math.max(1, pConfig.getLong("push.flushInterval", 1000));
+    series = new AttributeSeries(new TreeMap<String, String>(pConfig.withPrefix("push.value.")), "push value");
+    current = new double[series.size()];
+
+    String prefix = pConfig.get("push.prefix", "jmx");
+    String[] names = series.getNames();
+    String tags = influx ? ",host=" + escape(InetAddress.getLocalHost().getHostName(), ",= ") + ",pid="
+        + CountersFile.pid() : null;
+    prefixes = new byte[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      if (influx) {
+        // measurement,host=...,pid=... name=
+        prefixes[i] = (escape(prefix, ", ") + tags + " " + escape(names[i], ",= ") + "=").getBytes(UTF8);
+      } else {
+        // prefix.name:
+        prefixes[i] = ((prefix.length() > 0 ? prefix + "." : "") + statsdName(names[i]) + ":").getBytes(UTF8);
+      }
+    }
+    suffix = influx ? "000000\n".getBytes(UTF8) : "|g\n".getBytes(UTF8);
+
+    int flushSize = Math.max(64, pConfig.getInt("push.flushSize", 1400));
+    int buffers = Math.max(2, pConfig.getInt("push.buffers", 64));
+    for (int i = 0; i < buffers; i++) {
+      free.add(new Batch(flushSize));
+    }
+    sink = createSink(target, pConfig);
+  }
+
+  /**
+   * Start collecting and sending
+   */
+  void start() {
+    synchronized (lock) {
+      running = true;
+    }
+    sender = new DaemonThreadFactory("JmxAgent Push").newThread(new Runnable() {
+      public void run() {
+        send();
+      }
+    });
+    sender.start();
+    executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Push Collector"));
+    executor.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        try {
+          collect();
+        } catch (RuntimeException exp) {
+          // Keep the schedule alive
+          exp.printStackTrace(System.err);
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop collecting, send what is buffered and close the target
+   */
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (lock) {
+      running = false;
+      lock.notifyAll();
+    }
+    if (sender != null) {
+      try {
+        sender.join(5000);
+      } catch (InterruptedException exp) {
+        Thread.currentThread().interrupt();
+      }
+      sender.interrupt();
+    }
+    sink.close();
+  }
+
+  /**
+   * @return number of pushed values
+   */
+  int size() {
+    return current.length;
+  }
+
+  /** {@inheritDoc} */
+  public String getTarget() {
+    return target;
+  }
+
+  /** {@inheritDoc} */
+  public String getFormat() {
+    return influx ? "influx" : "statsd";
+  }
+
+  /** {@inheritDoc} */
+  public long getLinesSent() {
+    return linesSent.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getLinesDropped() {
+    return linesDropped.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getSendFailures() {
+    return sendFailures.get();
+  }
+
+  /** {@inheritDoc} */
+  public int getPendingBuffers() {
+    synchronized (lock) {
+      return pending.size();
+    }
+  }
+
+  // ===================================================================================
+
+  // Only called by the collector thread
+  private void collect() {
+    series.read(server, current);
+    long now = System.currentTimeMillis();
+    synchronized (lock) {
+      for (int i = 0; i < current.length; i++) {
+        double value = current[i];
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          continue;
+        }
+        // A negative StatsD gauge is a decrement, so set it to 0 first
+        boolean reset = !influx && value < 0;
+        int length = (reset ? 2 : 1) * (prefixes[i].length + MAX_NUMBER + suffix.length) + (influx ? 20 : 0);
+        Batch batch = writable(length, now);
+        if (batch == null) {
+          linesDropped.incrementAndGet();
+          continue;
+        }
+        ByteBuffer buf = batch.buffer;
+        if (reset) {
+          buf.put(prefixes[i]).put((byte) '0').put(suffix);
+          batch.lines++;
+        }
+        buf.put(prefixes[i]);
+        putNumber(buf, value);
+        if (influx) {
+          buf.put((byte) ' ');
+          putLong(buf, now);
+        }
+        buf.put(suffix);
+        batch.lines++;
+      }
+      if (!pending.isEmpty()) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  // The batch to write a line of at most the given length to, null if it can never fit
+  private Batch writable(int pLength, long pNow) {
+    if (filling != null && filling.buffer.remaining() < pLength) {
+      pending.add(filling);
+      filling = null;
+    }
+    if (filling == null) {
+      if (free.isEmpty()) {
+        // The target can not keep up: drop the oldest lines
+        Batch oldest = pending.poll();
+        linesDropped.addAndGet(oldest.lines);
+        oldest.clear();
+        free.add(oldest);
+      }
+      filling = free.poll();
+      filling.started = pNow;
+    }
+    return filling.buffer.remaining() >= pLength ? filling : null;
+  }
+
+  // Run by the sender thread until stopped
+  private void send() {
+    while (true) {
+      Batch batch;
+      synchronized (lock) {
+        while (pending.isEmpty()) {
+          long wait = filling != null && filling.lines > 0 ? filling.started + flushInterval
+              - System.currentTimeMillis() : flushInterval;
+          if (wait <= 0 || (!running && filling != null && filling.lines > 0)) {
+            pending.add(filling);
+            filling = null;
+          } else if (!running) {
+            return;
+          } else {
+            try {
+              lock.wait(wait);
+            } catch (InterruptedException exp) {
+              return;
+            }
+          }
+        }
+        batch = pending.poll();
+      }
+      ByteBuffer buf = batch.buffer;
+      buf.flip();
+      int bytes = buf.remaining();
+      try {
+        sink.send(buf);
+        linesSent.addAndGet(batch.lines);
+        bytesSent.addAndGet(bytes);
+      } catch (IOException exp) {
+        if (sendFailures.getAndIncrement() == 0) {
+          System.err.println("JmxAgent: Cannot push to " + target + ": " + exp);
+        }
+        linesDropped.addAndGet(batch.lines);
+      }
+      synchronized (lock) {
+        batch.clear();
+        free.add(batch);
+      }
+    }
+  }
+
+  // Write a number without allocating for all but huge and tiny values
+  private void putNumber(ByteBuffer pBuf, double pValue) {
+    double abs = Math.abs(pValue);
+    if (abs >= 1e15 || (abs < 1e-3 && abs != 0)) {
+      try {
+        pBuf.put(Double.toString(pValue).getBytes(UTF8));
+      } catch (IOException exp) {
+        // UTF-8 is always supported
+        throw new IllegalStateException(exp.getMessage(), exp);
+      }
+      return;
+    }
+    // Scaling the whole value to millionths would overflow a long from
+    // about 9.2e12 on and lose digits long before, so only scale the fraction
+    long whole = (long) abs;
+    int fraction = (int) Math.round((abs - whole) * 1000000);
+    if (fraction == 1000000) {
+      whole++;
+      fraction = 0;
+    }
+    if (pValue < 0) {
+      pBuf.put((byte) '-');
+    }
+    putLong(pBuf, whole);
+    if (fraction != 0) {
+      pBuf.put((byte) '.');
+      int divisor = 100000;
+      while (fraction != 0) {
+        pBuf.put((byte) ('0' + fraction / divisor));
+        fraction %= divisor;
+        divisor /= 10;
+      }
+    }
+  }
+
+  private void putLong(ByteBuffer pBuf, long pValue) {
+    long value = pValue;
+    int pos = digits.length;
+    do {
+      digits[--pos] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    pBuf.put(digits, pos, digits.length - pos);
+  }
+
+  private static String escape(String pValue, String pSpecial) {
+    StringBuilder ret = new StringBuilder(pValue.length());
+    for (int i = 0; i < pValue.length(); i++) {
+      char c = pValue.charAt(i);
+      if (pSpecial.indexOf(c) >= 0) {
+        ret.append('\\');
+      }
+      ret.append(c);
+    }
+    return ret.toString();
+  }
+
+  // StatsD can not escape, so replace its separators
+  private static String statsdName(String pName) {
+    return pName.replace(':', '_').replace('|', '_').replace('@', '_').replace('\n', '_');
+  }
+
+  private static Sink createSink(String pTarget, AgentConfig pConfig) throws IOException {
+    if (pTarget.startsWith("file:")) {
+      return new FileSink(new File(pTarget.substring("file:".length())), pConfig.getLong("push.file.maxSize",
+          10 * 1024 * 1024), Math.max(1, pConfig.getInt("push.file.count", 5)));
+    }
+    int scheme = pTarget.indexOf("://");
+    int colon = pTarget.lastIndexOf(':');
+    if (scheme < 0 || colon <= scheme) {
+      throw new IllegalArgumentException("Invalid push target '" + pTarget
+          + "', expected udp://host:port, tcp://host:port or file:path");
+    }
+    InetSocketAddress address = new InetSocketAddress(pTarget.substring(scheme + 3, colon), Integer.parseInt(pTarget
+        .substring(colon + 1)));
+    if (pTarget.startsWith("udp://")) {
+      return new UdpSink(address);
+    } else if (pTarget.startsWith("tcp://")) {
+      return new TcpSink(address);
+    }
+    throw new IllegalArgumentException("Invalid push target '" + pTarget
+        + "', expected udp://host:port, tcp://host:port or file:path");
+  }
+
+  // A preallocated buffer of lines
+  private static final class Batch {
+
+    final ByteBuffer buffer;
+
+    int lines;
+
+    long started;
+
+    Batch(int pSize) {
+      buffer = ByteBuffer.allocateDirect(pSize);
+    }
+
+    void clear() {
+      buffer.clear();
+      lines = 0;
+    }
+  }
+
+  // Where the buffers go, only used by the sender thread
+  private abstract static class Sink {
+
+    abstract void send(ByteBuffer pBuffer) throws IOException;
+
+    abstract void close();
+  }
+
+  // One datagram per buffer
+  private static final class UdpSink extends Sink {
+
+    private final DatagramChannel channel;
+
+    UdpSink(InetSocketAddress pAddress) throws IOException {
+      channel = DatagramChannel.open();
+      channel.connect(pAddress);
+    }
+
+    void send(ByteBuffer pBuffer) throws IOException {
+      channel.write(pBuffer);
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException exp) {
+        // closing anyway
+      }
+    }
+  }
+
+  // Connects on first use and again after a failure
+  private static final class TcpSink extends Sink {
+
+    private final InetSocketAddress address;
+
+    private SocketChannel channel;
+
+    TcpSink(InetSocketAddress pAddress) {
+      address = pAddress;
+    }
+
+    void send(ByteBuffer pBuffer) throws IOException {
+      try {
+        if (channel == null) {
+          channel = SocketChannel.open();
+          channel.socket().connect(address, 5000);
+        }
+        while (pBuffer.hasRemaining()) {
+          channel.write(pBuffer);
+        }
+      } catch (IOException exp) {
+        close();
+        throw exp;
+      }
+    }
+
+    void close() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException exp) {
+          // closing anyway
+        }
+        channel = null;
+      }
+    }
+  }
+
+  // Appends to a file, which is renamed to file.1 (file.1 to file.2 ...) when it gets too large
+  private static final class FileSink extends Sink {
+
+    private final File file;
+
+    private final long maxSize;
+
+    private final int count;
+
+    private FileChannel channel;
+
+    FileSink(File pFile, long pMaxSize, int pCount) {
+      file = pFile;
+      maxSize = pMaxSize;
+      count = pCount;
+    }
+
+    void send(ByteBuffer pBuffer) throws IOException {
+      if (channel != null && channel.size() > 0 && channel.size() + pBuffer.remaining() > maxSize) {
+        close();
+        rotate();
+      }
+      if (channel == null) {
+        channel = new FileOutputStream(file, true).getChannel();
+      }
+      while (pBuffer.hasRemaining()) {
+        channel.write(pBuffer);
+      }
+    }
+
+    void close() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException exp) {
+          // closing anyway
+        }
+        channel = null;
+      }
+    }
+
+    private void rotate() throws IOException {
+      File oldest = new File(file.getPath() + "." + count);
+      if (oldest.exists() && !oldest.delete()) {
+        throw new IOException("Cannot delete " + oldest);
+      }
+      for (int i = count - 1; i >= 1; i--) {
+        File f = new File(file.getPath() + "." + i);
+        if (f.exists() && !f.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+          throw new IOException("Cannot rename " + f);
+        }
+      }
+      if (!file.renameTo(new File(file.getPath() + ".1"))) {
+        throw new IOException("Cannot rename " + file);
+      }
+    }
+  }
+
+}
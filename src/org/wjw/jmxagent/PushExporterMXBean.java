@@ -0,0 +1,45 @@
+package org.wjw.jmxagent;
+
+/**
+ * Statistics of the push exporter, registered as
+ * <code>org.wjw.jmxagent:type=PushExporter</code>.
+ */
+public interface PushExporterMXBean {
+
+  /**
+   * @return where the lines are sent to, as given with <code>push</code>
+   */
+  String getTarget();
+
+  /**
+   * @return <code>statsd</code> or <code>influx</code>
+   */
+  String getFormat();
+
+  /**
+   * @return number of lines sent or written
+   */
+  long getLinesSent();
+
+  /**
+   * @return number of bytes sent or written
+   */
+  long getBytesSent();
+
+  /**
+   * @return number of lines dropped because all buffers were pending or
+   *         sending them failed
+   */
+  long getLinesDropped();
+
+  /**
+   * @return number of buffers which could not be sent
+   */
+  long getSendFailures();
+
+  /**
+   * @return number of full buffers waiting to be sent
+   */
+  int getPendingBuffers();
+
+}
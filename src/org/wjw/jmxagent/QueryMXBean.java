@@ -0,0 +1,36 @@
+package org.wjw.jmxagent;
+
+/**
+ * Paginated queries, registered as <code>org.wjw.jmxagent:type=Query</code>.
+ * Other than <code>queryNames</code> and <code>queryMBeans</code> of the
+ * MBeanServer, the result is returned in pages of bounded size, so that a
+ * client can walk through a huge number of MBeans without holding all of them
+ * in memory at once.
+ *
+ * The MBeans are sorted by their canonical name. Each page carries a token
+ * which returns the next page when passed to the following call, even if
+ * MBeans were registered or unregistered in between.
+ */
+public interface QueryMXBean {
+
+  /**
+   * Get a page of MBean names
+   *
+   * @param pPattern ObjectName pattern, all MBeans if null
+   * @param pNext token of the previous page, null for the first page
+   * @param pSize maximum number of names
+   * @return the page
+   */
+  QueryPage queryNames(String pPattern, String pNext, int pSize);
+
+  /**
+   * Get a page of MBean names with their class names
+   *
+   * @param pPattern ObjectName pattern, all MBeans if null
+   * @param pNext token of the previous page, null for the first page
+   * @param pSize maximum number of MBeans
+   * @return the page
+   */
+  QueryPage queryMBeans(String pPattern, String pNext, int pSize);
+
+}
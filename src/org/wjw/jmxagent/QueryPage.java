@@ -0,0 +1,46 @@
+package org.wjw.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * One page of a query returned by the {@link QueryMXBean}.
+ */
+public class QueryPage {
+
+  private final String[] names;
+
+  private final String[] classNames;
+
+  private final String next;
+
+  @ConstructorProperties({ "names", "classNames", "next" })
+  public QueryPage(String[] pNames, String[] pClassNames, String pNext) {
+    names = pNames;
+    classNames = pClassNames;
+    next = pNext;
+  }
+
+  /**
+   * @return canonical names of the MBeans on this page, sorted
+   */
+  public String[] getNames() {
+    return names;
+  }
+
+  /**
+   * @return class names of the MBeans in the same order, or null if not
+   *         requested
+   */
+  public String[] getClassNames() {
+    return classNames;
+  }
+
+  /**
+   * @return token to pass for getting the next page, or null if this is the
+   *         last page
+   */
+  public String getNext() {
+    return next;
+  }
+
+}
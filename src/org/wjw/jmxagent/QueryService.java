@@ -0,0 +1,247 @@
+package org.wjw.jmxagent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.MBeanServerForwarder;
+
+/**
+ * Paginated queries sorted by canonical name. If the connection is (or
+ * forwards to) an {@link MBeanIndexForwarder}, a page is read directly from
+ * the sorted index. Otherwise all matching names are queried, but only the
+ * names of the requested page are kept; when iterating all names, they are
+ * queried only once.
+ */
+final class QueryService implements QueryMXBean {
+
+  // Sorts ObjectNames by their canonical name, which is the order of the tokens
+  static final Comparator<ObjectName> CANONICAL_ORDER = new Comparator<ObjectName>() {
+    public int compare(ObjectName pA, ObjectName pB) {
+      return pA.getCanonicalName().compareTo(pB.getCanonicalName());
+    }
+  };
+
+  private static final int MAX_PAGE_SIZE = 10000;
+
+  private final MBeanServerConnection server;
+
+  QueryService(MBeanServerConnection pServer) {
+    server = pServer;
+  }
+
+  /** {@inheritDoc} */
+  public QueryPage queryNames(String pPattern, String pNext, int pSize) {
+    return query(pPattern, pNext, pSize, false);
+  }
+
+  /** {@inheritDoc} */
+  public QueryPage queryMBeans(String pPattern, String pNext, int pSize) {
+    return query(pPattern, pNext, pSize, true);
+  }
+
+  /**
+   * Get a page of MBean names
+   *
+   * @param pPattern pattern, null for all MBeans
+   * @param pAfter canonical name of the last MBean of the previous page or null
+   * @param pSize maximum number of names
+   * @return sorted names
+   */
+  List<ObjectName> page(ObjectName pPattern, String pAfter, int pSize) throws IOException {
+    MBeanIndexForwarder index = findIndex();
+    if (index != null) {
+      List<ObjectName> ret = index.page(pPattern, pAfter, pSize);
+      if (ret != null) {
+        return ret;
+      }
+    }
+    return select(server.queryNames(pPattern, null), null, pAfter, pSize);
+  }
+
+  /**
+   * Get all names matching a pattern, fetched page by page from the index
+   * while iterating. Without an index, all names are queried once when the
+   * iteration starts, as querying them again for every page would take
+   * quadratic time.
+   *
+   * @param pPattern pattern, null for all MBeans
+   * @param pPageSize number of names fetched at once
+   * @return sorted canonical names
+   */
+  Iterable<String> names(final ObjectName pPattern, final int pPageSize) {
+    return new Iterable<String>() {
+      public Iterator<String> iterator() {
+        return new NameIterator(pPattern, pPageSize);
+      }
+    };
+  }
+
+  /**
+   * Select the first names after a canonical name, sorted. Only the selected
+   * names are held in addition to the given ones.
+   *
+   * @param pNames names to select from
+   * @param pPattern pattern the names must match, null if they all match
+   * @param pAfter canonical name all selected names must be greater than, or
+   *          null
+   * @param pSize maximum number of names to select
+   * @return the selected names
+   */
+  static List<ObjectName> select(Collection<ObjectName> pNames, ObjectName pPattern, String pAfter, int pSize) {
+    // Max heap of the smallest names seen so far
+    PriorityQueue<ObjectName> smallest = new PriorityQueue<ObjectName>(Math.min(pSize, 1024) + 1, Collections
+        .reverseOrder(CANONICAL_ORDER));
+    for (ObjectName name : pNames) {
+      if ((pAfter != null && name.getCanonicalName().compareTo(pAfter) <= 0)
+          || (pPattern != null && !pPattern.apply(name))) {
+        continue;
+      }
+      if (smallest.size() < pSize) {
+        smallest.add(name);
+      } else if (CANONICAL_ORDER.compare(name, smallest.peek()) < 0) {
+        smallest.poll();
+        smallest.add(name);
+      }
+    }
+    List<ObjectName> ret = new ArrayList<ObjectName>(smallest);
+    Collections.sort(ret, CANONICAL_ORDER);
+    return ret;
+  }
+
+  // ===================================================================================
+
+  private QueryPage query(String pPattern, String pNext, int pSize, boolean pWithClassNames) {
+    ObjectName pattern;
+    try {
+      pattern = pPattern != null && pPattern.length() > 0 ? new ObjectName(pPattern) : null;
+    } catch (MalformedObjectNameException exp) {
+      throw new IllegalArgumentException("Invalid ObjectName " + pPattern + ": " + exp.getMessage());
+    }
+    int size = Math.max(1, Math.min(pSize, MAX_PAGE_SIZE));
+    List<ObjectName> page;
+    try {
+      // One more to know whether there is a next page
+      page = page(pattern, pNext, size + 1);
+    } catch (IOException exp) {
+      throw new IllegalStateException(exp.getMessage(), exp);
+    }
+    boolean more = page.size() > size;
+    if (more) {
+      page = page.subList(0, size);
+    }
+    String[] names = new String[page.size()];
+    String[] classNames = pWithClassNames ? new String[page.size()] : null;
+    for (int i = 0; i < names.length; i++) {
+      ObjectName name = page.get(i);
+      names[i] = name.getCanonicalName();
+      if (classNames != null) {
+        try {
+          classNames[i] = server.getObjectInstance(name).getClassName();
+        } catch (InstanceNotFoundException exp) {
+          // Unregistered in the meantime, keep its place in the page
+        } catch (IOException exp) {
+          throw new IllegalStateException(exp.getMessage(), exp);
+        }
+      }
+    }
+    return new QueryPage(names, classNames, more ? names[names.length - 1] : null);
+  }
+
+  // The sorted canonical names after a canonical name, without keeping the
+  // ObjectNames
+  private static Iterator<String> snapshot(Collection<ObjectName> pNames, String pAfter) {
+    String[] names = new String[pNames.size()];
+    int count = 0;
+    for (ObjectName name : pNames) {
+      String canonical = name.getCanonicalName();
+      if (pAfter == null || canonical.compareTo(pAfter) > 0) {
+        names[count++] = canonical;
+      }
+    }
+    Arrays.sort(names, 0, count);
+    return Arrays.asList(names).subList(0, count).iterator();
+  }
+
+  // The index somewhere in the forwarder chain, if any
+  private MBeanIndexForwarder findIndex() {
+    Object s = server;
+    while (s instanceof MBeanServerForwarder) {
+      if (s instanceof MBeanIndexForwarder) {
+        return (MBeanIndexForwarder) s;
+      }
+      if (s instanceof LazyMBeanServer) {
+        break;
+      }
+      s = ((MBeanServerForwarder) s).getMBeanServer();
+    }
+    return null;
+  }
+
+  private final class NameIterator implements Iterator<String> {
+
+    private final ObjectName pattern;
+
+    private final int pageSize;
+
+    private Iterator<ObjectName> page;
+
+    private String last;
+
+    private boolean done;
+
+    // Null until the first page, also if paging through the index
+    private Iterator<String> snapshot;
+
+    NameIterator(ObjectName pPattern, int pPageSize) {
+      pattern = pPattern;
+      pageSize = pPageSize;
+    }
+
+    public boolean hasNext() {
+      if (snapshot != null) {
+        return snapshot.hasNext();
+      }
+      if ((page == null || !page.hasNext()) && !done) {
+        List<ObjectName> names;
+        try {
+          MBeanIndexForwarder index = findIndex();
+          names = index != null ? index.page(pattern, last, pageSize) : null;
+          if (names == null) {
+            snapshot = snapshot(server.queryNames(pattern, null), last);
+            return snapshot.hasNext();
+          }
+        } catch (IOException exp) {
+          throw new IllegalStateException(exp.getMessage(), exp);
+        }
+        done = names.size() < pageSize;
+        page = names.iterator();
+      }
+      return page.hasNext();
+    }
+
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = snapshot != null ? snapshot.next() : page.next().getCanonicalName();
+      return last;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
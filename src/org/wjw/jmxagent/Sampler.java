@@ -0,0 +1,229 @@
+package org.wjw.jmxagent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+
+/**
+ * Samples numeric attributes at a fixed interval into ring buffers. Series are
+ * configured with the options
+ *
+ * <ul>
+ * <li><code>sampler.series.&lt;name&gt;</code> path
+ * <code>&lt;mbean&gt;/&lt;attribute&gt;[/&lt;key&gt;]</code> of the sampled
+ * value, see {@link AttributeSeries}</li>
+ * <li><code>sampler.interval</code> sampling interval in milliseconds, default
+ * 1000</li>
+ * <li><code>sampler.size</code> number of samples kept per series, default 600
+ * </li>
+ * <li><code>sampler.offHeap</code> if true, the buffers are allocated outside
+ * of the Java heap</li>
+ * </ul>
+ *
+ * The buffers are allocated once at startup. A sampling run reads the
+ * attributes of each MBean with a single <code>getAttributes()</code> call and
+ * stores the values without allocating anything itself.
+ */
+final class Sampler implements SamplerMXBean {
+
+  private final MBeanServer server;
+
+  private final long interval;
+
+  private final int capacity;
+
+  // Series names in the order of their buffers
+  private final String[] names;
+
+  private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+  private final AttributeSeries series;
+
+  private final LongBuffer times;
+
+  private final DoubleBuffer[] values;
+
+  // Values of the current run, copied into the buffers at its end
+  private final double[] current;
+
+  private ScheduledExecutorService executor;
+
+  // Number of samples taken, guarded by this
+  private long count;
+
+  private volatile long lastSampleNanos;
+
+  /**
+   * Create a sampler from the <code>sampler.*</code> options
+   *
+   * @param pConfig agent configuration
+   * @param pServer MBeanServer to read from
+   */
+  Sampler(AgentConfig pConfig, MBeanServer pServer) {
+    server = pServer;
+    interval = Math.max(1, pConfig.getLong("sampler.interval", 1000));
+    capacity = Math.max(1, pConfig.getInt("sampler.size", 600));
+    boolean offHeap = pConfig.getBoolean("sampler.offHeap", false);
+
+    series = new AttributeSeries(new TreeMap<String, String>(pConfig.withPrefix("sampler.series.")),
+        "sampler series");
+    names = series.getNames();
+    for (int i = 0; i < names.length; i++) {
+      indexes.put(names[i], Integer.valueOf(i));
+    }
+
+    times = offHeap ? ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer()
+        : LongBuffer.allocate(capacity);
+    values = new DoubleBuffer[names.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = offHeap ? ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder())
+          .asDoubleBuffer() : DoubleBuffer.allocate(capacity);
+    }
+    current = new double[names.length];
+  }
+
+  /**
+   * @return true if at least one series is configured
+   */
+  boolean hasSeries() {
+    return names.length > 0;
+  }
+
+  /**
+   * Start sampling
+   */
+  void start() {
+    executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Sampler"));
+    executor.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        sample();
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop sampling
+   */
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Take one sample of every series
+   */
+  void sample() {
+    long start = System.nanoTime();
+    long now = System.currentTimeMillis();
+    series.read(server, current);
+    synchronized (this) {
+      int slot = (int) (count % capacity);
+      times.put(slot, now);
+      for (int i = 0; i < current.length; i++) {
+        values[i].put(slot, current[i]);
+      }
+      count++;
+    }
+    lastSampleNanos = System.nanoTime() - start;
+  }
+
+  /** {@inheritDoc} */
+  public String[] getSeriesNames() {
+    return names.clone();
+  }
+
+  /** {@inheritDoc} */
+  public long getInterval() {
+    return interval;
+  }
+
+  /** {@inheritDoc} */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getSampleCount() {
+    return count;
+  }
+
+  /** {@inheritDoc} */
+  public long getLastSampleMicros() {
+    return lastSampleNanos / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Samples getLastSamples(String[] pSeries, int pCount) {
+    int[] series = seriesIndexes(pSeries);
+    int n = (int) Math.min(Math.min(count, capacity), Math.max(0, pCount));
+    return copy(series, count - n, n);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Samples getSamplesSince(String[] pSeries, long pTimestamp) {
+    int[] series = seriesIndexes(pSeries);
+    // Binary search for the first sample after the timestamp
+    long low = count - Math.min(count, capacity);
+    long high = count;
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (times.get((int) (mid % capacity)) > pTimestamp) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return copy(series, low, (int) (count - low));
+  }
+
+  // ===================================================================================
+
+  private int[] seriesIndexes(String[] pSeries) {
+    if (pSeries == null || pSeries.length == 0) {
+      int[] ret = new int[names.length];
+      for (int i = 0; i < ret.length; i++) {
+        ret[i] = i;
+      }
+      return ret;
+    }
+    int[] ret = new int[pSeries.length];
+    for (int i = 0; i < pSeries.length; i++) {
+      Integer idx = indexes.get(pSeries[i]);
+      if (idx == null) {
+        throw new IllegalArgumentException("Unknown series " + pSeries[i]);
+      }
+      ret[i] = idx.intValue();
+    }
+    return ret;
+  }
+
+  // Copy n samples starting at the given sample number, must hold the lock
+  private Samples copy(int[] pSeries, long pFirst, int pCount) {
+    long[] ts = new long[pCount];
+    for (int i = 0; i < pCount; i++) {
+      ts[i] = times.get((int) ((pFirst + i) % capacity));
+    }
+    Map<String, double[]> ret = new LinkedHashMap<String, double[]>();
+    for (int s : pSeries) {
+      double[] v = new double[pCount];
+      DoubleBuffer buf = values[s];
+      for (int i = 0; i < pCount; i++) {
+        v[i] = buf.get((int) ((pFirst + i) % capacity));
+      }
+      ret.put(names[s], v);
+    }
+    return new Samples(ts, ret);
+  }
+
+}
@@ -0,0 +1,55 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the sampler, registered as
+ * <code>org.wjw.jmxagent:type=Sampler</code>. It keeps the last samples of the
+ * configured series, so that a collector can fetch them in one call at a much
+ * lower rate than the sampling interval.
+ */
+public interface SamplerMXBean {
+
+  /**
+   * @return names of the sampled series
+   */
+  String[] getSeriesNames();
+
+  /**
+   * @return sampling interval in milliseconds
+   */
+  long getInterval();
+
+  /**
+   * @return number of samples kept per series
+   */
+  int getCapacity();
+
+  /**
+   * @return number of samples taken since the start
+   */
+  long getSampleCount();
+
+  /**
+   * @return duration of the last sampling run in microseconds
+   */
+  long getLastSampleMicros();
+
+  /**
+   * Get the most recent samples
+   *
+   * @param pSeries names of the series, all series if null or empty
+   * @param pCount maximum number of samples per series
+   * @return the samples, oldest first
+   */
+  Samples getLastSamples(String[] pSeries, int pCount);
+
+  /**
+   * Get all samples taken after a point in time, e.g. the last timestamp
+   * returned by the previous call
+   *
+   * @param pSeries names of the series, all series if null or empty
+   * @param pTimestamp time in milliseconds since the epoch
+   * @return the samples, oldest first
+   */
+  Samples getSamplesSince(String[] pSeries, long pTimestamp);
+
+}
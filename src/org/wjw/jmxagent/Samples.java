@@ -0,0 +1,37 @@
+package org.wjw.jmxagent;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Samples of several series returned by the {@link SamplerMXBean}. All series
+ * share the same timestamps; a sample which could not be read is
+ * <code>NaN</code>.
+ */
+public class Samples {
+
+  private final long[] timestamps;
+
+  private final Map<String, double[]> values;
+
+  @ConstructorProperties({ "timestamps", "values" })
+  public Samples(long[] pTimestamps, Map<String, double[]> pValues) {
+    timestamps = pTimestamps;
+    values = pValues;
+  }
+
+  /**
+   * @return sample times in milliseconds since the epoch, oldest first
+   */
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  /**
+   * @return the values of each series, one per timestamp
+   */
+  public Map<String, double[]> getValues() {
+    return values;
+  }
+
+}
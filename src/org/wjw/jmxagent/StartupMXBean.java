@@ -0,0 +1,41 @@
+package org.wjw.jmxagent;
+
+import java.util.Map;
+
+/**
+ * Timings of the agent startup, registered as
+ * <code>org.wjw.jmxagent:type=Startup</code>.
+ */
+public interface StartupMXBean {
+
+  /**
+   * @return duration of each startup phase (<code>args</code>,
+   *         <code>dns</code>, <code>registry</code>, <code>mbeanserver</code>,
+   *         <code>connector</code>, ...) in microseconds, in the order they ran
+   */
+  Map<String, Long> getPhaseMicros();
+
+  /**
+   * @return time the agent blocked the thread which loaded it (the
+   *         application's main thread for <code>-javaagent</code>), in
+   *         microseconds
+   */
+  long getBlockingMicros();
+
+  /**
+   * @return time from loading the agent until it was completely started, in
+   *         microseconds
+   */
+  long getTotalMicros();
+
+  /**
+   * @return true if the agent was started on a background thread
+   */
+  boolean isAsync();
+
+  /**
+   * @return true if the platform MBeanServer is created on first use
+   */
+  boolean isLazyMBeanServer();
+
+}
@@ -0,0 +1,91 @@
+package org.wjw.jmxagent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each phase of the agent startup took.
+ */
+final class StartupTimer implements StartupMXBean {
+
+  private final long loaded = System.nanoTime();
+
+  private long mark = loaded;
+
+  private long blockingNanos;
+
+  private long totalNanos;
+
+  private boolean async;
+
+  private boolean lazyMBeanServer;
+
+  private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+  /**
+   * Record the time since the end of the previous phase
+   *
+   * @param pPhase name of the phase which just ended
+   */
+  synchronized void phase(String pPhase) {
+    long now = System.nanoTime();
+    record(pPhase, now - mark);
+    mark = now;
+  }
+
+  /**
+   * Record a phase which did not run in sequence with the others
+   *
+   * @param pPhase name of the phase
+   * @param pNanos its duration
+   */
+  synchronized void record(String pPhase, long pNanos) {
+    phases.put(pPhase, Long.valueOf(pNanos / 1000));
+  }
+
+  /**
+   * Start the next phase now, e.g. after waiting for a background thread
+   */
+  synchronized void restart() {
+    mark = System.nanoTime();
+  }
+
+  synchronized void blockingEnded(boolean pAsync) {
+    blockingNanos = System.nanoTime() - loaded;
+    async = pAsync;
+  }
+
+  synchronized void started() {
+    totalNanos = System.nanoTime() - loaded;
+  }
+
+  synchronized void setLazyMBeanServer(boolean pLazy) {
+    lazyMBeanServer = pLazy;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized Map<String, Long> getPhaseMicros() {
+    return new LinkedHashMap<String, Long>(phases);
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getBlockingMicros() {
+    return blockingNanos / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized long getTotalMicros() {
+    return totalNanos / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized boolean isAsync() {
+    return async;
+  }
+
+  /** {@inheritDoc} */
+  public synchronized boolean isLazyMBeanServer() {
+    return lazyMBeanServer;
+  }
+
+}
@@ -0,0 +1,418 @@
+package org.wjw.jmxagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Checks all subscribed attributes on a single scheduler thread every
+ * <code>subscription.interval</code> milliseconds and sends a notification for
+ * every change beyond a subscription's threshold.
+ *
+ * Identical subscriptions are merged, and all subscriptions touching the same
+ * MBean are served by one <code>getAttributes()</code> call per check, no
+ * matter how many clients subscribed. Each subscription has its own
+ * notification type, so a listener filtering by type only gets the
+ * notifications of its subscriptions. A subscription expires when it has not
+ * been subscribed to or renewed for <code>subscription.lease</code>
+ * milliseconds. Nothing is read while no listener is registered, and all
+ * subscriptions are dropped when the last listener goes away.
+ */
+final class Subscriptions extends NotificationBroadcasterSupport implements SubscriptionsMXBean {
+
+  private final MBeanServer server;
+
+  private final long interval;
+
+  private final int maxSubscriptions;
+
+  private final long lease;
+
+  private final ConcurrentMap<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+
+  // The same subscriptions by pattern, attribute and threshold, guarded by itself
+  private final Map<String, Subscription> byKey = new HashMap<String, Subscription>();
+
+  private final AtomicLong ids = new AtomicLong();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final AtomicLong reads = new AtomicLong();
+
+  private final AtomicLong sent = new AtomicLong();
+
+  private volatile long lastCheckNanos;
+
+  // Registrations per listener, guarded by itself
+  private final Map<NotificationListener, Integer> listeners = new HashMap<NotificationListener, Integer>();
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * Create the service from the <code>subscription.*</code> options
+   *
+   * @param pConfig agent configuration
+   * @param pServer MBeanServer to read from
+   */
+  Subscriptions(AgentConfig pConfig, MBeanServer pServer) {
+    server = pServer;
+    interval = Math.max(10, pConfig.getLong("subscription.interval", 1000));
+    maxSubscriptions = pConfig.getInt("subscription.max", 1000);
+    lease = Math.max(interval, pConfig.getLong("subscription.lease", 300000));
+  }
+
+  /**
+   * Start checking
+   */
+  void start() {
+    executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("JmxAgent Subscriptions"));
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          check();
+        } catch (RuntimeException exp) {
+          // Keep the schedule alive
+          exp.printStackTrace(System.err);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checking and drop all subscriptions
+   */
+  void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    clear();
+  }
+
+  /** {@inheritDoc} */
+  public long subscribe(String pMBean, String pAttribute, double pThreshold) {
+    ObjectName pattern;
+    try {
+      pattern = new ObjectName(pMBean);
+    } catch (MalformedObjectNameException exp) {
+      throw new IllegalArgumentException("Invalid ObjectName " + pMBean + ": " + exp.getMessage());
+    }
+    List<String> path = EscapeUtil.parsePath(pAttribute);
+    if (path == null) {
+      throw new IllegalArgumentException("No attribute given");
+    }
+    double threshold = Math.abs(pThreshold);
+    String key = pattern.getCanonicalName() + " " + pAttribute + " " + threshold;
+    synchronized (byKey) {
+      Subscription sub = byKey.get(key);
+      if (sub == null) {
+        if (subscriptions.size() >= maxSubscriptions) {
+          throw new IllegalStateException("Maximum number of " + maxSubscriptions + " subscriptions reached");
+        }
+        sub = new Subscription(ids.incrementAndGet(), key, pattern, pAttribute, path.get(0), path.subList(1, path
+            .size()), threshold);
+        byKey.put(key, sub);
+        subscriptions.put(Long.valueOf(sub.id), sub);
+      }
+      sub.subscribers++;
+      sub.renewed = System.currentTimeMillis();
+      return sub.id;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public boolean renew(long pId) {
+    synchronized (byKey) {
+      Subscription sub = subscriptions.get(Long.valueOf(pId));
+      if (sub == null) {
+        return false;
+      }
+      sub.renewed = System.currentTimeMillis();
+      return true;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public boolean unsubscribe(long pId) {
+    synchronized (byKey) {
+      Subscription sub = subscriptions.get(Long.valueOf(pId));
+      if (sub == null) {
+        return false;
+      }
+      if (--sub.subscribers <= 0) {
+        remove(sub);
+      }
+      return true;
+    }
+  }
+
+  /** {@inheritDoc} */
+  public String[] getSubscriptions() {
+    List<String> ret = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    synchronized (byKey) {
+      for (Subscription sub : subscriptions.values()) {
+        ret.add(sub.id + ": " + sub.pattern + " " + sub.spec + " threshold " + sub.threshold + ", "
+            + sub.subscribers + " subscribers, expires in " + (sub.renewed + lease - now) / 1000 + " s");
+      }
+    }
+    return ret.toArray(new String[ret.size()]);
+  }
+
+  /** {@inheritDoc} */
+  public long getLease() {
+    return lease;
+  }
+
+  /** {@inheritDoc} */
+  public long getInterval() {
+    return interval;
+  }
+
+  /** {@inheritDoc} */
+  public long getReads() {
+    return reads.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getNotificationsSent() {
+    return sent.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getLastCheckMicros() {
+    return lastCheckNanos / 1000;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public MBeanNotificationInfo[] getNotificationInfo() {
+    return new MBeanNotificationInfo[] { new MBeanNotificationInfo(new String[] { NOTIFICATION_TYPE_PREFIX },
+        Notification.class.getName(), "Change of a subscribed attribute, the type ends with the subscription id") };
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void addNotificationListener(NotificationListener pListener, NotificationFilter pFilter, Object pHandback) {
+    super.addNotificationListener(pListener, pFilter, pHandback);
+    synchronized (listeners) {
+      Integer count = listeners.get(pListener);
+      listeners.put(pListener, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void removeNotificationListener(NotificationListener pListener) throws ListenerNotFoundException {
+    super.removeNotificationListener(pListener);
+    synchronized (listeners) {
+      listeners.remove(pListener);
+      listenerRemoved();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void removeNotificationListener(NotificationListener pListener, NotificationFilter pFilter,
+      Object pHandback) throws ListenerNotFoundException {
+    super.removeNotificationListener(pListener, pFilter, pHandback);
+    synchronized (listeners) {
+      Integer count = listeners.get(pListener);
+      if (count == null || count.intValue() <= 1) {
+        listeners.remove(pListener);
+      } else {
+        listeners.put(pListener, Integer.valueOf(count.intValue() - 1));
+      }
+      listenerRemoved();
+    }
+  }
+
+  /**
+   * Check all subscriptions once
+   */
+  void check() {
+    expire();
+    if (subscriptions.isEmpty() || !hasListeners()) {
+      return;
+    }
+    long start = System.nanoTime();
+    // The attributes needed per MBean and the subscriptions watching each MBean
+    Map<ObjectName, Set<String>> attributes = new LinkedHashMap<ObjectName, Set<String>>();
+    Map<ObjectName, List<Subscription>> watchers = new HashMap<ObjectName, List<Subscription>>();
+    for (Subscription sub : subscriptions.values()) {
+      Set<ObjectName> names = sub.pattern.isPattern() ? server.queryNames(sub.pattern, null) : Collections
+          .singleton(sub.pattern);
+      sub.forgetAllBut(names);
+      for (ObjectName name : names) {
+        Set<String> attrs = attributes.get(name);
+        if (attrs == null) {
+          attrs = new LinkedHashSet<String>();
+          attributes.put(name, attrs);
+          watchers.put(name, new ArrayList<Subscription>());
+        }
+        attrs.add(sub.attribute);
+        watchers.get(name).add(sub);
+      }
+    }
+    for (Map.Entry<ObjectName, Set<String>> entry : attributes.entrySet()) {
+      ObjectName name = entry.getKey();
+      AttributeList values;
+      try {
+        reads.incrementAndGet();
+        values = server.getAttributes(name, entry.getValue().toArray(new String[entry.getValue().size()]));
+      } catch (Exception exp) {
+        // Not registered (anymore)
+        continue;
+      }
+      Map<String, Object> byName = new HashMap<String, Object>();
+      for (Object o : values) {
+        Attribute attr = (Attribute) o;
+        byName.put(attr.getName(), attr.getValue());
+      }
+      for (Subscription sub : watchers.get(name)) {
+        if (byName.containsKey(sub.attribute)) {
+          sub.update(name, byName.get(sub.attribute));
+        }
+      }
+    }
+    lastCheckNanos = System.nanoTime() - start;
+  }
+
+  // ===================================================================================
+
+  private boolean hasListeners() {
+    synchronized (listeners) {
+      return !listeners.isEmpty();
+    }
+  }
+
+  // Must hold the listeners lock
+  private void listenerRemoved() {
+    if (listeners.isEmpty()) {
+      clear();
+    }
+  }
+
+  // Drop the subscriptions nobody renewed in time
+  private void expire() {
+    long now = System.currentTimeMillis();
+    synchronized (byKey) {
+      for (Subscription sub : subscriptions.values()) {
+        if (now - sub.renewed > lease) {
+          remove(sub);
+        }
+      }
+    }
+  }
+
+  // Must hold the byKey lock
+  private void remove(Subscription pSub) {
+    byKey.remove(pSub.key);
+    subscriptions.remove(Long.valueOf(pSub.id));
+  }
+
+  private void clear() {
+    synchronized (byKey) {
+      byKey.clear();
+      subscriptions.clear();
+    }
+  }
+
+  private static boolean changed(Object pOld, Object pNew, double pThreshold) {
+    if (pOld instanceof Number && pNew instanceof Number) {
+      double delta = Math.abs(((Number) pNew).doubleValue() - ((Number) pOld).doubleValue());
+      return pThreshold > 0 ? delta >= pThreshold : !pOld.equals(pNew);
+    }
+    return pOld == null ? pNew != null : !pOld.equals(pNew);
+  }
+
+  private final class Subscription {
+
+    final long id;
+
+    final String key;
+
+    final String type;
+
+    final ObjectName pattern;
+
+    // Attribute including inner path, as given
+    final String spec;
+
+    final String attribute;
+
+    final List<String> path;
+
+    final double threshold;
+
+    // Guarded by the byKey lock
+    int subscribers;
+
+    long renewed;
+
+    // Last notified value per MBean, only accessed by the scheduler thread
+    private final Map<ObjectName, Object> last = new HashMap<ObjectName, Object>();
+
+    Subscription(long pId, String pKey, ObjectName pPattern, String pSpec, String pAttribute, List<String> pPath,
+        double pThreshold) {
+      id = pId;
+      key = pKey;
+      type = NOTIFICATION_TYPE_PREFIX + pId;
+      pattern = pPattern;
+      spec = pSpec;
+      attribute = pAttribute;
+      path = pPath.isEmpty() ? null : new ArrayList<String>(pPath);
+      threshold = pThreshold;
+    }
+
+    void forgetAllBut(Set<ObjectName> pNames) {
+      last.keySet().retainAll(pNames);
+    }
+
+    void update(ObjectName pName, Object pValue) {
+      Object value;
+      try {
+        value = PathExtractor.extract(pValue, path);
+      } catch (IllegalArgumentException exp) {
+        return;
+      }
+      if (!last.containsKey(pName)) {
+        // First value is the baseline
+        last.put(pName, value);
+        return;
+      }
+      Object old = last.get(pName);
+      if (changed(old, value, threshold)) {
+        last.put(pName, value);
+        Notification n = new Notification(type, Subscriptions.this, sequence.incrementAndGet(), System
+            .currentTimeMillis(), pName.getCanonicalName());
+        n.setUserData(value);
+        sendNotification(n);
+        sent.incrementAndGet();
+      }
+    }
+  }
+
+}
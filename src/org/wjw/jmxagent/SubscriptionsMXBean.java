@@ -0,0 +1,91 @@
+package org.wjw.jmxagent;
+
+/**
+ * Management interface of the subscription service, registered as
+ * <code>org.wjw.jmxagent:type=Subscriptions</code>.
+ *
+ * Instead of polling attributes, a client subscribes to them and listens for
+ * the notifications of this MBean. A notification is only sent when a value
+ * changed by at least the subscription's threshold. Its type is
+ * {@link #NOTIFICATION_TYPE_PREFIX} followed by the id of the subscription, so
+ * that a client only receives its own subscriptions with a
+ * <code>NotificationFilterSupport</code> enabling these types. Its message is
+ * the ObjectName of the changed MBean and its user data the new value.
+ *
+ * Identical subscriptions of several clients are the same subscription with
+ * the same id, and cost one check. A subscription is held until every
+ * subscriber unsubscribed, or until nobody renewed it for
+ * <code>subscription.lease</code> milliseconds, so that the subscriptions of
+ * clients which disconnected without unsubscribing expire.
+ */
+public interface SubscriptionsMXBean {
+
+  /**
+   * Type of the notifications of a subscription, followed by its id
+   */
+  String NOTIFICATION_TYPE_PREFIX = "org.wjw.jmxagent.subscription.";
+
+  /**
+   * Subscribe to changes of an attribute
+   *
+   * @param pMBean ObjectName or pattern of the MBeans to watch
+   * @param pAttribute attribute name, optionally followed by an inner path like
+   *          <code>HeapMemoryUsage/used</code>
+   * @param pThreshold minimum absolute change of a numeric value which is
+   *          notified, 0 for every change. Other values are notified whenever
+   *          they are not equal.
+   * @return id of the subscription, the id of the existing subscription if
+   *         another client subscribed to the same
+   */
+  long subscribe(String pMBean, String pAttribute, double pThreshold);
+
+  /**
+   * Renew the lease of a subscription, which must happen at least every
+   * <code>subscription.lease</code> milliseconds
+   *
+   * @param pId id returned by {@link #subscribe}
+   * @return false if the subscription expired, it must be subscribed again
+   */
+  boolean renew(long pId);
+
+  /**
+   * Cancel a subscription. It ends when all clients which subscribed to it
+   * unsubscribed.
+   *
+   * @param pId id returned by {@link #subscribe}
+   * @return true if the subscription existed
+   */
+  boolean unsubscribe(long pId);
+
+  /**
+   * @return description of every active subscription
+   */
+  String[] getSubscriptions();
+
+  /**
+   * @return time in milliseconds after which a subscription expires if it is
+   *         not renewed
+   */
+  long getLease();
+
+  /**
+   * @return check interval in milliseconds
+   */
+  long getInterval();
+
+  /**
+   * @return number of getAttributes calls made for checking subscriptions
+   */
+  long getReads();
+
+  /**
+   * @return number of notifications sent
+   */
+  long getNotificationsSent();
+
+  /**
+   * @return duration of the last check in microseconds
+   */
+  long getLastCheckMicros();
+
+}
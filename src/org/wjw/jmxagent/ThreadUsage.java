@@ -0,0 +1,76 @@
+package org.wjw.jmxagent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * CPU time and allocations of a single thread within a window, returned by the
+ * {@link TopThreadsMXBean}.
+ */
+public class ThreadUsage {
+
+  private final long threadId;
+
+  private final String threadName;
+
+  private final String threadState;
+
+  private final long cpuNanos;
+
+  private final double cpuPercent;
+
+  private final long allocatedBytes;
+
+  @ConstructorProperties({ "threadId", "threadName", "threadState", "cpuNanos", "cpuPercent", "allocatedBytes" })
+  public ThreadUsage(long pThreadId, String pThreadName, String pThreadState, long pCpuNanos, double pCpuPercent,
+      long pAllocatedBytes) {
+    threadId = pThreadId;
+    threadName = pThreadName;
+    threadState = pThreadState;
+    cpuNanos = pCpuNanos;
+    cpuPercent = pCpuPercent;
+    allocatedBytes = pAllocatedBytes;
+  }
+
+  /**
+   * @return id of the thread
+   */
+  public long getThreadId() {
+    return threadId;
+  }
+
+  /**
+   * @return name of the thread
+   */
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * @return state of the thread at the end of the window
+   */
+  public String getThreadState() {
+    return threadState;
+  }
+
+  /**
+   * @return CPU time used within the window in nanoseconds, -1 if not supported
+   */
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  /**
+   * @return CPU time used as percentage of the window (of one core)
+   */
+  public double getCpuPercent() {
+    return cpuPercent;
+  }
+
+  /**
+   * @return bytes allocated within the window, -1 if not supported
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+}
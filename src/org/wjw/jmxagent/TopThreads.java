@@ -0,0 +1,182 @@
+package org.wjw.jmxagent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Computes the CPU time and allocation deltas of all threads within a window
+ * in the agent, so that finding the hot thread is a single remote call. On
+ * HotSpot the values of all threads are read with the bulk methods of
+ * <code>com.sun.management.ThreadMXBean</code>; elsewhere the CPU time is read
+ * per thread and allocations are not available.
+ *
+ * The values at the start of the window are kept in primitive maps. One pair
+ * of maps is reused by the calls; a call overlapping another one creates its
+ * own, so that concurrent calls do not wait for each other's window.
+ */
+final class TopThreads implements TopThreadsMXBean {
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  // null if the JVM has no com.sun.management.ThreadMXBean
+  private final com.sun.management.ThreadMXBean hotspotThreads;
+
+  private final long maxWindow;
+
+  // CPU times and allocated bytes at the start of the window, null while a
+  // call uses them
+  private final AtomicReference<LongLongMap[]> spareMaps = new AtomicReference<LongLongMap[]>(new LongLongMap[] {
+      new LongLongMap(256), new LongLongMap(256) });
+
+  /**
+   * Create the MBean
+   *
+   * @param pConfig agent configuration
+   */
+  TopThreads(AgentConfig pConfig) {
+    maxWindow = Math.max(0, pConfig.getLong("threads.maxWindow", 60000));
+    com.sun.management.ThreadMXBean hotspot = null;
+    try {
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        hotspot = (com.sun.management.ThreadMXBean) threads;
+      }
+    } catch (LinkageError exp) {
+      // Not a HotSpot JVM
+    }
+    hotspotThreads = hotspot;
+  }
+
+  /** {@inheritDoc} */
+  public ThreadUsage[] topThreads(long pWindowMillis, int pCount, String pOrderBy) {
+    boolean byAllocation = "allocation".equals(pOrderBy);
+    if (!byAllocation && !"cpu".equals(pOrderBy)) {
+      throw new IllegalArgumentException("Order must be 'cpu' or 'allocation', not '" + pOrderBy + "'");
+    }
+    if (pCount < 1) {
+      throw new IllegalArgumentException("Count must be at least 1");
+    }
+    long window = Math.max(0, Math.min(pWindowMillis, maxWindow));
+
+    LongLongMap[] maps = spareMaps.getAndSet(null);
+    if (maps == null) {
+      maps = new LongLongMap[] { new LongLongMap(256), new LongLongMap(256) };
+    }
+    LongLongMap cpuBefore = maps[0];
+    LongLongMap allocatedBefore = maps[1];
+    cpuBefore.clear();
+    allocatedBefore.clear();
+    long[] ids = threads.getAllThreadIds();
+    long[] cpu = cpuTimes(ids);
+    long[] allocated = allocatedBytes(ids);
+    for (int i = 0; i < ids.length; i++) {
+      cpuBefore.put(ids[i], cpu[i]);
+      allocatedBefore.put(ids[i], allocated[i]);
+    }
+    long start = System.nanoTime();
+    try {
+      Thread.sleep(window);
+    } catch (InterruptedException exp) {
+      // Report the shorter window
+      Thread.currentThread().interrupt();
+    }
+    ids = threads.getAllThreadIds();
+    cpu = cpuTimes(ids);
+    allocated = allocatedBytes(ids);
+    long elapsed = Math.max(1, System.nanoTime() - start);
+    for (int i = 0; i < ids.length; i++) {
+      cpu[i] = delta(cpu[i], cpuBefore, ids[i]);
+      allocated[i] = delta(allocated[i], allocatedBefore, ids[i]);
+    }
+    spareMaps.set(maps);
+
+    int[] top = top(byAllocation ? allocated : cpu, pCount);
+    long[] topIds = new long[top.length];
+    for (int i = 0; i < top.length; i++) {
+      topIds[i] = ids[top[i]];
+    }
+    ThreadInfo[] infos = threads.getThreadInfo(topIds);
+    List<ThreadUsage> ret = new ArrayList<ThreadUsage>(top.length);
+    for (int i = 0; i < top.length; i++) {
+      // null if the thread died in the meantime
+      if (infos[i] != null) {
+        long cpuNanos = cpu[top[i]];
+        ret.add(new ThreadUsage(topIds[i], infos[i].getThreadName(), infos[i].getThreadState().name(), cpuNanos,
+            cpuNanos < 0 ? -1 : cpuNanos * 100.0 / elapsed, allocated[top[i]]));
+      }
+    }
+    return ret.toArray(new ThreadUsage[ret.size()]);
+  }
+
+  /** {@inheritDoc} */
+  public boolean isCpuTimeSupported() {
+    return threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+  }
+
+  /** {@inheritDoc} */
+  public boolean isAllocationSupported() {
+    return hotspotThreads != null && hotspotThreads.isThreadAllocatedMemorySupported()
+        && hotspotThreads.isThreadAllocatedMemoryEnabled();
+  }
+
+  // ===================================================================================
+
+  private long[] cpuTimes(long[] pIds) {
+    if (!isCpuTimeSupported()) {
+      return filled(pIds.length, -1);
+    }
+    if (hotspotThreads != null) {
+      return hotspotThreads.getThreadCpuTime(pIds);
+    }
+    long[] ret = new long[pIds.length];
+    for (int i = 0; i < pIds.length; i++) {
+      ret[i] = threads.getThreadCpuTime(pIds[i]);
+    }
+    return ret;
+  }
+
+  private long[] allocatedBytes(long[] pIds) {
+    return isAllocationSupported() ? hotspotThreads.getThreadAllocatedBytes(pIds) : filled(pIds.length, -1);
+  }
+
+  // Difference to the start of the window, -1 if not measured
+  private static long delta(long pValue, LongLongMap pBefore, long pId) {
+    // A thread started within the window has used everything within it
+    long before = pBefore.get(pId, 0);
+    return pValue < 0 || before < 0 ? -1 : Math.max(0, pValue - before);
+  }
+
+  // Indexes of the highest values, highest first
+  private static int[] top(long[] pValues, int pCount) {
+    int[] top = new int[Math.min(pCount, pValues.length)];
+    int n = 0;
+    for (int i = 0; i < pValues.length; i++) {
+      long value = pValues[i];
+      int j;
+      if (n < top.length) {
+        j = n++;
+      } else if (value > pValues[top[n - 1]]) {
+        j = n - 1;
+      } else {
+        continue;
+      }
+      while (j > 0 && pValues[top[j - 1]] < value) {
+        top[j] = top[j - 1];
+        j--;
+      }
+      top[j] = i;
+    }
+    return top;
+  }
+
+  private static long[] filled(int pLength, long pValue) {
+    long[] ret = new long[pLength];
+    Arrays.fill(ret, pValue);
+    return ret;
+  }
+
+}
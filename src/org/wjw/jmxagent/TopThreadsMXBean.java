@@ -0,0 +1,32 @@
+package org.wjw.jmxagent;
+
+/**
+ * Finds the threads using the most CPU or allocating the most memory without
+ * a round-trip per thread, registered as
+ * <code>org.wjw.jmxagent:type=TopThreads</code>.
+ */
+public interface TopThreadsMXBean {
+
+  /**
+   * Measure the CPU time and allocations of all threads over a window and
+   * return the top threads. The call returns after the window.
+   *
+   * @param pWindowMillis length of the window in milliseconds, at most
+   *          <code>threads.maxWindow</code>
+   * @param pCount maximum number of threads to return
+   * @param pOrderBy <code>cpu</code> or <code>allocation</code>
+   * @return the top threads, highest first
+   */
+  ThreadUsage[] topThreads(long pWindowMillis, int pCount, String pOrderBy);
+
+  /**
+   * @return true if the JVM measures the CPU time of threads
+   */
+  boolean isCpuTimeSupported();
+
+  /**
+   * @return true if the JVM measures the allocations of threads
+   */
+  boolean isAllocationSupported();
+
+}
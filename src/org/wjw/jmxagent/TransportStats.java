@@ -0,0 +1,100 @@
+package org.wjw.jmxagent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters updated by the sockets of the {@link AgentSocketFactory}.
+ */
+final class TransportStats implements TransportStatsMXBean {
+
+  private final AtomicLong accepted = new AtomicLong();
+
+  private final AtomicLong open = new AtomicLong();
+
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicLong requestNanos = new AtomicLong();
+
+  private final AtomicLong maxRequestNanos = new AtomicLong();
+
+  private final AtomicLong acceptNanos = new AtomicLong();
+
+  void connectionOpened(long pAcceptNanos) {
+    accepted.incrementAndGet();
+    open.incrementAndGet();
+    acceptNanos.addAndGet(pAcceptNanos);
+  }
+
+  void connectionClosed() {
+    open.decrementAndGet();
+  }
+
+  void read(long pBytes) {
+    bytesRead.addAndGet(pBytes);
+  }
+
+  void written(long pBytes) {
+    bytesWritten.addAndGet(pBytes);
+  }
+
+  void request(long pNanos) {
+    requests.incrementAndGet();
+    requestNanos.addAndGet(pNanos);
+    long max = maxRequestNanos.get();
+    while (pNanos > max && !maxRequestNanos.compareAndSet(max, pNanos)) {
+      max = maxRequestNanos.get();
+    }
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsAccepted() {
+    return accepted.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getConnectionsOpen() {
+    return open.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** {@inheritDoc} */
+  public long getAverageRequestLatencyMicros() {
+    long n = requests.get();
+    return n == 0 ? 0 : requestNanos.get() / n / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public long getMaxRequestLatencyMicros() {
+    return maxRequestNanos.get() / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public long getAverageAcceptLatencyMicros() {
+    long n = accepted.get();
+    return n == 0 ? 0 : acceptNanos.get() / n / 1000;
+  }
+
+  /** {@inheritDoc} */
+  public void resetMax() {
+    maxRequestNanos.set(0);
+  }
+
+}
@@ -0,0 +1,58 @@
+package org.wjw.jmxagent;
+
+/**
+ * Statistics of the sockets created by the agent's RMI socket factory,
+ * registered as <code>org.wjw.jmxagent:type=Transport</code>.
+ */
+public interface TransportStatsMXBean {
+
+  /**
+   * @return number of connections accepted since the agent started
+   */
+  long getConnectionsAccepted();
+
+  /**
+   * @return number of currently open connections
+   */
+  long getConnectionsOpen();
+
+  /**
+   * @return bytes received from clients
+   */
+  long getBytesRead();
+
+  /**
+   * @return bytes sent to clients
+   */
+  long getBytesWritten();
+
+  /**
+   * @return number of requests, counted from the first byte read to the flush
+   *         of the response
+   */
+  long getRequests();
+
+  /**
+   * @return average time between receiving a request and flushing its
+   *         response, in microseconds
+   */
+  long getAverageRequestLatencyMicros();
+
+  /**
+   * @return maximum time between receiving a request and flushing its
+   *         response, in microseconds
+   */
+  long getMaxRequestLatencyMicros();
+
+  /**
+   * @return average time between accepting a connection and handing it to
+   *         RMI, in microseconds
+   */
+  long getAverageAcceptLatencyMicros();
+
+  /**
+   * Reset the maximum request latency
+   */
+  void resetMax();
+
+}
@@ -0,0 +1,110 @@
+package org.wjw.jmxagent;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Reads the blocks of a {@link BlockOutputStream} and checks that malformed
+ * blocks fail instead of returning wrong data.
+ */
+public class BlockInputStreamTest {
+
+  @Test
+  public void roundTrip() throws IOException {
+    // Compressible and random parts, some blocks deflated, some raw
+    byte[] data = new byte[5 * BlockOutputStream.BLOCK_SIZE + 123];
+    Random random = new Random(17);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (i / BlockOutputStream.BLOCK_SIZE) % 2 == 0 ? (byte) (i % 7) : (byte) random.nextInt();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BlockOutputStream blocks = new BlockOutputStream(out, 512, 6, null);
+    blocks.write(data);
+    blocks.flush();
+    assertTrue(Arrays.equals(data, readAll(out.toByteArray())));
+  }
+
+  @Test
+  public void rawBlockWithOtherLength() throws IOException {
+    byte[] block = block(BlockOutputStream.RAW, new byte[10], 20);
+    assertCorrupt(block);
+  }
+
+  @Test
+  public void compressedBlockEndingEarly() throws IOException {
+    assertCorrupt(block(BlockOutputStream.DEFLATED, deflate(new byte[100]), 200));
+  }
+
+  @Test
+  public void compressedBlockLongerThanDeclared() throws IOException {
+    assertCorrupt(block(BlockOutputStream.DEFLATED, deflate(new byte[100]), 99));
+  }
+
+  @Test
+  public void compressedBlockOfExactLength() throws IOException {
+    byte[] data = new byte[100];
+    Arrays.fill(data, (byte) 'x');
+    assertTrue(Arrays.equals(data, readAll(block(BlockOutputStream.DEFLATED, deflate(data), 100))));
+  }
+
+  // ===================================================================================
+
+  private static void assertCorrupt(byte[] pBlocks) {
+    try {
+      readAll(pBlocks);
+      fail("Read a corrupt block");
+    } catch (IOException exp) {
+      assertTrue(exp.getMessage(), exp.getMessage().startsWith("Corrupt"));
+    }
+  }
+
+  private static byte[] readAll(byte[] pBlocks) throws IOException {
+    BlockInputStream in = new BlockInputStream(new ByteArrayInputStream(pBlocks), null);
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int n;
+    while ((n = in.read(buf, 0, buf.length)) >= 0) {
+      ret.write(buf, 0, n);
+    }
+    in.close();
+    return ret.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] pData) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(pData);
+    deflater.finish();
+    byte[] buf = new byte[pData.length + 64];
+    int len = deflater.deflate(buf);
+    assertTrue(deflater.finished());
+    deflater.end();
+    return Arrays.copyOf(buf, len);
+  }
+
+  // A block with the given header, as written by BlockOutputStream
+  private static byte[] block(byte pType, byte[] pWire, int pRawLength) {
+    byte[] ret = new byte[BlockOutputStream.HEADER_SIZE + pWire.length];
+    ret[0] = pType;
+    putInt(ret, 1, pWire.length);
+    putInt(ret, 5, pRawLength);
+    System.arraycopy(pWire, 0, ret, BlockOutputStream.HEADER_SIZE, pWire.length);
+    return ret;
+  }
+
+  private static void putInt(byte[] pBuf, int pPos, int pValue) {
+    pBuf[pPos] = (byte) (pValue >>> 24);
+    pBuf[pPos + 1] = (byte) (pValue >>> 16);
+    pBuf[pPos + 2] = (byte) (pValue >>> 8);
+    pBuf[pPos + 3] = (byte) pValue;
+  }
+
+}
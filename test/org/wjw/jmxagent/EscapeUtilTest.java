@@ -0,0 +1,126 @@
+package org.wjw.jmxagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Compares the single-pass scanner of {@link EscapeUtil} with the regular
+ * expressions it replaced.
+ */
+public class EscapeUtilTest {
+
+  // Number of random strings compared with the regex implementation
+  private static final int SAMPLES = 1300000;
+
+  private static final String[][] SEPARATORS = { { EscapeUtil.PATH_ESCAPE, "/" }, { EscapeUtil.CSV_ESCAPE, "," },
+      { EscapeUtil.CSV_ESCAPE, "=" } };
+
+  @Test
+  public void splitMatchesRegexImplementation() {
+    Random random = new Random(4711);
+    char[] alphabet = { 'a', 'b', ' ', '!', '/', '\\', ',', '=' };
+    int compared = 0;
+    while (compared < SAMPLES) {
+      char[] chars = new char[random.nextInt(12)];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = alphabet[random.nextInt(alphabet.length)];
+      }
+      String arg = new String(chars);
+      for (String[] separator : SEPARATORS) {
+        if (endsWithLoneEscape(arg, unquote(separator[0]))) {
+          // Changed on purpose, see below
+          continue;
+        }
+        assertEquals("Splitting '" + arg + "' at " + separator[1], regexSplit(arg, separator[0], separator[1]),
+            EscapeUtil.split(arg, separator[0], separator[1]));
+        compared++;
+      }
+    }
+  }
+
+  @Test
+  public void trailingEscapeIsKept() {
+    // The regex silently dropped the last element
+    assertEquals(Arrays.asList("a"), regexSplit("a/b!", EscapeUtil.PATH_ESCAPE, "/"));
+    assertEquals(Arrays.asList("a", "b!"), EscapeUtil.split("a/b!", EscapeUtil.PATH_ESCAPE, "/"));
+    assertEquals(Arrays.asList("a", "b!!"), EscapeUtil.split("a/b!!!", EscapeUtil.PATH_ESCAPE, "/"));
+    assertEquals(Arrays.asList("x", "y\\"), EscapeUtil.split("x,y\\", EscapeUtil.CSV_ESCAPE, ","));
+    // An even number of escapes is well-formed and unchanged
+    assertEquals(regexSplit("a/b!!", EscapeUtil.PATH_ESCAPE, "/"), EscapeUtil.split("a/b!!",
+        EscapeUtil.PATH_ESCAPE, "/"));
+  }
+
+  @Test
+  public void combineToPathMatchesRegexImplementation() {
+    Random random = new Random(42);
+    char[] alphabet = { 'a', '!', '/', 'b' };
+    for (int n = 0; n < 10000; n++) {
+      List<String> parts = new ArrayList<String>();
+      StringBuilder expected = new StringBuilder();
+      for (int p = random.nextInt(4) + 1; p > 0; p--) {
+        char[] chars = new char[random.nextInt(6) + 1];
+        for (int i = 0; i < chars.length; i++) {
+          chars[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        String part = new String(chars);
+        parts.add(part);
+        expected.append(parts.size() > 1 ? "/" : "").append(regexEscapePart(part));
+      }
+      String path = EscapeUtil.combineToPath(parts);
+      assertEquals(expected.toString(), path);
+      assertEquals(parts, EscapeUtil.parsePath(path));
+    }
+  }
+
+  @Test
+  public void parsePathWithoutElements() {
+    assertNull(EscapeUtil.parsePath(null));
+    assertNull(EscapeUtil.parsePath(""));
+    assertNull(EscapeUtil.parsePath("/"));
+    assertNull(EscapeUtil.combineToPath(new ArrayList<String>()));
+    assertEquals(Arrays.asList("HeapMemoryUsage", "used"), EscapeUtil.parsePath("HeapMemoryUsage/used"));
+    assertEquals(Arrays.asList("a/b", "c!"), EscapeUtil.parsePath("a!/b/c!!"));
+  }
+
+  // ===================================================================================
+
+  // The implementation before the scanner
+  private static List<String> regexSplit(String pArg, String pEscape, String pDelimiter) {
+    Pattern split = Pattern.compile("((?:[^" + pEscape + pDelimiter + "]|" + pEscape + ".)*)(?:" + pDelimiter
+        + "|$)");
+    Pattern unescape = Pattern.compile(pEscape + "(.)");
+    List<String> ret = new ArrayList<String>();
+    Matcher m = split.matcher(pArg);
+    while (m.find() && m.start(1) != pArg.length()) {
+      ret.add(unescape.matcher(m.group(1)).replaceAll("$1"));
+    }
+    return ret;
+  }
+
+  private static String regexEscapePart(String pPart) {
+    return pPart.replaceAll("!", "!!").replaceAll("/", "!/");
+  }
+
+  // The escape char of an escape given as regular expression
+  private static char unquote(String pEscape) {
+    return pEscape.charAt(pEscape.length() - 1);
+  }
+
+  private static boolean endsWithLoneEscape(String pArg, char pEscape) {
+    int count = 0;
+    for (int i = pArg.length() - 1; i >= 0 && pArg.charAt(i) == pEscape; i--) {
+      count++;
+    }
+    return count % 2 == 1;
+  }
+
+}
@@ -0,0 +1,225 @@
+package org.wjw.jmxagent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pushes to a UDP socket on the loopback interface and checks the datagrams
+ * and counters of {@link PushExporter}.
+ */
+public class PushExporterTest {
+
+  private static final String MBEAN = "test:type=Values";
+
+  private DatagramSocket socket;
+
+  private MBeanServer server;
+
+  private PushExporter exporter;
+
+  @Before
+  public void setUp() throws Exception {
+    socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    socket.setSoTimeout(5000);
+    server = MBeanServerFactory.newMBeanServer();
+    server.registerMBean(new Values(), new ObjectName(MBEAN));
+  }
+
+  @After
+  public void tearDown() {
+    if (exporter != null) {
+      exporter.stop();
+    }
+    socket.close();
+  }
+
+  @Test
+  public void statsdLines() throws Exception {
+    Map<String, String> args = options("statsd", 1400);
+    args.put("push.value.a", MBEAN + "/Half");
+    args.put("push.value.b", MBEAN + "/Negative");
+    args.put("push.value.c", MBEAN + "/Whole");
+    args.put("push.value.d", MBEAN + "/Zero");
+    args.put("push.value.e", MBEAN + "/Rounded");
+    args.put("push.value.f", MBEAN + "/Tiny");
+    args.put("push.value.g", MBEAN + "/Huge");
+    args.put("push.value.h", MBEAN + "/NotANumber");
+    args.put("push.value.i:j", MBEAN + "/Whole");
+    args.put("push.value.k", MBEAN + "/Large");
+    args.put("push.value.l", MBEAN + "/Bytes");
+    args.put("push.value.m", MBEAN + "/NegativeBytes");
+    args.put("push.value.n", MBEAN + "/Carry");
+    start(args);
+
+    // Sorted by name, a negative gauge is set to 0 first, NaN is skipped
+    assertEquals("t.a:1.5|g\n" + "t.b:0|g\nt.b:-2|g\n" + "t.c:42|g\n" + "t.d:0|g\n" + "t.e:0.123457|g\n"
+        + "t.f:1.23E-4|g\n" + "t.g:1.0E16|g\n" + "t.i_j:42|g\n" + "t.k:8500000000000.25|g\n"
+        + "t.l:10000000000000|g\n" + "t.m:0|g\nt.m:-500000000000000|g\n" + "t.n:3|g\n", receive());
+    waitForLines(14);
+    assertEquals(0, exporter.getLinesDropped());
+  }
+
+  @Test
+  public void influxLines() throws Exception {
+    Map<String, String> args = options("influx", 1400);
+    args.put("push.value.a", MBEAN + "/Half");
+    args.put("push.value.b", MBEAN + "/Negative");
+    args.put("push.value.c d", MBEAN + "/Rounded");
+    start(args);
+
+    String[] lines = receive().split("\n", -1);
+    assertEquals(4, lines.length);
+    String tags = "t,host=[^ ]+,pid=\\d+ ";
+    assertTrue(lines[0], lines[0].matches(tags + "a=1\\.5 \\d+000000"));
+    assertTrue(lines[1], lines[1].matches(tags + "b=-2 \\d+000000"));
+    assertTrue(lines[2], lines[2].matches(tags + "c\\\\ d=0\\.123457 \\d+000000"));
+    assertEquals("", lines[3]);
+  }
+
+  @Test
+  public void oldestLinesAreDroppedWhenBuffersAreFull() throws Exception {
+    // Each line reserves 6 + 32 + 3 bytes, so three fit into 64 bytes
+    Map<String, String> args = options("statsd", 64);
+    args.put("push.buffers", "2");
+    for (int i = 0; i <= 20; i++) {
+      args.put("push.value.v" + (i < 10 ? "0" : "") + i, MBEAN + "/Whole");
+    }
+    start(args);
+
+    // A single collection fills seven buffers while holding the lock, the
+    // first five are dropped
+    assertEquals("t.v15:42|g\nt.v16:42|g\nt.v17:42|g\n", receive());
+    assertEquals("t.v18:42|g\nt.v19:42|g\nt.v20:42|g\n", receive());
+    waitForLines(6);
+    assertEquals(15, exporter.getLinesDropped());
+    assertEquals(0, exporter.getSendFailures());
+  }
+
+  // ===================================================================================
+
+  private Map<String, String> options(String pFormat, int pFlushSize) {
+    Map<String, String> ret = new HashMap<String, String>();
+    ret.put("push", "udp://127.0.0.1:" + socket.getLocalPort());
+    ret.put("push.format", pFormat);
+    ret.put("push.prefix", "t");
+    // Collect once only
+    ret.put("push.interval", "3600000");
+    ret.put("push.flushInterval", "50");
+    ret.put("push.flushSize", Integer.toString(pFlushSize));
+    return ret;
+  }
+
+  private void start(Map<String, String> pArgs) throws Exception {
+    exporter = new PushExporter(new AgentConfig(pArgs), server);
+    exporter.start();
+  }
+
+  private String receive() throws Exception {
+    byte[] buf = new byte[65536];
+    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    socket.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+  }
+
+  // The counters are updated after the datagram is sent
+  private void waitForLines(long pLines) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (exporter.getLinesSent() < pLines && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(pLines, exporter.getLinesSent());
+  }
+
+  public interface ValuesMBean {
+
+    double getHalf();
+
+    int getNegative();
+
+    long getWhole();
+
+    double getZero();
+
+    double getRounded();
+
+    double getTiny();
+
+    double getHuge();
+
+    double getNotANumber();
+
+    double getLarge();
+
+    long getBytes();
+
+    long getNegativeBytes();
+
+    double getCarry();
+  }
+
+  public static class Values implements ValuesMBean {
+
+    public double getHalf() {
+      return 1.5;
+    }
+
+    public int getNegative() {
+      return -2;
+    }
+
+    public long getWhole() {
+      return 42;
+    }
+
+    public double getZero() {
+      return 0;
+    }
+
+    public double getRounded() {
+      return 0.1234567;
+    }
+
+    public double getTiny() {
+      return 0.000123;
+    }
+
+    public double getHuge() {
+      return 1e16;
+    }
+
+    public double getNotANumber() {
+      return Double.NaN;
+    }
+
+    public double getLarge() {
+      return 8.5e12 + 0.25;
+    }
+
+    public long getBytes() {
+      return 10000000000000L;
+    }
+
+    public long getNegativeBytes() {
+      return -500000000000000L;
+    }
+
+    public double getCarry() {
+      return 2.9999999;
+    }
+  }
+
+}